@@ -0,0 +1,272 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Book01エンティティおよびCD01エンティティの変更履歴（最終更新時刻と
+ * 削除されたエンティティの主キー）を保持するシングルトン・セッションBean。
+ *
+ * ItemEJBの更新系メソッドから呼び出されて変更を記録し、
+ * ItemEJBのfindBooksModifiedSince()、findCDsModifiedSince()で
+ * ある時刻以降の変更を取り出すために利用される。
+ *
+ * 変更はトランザクションのコミット後に、コミット順に単調増加する
+ * 時刻とともに記録される。このため、ロールバックされた変更が
+ * 記録されることはなく、また、ある時刻以降の差分を取得した
+ * クライアントが後からコミットされた変更を取りこぼすこともない。
+ *
+ * 変更履歴はメモリ上にのみ保持されるため、このBeanのインスタンスが
+ * 生成される前の時刻を基準にした問い合わせには全件の再取得を要求する。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class ItemChangeTrackerEJB {
+
+	// 削除されたエンティティの主キーを保持する期間
+	private static final long DELETED_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	private final ChangeLog bookLog = new ChangeLog();
+	private final ChangeLog cdLog = new ChangeLog();
+
+	@PostConstruct
+	void init() {
+		long now = System.currentTimeMillis();
+		bookLog.horizon = now;
+		cdLog.horizon = now;
+	}
+
+	/**
+	 * Book01エンティティが作成または更新されたことを記録する
+	 * @param id 作成または更新されたBook01エンティティの主キー
+	 */
+	public void bookModified(Long id) {
+		recordAfterCommit(bookLog, id, false);
+	}
+
+	/**
+	 * Book01エンティティが削除されたことを記録する
+	 * @param id 削除されたBook01エンティティの主キー
+	 */
+	public void bookDeleted(Long id) {
+		recordAfterCommit(bookLog, id, true);
+	}
+
+	/**
+	 * CD01エンティティが作成または更新されたことを記録する
+	 * @param id 作成または更新されたCD01エンティティの主キー
+	 */
+	public void cdModified(Long id) {
+		recordAfterCommit(cdLog, id, false);
+	}
+
+	/**
+	 * CD01エンティティが削除されたことを記録する
+	 * @param id 削除されたCD01エンティティの主キー
+	 */
+	public void cdDeleted(Long id) {
+		recordAfterCommit(cdLog, id, true);
+	}
+
+	/**
+	 * 指定した時刻より後に記録されたBook01エンティティの変更を
+	 * 記録された順に取得する
+	 * @param since 基準時刻
+	 * @param limit 取得する変更の最大件数
+	 * @return 変更のリスト
+	 */
+	public List<Change> getBookChangesSince(Date since, int limit) {
+		return bookLog.since(since.getTime(), limit);
+	}
+
+	/**
+	 * 指定した時刻より後に記録されたCD01エンティティの変更を
+	 * 記録された順に取得する
+	 * @param since 基準時刻
+	 * @param limit 取得する変更の最大件数
+	 * @return 変更のリスト
+	 */
+	public List<Change> getCDChangesSince(Date since, int limit) {
+		return cdLog.since(since.getTime(), limit);
+	}
+
+	/**
+	 * 指定した時刻以降のBook01エンティティの変更履歴が
+	 * すべて保持されているかどうかを判定する
+	 * @param since 基準時刻
+	 * @return 変更履歴がすべて保持されている場合はtrue
+	 */
+	public boolean isBookHistoryAvailable(Date since) {
+		return since != null && since.getTime() >= bookLog.horizon;
+	}
+
+	/**
+	 * 指定した時刻以降のCD01エンティティの変更履歴が
+	 * すべて保持されているかどうかを判定する
+	 * @param since 基準時刻
+	 * @return 変更履歴がすべて保持されている場合はtrue
+	 */
+	public boolean isCDHistoryAvailable(Date since) {
+		return since != null && since.getTime() >= cdLog.horizon;
+	}
+
+	/**
+	 * 最後に記録されたBook01エンティティの変更の時刻を取得する
+	 * @return 最後に記録された変更の時刻
+	 */
+	public Date getLastBookChange() {
+		return new Date(bookLog.lastStamp());
+	}
+
+	/**
+	 * 最後に記録されたCD01エンティティの変更の時刻を取得する
+	 * @return 最後に記録された変更の時刻
+	 */
+	public Date getLastCDChange() {
+		return new Date(cdLog.lastStamp());
+	}
+
+	/**
+	 * 保持期間を過ぎた削除の履歴を定期的に破棄する
+	 */
+	@Schedule(hour = "*", persistent = false)
+	void purgeDeleted() {
+		long expiry = System.currentTimeMillis() - DELETED_RETENTION_MILLIS;
+		bookLog.purgeDeletedBefore(expiry);
+		cdLog.purgeDeletedBefore(expiry);
+	}
+
+	private void recordAfterCommit(final ChangeLog log, final Long id, final boolean deleted) {
+		if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			log.record(id, deleted);
+			return;
+		}
+		// トランザクションがコミットされた時点で記録する
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					log.record(id, deleted);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 1件のエンティティの変更を表すクラス
+	 */
+	public static class Change implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Long id;
+		private final long stamp;
+		private final boolean deleted;
+
+		Change(Long id, long stamp, boolean deleted) {
+			this.id = id;
+			this.stamp = stamp;
+			this.deleted = deleted;
+		}
+
+		public Long getId() {
+			return id;
+		}
+
+		public long getStamp() {
+			return stamp;
+		}
+
+		public boolean isDeleted() {
+			return deleted;
+		}
+	}
+
+	/**
+	 * エンティティ1種類分の変更履歴。
+	 *
+	 * 主キーごとに最新の変更だけを保持し、時刻順に並べた
+	 * ConcurrentSkipListMapにより、ある時刻以降の変更を
+	 * ロックなしで読み出せるようにしている。
+	 */
+	private static class ChangeLog {
+
+		private final ConcurrentSkipListMap<Long, Change> byStamp
+				= new ConcurrentSkipListMap<Long, Change>();
+		private final Map<Long, Change> byId = new ConcurrentHashMap<Long, Change>();
+
+		// これより前の時刻を基準にした差分は取得できない
+		private volatile long horizon;
+
+		private long lastStamp;
+
+		/**
+		 * 時刻の採番と記録を同じロックの中で行うことで、
+		 * 記録される順序と時刻の順序を一致させる
+		 */
+		synchronized void record(Long id, boolean deleted) {
+			long stamp = Math.max(System.currentTimeMillis(), lastStamp + 1);
+			lastStamp = stamp;
+
+			Change change = new Change(id, stamp, deleted);
+			Change old = byId.put(id, change);
+			if (old != null) {
+				byStamp.remove(old.getStamp());
+			}
+			byStamp.put(stamp, change);
+		}
+
+		synchronized long lastStamp() {
+			return Math.max(lastStamp, horizon);
+		}
+
+		List<Change> since(long since, int limit) {
+			List<Change> changes = new ArrayList<Change>();
+			for (Change change : byStamp.tailMap(since, false).values()) {
+				if (changes.size() >= limit) {
+					break;
+				}
+				changes.add(change);
+			}
+			return changes;
+		}
+
+		synchronized void purgeDeletedBefore(long expiry) {
+			Map<Long, Change> expired = byStamp.headMap(expiry);
+			List<Change> purged = new ArrayList<Change>();
+			for (Change change : expired.values()) {
+				if (change.isDeleted()) {
+					purged.add(change);
+				}
+			}
+			for (Change change : purged) {
+				byStamp.remove(change.getStamp());
+				byId.remove(change.getId());
+			}
+			if (!purged.isEmpty()) {
+				horizon = Math.max(horizon, expiry);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * ある時刻以降に変更されたエンティティの差分を表すクラス。
+ *
+ * ItemEJBのfindBooksModifiedSince()、findCDsModifiedSince()の
+ * 戻り値として使用される。
+ *
+ * クライアントは、前回取得したItemDeltaのgetUntil()の値を次回の
+ * 問い合わせの基準時刻として指定することで、その間に変更された
+ * エンティティだけを取得することができる。
+ *
+ * @param <T> 差分の対象となるエンティティの型
+ */
+public class ItemDelta<T> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// 基準時刻以降に作成または更新されたエンティティ
+	private final List<T> modified;
+
+	// 基準時刻以降に削除されたエンティティの主キー
+	private final List<Long> deletedIds;
+
+	// この差分に含まれる最後の変更の時刻
+	private final Date until;
+
+	// 差分に含まれない変更がまだ残っている（件数の上限に達した）場合はtrue
+	private final boolean hasMore;
+
+	// 基準時刻が変更履歴の保持範囲より古いため、差分ではなく
+	// 全件の再取得が必要な場合はtrue
+	private final boolean fullRefreshRequired;
+
+	public ItemDelta(List<T> modified, List<Long> deletedIds,
+			Date until, boolean hasMore, boolean fullRefreshRequired) {
+		this.modified = modified;
+		this.deletedIds = deletedIds;
+		this.until = until;
+		this.hasMore = hasMore;
+		this.fullRefreshRequired = fullRefreshRequired;
+	}
+
+	public List<T> getModified() {
+		return modified;
+	}
+
+	public List<Long> getDeletedIds() {
+		return deletedIds;
+	}
+
+	public Date getUntil() {
+		return until;
+	}
+
+	public boolean isHasMore() {
+		return hasMore;
+	}
+
+	public boolean isFullRefreshRequired() {
+		return fullRefreshRequired;
+	}
+}
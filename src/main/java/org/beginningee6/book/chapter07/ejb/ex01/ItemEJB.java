@@ -1,10 +1,22 @@
 package org.beginningee6.book.chapter07.ejb.ex01;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import javax.persistence.TypedQuery;
 
 import org.beginningee6.book.chapter07.jpa.ex01.Book01;
@@ -23,6 +35,20 @@ public class ItemEJB {
 	@PersistenceContext(unitName = "Chapter07ProductionPU")
 	private EntityManager em;
 	
+	// 1件ずつ別トランザクションで更新するために、自身のビジネス
+	// オブジェクトを取得する目的でSessionContextを注入
+	@Resource
+	private SessionContext context;
+	
+	// 差分の問い合わせのためにエンティティの変更履歴を記録する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private ItemChangeTrackerEJB changeTracker;
+	
+	// レーベルごとの集計値を保持するシングルトン・セッションBeanを注入
+	@EJB
+	private MusicCompanyIndexEJB musicCompanyIndex;
+	
 	/**
 	 * 名前付きクエリを用いて、永続化されているすべての
 	 * Book01エンティティを取得する
@@ -52,6 +78,7 @@ public class ItemEJB {
      */
     public Book01 createBook(Book01 book) {
         em.persist(book);
+        changeTracker.bookModified(book.getId());
 
         return book;
     }
@@ -62,6 +89,7 @@ public class ItemEJB {
      */
     public void deleteBook(Book01 book) {
         em.remove(em.merge(book));
+        changeTracker.bookDeleted(book.getId());
     }
 
     /**
@@ -73,7 +101,86 @@ public class ItemEJB {
      */
     public Book01 updateBook(Book01 book) {
         
-    	return em.merge(book);
+    	Book01 merged = em.merge(book);
+    	changeTracker.bookModified(merged.getId());
+    	
+    	return merged;
+    }
+
+    /**
+     * 読み込んだ時点から変更されていないことをチェックしたうえで
+     * Book01エンティティのフィールドの値を更新する
+     * 
+     * Book01エンティティには＠Versionフィールドがないため、読み込んだ時点の
+     * フィールドの値（expected）をWHERE句の条件とするUPDATE文
+     * （compare-and-set）を発行する。更新された行が0件であれば、
+     * 他のクライアントによる更新や削除との競合とみなして
+     * UpdateConflictExceptionをスローする。読み込みから更新までの間に
+     * 行ロックを保持することはない。
+     * 
+     * 比較の対象は、コンストラクタで設定する属性のうちLOB以外のものとする。
+     * それ以外の属性は、比較に成功した後にマージで反映する。
+     * 
+     * 呼び出し元のトランザクションとは独立した新しいトランザクションで
+     * 実行されるため、競合によるロールバックの影響はこのエンティティの
+     * 更新だけにとどまる。
+     * 
+     * @param expected 読み込んだ時点のBook01エンティティ（変更を加えていないもの）
+     * @param book フィールドの更新が反映されたBook01エンティティ
+     * @return フィールドの更新がデータベースへ反映されたBook01エンティティ
+     * @throws UpdateConflictException 他のクライアントによる更新との競合を検出した場合
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public Book01 updateBookChecked(Book01 expected, Book01 book) throws UpdateConflictException {
+    	Long id = checkSameId(expected.getId(), book.getId());
+    	
+    	if (compareAndSet("Book01", id, bookAttributes(expected), bookAttributes(book)) == 0) {
+    		throw new UpdateConflictException(id);
+    	}
+    	// 比較の対象としない属性を反映する（差分がなければUPDATE文は発行されない）
+    	Book01 merged = em.merge(book);
+    	changeTracker.bookModified(id);
+    	
+    	return merged;
+    }
+
+    /**
+     * 複数のBook01エンティティを、読み込んだ時点から変更されていないことを
+     * チェックしたうえで一括して更新する
+     * 
+     * 各エンティティは1件ずつ独立したトランザクションで更新されるため、
+     * 競合が検出されたエンティティがあっても、それ以外のエンティティの
+     * 更新はデータベースに反映される。競合のために更新されなかった
+     * エンティティの主キーは戻り値のリストとして呼び出し元に返される。
+     * 
+     * 競合以外の理由（データベースの障害など）で更新に失敗した場合は、
+     * 競合として報告せずにその例外をそのままスローする。その時点までに
+     * 更新されたエンティティの更新はデータベースに反映されたままとなる。
+     * 
+     * @param expected 読み込んだ時点のBook01エンティティのリスト
+     * @param books フィールドの更新が反映されたBook01エンティティのリスト
+     * （expectedと同じ順序で並べたもの）
+     * @return 競合が検出されたために更新されなかったBook01エンティティの
+     * 主キーのリスト
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public List<Long> updateBooks(List<Book01> expected, List<Book01> books) {
+    	checkSameSize(expected, books);
+    	
+    	// updateBookChecked()のトランザクション属性を有効にするため、
+    	// thisではなくコンテナを経由して呼び出す
+    	ItemEJB self = context.getBusinessObject(ItemEJB.class);
+    	
+    	List<Long> conflicts = new ArrayList<Long>();
+    	for (int i = 0; i < books.size(); i++) {
+    		try {
+    			self.updateBookChecked(expected.get(i), books.get(i));
+    		} catch (UpdateConflictException e) {
+    			conflicts.add(e.getId());
+    		}
+    	}
+    	
+    	return conflicts;
     }
 
 	/**
@@ -98,6 +205,38 @@ public class ItemEJB {
         return em.find(CD01.class, id);
     }
 
+    /**
+     * レーベル（musicCompany）を指定して、そのレーベルの
+     * CD01エンティティを取得する
+     * 
+     * (MUSICCOMPANY, ID)のインデックスを使用する。インデックスを
+     * 作成するDDLはsrc/main/sql/cd01-indexes.sqlにあり、デプロイ前に
+     * データベースに対して一度だけ実行する。
+     * 
+     * @param musicCompany レーベル名
+     * @return 指定したレーベルのCD01エンティティのリスト
+     */
+    public List<CD01> findCDsByMusicCompany(String musicCompany) {
+    	TypedQuery<CD01> query = em.createQuery(
+    			"SELECT c FROM CD01 c WHERE c.musicCompany = :musicCompany ORDER BY c.id", 
+    			CD01.class);
+    	query.setParameter("musicCompany", musicCompany);
+    	
+    	return query.getResultList();
+    }
+
+    /**
+     * レーベルごとのCD01エンティティの件数と合計演奏時間を取得する
+     * 
+     * 集計値はMusicCompanyIndexEJBがメモリ上に保持しているものを返すため、
+     * CD01テーブルの走査は行われない。
+     * 
+     * @return レーベル名の順に並べた集計値のリスト
+     */
+    public List<MusicCompanyStatistics> getMusicCompanyStatistics() {
+    	return musicCompanyIndex.getStatistics();
+    }
+
     /**
      * 新規にCD01エンティティを永続化する
      * @param cd 永続化するCD01エンティティ
@@ -105,6 +244,8 @@ public class ItemEJB {
      */
     public CD01 createCD(CD01 cd) {
         em.persist(cd);
+        changeTracker.cdModified(cd.getId());
+        musicCompanyIndex.cdCreated(cd.getMusicCompany(), cd.getTotalDuration());
         
         return cd;
     }
@@ -114,7 +255,13 @@ public class ItemEJB {
      * @param cd 削除するCD01エンティティ
      */
     public void deleteCD(CD01 cd) {
-        em.remove(em.merge(cd));
+        // 集計値から差し引く削除前の値を、行ロックを獲得して読み込む
+        CD01 current = em.find(CD01.class, cd.getId(), LockModeType.PESSIMISTIC_WRITE);
+        if (current != null) {
+        	em.remove(current);
+        	musicCompanyIndex.cdDeleted(current.getMusicCompany(), current.getTotalDuration());
+        }
+        changeTracker.cdDeleted(cd.getId());
     }
 
     /**
@@ -126,6 +273,280 @@ public class ItemEJB {
      */
     public CD01 updateCD(CD01 cd) {
         
-    	return em.merge(cd);
+    	return mergeCD(cd);
+    }
+
+    /**
+     * 読み込んだ時点から変更されていないことをチェックしたうえで
+     * CD01エンティティのフィールドの値を更新する
+     * 
+     * 競合の検出方法とトランザクションの扱いはupdateBookChecked()と同じ。
+     * 
+     * @param expected 読み込んだ時点のCD01エンティティ（変更を加えていないもの）
+     * @param cd フィールドの更新が反映されたCD01エンティティ
+     * @return フィールドの更新がデータベースへ反映されたCD01エンティティ
+     * @throws UpdateConflictException 他のクライアントによる更新との競合を検出した場合
+     */
+    @TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public CD01 updateCDChecked(CD01 expected, CD01 cd) throws UpdateConflictException {
+    	Long id = checkSameId(expected.getId(), cd.getId());
+    	
+    	if (compareAndSet("CD01", id, cdAttributes(expected), cdAttributes(cd)) == 0) {
+    		throw new UpdateConflictException(id);
+    	}
+    	CD01 merged = em.merge(cd);
+    	changeTracker.cdModified(id);
+    	// 更新前の値はexpectedと一致していたことが確認できている
+    	musicCompanyIndex.cdUpdated(expected.getMusicCompany(), expected.getTotalDuration(), 
+    			cd.getMusicCompany(), cd.getTotalDuration());
+    	
+    	return merged;
+    }
+
+    /**
+     * 複数のCD01エンティティを、読み込んだ時点から変更されていないことを
+     * チェックしたうえで一括して更新する
+     * 
+     * 更新の方法と戻り値はupdateBooks()と同じ。
+     * 
+     * @param expected 読み込んだ時点のCD01エンティティのリスト
+     * @param cds フィールドの更新が反映されたCD01エンティティのリスト
+     * （expectedと同じ順序で並べたもの）
+     * @return 競合が検出されたために更新されなかったCD01エンティティの
+     * 主キーのリスト
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public List<Long> updateCDs(List<CD01> expected, List<CD01> cds) {
+    	checkSameSize(expected, cds);
+    	
+    	ItemEJB self = context.getBusinessObject(ItemEJB.class);
+    	
+    	List<Long> conflicts = new ArrayList<Long>();
+    	for (int i = 0; i < cds.size(); i++) {
+    		try {
+    			self.updateCDChecked(expected.get(i), cds.get(i));
+    		} catch (UpdateConflictException e) {
+    			conflicts.add(e.getId());
+    		}
+    	}
+    	
+    	return conflicts;
+    }
+
+    /**
+     * 現在の値が期待する値と一致する場合に限り、エンティティを更新する
+     * UPDATE文を発行する
+     * 
+     * 期待する値がnullの属性はIS NULLで比較する。
+     * （nullのパラメータをIS NULLで比較できないデータベースがあるため）
+     * 
+     * @param entityName エンティティ名
+     * @param id 主キー
+     * @param expected 属性名と期待する値
+     * @param updated 属性名と更新後の値
+     * @return 更新された行の数（競合した場合は0）
+     */
+    private int compareAndSet(String entityName, Long id, 
+    		Map<String, Object> expected, Map<String, Object> updated) {
+    	StringBuilder jpql = new StringBuilder("UPDATE ").append(entityName).append(" e SET ");
+    	int i = 0;
+    	for (String attribute : updated.keySet()) {
+    		jpql.append(i++ == 0 ? "" : ", ")
+    			.append("e.").append(attribute).append(" = :new_").append(attribute);
+    	}
+    	jpql.append(" WHERE e.id = :id");
+    	for (Map.Entry<String, Object> entry : expected.entrySet()) {
+    		jpql.append(" AND e.").append(entry.getKey());
+    		if (entry.getValue() == null) {
+    			jpql.append(" IS NULL");
+    		} else {
+    			jpql.append(" = :old_").append(entry.getKey());
+    		}
+    	}
+    	
+    	Query query = em.createQuery(jpql.toString());
+    	query.setParameter("id", id);
+    	for (Map.Entry<String, Object> entry : updated.entrySet()) {
+    		query.setParameter("new_" + entry.getKey(), entry.getValue());
+    	}
+    	for (Map.Entry<String, Object> entry : expected.entrySet()) {
+    		if (entry.getValue() != null) {
+    			query.setParameter("old_" + entry.getKey(), entry.getValue());
+    		}
+    	}
+    	return query.executeUpdate();
+    }
+
+    private static Map<String, Object> bookAttributes(Book01 book) {
+    	Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    	attributes.put("title", book.getTitle());
+    	attributes.put("price", book.getPrice());
+    	attributes.put("description", book.getDescription());
+    	attributes.put("isbn", book.getIsbn());
+    	attributes.put("nbOfPage", book.getNbOfPage());
+    	attributes.put("illustrations", book.getIllustrations());
+    	return attributes;
+    }
+
+    private static Map<String, Object> cdAttributes(CD01 cd) {
+    	Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    	attributes.put("title", cd.getTitle());
+    	attributes.put("price", cd.getPrice());
+    	attributes.put("description", cd.getDescription());
+    	attributes.put("musicCompany", cd.getMusicCompany());
+    	attributes.put("numberOfCDs", cd.getNumberOfCDs());
+    	attributes.put("totalDuration", cd.getTotalDuration());
+    	attributes.put("gender", cd.getGender());
+    	return attributes;
+    }
+
+    private static Long checkSameId(Long expectedId, Long id) {
+    	if (id == null || !id.equals(expectedId)) {
+    		throw new IllegalArgumentException(
+    				"expected and updated entities must have the same id : " + expectedId + ", " + id);
+    	}
+    	return id;
+    }
+
+    private static void checkSameSize(List<?> expected, List<?> updated) {
+    	if (expected.size() != updated.size()) {
+    		throw new IllegalArgumentException(
+    				"expected and updated lists must have the same size : " 
+    				+ expected.size() + ", " + updated.size());
+    	}
+    }
+
+    /**
+     * CD01エンティティをマージし、変更履歴とレーベルごとの集計値に
+     * 更新を反映する
+     */
+    private CD01 mergeCD(CD01 cd) {
+    	// マージによって上書きされる前に、更新前の値を取得しておく
+    	// 
+    	// 行ロックを獲得して読み込むことで、同じCD01エンティティの更新を
+    	// 直列化し、後の更新が先の更新の結果を更新前の値として読み込む
+    	// ようにする。（両方が同じ値を更新前の値として差し引くことはない）
+    	// 読み込んだエンティティは永続性コンテキストで管理されるため、
+    	// マージでもう一度SELECT文が発行されることはない。
+    	CD01 current = cd.getId() == null ? null 
+    			: em.find(CD01.class, cd.getId(), LockModeType.PESSIMISTIC_WRITE);
+    	String oldMusicCompany = current == null ? null : current.getMusicCompany();
+    	Float oldTotalDuration = current == null ? null : current.getTotalDuration();
+    	
+    	CD01 merged = em.merge(cd);
+    	changeTracker.cdModified(merged.getId());
+    	if (current == null) {
+    		musicCompanyIndex.cdCreated(merged.getMusicCompany(), merged.getTotalDuration());
+    	} else {
+    		musicCompanyIndex.cdUpdated(oldMusicCompany, oldTotalDuration, 
+    				merged.getMusicCompany(), merged.getTotalDuration());
+    	}
+    	
+    	return merged;
+    }
+
+    /**
+     * 指定した時刻より後に作成、更新、削除されたBook01エンティティの
+     * 差分を取得する
+     * 
+     * 戻り値のItemDelta.getUntil()を次回の呼び出しのsinceに指定することで、
+     * findBooks()による全件の再取得をせずに、変更されたエンティティだけを
+     * 順に取得することができる。
+     * 
+     * sinceがnullの場合や変更履歴の保持範囲より古い場合は、
+     * ItemDelta.isFullRefreshRequired()がtrueとなる。この場合、
+     * クライアントはfindBooks()で全件を取得し、ItemDelta.getUntil()を
+     * 次回のsinceとして使用する。
+     * 
+     * @param since 基準時刻
+     * @param limit 1回の呼び出しで取得する変更の最大件数（1以上）
+     * @return 基準時刻より後のBook01エンティティの差分
+     * @throws IllegalArgumentException limitが1未満の場合
+     */
+    public ItemDelta<Book01> findBooksModifiedSince(Date since, int limit) {
+    	checkLimit(limit);
+    	if (!changeTracker.isBookHistoryAvailable(since)) {
+    		return fullRefresh(changeTracker.getLastBookChange());
+    	}
+    	
+    	return toDelta(Book01.class, since, limit, 
+    			changeTracker.getBookChangesSince(since, limit + 1));
+    }
+
+    /**
+     * 指定した時刻より後に作成、更新、削除されたCD01エンティティの
+     * 差分を取得する
+     * 
+     * 使い方はfindBooksModifiedSince()と同じ。
+     * 
+     * @param since 基準時刻
+     * @param limit 1回の呼び出しで取得する変更の最大件数（1以上）
+     * @return 基準時刻より後のCD01エンティティの差分
+     * @throws IllegalArgumentException limitが1未満の場合
+     */
+    public ItemDelta<CD01> findCDsModifiedSince(Date since, int limit) {
+    	checkLimit(limit);
+    	if (!changeTracker.isCDHistoryAvailable(since)) {
+    		return fullRefresh(changeTracker.getLastCDChange());
+    	}
+    	
+    	return toDelta(CD01.class, since, limit, 
+    			changeTracker.getCDChangesSince(since, limit + 1));
+    }
+
+    private static void checkLimit(int limit) {
+    	// 0件ずつでは取得が進まず、クライアントが際限なく呼び出し続けてしまう
+    	if (limit < 1) {
+    		throw new IllegalArgumentException("limit must be at least 1 : " + limit);
+    	}
+    }
+
+    private <T> ItemDelta<T> fullRefresh(Date until) {
+    	return new ItemDelta<T>(
+    			Collections.<T>emptyList(), Collections.<Long>emptyList(), until, false, true);
+    }
+
+    /**
+     * 変更履歴から差分を組み立てる
+     * 
+     * 同じ主キーに対する変更は後のものを優先し、作成または更新された
+     * エンティティは1回のクエリでまとめて取得する。
+     */
+    private <T> ItemDelta<T> toDelta(Class<T> entityClass, Date since, int limit,
+    		List<ItemChangeTrackerEJB.Change> changes) {
+    	// limit + 1件を取得しているので、limitを超えた分は次回に回す
+    	boolean hasMore = changes.size() > limit;
+    	if (hasMore) {
+    		changes = changes.subList(0, limit);
+    	}
+    	
+    	Map<Long, Boolean> deletedById = new LinkedHashMap<Long, Boolean>();
+    	Date until = since;
+    	for (ItemChangeTrackerEJB.Change change : changes) {
+    		deletedById.remove(change.getId());
+    		deletedById.put(change.getId(), change.isDeleted());
+    		until = new Date(change.getStamp());
+    	}
+    	
+    	List<Long> modifiedIds = new ArrayList<Long>();
+    	List<Long> deletedIds = new ArrayList<Long>();
+    	for (Map.Entry<Long, Boolean> entry : deletedById.entrySet()) {
+    		if (entry.getValue()) {
+    			deletedIds.add(entry.getKey());
+    		} else {
+    			modifiedIds.add(entry.getKey());
+    		}
+    	}
+    	
+    	List<T> modified = Collections.<T>emptyList();
+    	if (!modifiedIds.isEmpty()) {
+    		TypedQuery<T> query = em.createQuery(
+    				"SELECT e FROM " + entityClass.getSimpleName() + " e WHERE e.id IN :ids", 
+    				entityClass);
+    		query.setParameter("ids", modifiedIds);
+    		modified = query.getResultList();
+    	}
+    	
+    	return new ItemDelta<T>(modified, deletedIds, until, hasMore, false);
     }
 }
@@ -0,0 +1,303 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * CD01エンティティをレーベル（musicCompany）ごとに集計した件数と
+ * 合計演奏時間をメモリ上に保持するシングルトン・セッションBean。
+ *
+ * デプロイ時にデータベースの集計結果で初期化され、その後は
+ * ItemEJBのcreateCD()、updateCD()、deleteCD()から呼び出されて、
+ * トランザクションのコミット後に集計値が差分で更新される。
+ * これにより、集計値の取得時にCD01テーブルを走査する必要がなくなる。
+ *
+ * JPQLの一括更新・一括削除のようにItemEJBを経由しない更新は
+ * 集計値に反映されないため、その場合はrebuild()を呼び出して
+ * データベースから集計し直す。
+ *
+ * rebuild()は集計値のMapを置き換えずに、同じMapの内容を入れ替える。
+ * 差分の反映と集計し直しは読み書きロックで排他する。ただし、集計の
+ * クエリと並行してコミットされた差分は、クエリの結果に含まれているか
+ * どうかがわからない。（含まれている差分をもう一度反映すると二重に
+ * 数えてしまう）そのため、差分を登録したトランザクションのコミットの
+ * 開始（beforeCompletion）と差分の反映の完了を数えておき、コミット中の
+ * 差分がなくなるのを待ってからクエリを実行する。クエリの実行中に
+ * 新たにコミットが始まった場合は、結果を捨てて集計し直す。
+ * 差分を登録したトランザクションのコミットは待たせないため、
+ * コミット中のトランザクションが持つ行ロックをクエリが待つ場合でも
+ * デッドロックにはならない。
+ *
+ * 集計のクエリは(MUSICCOMPANY, TOTALDURATION)のインデックスだけで
+ * 処理できる。インデックスを作成するDDLはsrc/main/sql/cd01-indexes.sqlにある。
+ *
+ * musicCompanyがnullのCD01エンティティは集計の対象外とする。
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class MusicCompanyIndexEJB {
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	// レーベル名の順に並べた集計値
+	private final ConcurrentSkipListMap<String, Group> groups = new ConcurrentSkipListMap<String, Group>();
+
+	// 集計し直しを試行する最大の回数
+	private static final int MAX_REBUILD_ATTEMPTS = 100;
+
+	// 差分の反映（読み込みロック）と集計し直し（書き込みロック）を排他する
+	private final ReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+	// 差分を登録したトランザクションのコミットを開始した回数と、
+	// 差分の反映（またはロールバック）を完了した回数
+	private final Object commitMonitor = new Object();
+	private long commitsStarted;
+	private long commitsFinished;
+
+	@PostConstruct
+	void init() {
+		rebuild();
+	}
+
+	/**
+	 * データベースのCD01エンティティを集計し直して集計値を置き換える
+	 *
+	 * 差分のコミットと並行せずに集計できるまで再試行する。
+	 *
+	 * @throws IllegalStateException 差分のコミットが続き、
+	 * 最大の回数まで再試行しても集計できなかった場合
+	 */
+	public void rebuild() {
+		TypedQuery<Object[]> query = em.createQuery(
+				"SELECT c.musicCompany, COUNT(c), SUM(c.totalDuration) " +
+				"FROM CD01 c WHERE c.musicCompany IS NOT NULL GROUP BY c.musicCompany", 
+				Object[].class);
+
+		for (int attempt = 0; attempt < MAX_REBUILD_ATTEMPTS; attempt++) {
+			long started = awaitNoCommitInProgress();
+			rebuildLock.writeLock().lock();
+			try {
+				List<Object[]> rows = query.getResultList();
+				// 待ち合わせた後やクエリの実行中にコミットが始まった差分は、
+				// クエリの結果に含まれているかどうかがわからない
+				if (getCommitsStarted() != started) {
+					continue;
+				}
+				groups.clear();
+				for (Object[] row : rows) {
+					Group group = new Group();
+					group.add(((Number) row[1]).longValue(), 
+							row[2] == null ? 0f : ((Number) row[2]).floatValue());
+					groups.put((String) row[0], group);
+				}
+				return;
+			} finally {
+				rebuildLock.writeLock().unlock();
+			}
+		}
+		throw new IllegalStateException(
+				"Could not rebuild the statistics between concurrent updates : attempts = " 
+				+ MAX_REBUILD_ATTEMPTS);
+	}
+
+	/**
+	 * CD01エンティティが作成されたことを集計値に反映する
+	 * @param musicCompany 作成されたCD01エンティティのレーベル名
+	 * @param totalDuration 作成されたCD01エンティティの演奏時間
+	 */
+	public void cdCreated(String musicCompany, Float totalDuration) {
+		applyAfterCommit(null, null, musicCompany, totalDuration);
+	}
+
+	/**
+	 * CD01エンティティが更新されたことを集計値に反映する
+	 * @param oldMusicCompany 更新前のレーベル名
+	 * @param oldTotalDuration 更新前の演奏時間
+	 * @param musicCompany 更新後のレーベル名
+	 * @param totalDuration 更新後の演奏時間
+	 */
+	public void cdUpdated(String oldMusicCompany, Float oldTotalDuration, 
+			String musicCompany, Float totalDuration) {
+		applyAfterCommit(oldMusicCompany, oldTotalDuration, musicCompany, totalDuration);
+	}
+
+	/**
+	 * CD01エンティティが削除されたことを集計値に反映する
+	 * @param musicCompany 削除されたCD01エンティティのレーベル名
+	 * @param totalDuration 削除されたCD01エンティティの演奏時間
+	 */
+	public void cdDeleted(String musicCompany, Float totalDuration) {
+		applyAfterCommit(musicCompany, totalDuration, null, null);
+	}
+
+	/**
+	 * すべてのレーベルの集計値をレーベル名の順に取得する
+	 * @return レーベルごとの集計値のリスト
+	 */
+	public List<MusicCompanyStatistics> getStatistics() {
+		List<MusicCompanyStatistics> statistics = new ArrayList<MusicCompanyStatistics>();
+		for (Map.Entry<String, Group> entry : groups.entrySet()) {
+			MusicCompanyStatistics s = entry.getValue().toStatistics(entry.getKey());
+			if (s.getCount() > 0) {
+				statistics.add(s);
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * 指定したレーベルの集計値を取得する
+	 * @param musicCompany レーベル名
+	 * @return 指定したレーベルの集計値
+	 */
+	public MusicCompanyStatistics getStatistics(String musicCompany) {
+		Group group = groups.get(musicCompany);
+		if (group == null) {
+			return new MusicCompanyStatistics(musicCompany, 0, 0f);
+		}
+		return group.toStatistics(musicCompany);
+	}
+
+	private void applyAfterCommit(final String removedCompany, final Float removedDuration,
+			final String addedCompany, final Float addedDuration) {
+		if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			commitStarted();
+			try {
+				apply(removedCompany, removedDuration, addedCompany, addedDuration);
+			} finally {
+				commitFinished();
+			}
+			return;
+		}
+		// トランザクションがコミットされた時点で反映する
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			// ロールバックの場合はbeforeCompletion()が呼び出されないことがある
+			private volatile boolean started;
+
+			public void beforeCompletion() {
+				commitStarted();
+				started = true;
+			}
+
+			public void afterCompletion(int status) {
+				try {
+					if (status == Status.STATUS_COMMITTED) {
+						apply(removedCompany, removedDuration, addedCompany, addedDuration);
+					}
+				} finally {
+					if (started) {
+						commitFinished();
+					}
+				}
+			}
+		});
+	}
+
+	private void commitStarted() {
+		synchronized (commitMonitor) {
+			commitsStarted++;
+		}
+	}
+
+	private void commitFinished() {
+		synchronized (commitMonitor) {
+			commitsFinished++;
+			commitMonitor.notifyAll();
+		}
+	}
+
+	private long getCommitsStarted() {
+		synchronized (commitMonitor) {
+			return commitsStarted;
+		}
+	}
+
+	/**
+	 * コミット中の差分がなくなるまで待つ
+	 * @return その時点でコミットを開始した回数
+	 */
+	private long awaitNoCommitInProgress() {
+		synchronized (commitMonitor) {
+			while (commitsStarted != commitsFinished) {
+				try {
+					commitMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for updates to commit", e);
+				}
+			}
+			return commitsStarted;
+		}
+	}
+
+	private void apply(String removedCompany, Float removedDuration,
+			String addedCompany, Float addedDuration) {
+		// 差分どうしは並行して反映し、集計し直している間だけ待つ
+		rebuildLock.readLock().lock();
+		try {
+			if (removedCompany != null) {
+				group(removedCompany).add(-1, removedDuration == null ? 0f : -removedDuration);
+			}
+			if (addedCompany != null) {
+				group(addedCompany).add(1, addedDuration == null ? 0f : addedDuration);
+			}
+		} finally {
+			rebuildLock.readLock().unlock();
+		}
+	}
+
+	private Group group(String musicCompany) {
+		Group group = groups.get(musicCompany);
+		if (group == null) {
+			Group created = new Group();
+			group = groups.putIfAbsent(musicCompany, created);
+			if (group == null) {
+				group = created;
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * 1つのレーベルの集計値
+	 *
+	 * レーベルごとにロックを分けることで、異なるレーベルの
+	 * 更新どうしが互いに待たされないようにしている。
+	 */
+	private static class Group {
+
+		private long count;
+		private double totalDuration;
+
+		synchronized void add(long count, float totalDuration) {
+			this.count += count;
+			this.totalDuration += totalDuration;
+		}
+
+		synchronized MusicCompanyStatistics toStatistics(String musicCompany) {
+			return new MusicCompanyStatistics(musicCompany, count, (float) totalDuration);
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import java.io.Serializable;
+
+/**
+ * レーベル（musicCompany）ごとに集計したCD01エンティティの
+ * 件数と合計演奏時間を表すクラス。
+ *
+ * ItemEJBのgetMusicCompanyStatistics()の戻り値として使用される。
+ */
+public class MusicCompanyStatistics implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// レーベル名
+	private final String musicCompany;
+
+	// このレーベルのCD01エンティティの件数
+	private final long count;
+
+	// このレーベルのCD01エンティティの演奏時間の合計
+	private final float totalDuration;
+
+	public MusicCompanyStatistics(String musicCompany, long count, float totalDuration) {
+		this.musicCompany = musicCompany;
+		this.count = count;
+		this.totalDuration = totalDuration;
+	}
+
+	public String getMusicCompany() {
+		return musicCompany;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public float getTotalDuration() {
+		return totalDuration;
+	}
+}
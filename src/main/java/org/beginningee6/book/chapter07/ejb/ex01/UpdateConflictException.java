@@ -0,0 +1,40 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * 読み込んだ時点の値との比較によって、更新しようとしたエンティティが
+ * 他のクライアントによって既に更新（または削除）されていることが
+ * 検出された場合にスローされるチェック例外。
+ *
+ * ＠ApplicationException(rollback = true)を付与しているため、
+ * EJBのメソッドからこの例外がスローされるとトランザクションは
+ * ロールバックにマークされる。
+ * （システム例外とは異なり、Beanのインスタンスは破棄されない）
+ *
+ */
+@ApplicationException(rollback = true)
+public class UpdateConflictException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	// 競合が検出されたエンティティの主キー
+	private final Long id;
+
+	public UpdateConflictException(Long id, Throwable cause) {
+		super("Entity has been modified by another client : id = " + id, cause);
+		this.id = id;
+	}
+
+	public UpdateConflictException(Long id) {
+		this(id, null);
+	}
+
+	/**
+	 * 競合が検出されたエンティティの主キーを取得する
+	 * @return 競合が検出されたエンティティの主キー
+	 */
+	public Long getId() {
+		return id;
+	}
+}
@@ -0,0 +1,184 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * バックアップのノードで、CartReplicatorEJBから受信したデルタを
+ * 反映してカートの内容を保持するクラス。
+ *
+ * 各カートの内容はシーケンス番号とともに保持し、デルタは
+ * 前提となるシーケンス番号が一致する場合だけ反映する。
+ *
+ * ・空のカートからの置き換え：常に反映する（明細がなければ破棄する）
+ * ・前提のシーケンス番号が一致：変更分を反映する
+ * ・既に反映済みのシーケンス番号：重複として無視する
+ * ・それ以外（操作の欠落）：次の置き換えまでカートの内容を使用しない
+ *
+ * 操作の欠落を検出したカートの顧客のキーは、apply()の戻り値として
+ * プライマリのノードに返す。プライマリのノードはそのカートに対する
+ * 次の操作で、カート全体を置き換えとして送信し直すため、
+ * バックアップのカートは再び使用できるようになる。
+ *
+ * プライマリのノードが停止せずにカートが放置された場合は破棄の
+ * デルタが届かないことがあるため、保持期間（retentionMillis）の間に
+ * デルタが届かなかったカートは、apply()の中で定期的に破棄する。
+ *
+ * プライマリのノードが停止した場合は、get()で取得したカートの内容を
+ * CartSnapshot.restore()で復元して処理を引き継ぐ。
+ *
+ * apply()はトランスポートの1つのスレッドから呼び出され、
+ * get()はどのスレッドからでも呼び出せる。
+ */
+public class CartBackupStore {
+
+	private static final Logger logger = Logger.getLogger(CartBackupStore.class.getName());
+
+	// デフォルトの保持期間
+	private static final long DEFAULT_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	private final ConcurrentMap<String, Backup> carts = new ConcurrentHashMap<String, Backup>();
+
+	private final long retentionMillis;
+
+	// 次に保持期間を過ぎたカートを破棄する日時（apply()の中で読み書きする）
+	private long nextExpiry;
+
+	public CartBackupStore() {
+		this(DEFAULT_RETENTION_MILLIS);
+	}
+
+	/**
+	 * @param retentionMillis デルタが届かなくなったカートを保持する期間
+	 */
+	public CartBackupStore(long retentionMillis) {
+		if (retentionMillis <= 0) {
+			throw new IllegalArgumentException("retentionMillis must be positive");
+		}
+		this.retentionMillis = retentionMillis;
+		this.nextExpiry = System.currentTimeMillis() + retentionMillis;
+	}
+
+	/**
+	 * 受信したデルタのバッチを反映する
+	 * @param batch CartDeltaBuffer.encode()で変換したバイト列
+	 * @return 操作の欠落により、カート全体の内容が必要になった顧客のキー
+	 */
+	public synchronized Set<String> apply(byte[] batch) throws IOException {
+		long now = System.currentTimeMillis();
+		Set<String> stale = new HashSet<String>();
+		for (CartDeltaBuffer.Delta delta : CartDeltaBuffer.decode(batch)) {
+			apply(delta, now);
+			Backup backup = carts.get(delta.customerKey);
+			if (backup != null && backup.stale) {
+				stale.add(delta.customerKey);
+			} else {
+				stale.remove(delta.customerKey);
+			}
+		}
+		// 保持期間の半分ごとに、保持期間を過ぎたカートを破棄する
+		if (now >= nextExpiry) {
+			expireIdle(now - retentionMillis);
+			nextExpiry = now + retentionMillis / 2;
+		}
+		return stale;
+	}
+
+	/**
+	 * 一定の時間デルタが届いていないカートを破棄する
+	 * @param idleBefore この日時より前からデルタが届いていないカートを破棄する
+	 * @return 破棄したカートの数
+	 */
+	public synchronized int expireIdle(long idleBefore) {
+		int expired = 0;
+		Iterator<Backup> it = carts.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().updatedAt < idleBefore) {
+				it.remove();
+				expired++;
+			}
+		}
+		if (expired > 0) {
+			logger.info("Expired " + expired + " abandoned carts from cart backup");
+		}
+		return expired;
+	}
+
+	/**
+	 * バックアップしているカートの内容を取得する
+	 * @param customerKey 顧客のキー
+	 * @return カートの内容。バックアップがない場合、または操作の欠落により
+	 * 最新の内容でない可能性がある場合はnull
+	 */
+	public CartSnapshot get(String customerKey) {
+		Backup backup = carts.get(customerKey);
+		return backup == null || backup.stale ? null : backup.snapshot;
+	}
+
+	/**
+	 * バックアップしているカートのシーケンス番号を取得する
+	 * @param customerKey 顧客のキー
+	 * @return シーケンス番号（バックアップがない場合は0）
+	 */
+	public long getSequence(String customerKey) {
+		Backup backup = carts.get(customerKey);
+		return backup == null ? 0 : backup.sequence;
+	}
+
+	/**
+	 * バックアップしているカートの数を取得する
+	 * @return カートの数
+	 */
+	public int size() {
+		return carts.size();
+	}
+
+	private void apply(CartDeltaBuffer.Delta delta, long now) {
+		Backup current = carts.get(delta.customerKey);
+
+		if (delta.reset) {
+			if (delta.changes.size() == 0) {
+				carts.remove(delta.customerKey);
+			} else {
+				CartSnapshot snapshot = new CartSnapshot().merge(delta.changes, false);
+				carts.put(delta.customerKey, new Backup(delta.sequence, snapshot, false, now));
+			}
+		} else if (current != null && !current.stale && current.sequence == delta.baseSequence) {
+			CartSnapshot snapshot = current.snapshot.merge(delta.changes, false);
+			carts.put(delta.customerKey, new Backup(delta.sequence, snapshot, false, now));
+		} else if (current != null && current.sequence >= delta.sequence) {
+			// 再送などによる重複
+		} else {
+			logger.warning("Missing cart deltas for " + delta.customerKey + " : expected "
+					+ delta.baseSequence + " but was " + (current == null ? 0 : current.sequence));
+			carts.put(delta.customerKey, new Backup(delta.sequence, 
+					current == null ? new CartSnapshot() : current.snapshot, true, now));
+		}
+	}
+
+	/**
+	 * バックアップしている1件のカートの内容
+	 */
+	private static class Backup {
+
+		private final long sequence;
+		private final CartSnapshot snapshot;
+		private final boolean stale;
+
+		// 最後にデルタを反映した日時
+		private final long updatedAt;
+
+		Backup(long sequence, CartSnapshot snapshot, boolean stale, long updatedAt) {
+			this.sequence = sequence;
+			this.snapshot = snapshot;
+			this.stale = stale;
+			this.updatedAt = updatedAt;
+		}
+	}
+}
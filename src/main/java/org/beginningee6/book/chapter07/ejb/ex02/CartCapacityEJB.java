@@ -0,0 +1,248 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * メモリ上に保持するShoppingCartEJBのカートの数を制限する
+ * シングルトン・セッションBean。
+ *
+ * ShoppingCartEJBのインスタンスの数はEJBコンテナが管理するため、
+ * ボットなどによって大量のセッションが作られると、パッシベーション
+ * されるまでの間、カートの内容がヒープを消費し続ける。
+ * このBeanはメモリ上にあるカート（SpillableCart）を記録し、
+ * その数が上限を超えた場合に、最も長く使用されていないカートから
+ * 順にCartStoreEJBに退避（スピル）する。退避したカートは、
+ * 次にShoppingCartEJBが内容を必要とした時点で透過的に復元される。
+ *
+ * 呼び出し元のスレッドはカートを記録して上限を確認するだけで、
+ * 退避は＠Asynchronousメソッドとして別のスレッドで行う。
+ * 退避するスレッドはtryLock()でロックを取得できたカートだけを
+ * 退避するため、使用中のカートを待つことはない。
+ *
+ * 一度に上限ちょうどまで退避すると、直後の追加でまた退避が必要に
+ * なるため、上限の90%まで退避する。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CartCapacityEJB {
+
+	private static final Logger logger = Logger.getLogger(CartCapacityEJB.class.getName());
+
+	// 退避した後のカートの数の上限に対する割合
+	private static final double LOW_WATERMARK = 0.9;
+
+	// 退避したカートの内容を預けるシングルトン・セッションBeanを注入
+	@EJB
+	private CartStoreEJB cartStore;
+
+	@Resource
+	private SessionContext context;
+
+	// メモリ上にあるカート
+	private final Set<SpillableCart> active 
+			= Collections.newSetFromMap(new ConcurrentHashMap<SpillableCart, Boolean>());
+
+	// ConcurrentHashMap.size()は全体を走査するため、数は別に保持する
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	private final AtomicLong spilledCount = new AtomicLong();
+	private final AtomicLong restoredCount = new AtomicLong();
+	private final AtomicLong passivatedCount = new AtomicLong();
+
+	// 退避するスレッドが動作中かどうか
+	private final AtomicBoolean spilling = new AtomicBoolean();
+
+	private volatile int maxActiveCarts = 10000;
+
+	/**
+	 * 新しいカートがメモリ上に作られたことを記録する
+	 * @param cart カート
+	 */
+	public void activated(SpillableCart cart) {
+		if (active.add(cart) && activeCount.incrementAndGet() > maxActiveCarts) {
+			startSpilling();
+		}
+	}
+
+	/**
+	 * 退避していたカートがメモリ上に復元されたことを記録する
+	 * @param cart カート
+	 */
+	public void restored(SpillableCart cart) {
+		restoredCount.incrementAndGet();
+		activated(cart);
+	}
+
+	/**
+	 * カートを保持するShoppingCartEJBがパッシベーションされたことを記録する
+	 * @param cart カート
+	 * @param spilled パッシベーションによってカートを退避した場合はtrue
+	 * （既に退避されていた場合はfalse）
+	 */
+	public void passivated(SpillableCart cart, boolean spilled) {
+		passivatedCount.incrementAndGet();
+		if (spilled) {
+			spilledCount.incrementAndGet();
+		}
+		released(cart);
+	}
+
+	/**
+	 * カートが破棄されたことを記録する
+	 * @param cart カート
+	 */
+	public void released(SpillableCart cart) {
+		if (active.remove(cart)) {
+			activeCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * 上限を超えている分のカートを、最も長く使用されていないものから退避する
+	 *
+	 * ＠Asynchronousアノテーションにより、このメソッドは
+	 * 呼び出し元とは別のスレッドで実行される。
+	 * このメソッド自身はトランザクションを開始しない。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void spill() {
+		try {
+			spillExcess();
+		} finally {
+			spilling.set(false);
+		}
+		// 退避している間に上限を超えていれば再度退避する
+		if (activeCount.get() > maxActiveCarts) {
+			startSpilling();
+		}
+	}
+
+	/**
+	 * メモリ上にあるカートの数を取得する
+	 * @return カートの数
+	 */
+	public int getActiveCount() {
+		return activeCount.get();
+	}
+
+	/**
+	 * これまでに退避したカートの数を取得する（パッシベーションによるものを含む）
+	 * @return 退避したカートの数
+	 */
+	public long getSpilledCount() {
+		return spilledCount.get();
+	}
+
+	/**
+	 * これまでに復元したカートの数を取得する
+	 * @return 復元したカートの数
+	 */
+	public long getRestoredCount() {
+		return restoredCount.get();
+	}
+
+	/**
+	 * これまでにパッシベーションされたShoppingCartEJBの数を取得する
+	 * @return パッシベーションされた数
+	 */
+	public long getPassivatedCount() {
+		return passivatedCount.get();
+	}
+
+	public int getMaxActiveCarts() {
+		return maxActiveCarts;
+	}
+
+	public void setMaxActiveCarts(int maxActiveCarts) {
+		this.maxActiveCarts = maxActiveCarts;
+		if (activeCount.get() > maxActiveCarts) {
+			startSpilling();
+		}
+	}
+
+	private void startSpilling() {
+		// 退避するスレッドが動作していなければ非同期に開始する
+		if (spilling.compareAndSet(false, true)) {
+			context.getBusinessObject(CartCapacityEJB.class).spill();
+		}
+	}
+
+	private void spillExcess() {
+		int excess = activeCount.get() - (int) (maxActiveCarts * LOW_WATERMARK);
+		if (excess <= 0) {
+			return;
+		}
+
+		// 並べ替えの間に最終使用時刻が変わらないように、時刻を先に読み出す
+		List<SpillableCart> carts = new ArrayList<SpillableCart>(active);
+		Candidate[] candidates = new Candidate[carts.size()];
+		for (int i = 0; i < candidates.length; i++) {
+			candidates[i] = new Candidate(carts.get(i));
+		}
+		Arrays.sort(candidates);
+
+		int spilled = 0;
+		for (Candidate candidate : candidates) {
+			if (spilled >= excess) {
+				break;
+			}
+			SpillableCart cart = candidate.cart;
+			// 使用中のカートは待たずに飛ばす
+			if (!cart.tryLock()) {
+				continue;
+			}
+			try {
+				if (active.remove(cart)) {
+					activeCount.decrementAndGet();
+					if (cart.spill(cartStore)) {
+						spilledCount.incrementAndGet();
+						spilled++;
+					}
+				}
+			} finally {
+				cart.unlock();
+			}
+		}
+		logger.fine("Spilled " + spilled + " least recently used carts");
+	}
+
+	/**
+	 * 退避するカートの候補
+	 */
+	private static class Candidate implements Comparable<Candidate> {
+
+		private final SpillableCart cart;
+		private final long lastAccess;
+
+		Candidate(SpillableCart cart) {
+			this.cart = cart;
+			this.lastAccess = cart.getLastAccess();
+		}
+
+		public int compareTo(Candidate other) {
+			// System.nanoTime()の値は差で比較する
+			long diff = lastAccess - other.lastAccess;
+			return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * バックアップに送信するカートの変更分（デルタ）を顧客のキーごとに
+ * まとめておくバッファ。
+ *
+ * カートに対する操作には顧客のキーごとに連番（シーケンス番号）を付与する。
+ * 送信されるまでの間に同じ顧客のカートに対して行われた操作は、
+ * 1件のデルタにまとめられる（コアレッシング）。同じ明細に対する
+ * 数量の変更は最後の数量だけが残り、カートの破棄や
+ * カート全体の記録より前の操作は破棄される。
+ *
+ * 各デルタは以下の値を持つ。
+ *
+ * ・顧客のキー（UTF）
+ * ・反映する前提となるバックアップのシーケンス番号（long）
+ * ・反映した後のシーケンス番号（long）
+ * ・空のカートから置き換えるかどうか（boolean）
+ * ・明細の変更分（CartSnapshot.write()の形式、数量0は明細の削除）
+ *
+ * 顧客のキーのシーケンス番号が分からない場合（最初の操作と、
+ * カートの破棄の後の操作）は、空のカートからの置き換えとして送信する。
+ * バックアップはシーケンス番号が前提と一致するデルタだけを反映するため、
+ * 操作の欠落や重複を検出できる。操作の欠落を検出したバックアップから
+ * 応答があった顧客のキーはrequestSnapshots()で記録しておき、
+ * 次の操作ではカート全体の内容を置き換えとして送信する
+ * （isSnapshotRequested()で確認してrecordSnapshot()を呼び出す）。
+ *
+ * 破棄されずに放置されたカートのシーケンス番号が残り続けないように、
+ * 一定の時間操作されていない顧客のキーはexpireIdle()で破棄する。
+ * 破棄した後の操作は空のカートからの置き換えとして送信されるため、
+ * カートのインスタンスが破棄されるまでの時間（＠StatefulTimeout）より
+ * 十分に長い時間を指定すること。
+ *
+ * スレッド・セーフであり、各メソッドはthisをロックして実行する。
+ */
+public class CartDeltaBuffer {
+
+	// 顧客のキーごとの最後に付与したシーケンス番号
+	private final Map<String, Long> sequences = new HashMap<String, Long>();
+
+	// 顧客のキーごとの最後に操作を記録した日時。アクセス順の
+	// LinkedHashMapにより、最も長く操作されていないキーが先頭となる
+	private final LinkedHashMap<String, Long> lastRecorded = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	// 顧客のキーごとの送信を待っているデルタ
+	private final LinkedHashMap<String, Delta> pending = new LinkedHashMap<String, Delta>();
+
+	// バックアップがカート全体の内容を必要としている顧客のキー
+	private final Set<String> snapshotRequests = new HashSet<String>();
+
+	private long mutationCount;
+
+	/**
+	 * カート全体の内容を記録する
+	 * @param customerKey 顧客のキー
+	 * @param snapshot カートの内容
+	 */
+	public synchronized void recordSnapshot(String customerKey, CartSnapshot snapshot) {
+		Delta delta = next(customerKey);
+		delta.reset = true;
+		delta.changes = snapshot;
+		snapshotRequests.remove(customerKey);
+	}
+
+	/**
+	 * カートに明細が追加されたこと、または明細の数量が変更されたことを記録する
+	 * @param customerKey 顧客のキー
+	 * @param item 明細のItem02エンティティ
+	 * @param line 追加・変更後の明細
+	 */
+	public synchronized void recordLine(String customerKey, Item02 item, CartLine line) {
+		Delta delta = next(customerKey);
+		// 空のカートからの置き換えでは削除した明細を残す必要はない
+		delta.changes = delta.changes.merge(singleLine(item, line), !delta.reset);
+	}
+
+	/**
+	 * カートから明細が削除されたことを記録する
+	 * @param customerKey 顧客のキー
+	 * @param item 削除されたItem02エンティティ
+	 */
+	public synchronized void recordRemove(String customerKey, Item02 item) {
+		recordLine(customerKey, item, new CartLine(0L, 0));
+	}
+
+	/**
+	 * カートが破棄されたことを記録する
+	 * @param customerKey 顧客のキー
+	 */
+	public synchronized void recordClear(String customerKey) {
+		Delta delta = next(customerKey);
+		delta.reset = true;
+		delta.changes = new CartSnapshot();
+		delta.sequence = 0;
+
+		// 次の操作は空のカートからの置き換えとして送信する
+		sequences.remove(customerKey);
+		lastRecorded.remove(customerKey);
+		snapshotRequests.remove(customerKey);
+	}
+
+	/**
+	 * バックアップがカート全体の内容を必要としていることを記録する
+	 *
+	 * シーケンス番号を保持していない顧客のキーは、次の操作が
+	 * 空のカートからの置き換えとなるため記録しない。
+	 *
+	 * @param customerKeys 操作の欠落を検出したバックアップから応答があった顧客のキー
+	 */
+	public synchronized void requestSnapshots(Collection<String> customerKeys) {
+		for (String customerKey : customerKeys) {
+			if (sequences.containsKey(customerKey)) {
+				snapshotRequests.add(customerKey);
+			}
+		}
+	}
+
+	/**
+	 * 次の操作でカート全体の内容を記録する必要があるかどうかを判定する
+	 * @param customerKey 顧客のキー
+	 * @return recordSnapshot()で記録する必要がある場合はtrue
+	 */
+	public synchronized boolean isSnapshotRequested(String customerKey) {
+		return snapshotRequests.contains(customerKey);
+	}
+
+	/**
+	 * 一定の時間操作されていない顧客のキーのシーケンス番号を破棄する
+	 *
+	 * 送信を待っているデルタがある顧客のキーは破棄しない。
+	 *
+	 * @param idleBefore この日時より前から操作されていないキーを破棄する
+	 * @return 破棄した顧客のキーの数
+	 */
+	public synchronized int expireIdle(long idleBefore) {
+		int expired = 0;
+		Iterator<Map.Entry<String, Long>> it = lastRecorded.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue() >= idleBefore) {
+				// 以降のキーはより最近に操作されている
+				break;
+			}
+			if (!pending.containsKey(entry.getKey())) {
+				sequences.remove(entry.getKey());
+				snapshotRequests.remove(entry.getKey());
+				it.remove();
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * シーケンス番号を保持している顧客のキーの数を取得する
+	 * @return 顧客のキーの数
+	 */
+	public synchronized int getTrackedCount() {
+		return sequences.size();
+	}
+
+	/**
+	 * 送信を待っているデルタを取り出す
+	 * @param maxDeltas 取り出すデルタの最大件数
+	 * @return 取り出したデルタ（送信を待っているデルタがない場合は空のリスト）
+	 */
+	synchronized List<Delta> take(int maxDeltas) {
+		List<Delta> deltas = new ArrayList<Delta>(Math.min(maxDeltas, pending.size()));
+		Iterator<Delta> it = pending.values().iterator();
+		while (it.hasNext() && deltas.size() < maxDeltas) {
+			deltas.add(it.next());
+			it.remove();
+		}
+		return deltas;
+	}
+
+	/**
+	 * 送信に失敗したデルタを、その後に記録された操作とまとめて戻す
+	 * @param deltas take()で取り出したデルタ
+	 */
+	synchronized void putBack(List<Delta> deltas) {
+		for (Delta failed : deltas) {
+			Delta newer = pending.get(failed.customerKey);
+			if (newer == null) {
+				pending.put(failed.customerKey, failed);
+			} else if (!newer.reset) {
+				// 送信に失敗したデルタを前提として、その後の操作を反映する
+				newer.baseSequence = failed.baseSequence;
+				newer.reset = failed.reset;
+				newer.changes = failed.changes.merge(newer.changes, !failed.reset);
+			}
+			// 後の操作が置き換えであれば、送信に失敗したデルタは不要
+		}
+	}
+
+	/**
+	 * 送信を待っている顧客のキーの数を取得する
+	 * @return 送信を待っている顧客のキーの数
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * これまでに記録された操作の件数を取得する
+	 * @return 記録された操作の件数
+	 */
+	public synchronized long getMutationCount() {
+		return mutationCount;
+	}
+
+	/**
+	 * デルタをバックアップに送信する形式に変換する
+	 * @param deltas 送信するデルタ
+	 * @return 送信するバイト列
+	 */
+	static byte[] encode(List<Delta> deltas) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(deltas.size());
+			for (Delta delta : deltas) {
+				out.writeUTF(delta.customerKey);
+				out.writeLong(delta.baseSequence);
+				out.writeLong(delta.sequence);
+				out.writeBoolean(delta.reset);
+				delta.changes.write(out);
+			}
+			out.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStreamへの書き込みでは発生しない
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * encode()で変換したバイト列をデルタに戻す
+	 * @param batch 受信したバイト列
+	 * @return デルタ
+	 */
+	static List<Delta> decode(byte[] batch) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+		int count = in.readInt();
+		if (count < 0) {
+			throw new IOException("Invalid number of deltas : " + count);
+		}
+		List<Delta> deltas = new ArrayList<Delta>(count);
+		for (int i = 0; i < count; i++) {
+			Delta delta = new Delta(in.readUTF(), in.readLong());
+			delta.sequence = in.readLong();
+			delta.reset = in.readBoolean();
+			delta.changes = CartSnapshot.read(in);
+			deltas.add(delta);
+		}
+		return deltas;
+	}
+
+	/**
+	 * 操作にシーケンス番号を付与し、その操作をまとめるデルタを取得する
+	 */
+	private Delta next(String customerKey) {
+		mutationCount++;
+
+		Long last = sequences.get(customerKey);
+		long sequence = last == null ? 1 : last + 1;
+		sequences.put(customerKey, sequence);
+		lastRecorded.put(customerKey, System.currentTimeMillis());
+
+		Delta delta = pending.get(customerKey);
+		if (delta == null) {
+			delta = new Delta(customerKey, last == null ? 0 : last);
+			// シーケンス番号が分からない場合は空のカートからの置き換えとする
+			delta.reset = last == null;
+			pending.put(customerKey, delta);
+		}
+		delta.sequence = sequence;
+		return delta;
+	}
+
+	private static CartSnapshot singleLine(Item02 item, CartLine line) {
+		Map<Item02, CartLine> lines = new LinkedHashMap<Item02, CartLine>();
+		lines.put(item, line);
+		return CartSnapshot.of(lines);
+	}
+
+	/**
+	 * 1件の顧客のキーに対する操作をまとめたデルタ
+	 */
+	static class Delta {
+
+		final String customerKey;
+		long baseSequence;
+		long sequence;
+		boolean reset;
+		CartSnapshot changes = new CartSnapshot();
+
+		Delta(String customerKey, long baseSequence) {
+			this.customerKey = customerKey;
+			this.baseSequence = baseSequence;
+		}
+	}
+}
@@ -0,0 +1,637 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * ShoppingCartEJBのカートに対する操作を顧客のキーごとに
+ * ローカルファイルへ追記していくシングルトン・セッションBean。
+ *
+ * ShoppingCartEJBのインスタンスが＠StatefulTimeoutにより破棄された
+ * 後でも、顧客のキーを指定してload()を呼び出すことで、記録された
+ * 操作を再生してカートの内容を復元することができる。
+ *
+ * 書き込みはライトビハインドで行われる。record系のメソッドは操作を
+ * メモリ上のキューに追加するだけで呼び出し元に戻り、ファイルへの
+ * 書き込みは＠Asynchronousメソッドとして別のスレッドで行われる。
+ * キューから取り出して書き込むスレッドは常に1つだけであるため、
+ * 操作は記録された順にファイルに追記される。
+ *
+ * 追記されたままでは同じ顧客の操作がファイルに蓄積していくため、
+ * 定期的に各顧客の操作を1件のスナップショットにまとめた
+ * ファイルを作り直す（コンパクション）。作り直したファイルは
+ * 別の名前で書き終えてから元のファイルと置き換えるため、
+ * コンパクションの途中で停止しても記録が失われることはない。
+ * このとき、保持期間（既定では7日）の間に記録も復元もされなかった
+ * 顧客のキーは、放棄されたカートとして破棄する。
+ *
+ * ファイルの各レコードは以下の形式で書き込まれる。
+ *
+ * ・レコードの種類（byte）
+ * ・顧客のキー（UTF）
+ * ・データの長さ（int）
+ * ・データ（シリアライズしたCartSnapshot）
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CartJournalEJB {
+
+	private static final Logger logger = Logger.getLogger(CartJournalEJB.class.getName());
+
+	// レコードの種類
+	private static final byte SNAPSHOT = 1;	// カート全体の内容
+	private static final byte LINE = 2;		// 1明細の追加または数量の変更
+	private static final byte REMOVE = 3;	// 1明細の削除
+	private static final byte CLEAR = 4;	// カートの破棄
+
+	private static final String FILE_NAME = "cart-journal.log";
+
+	// コンパクションで作り直している途中のファイルと、置き換える前のファイルの接尾辞
+	private static final String COMPACT_SUFFIX = ".compact";
+	private static final String BACKUP_SUFFIX = ".old";
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	// ファイルへの書き込みを待っている操作
+	private final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<Record>();
+
+	// キューから取り出して書き込むスレッドが動作中かどうか
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	// 以下はファイルへの書き込みとともに、thisをロックして読み書きする
+
+	private File file;
+	private DataOutputStream out;
+	private long length;
+
+	// 顧客のキーごとの、記録されている操作のファイル上の位置
+	private Map<String, List<Long>> offsets = new HashMap<String, List<Long>>();
+
+	// 顧客のキーごとの、最後に記録または復元した時刻
+	private Map<String, Long> lastAccessed = new HashMap<String, Long>();
+
+	// 記録も復元もされなかった顧客のキーを保持する時間
+	private long retentionMillis = TimeUnit.DAYS.toMillis(7);
+
+	@PostConstruct
+	void init() {
+		String dir = System.getProperty("jboss.server.data.dir", System.getProperty("java.io.tmpdir"));
+		file = new File(dir, FILE_NAME);
+		try {
+			synchronized (this) {
+				recoverCompaction();
+				scan();
+				out = openForAppend(file);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open cart journal : " + file, e);
+		}
+	}
+
+	@PreDestroy
+	void close() {
+		synchronized (this) {
+			drainQueue();
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot close cart journal", e);
+			}
+		}
+	}
+
+	/**
+	 * カート全体の内容を記録する
+	 * @param customerKey 顧客のキー
+	 * @param snapshot カートの内容
+	 */
+	public void recordSnapshot(String customerKey, CartSnapshot snapshot) {
+		enqueue(new Record(SNAPSHOT, customerKey, snapshot));
+	}
+
+	/**
+	 * カートに明細が追加されたこと、または明細の数量が変更されたことを記録する
+	 * @param customerKey 顧客のキー
+	 * @param item 明細のItem02エンティティ
+	 * @param line 追加・変更後の明細
+	 */
+	public void recordLine(String customerKey, Item02 item, CartLine line) {
+		enqueue(new Record(LINE, customerKey, singleLine(item, line)));
+	}
+
+	/**
+	 * カートから明細が削除されたことを記録する
+	 * @param customerKey 顧客のキー
+	 * @param item 削除されたItem02エンティティ
+	 */
+	public void recordRemove(String customerKey, Item02 item) {
+		enqueue(new Record(REMOVE, customerKey, singleLine(item, new CartLine(0L, 0))));
+	}
+
+	/**
+	 * カートが破棄されたことを記録する
+	 *
+	 * トランザクションの中で呼び出された場合は、トランザクションが
+	 * コミットされた時点で記録する。
+	 *
+	 * @param customerKey 顧客のキー
+	 */
+	public void recordClear(final String customerKey) {
+		if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			enqueue(new Record(CLEAR, customerKey, null));
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					enqueue(new Record(CLEAR, customerKey, null));
+				}
+			}
+		});
+	}
+
+	/**
+	 * 記録された操作を再生して、カートの内容を復元する
+	 * @param customerKey 顧客のキー
+	 * @return カートの内容（Item02エンティティと明細）。
+	 * 記録がない場合はnull
+	 */
+	public Map<Item02, CartLine> load(String customerKey) {
+		List<Record> records;
+		synchronized (this) {
+			// まだ書き込まれていない操作も含めて再生する
+			drainQueue();
+			records = read(customerKey);
+			if (records != null) {
+				lastAccessed.put(customerKey, System.currentTimeMillis());
+			}
+		}
+		if (records == null) {
+			return null;
+		}
+		// 記録された操作をまとめてから、Item02エンティティを1回だけ取得する
+		return fold(records).restore(em);
+	}
+
+	/**
+	 * キューにある操作をファイルに書き込む
+	 *
+	 * ＠Asynchronousアノテーションにより、このメソッドは
+	 * 呼び出し元とは別のスレッドで実行される。
+	 * このメソッド自身はトランザクションを開始しない。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void drain() {
+		try {
+			synchronized (this) {
+				drainQueue();
+			}
+		} finally {
+			draining.set(false);
+		}
+		// 書き込みの終了直前に追加された操作があれば書き込む
+		if (!queue.isEmpty()) {
+			startDraining();
+		}
+	}
+
+	/**
+	 * 記録も復元もされなかった顧客のキーを保持する時間を設定する
+	 *
+	 * 次のコンパクションから有効になる。
+	 *
+	 * @param retentionHours 保持する時間（時間単位）
+	 */
+	public synchronized void setRetentionHours(int retentionHours) {
+		if (retentionHours <= 0) {
+			throw new IllegalArgumentException("retentionHours must be positive");
+		}
+		this.retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+	}
+
+	public synchronized int getRetentionHours() {
+		return (int) TimeUnit.MILLISECONDS.toHours(retentionMillis);
+	}
+
+	/**
+	 * 記録されている顧客のキーの数を取得する
+	 * @return 顧客のキーの数
+	 */
+	public synchronized int getCustomerCount() {
+		return offsets.size();
+	}
+
+	/**
+	 * 各顧客の操作を1件のスナップショットにまとめたファイルを作り直す
+	 *
+	 * 保持期間を過ぎた顧客のキーは、作り直したファイルに含めない。
+	 *
+	 * 作り直したファイルは別の名前で書き終えて同期してから、元の
+	 * ファイルと置き換える。置き換えが終わるまでは、元のファイルと
+	 * メモリ上の位置の情報をそのまま使い続けるため、途中で失敗しても
+	 * 以降の記録には影響しない。
+	 *
+	 * 記録された操作はCartSnapshotのまま1件にまとめるため、データベースに
+	 * アクセスしない。（その間に削除されたItem02エンティティの明細も
+	 * そのまま残り、load()で復元する時点で取り除かれる）
+	 * このメソッド自身はトランザクションを開始しない。
+	 */
+	@Schedule(hour = "*", minute = "*/5", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void compact() {
+		synchronized (this) {
+			// コンパクションの間に記録された操作はキューに溜まり、
+			// ファイルを作り直した後で書き込まれる
+			drainQueue();
+
+			long now = System.currentTimeMillis();
+			File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+			Map<String, List<Long>> compactedOffsets = new HashMap<String, List<Long>>();
+			Map<String, Long> compactedAccessed = new HashMap<String, Long>();
+			long compactedLength = 0;
+			int expired = 0;
+			try {
+				FileOutputStream stream = new FileOutputStream(compacted);
+				DataOutputStream compactOut = new DataOutputStream(new BufferedOutputStream(stream));
+				try {
+					for (String customerKey : offsets.keySet()) {
+						Long accessed = lastAccessed.get(customerKey);
+						if (accessed == null || now - accessed > retentionMillis) {
+							expired++;
+							continue;
+						}
+						CartSnapshot snapshot = fold(read(customerKey));
+						if (snapshot.size() == 0) {
+							continue;
+						}
+						List<Long> customerOffsets = new ArrayList<Long>();
+						customerOffsets.add(compactedLength);
+						compactedOffsets.put(customerKey, customerOffsets);
+						compactedAccessed.put(customerKey, accessed);
+						compactedLength += write(compactOut, 
+								new Record(SNAPSHOT, customerKey, snapshot));
+					}
+					compactOut.flush();
+					// 置き換える前にディスクに書き込まれていることを保証する
+					stream.getFD().sync();
+				} finally {
+					compactOut.close();
+				}
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "Cannot compact cart journal", e);
+				compacted.delete();
+				return;
+			}
+
+			try {
+				out.close();
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot close cart journal", e);
+			}
+			boolean replaced = replace(compacted);
+			try {
+				out = openForAppend(file);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot reopen cart journal : " + file, e);
+			}
+			if (!replaced) {
+				logger.severe("Cannot replace cart journal : " + file);
+				compacted.delete();
+				return;
+			}
+			offsets = compactedOffsets;
+			lastAccessed = compactedAccessed;
+			length = compactedLength;
+			if (expired > 0) {
+				logger.info("Expired " + expired + " abandoned carts from cart journal");
+			}
+		}
+	}
+
+	/**
+	 * 作り直したファイルで元のファイルを置き換える
+	 *
+	 * 置き換え先のファイルがあると名前を変更できない環境では、
+	 * 元のファイルをBACKUP_SUFFIXの名前に退避してから置き換え、
+	 * 置き換えに成功した後で削除する。途中で停止した場合は
+	 * 次の起動時にrecoverCompaction()で復旧する。
+	 *
+	 * @return 置き換えた場合はtrue（失敗した場合は元のファイルが残る）
+	 */
+	private boolean replace(File compacted) {
+		// POSIX環境では既存のファイルをアトミックに置き換える
+		if (compacted.renameTo(file)) {
+			return true;
+		}
+		File backup = new File(file.getPath() + BACKUP_SUFFIX);
+		backup.delete();
+		if (!file.renameTo(backup)) {
+			return false;
+		}
+		if (!compacted.renameTo(file)) {
+			// 元のファイルを戻す
+			backup.renameTo(file);
+			return false;
+		}
+		backup.delete();
+		return true;
+	}
+
+	/**
+	 * コンパクションの途中で停止した場合に、ファイルを復旧する
+	 *
+	 * 元のファイルを退避した後で停止していた場合は、書き終えている
+	 * 作り直したファイル（なければ退避した元のファイル）を戻す。
+	 * 作り直している途中のファイルは破棄する。
+	 */
+	private void recoverCompaction() {
+		File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+		File backup = new File(file.getPath() + BACKUP_SUFFIX);
+		if (!file.exists() && backup.exists()) {
+			// 元のファイルを退避するのは作り直したファイルを同期した後
+			if (!(compacted.exists() && compacted.renameTo(file))) {
+				backup.renameTo(file);
+			}
+			logger.warning("Recovered cart journal from interrupted compaction : " + file);
+		}
+		compacted.delete();
+		backup.delete();
+	}
+
+	private void enqueue(Record record) {
+		queue.offer(record);
+		startDraining();
+	}
+
+	private void startDraining() {
+		// 書き込むスレッドが動作していなければ非同期に開始する
+		if (draining.compareAndSet(false, true)) {
+			context.getBusinessObject(CartJournalEJB.class).drain();
+		}
+	}
+
+	/**
+	 * thisをロックした状態で呼び出すこと
+	 */
+	private void drainQueue() {
+		try {
+			Record record;
+			while ((record = queue.poll()) != null) {
+				long offset = length;
+				length += write(out, record);
+				index(record.type, record.customerKey, offset);
+			}
+			out.flush();
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Cannot write cart journal", e);
+		}
+	}
+
+	/**
+	 * 1件のレコードを書き込む
+	 * @return 書き込んだバイト数
+	 */
+	private static long write(DataOutputStream out, Record record) throws IOException {
+		byte[] data = record.snapshot == null ? new byte[0] : serialize(record.snapshot);
+
+		out.writeByte(record.type);
+		out.writeUTF(record.customerKey);
+		out.writeInt(data.length);
+		out.write(data);
+		// DataOutputStream.size()はint値の最大値で頭打ちになるため使用しない
+		return recordLength(record.customerKey, data.length);
+	}
+
+	/**
+	 * thisをロックした状態で呼び出すこと
+	 */
+	private void index(byte type, String customerKey, long offset) {
+		if (type == CLEAR) {
+			offsets.remove(customerKey);
+			lastAccessed.remove(customerKey);
+			return;
+		}
+		// 記録した時刻とする（起動時の走査では記録された時刻が
+		// 分からないため、走査した時刻とする）
+		lastAccessed.put(customerKey, System.currentTimeMillis());
+		List<Long> customerOffsets = offsets.get(customerKey);
+		if (customerOffsets == null || type == SNAPSHOT) {
+			customerOffsets = new ArrayList<Long>();
+			offsets.put(customerKey, customerOffsets);
+		}
+		customerOffsets.add(offset);
+	}
+
+	/**
+	 * thisをロックした状態で呼び出すこと
+	 */
+	private List<Record> read(String customerKey) {
+		List<Long> customerOffsets = offsets.get(customerKey);
+		if (customerOffsets == null) {
+			return null;
+		}
+		List<Record> records = new ArrayList<Record>();
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				for (Long offset : customerOffsets) {
+					in.seek(offset);
+					byte type = in.readByte();
+					String key = in.readUTF();
+					byte[] data = new byte[in.readInt()];
+					in.readFully(data);
+					records.add(new Record(type, key, data.length == 0 ? null : deserialize(data)));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Cannot read cart journal", e);
+		}
+		return records;
+	}
+
+	/**
+	 * 起動時にファイル全体を読み込んで、顧客のキーごとの位置を復元する
+	 *
+	 * 書き込みの途中で停止したために不完全なレコードが末尾にある場合は、
+	 * その手前までに切り詰める。
+	 */
+	private void scan() throws IOException {
+		offsets.clear();
+		lastAccessed.clear();
+		length = 0;
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				byte type = in.readByte();
+				String customerKey = in.readUTF();
+				int dataLength = in.readInt();
+				if (in.skipBytes(dataLength) < dataLength) {
+					throw new EOFException();
+				}
+				index(type, customerKey, length);
+				length += recordLength(customerKey, dataLength);
+			}
+		} catch (EOFException e) {
+			// ファイルの終端
+		} finally {
+			in.close();
+		}
+
+		if (length < file.length()) {
+			logger.warning("Truncating incomplete record at the end of cart journal : " + file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(length);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * 記録された操作を順に反映して、1件のスナップショットにまとめる
+	 *
+	 * Item02エンティティを取得せずに、CartSnapshotのまま明細を照合する。
+	 */
+	private static CartSnapshot fold(List<Record> records) {
+		CartSnapshot folded = new CartSnapshot();
+		for (Record record : records) {
+			switch (record.type) {
+			case SNAPSHOT:
+				folded = record.snapshot;
+				break;
+			case LINE:
+			case REMOVE:
+				// 削除は数量が0の明細として記録されている
+				folded = folded.merge(record.snapshot, false);
+				break;
+			default:
+				folded = new CartSnapshot();
+			}
+		}
+		return folded;
+	}
+
+	private static CartSnapshot singleLine(Item02 item, CartLine line) {
+		Map<Item02, CartLine> lines = new LinkedHashMap<Item02, CartLine>();
+		lines.put(item, line);
+		return CartSnapshot.of(lines);
+	}
+
+	private static DataOutputStream openForAppend(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+
+	/**
+	 * レコードの種類、顧客のキー（修正UTF-8）、データの長さ、データの
+	 * 合計のバイト数を求める
+	 */
+	private static long recordLength(String customerKey, int dataLength) {
+		long utfLength = 2;
+		for (int i = 0; i < customerKey.length(); i++) {
+			char c = customerKey.charAt(i);
+			if (c >= 0x0001 && c <= 0x007f) {
+				utfLength += 1;
+			} else if (c > 0x07ff) {
+				utfLength += 3;
+			} else {
+				utfLength += 2;
+			}
+		}
+		return 1 + utfLength + 4 + dataLength;
+	}
+
+	private static byte[] serialize(CartSnapshot snapshot) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(snapshot);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static CartSnapshot deserialize(byte[] data) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+		try {
+			return (CartSnapshot) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * ファイルに記録する1件の操作
+	 */
+	private static class Record {
+
+		private final byte type;
+		private final String customerKey;
+		private final CartSnapshot snapshot;
+
+		Record(byte type, String customerKey, CartSnapshot snapshot) {
+			this.type = type;
+			this.customerKey = customerKey;
+			this.snapshot = snapshot;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+/**
+ * ShoppingCartEJBのカートの1明細。
+ *
+ * Item02エンティティをカートに追加した時点の単価と、その数量を保持する。
+ * 同じ値のItem02エンティティを複数個購入する場合でも、明細は1つだけとなる。
+ */
+public class CartLine {
+
+	// 追加時の単価（最小通貨単位）
+	private final long price;
+
+	// 数量（1以上）
+	private int quantity;
+
+	public CartLine(long price, int quantity) {
+		this.price = price;
+		this.quantity = quantity;
+	}
+
+	/**
+	 * 追加時の単価を取得する
+	 * @return 単価（最小通貨単位）
+	 */
+	public long getPrice() {
+		return price;
+	}
+
+	/**
+	 * 数量を取得する
+	 * @return 数量
+	 */
+	public int getQuantity() {
+		return quantity;
+	}
+
+	void setQuantity(int quantity) {
+		this.quantity = quantity;
+	}
+
+	/**
+	 * 明細の金額（単価×数量）を取得する
+	 * @return 明細の金額（最小通貨単位）
+	 */
+	public long getAmount() {
+		return price * quantity;
+	}
+}
@@ -0,0 +1,28 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * CartReplicatorEJBがカートのデルタをバックアップのノードに
+ * 送信するためのトランスポート。
+ *
+ * 実装は、1回のsend()で渡されたバイト列を送信した順序のまま
+ * バックアップのCartBackupStore.apply()に届け、その戻り値
+ * （操作の欠落によりカート全体の内容が必要になった顧客のキー）を
+ * 応答として返す必要がある。send()は1つのスレッドからしか
+ * 呼び出されない。
+ *
+ * ノード間の通信（JMSやJGroupsなど）はこのインターフェースを
+ * 実装して提供する。テストではInJvmCartReplicationTransportを使用する。
+ */
+public interface CartReplicationTransport {
+
+	/**
+	 * デルタのバッチを送信する
+	 * @param batch 送信するバイト列
+	 * @return バックアップがカート全体の内容を必要としている顧客のキー
+	 * @throws IOException 送信に失敗した場合（バッチは次回に再送される）
+	 */
+	Set<String> send(byte[] batch) throws IOException;
+}
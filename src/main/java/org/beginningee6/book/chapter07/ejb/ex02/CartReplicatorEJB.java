@@ -0,0 +1,302 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * ShoppingCartEJBのカートに対する操作を、デルタとして
+ * バックアップのノードにレプリケーションするシングルトン・セッションBean。
+ *
+ * 操作のたびにカート全体をシリアライズして送信する代わりに、
+ * 追加・削除・破棄の操作だけをシーケンス番号とともに送信する。
+ * 操作はCartDeltaBufferに顧客のキーごとにまとめられ、
+ * ＠Asynchronousメソッドとして別のスレッドで、複数の顧客の
+ * デルタを1つのバッチとしてトランスポートに送信する。
+ * 送信中に行われた操作は次のバッチにまとめられるため、
+ * 操作が多いほどバッチは大きく、1操作あたりの送信量は小さくなる。
+ *
+ * 送信するスレッドは常に1つだけであるため、同じ顧客のデルタは
+ * 記録された順にバックアップに届く。送信に失敗したバッチは
+ * その後の操作とまとめて、次の送信または定期的な再送で送信する。
+ * バックアップが操作の欠落を検出したカートは、そのカートに対する
+ * 次の操作で、変更分の代わりにカート全体の内容を送信し直す。
+ *
+ * ShoppingCartEJBのインスタンスが破棄される際にはカートの破棄を
+ * 記録し、バックアップのカートも破棄する。破棄が記録されずに
+ * 放置された顧客のキーのシーケンス番号は、定期的に破棄する。
+ *
+ * トランスポートが設定されていない場合、操作は記録しない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CartReplicatorEJB {
+
+	private static final Logger logger = Logger.getLogger(CartReplicatorEJB.class.getName());
+
+	// 1つのバッチに含める顧客のキーの最大数
+	private static final int MAX_BATCH_SIZE = 500;
+
+	// これより長く操作されていない顧客のキーのシーケンス番号を破棄する
+	// （ShoppingCartEJBの＠StatefulTimeoutより十分に長くする）
+	private static final long SEQUENCE_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	@Resource
+	private SessionContext context;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	private final CartDeltaBuffer buffer = new CartDeltaBuffer();
+
+	// デルタを送信するスレッドが動作中かどうか
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong sentBatches = new AtomicLong();
+
+	private volatile CartReplicationTransport transport;
+
+	/**
+	 * デルタを送信するトランスポートを設定する
+	 * @param transport トランスポート（nullの場合はレプリケーションを行わない）
+	 */
+	public void setTransport(CartReplicationTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * カート全体の内容を記録する
+	 * @param customerKey 顧客のキー
+	 * @param snapshot カートの内容
+	 */
+	public void recordSnapshot(String customerKey, CartSnapshot snapshot) {
+		if (transport != null) {
+			buffer.recordSnapshot(customerKey, snapshot);
+			startDraining();
+		}
+	}
+
+	/**
+	 * カートに明細が追加されたこと、または明細の数量が変更されたことを記録する
+	 *
+	 * バックアップがカート全体の内容を必要としている場合は、
+	 * 変更分の代わりにカート全体の内容を記録する。
+	 *
+	 * @param customerKey 顧客のキー
+	 * @param item 明細のItem02エンティティ
+	 * @param line 追加・変更後の明細
+	 * @param cart 変更後のカートの内容
+	 */
+	public void recordLine(String customerKey, Item02 item, CartLine line, Map<Item02, CartLine> cart) {
+		if (transport != null) {
+			if (buffer.isSnapshotRequested(customerKey)) {
+				buffer.recordSnapshot(customerKey, CartSnapshot.of(cart));
+			} else {
+				buffer.recordLine(customerKey, item, line);
+			}
+			startDraining();
+		}
+	}
+
+	/**
+	 * カートから明細が削除されたことを記録する
+	 *
+	 * バックアップがカート全体の内容を必要としている場合は、
+	 * 変更分の代わりにカート全体の内容を記録する。
+	 *
+	 * @param customerKey 顧客のキー
+	 * @param item 削除されたItem02エンティティ
+	 * @param cart 変更後のカートの内容
+	 */
+	public void recordRemove(String customerKey, Item02 item, Map<Item02, CartLine> cart) {
+		if (transport != null) {
+			if (buffer.isSnapshotRequested(customerKey)) {
+				buffer.recordSnapshot(customerKey, CartSnapshot.of(cart));
+			} else {
+				buffer.recordRemove(customerKey, item);
+			}
+			startDraining();
+		}
+	}
+
+	/**
+	 * カートが破棄されたことを記録する
+	 *
+	 * トランザクションの中で呼び出された場合は、トランザクションが
+	 * コミットされた時点で記録する。
+	 *
+	 * @param customerKey 顧客のキー
+	 */
+	public void recordClear(final String customerKey) {
+		if (transport == null) {
+			return;
+		}
+		if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			buffer.recordClear(customerKey);
+			startDraining();
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					buffer.recordClear(customerKey);
+					startDraining();
+				}
+			}
+		});
+	}
+
+	/**
+	 * 送信を待っているデルタを、呼び出し元のスレッドですべて送信する
+	 * @return すべて送信できた場合はtrue
+	 */
+	public boolean flush() {
+		synchronized (this) {
+			return sendPending();
+		}
+	}
+
+	/**
+	 * 送信を待っているデルタをバッチとして送信する
+	 *
+	 * ＠Asynchronousアノテーションにより、このメソッドは
+	 * 呼び出し元とは別のスレッドで実行される。
+	 * このメソッド自身はトランザクションを開始しない。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void drain() {
+		boolean sent;
+		try {
+			synchronized (this) {
+				sent = sendPending();
+			}
+		} finally {
+			draining.set(false);
+		}
+		// 送信の終了直前に記録された操作があれば送信する
+		// （送信に失敗した場合は定期的な再送に任せる）
+		if (sent && buffer.getPendingCount() > 0) {
+			startDraining();
+		}
+	}
+
+	/**
+	 * 送信に失敗したデルタを定期的に再送する
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	void retry() {
+		if (buffer.getPendingCount() > 0) {
+			startDraining();
+		}
+	}
+
+	/**
+	 * 保持期間を過ぎた顧客のキーのシーケンス番号を定期的に破棄する
+	 */
+	@Schedule(hour = "*", minute = "*/5", persistent = false)
+	void expire() {
+		int expired = buffer.expireIdle(System.currentTimeMillis() - SEQUENCE_RETENTION_MILLIS);
+		if (expired > 0) {
+			logger.info("Expired " + expired + " abandoned carts from cart replicator");
+		}
+	}
+
+	/**
+	 * シーケンス番号を保持している顧客のキーの数を取得する
+	 * @return 顧客のキーの数
+	 */
+	public int getTrackedCount() {
+		return buffer.getTrackedCount();
+	}
+
+	/**
+	 * 送信を待っている顧客のキーの数を取得する
+	 * @return 送信を待っている顧客のキーの数
+	 */
+	public int getPendingCount() {
+		return buffer.getPendingCount();
+	}
+
+	/**
+	 * これまでに記録された操作の件数を取得する
+	 * @return 記録された操作の件数
+	 */
+	public long getMutationCount() {
+		return buffer.getMutationCount();
+	}
+
+	/**
+	 * これまでに送信したバイト数を取得する
+	 * @return 送信したバイト数
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * これまでに送信したバッチの数を取得する
+	 * @return 送信したバッチの数
+	 */
+	public long getSentBatches() {
+		return sentBatches.get();
+	}
+
+	private void startDraining() {
+		// 送信するスレッドが動作していなければ非同期に開始する
+		if (draining.compareAndSet(false, true)) {
+			context.getBusinessObject(CartReplicatorEJB.class).drain();
+		}
+	}
+
+	/**
+	 * thisをロックした状態で呼び出すこと
+	 */
+	private boolean sendPending() {
+		CartReplicationTransport transport = this.transport;
+		List<CartDeltaBuffer.Delta> deltas;
+		while (transport != null && !(deltas = buffer.take(MAX_BATCH_SIZE)).isEmpty()) {
+			byte[] batch = CartDeltaBuffer.encode(deltas);
+			Set<String> stale;
+			try {
+				stale = transport.send(batch);
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot replicate cart deltas", e);
+				buffer.putBack(deltas);
+				return false;
+			}
+			sentBytes.addAndGet(batch.length);
+			sentBatches.incrementAndGet();
+			if (!stale.isEmpty()) {
+				// 次の操作でカート全体の内容を送信し直す
+				buffer.requestSnapshots(stale);
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,476 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * ShoppingCartEJBのカートの内容を、パッシベーション用に
+ * コンパクトな形式で保持するクラス。
+ *
+ * カートにあるItem02エンティティをそのままシリアライズする代わりに、
+ * 各明細を以下の値だけに詰め直して保持する。
+ *
+ * ・永続化済みのItem02エンティティ：主キーと追加時の単価、数量
+ * ・未永続化のItem02エンティティ：タイトル、説明、価格と追加時の単価、数量
+ *
+ * 主キーしか持たない明細のItem02エンティティは、アクティベーション
+ * 直後ではなく、カートの内容が実際に必要になった時点で
+ * restore()によりデータベースから取得し直される。
+ *
+ * Externalizableを実装し、シリアライズ形式を独自に定義することで、
+ * クラス記述子やエンティティのフィールドの情報を含めずに
+ * 明細の値だけを書き出すようにしている。
+ *
+ * また、write()とread()はJavaのシリアライズを介さずに同じ値を
+ * 読み書きするため、TokenCartEJBではこの形式に署名を付けたものを
+ * カートのトークンとしてクライアントに渡す。
+ */
+public class CartSnapshot implements Externalizable {
+
+	private static final long serialVersionUID = 1L;
+
+	// 未永続化のItem02エンティティであることを示す主キーの値
+	private static final long NO_ID = Long.MIN_VALUE;
+
+	// restore()で1回のクエリのIN句に指定する主キーの最大数
+	private static final int IN_LIST_SIZE = 500;
+
+	private int size;
+
+	// 明細ごとの主キー（未永続化の場合はNO_ID）
+	private long[] ids;
+
+	// 明細ごとの追加時の単価（最小通貨単位）
+	private long[] prices;
+
+	// 明細ごとの数量
+	private int[] quantities;
+
+	// 未永続化の明細だけが使用する値
+	private float[] itemPrices;
+	private String[] titles;
+	private String[] descriptions;
+
+	/**
+	 * 空のスナップショットを作成する（デシリアライズでも使用する）
+	 */
+	public CartSnapshot() {
+		allocate(0);
+	}
+
+	/**
+	 * カートの内容からスナップショットを作成する
+	 * @param items Item02エンティティと明細
+	 * @return カートの内容のスナップショット
+	 */
+	public static CartSnapshot of(Map<Item02, CartLine> items) {
+		CartSnapshot snapshot = new CartSnapshot();
+		snapshot.allocate(items.size());
+
+		int i = 0;
+		for (Map.Entry<Item02, CartLine> entry : items.entrySet()) {
+			Item02 item = entry.getKey();
+			snapshot.prices[i] = entry.getValue().getPrice();
+			snapshot.quantities[i] = entry.getValue().getQuantity();
+			if (item.getId() != null) {
+				snapshot.ids[i] = item.getId();
+			} else {
+				snapshot.ids[i] = NO_ID;
+				snapshot.itemPrices[i] = item.getPrice() == null ? 0f : item.getPrice();
+				snapshot.titles[i] = item.getTitle();
+				snapshot.descriptions[i] = item.getDescription();
+			}
+			i++;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * スナップショットに含まれる明細の件数を取得する
+	 * @return 明細の件数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * スナップショットに含まれる商品の個数（全明細の数量の合計）を取得する
+	 * @return 商品の個数
+	 */
+	public int getNumberOfUnits() {
+		int units = 0;
+		for (int i = 0; i < size; i++) {
+			units += quantities[i];
+		}
+		return units;
+	}
+
+	/**
+	 * スナップショットに含まれる明細の合計金額を取得する
+	 * @return 合計金額（最小通貨単位）
+	 */
+	public long getTotal() {
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += prices[i] * quantities[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Item02エンティティの明細の数量を取得する
+	 *
+	 * 永続化済みのItem02エンティティは主キーで、未永続化のItem02エンティティは
+	 * タイトル、説明、価格で明細と照合する。Item02エンティティを
+	 * データベースから取得せずに照合するため、Entity Managerは使用しない。
+	 *
+	 * @param item 数量を取得するItem02エンティティ
+	 * @return 数量（明細がない場合は0）
+	 */
+	public int getQuantity(Item02 item) {
+		int i = indexOf(item);
+		return i < 0 ? 0 : quantities[i];
+	}
+
+	/**
+	 * Item02エンティティの明細の数量を変更したスナップショットを作成する
+	 *
+	 * このスナップショット自体は変更しない。明細がない場合は
+	 * 末尾に追加し、数量に0以下を指定した場合は明細を削除する。
+	 *
+	 * @param item 数量を変更するItem02エンティティ
+	 * @param price 明細を追加する場合の単価（最小通貨単位）
+	 * @param quantity 変更後の数量
+	 * @return 数量を変更したスナップショット
+	 */
+	public CartSnapshot withQuantity(Item02 item, long price, int quantity) {
+		int index = indexOf(item);
+		if (index < 0 && quantity <= 0) {
+			return this;
+		}
+
+		CartSnapshot changed = new CartSnapshot();
+		if (index < 0) {
+			changed.allocate(size + 1);
+			copy(this, 0, changed, 0, size);
+			changed.prices[size] = price;
+			changed.quantities[size] = quantity;
+			if (item.getId() != null) {
+				changed.ids[size] = item.getId();
+			} else {
+				changed.ids[size] = NO_ID;
+				changed.itemPrices[size] = item.getPrice() == null ? 0f : item.getPrice();
+				changed.titles[size] = item.getTitle();
+				changed.descriptions[size] = item.getDescription();
+			}
+		} else if (quantity <= 0) {
+			changed.allocate(size - 1);
+			copy(this, 0, changed, 0, index);
+			copy(this, index + 1, changed, index, size - index - 1);
+		} else {
+			changed.allocate(size);
+			copy(this, 0, changed, 0, size);
+			changed.quantities[index] = quantity;
+		}
+		return changed;
+	}
+
+	/**
+	 * 永続化済みの明細の主キーを取得する
+	 * @return 永続化済みの明細の主キー（明細の順序）
+	 */
+	public List<Long> getPersistedIds() {
+		List<Long> persisted = new ArrayList<Long>();
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != NO_ID) {
+				persisted.add(ids[i]);
+			}
+		}
+		return persisted;
+	}
+
+	/**
+	 * 永続化済みの明細の数量を主キーごとに取得する
+	 * @return 主キーと数量
+	 */
+	public Map<Long, Integer> getPersistedQuantities() {
+		Map<Long, Integer> persisted = new HashMap<Long, Integer>();
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != NO_ID) {
+				Integer quantity = persisted.get(ids[i]);
+				persisted.put(ids[i], (quantity == null ? 0 : quantity) + quantities[i]);
+			}
+		}
+		return persisted;
+	}
+
+	/**
+	 * 永続化済みの明細の単価を置き換えたスナップショットを作成する
+	 *
+	 * このスナップショット自体は変更しない。pricesに主キーがない明細と
+	 * 未永続化の明細は、記録された単価のままとなる。
+	 *
+	 * @param prices 主キーごとの新しい単価（最小通貨単位）
+	 * @return 単価を置き換えたスナップショット
+	 */
+	public CartSnapshot withPrices(Map<Long, Long> prices) {
+		CartSnapshot changed = new CartSnapshot();
+		changed.allocate(size);
+		copy(this, 0, changed, 0, size);
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != NO_ID) {
+				Long price = prices.get(ids[i]);
+				if (price != null) {
+					changed.prices[i] = price;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * 明細の変更分を反映したスナップショットを作成する
+	 *
+	 * このスナップショット自体は変更しない。変更分の各明細は
+	 * 主キー（未永続化の場合はタイトル、説明、価格）で照合し、
+	 * 一致する明細があれば置き換え、なければ末尾に追加する。
+	 * 数量が0の明細は明細の削除を表す。
+	 *
+	 * @param changes 明細の変更分
+	 * @param keepRemoved trueの場合は数量が0の明細を削除せずに残す
+	 * （さらに別の変更分に反映するための変更分を作る場合に指定する）
+	 * @return 変更分を反映したスナップショット
+	 */
+	public CartSnapshot merge(CartSnapshot changes, boolean keepRemoved) {
+		CartSnapshot merged = new CartSnapshot();
+		merged.allocate(size + changes.size);
+		copy(this, 0, merged, 0, size);
+		merged.size = size;
+
+		for (int c = 0; c < changes.size; c++) {
+			int i = merged.indexOf(changes.ids[c], changes.itemPrices[c], 
+					changes.titles[c], changes.descriptions[c]);
+			if (i < 0) {
+				i = merged.size++;
+			}
+			copy(changes, c, merged, i, 1);
+		}
+
+		if (!keepRemoved) {
+			int kept = 0;
+			for (int i = 0; i < merged.size; i++) {
+				if (merged.quantities[i] > 0) {
+					copy(merged, i, merged, kept++, 1);
+				}
+			}
+			merged.size = kept;
+		}
+		return merged;
+	}
+
+	/**
+	 * スナップショットからカートの内容を復元する
+	 *
+	 * 永続化済みの明細はデータベースから取得し直す。明細ごとに
+	 * 取得せずに、IN句で主キーを指定したクエリでまとめて取得する。
+	 * その間に削除されていたItem02エンティティはカートから取り除かれる。
+	 *
+	 * @param em Item02エンティティの取得に使用するEntity Manager
+	 * （永続化済みの明細がない場合はnullでもよい）
+	 * @return Item02エンティティと明細
+	 */
+	public Map<Item02, CartLine> restore(EntityManager em) {
+		Map<Long, Item02> found = findAll(em);
+
+		Map<Item02, CartLine> items = new LinkedHashMap<Item02, CartLine>();
+		for (int i = 0; i < size; i++) {
+			Item02 item;
+			if (ids[i] != NO_ID) {
+				item = found.get(ids[i]);
+				if (item == null) {
+					continue;
+				}
+			} else {
+				item = new Item02(titles[i], itemPrices[i], descriptions[i]);
+			}
+			items.put(item, new CartLine(prices[i], quantities[i]));
+		}
+
+		return items;
+	}
+
+	/**
+	 * 永続化済みの明細のItem02エンティティを、IN_LIST_SIZE件ずつの
+	 * クエリでまとめて取得する
+	 */
+	private Map<Long, Item02> findAll(EntityManager em) {
+		List<Long> persisted = getPersistedIds();
+
+		Map<Long, Item02> found = new HashMap<Long, Item02>();
+		for (int from = 0; from < persisted.size(); from += IN_LIST_SIZE) {
+			TypedQuery<Item02> query = em.createQuery(
+					"SELECT i FROM Item02 i WHERE i.id IN :ids", Item02.class);
+			query.setParameter("ids", 
+					persisted.subList(from, Math.min(from + IN_LIST_SIZE, persisted.size())));
+			for (Item02 item : query.getResultList()) {
+				found.put(item.getId(), item);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * スナップショットの明細を売上に関連付けるItem02エンティティと
+	 * 数量に変換する
+	 *
+	 * 永続化済みの明細はデータベースから読み込まずに参照だけを取得し、
+	 * 未永続化の明細は新しいItem02エンティティとして永続化する。
+	 * Item02エンティティは明細ごとに1回だけ関連付け、数量は
+	 * SalesLineEJBで記録する。
+	 *
+	 * @param em 参照の取得と永続化に使用するEntity Manager
+	 * @return 売上に関連付けるItem02エンティティと数量
+	 */
+	public SalesLines link(EntityManager em) {
+		SalesLines lines = new SalesLines();
+		for (int i = 0; i < size; i++) {
+			Item02 item;
+			if (ids[i] != NO_ID) {
+				item = em.getReference(Item02.class, ids[i]);
+			} else {
+				item = new Item02(titles[i], itemPrices[i], descriptions[i]);
+				em.persist(item);
+			}
+			lines.add(item, quantities[i]);
+		}
+
+		return lines;
+	}
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		write(out);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		readFrom(in);
+	}
+
+	/**
+	 * Javaのシリアライズを使わずに、明細の値だけを書き出す
+	 * @param out 書き出し先
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) {
+			out.writeLong(ids[i]);
+			out.writeLong(prices[i]);
+			out.writeInt(quantities[i]);
+			if (ids[i] == NO_ID) {
+				out.writeFloat(itemPrices[i]);
+				writeNullableUTF(out, titles[i]);
+				writeNullableUTF(out, descriptions[i]);
+			}
+		}
+	}
+
+	/**
+	 * write()で書き出した明細の値からスナップショットを作成する
+	 * @param in 読み込み元
+	 * @return 読み込んだスナップショット
+	 */
+	public static CartSnapshot read(DataInput in) throws IOException {
+		CartSnapshot snapshot = new CartSnapshot();
+		snapshot.readFrom(in);
+		return snapshot;
+	}
+
+	private void readFrom(DataInput in) throws IOException {
+		int size = in.readInt();
+		if (size < 0) {
+			throw new IOException("Invalid number of lines : " + size);
+		}
+		allocate(size);
+		for (int i = 0; i < size; i++) {
+			ids[i] = in.readLong();
+			prices[i] = in.readLong();
+			quantities[i] = in.readInt();
+			if (ids[i] == NO_ID) {
+				itemPrices[i] = in.readFloat();
+				titles[i] = readNullableUTF(in);
+				descriptions[i] = readNullableUTF(in);
+			}
+		}
+	}
+
+	private void allocate(int size) {
+		this.size = size;
+		this.ids = new long[size];
+		this.prices = new long[size];
+		this.quantities = new int[size];
+		this.itemPrices = new float[size];
+		this.titles = new String[size];
+		this.descriptions = new String[size];
+	}
+
+	private int indexOf(Item02 item) {
+		if (item.getId() != null) {
+			return indexOf(item.getId(), 0f, null, null);
+		}
+		return indexOf(NO_ID, item.getPrice() == null ? 0f : item.getPrice(), 
+				item.getTitle(), item.getDescription());
+	}
+
+	private int indexOf(long id, float itemPrice, String title, String description) {
+		for (int i = 0; i < size; i++) {
+			if (ids[i] != id) {
+				continue;
+			}
+			if (id != NO_ID
+					|| (itemPrices[i] == itemPrice
+					&& equal(titles[i], title)
+					&& equal(descriptions[i], description))) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void copy(CartSnapshot from, int fromIndex, CartSnapshot to, int toIndex, int length) {
+		System.arraycopy(from.ids, fromIndex, to.ids, toIndex, length);
+		System.arraycopy(from.prices, fromIndex, to.prices, toIndex, length);
+		System.arraycopy(from.quantities, fromIndex, to.quantities, toIndex, length);
+		System.arraycopy(from.itemPrices, fromIndex, to.itemPrices, toIndex, length);
+		System.arraycopy(from.titles, fromIndex, to.titles, toIndex, length);
+		System.arraycopy(from.descriptions, fromIndex, to.descriptions, toIndex, length);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static void writeNullableUTF(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullableUTF(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
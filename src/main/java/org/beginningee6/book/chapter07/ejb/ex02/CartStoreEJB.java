@@ -0,0 +1,135 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+
+/**
+ * パッシベーションされたShoppingCartEJBのカートの内容を
+ * Javaヒープの外に保持するシングルトン・セッションBean。
+ *
+ * ShoppingCartEJBはパッシベーション時にカートの内容をこのBeanに
+ * 預け、自身はハンドル（long値）だけを保持する。これにより、
+ * パッシベーションでシリアライズされる状態はカートの大きさによらず
+ * ほぼ一定となり、カートの内容がヒープを消費することもない。
+ *
+ * タイムアウトしたShoppingCartEJBのインスタンスは、パッシベーション
+ * されたまま＠PreDestroyメソッドを呼ばれずに破棄されることがあるため、
+ * 一定時間取り出されなかった内容は定期的に解放する。内容を取り出さない
+ * ビジネス・メソッド（getNumberOfItems()など）だけが呼び出され続けて
+ * いるインスタンスの内容は、呼び出しごとにtouch()で使用を記録するため
+ * 解放されない。
+ *
+ * 同期はOffHeapCartStoreが行うため、Bean管理の同時実行制御とする。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CartStoreEJB {
+
+	private static final Logger logger = Logger.getLogger(CartStoreEJB.class.getName());
+
+	// 1スロットのバイト数（ヘッダを含む）
+	private static final int SLOT_SIZE = 256;
+
+	// スロットの数（256バイト×131,072スロット＝32MB）
+	private static final int SLOT_COUNT = 131072;
+
+	// 取り出されず、使用も記録されなかった内容を保持する期間
+	// （ShoppingCartEJBの＠StatefulTimeoutより十分に長くする）
+	private static final long RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private final OffHeapCartStore store = new OffHeapCartStore(SLOT_SIZE, SLOT_COUNT);
+
+	/**
+	 * カートの内容を預ける
+	 * @param snapshot カートの内容
+	 * @return 預けた内容のハンドル。空き領域が足りない場合はOffHeapCartStore.NO_HANDLE
+	 */
+	public long put(CartSnapshot snapshot) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(snapshot);
+			out.close();
+
+			return store.put(bytes.toByteArray());
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot store cart snapshot", e);
+			return OffHeapCartStore.NO_HANDLE;
+		}
+	}
+
+	/**
+	 * 預けたカートの内容を取り出す
+	 * @param handle put()で取得したハンドル
+	 * @return カートの内容。既に解放されていた場合はnull
+	 */
+	public CartSnapshot take(long handle) {
+		byte[] data = store.take(handle);
+		if (data == null) {
+			return null;
+		}
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+			try {
+				return (CartSnapshot) in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot restore cart snapshot", e);
+			return null;
+		} catch (ClassNotFoundException e) {
+			logger.log(Level.WARNING, "Cannot restore cart snapshot", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 預けたカートの内容がまだ使用されていることを記録する
+	 *
+	 * 記録した時点から保持期間の間は解放されない。
+	 *
+	 * @param handle put()で取得したハンドル
+	 */
+	public void touch(long handle) {
+		store.touch(handle);
+	}
+
+	/**
+	 * 預けたカートの内容を取り出さずに解放する
+	 * @param handle put()で取得したハンドル
+	 */
+	public void free(long handle) {
+		store.free(handle);
+	}
+
+	/**
+	 * 空きスロットの数を取得する
+	 * @return 空きスロットの数
+	 */
+	public int getFreeSlots() {
+		return store.getFreeSlots();
+	}
+
+	/**
+	 * 保持期間を過ぎても取り出されなかった内容を定期的に解放する
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/30", persistent = false)
+	void purge() {
+		int purged = store.purge(System.currentTimeMillis() - RETENTION_MILLIS);
+		if (purged > 0) {
+			logger.info("Purged " + purged + " expired cart snapshots");
+		}
+	}
+}
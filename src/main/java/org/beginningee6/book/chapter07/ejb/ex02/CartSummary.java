@@ -0,0 +1,45 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.Serializable;
+
+/**
+ * ShoppingCartEJBのカートをまとめて更新した後の
+ * 件数と合計金額を保持するクラス。
+ *
+ * リモートのクライアントが更新後に件数と合計金額を
+ * 取得するために、別途メソッドを呼び出さずに済むように
+ * 更新系のメソッドの戻り値として返される。
+ */
+public class CartSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Integer numberOfItems;
+	private final Float total;
+
+	public CartSummary(Integer numberOfItems, Float total) {
+		this.numberOfItems = numberOfItems;
+		this.total = total;
+	}
+
+	/**
+	 * カートに追加されたItem02エンティティの件数を取得する
+	 * @return Item02エンティティの件数
+	 */
+	public Integer getNumberOfItems() {
+		return numberOfItems;
+	}
+
+	/**
+	 * カートにあるすべてのItem02エンティティの合計金額を取得する
+	 * @return Item02エンティティの合計金額
+	 */
+	public Float getTotal() {
+		return total;
+	}
+
+	@Override
+	public String toString() {
+		return "CartSummary [numberOfItems=" + numberOfItems + ", total=" + total + "]";
+	}
+}
@@ -0,0 +1,222 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CartSnapshotを署名付きのバイナリ形式のトークンに変換するクラス。
+ *
+ * トークンは以下の形式を持つ。
+ *
+ * ・形式のバージョン（byte）
+ * ・発行日時（long。明細の単価を記録した日時）
+ * ・CartSnapshot.write()で書き出した明細の値
+ * ・ここまでのバイト列のHMAC-SHA256（32バイト）
+ *
+ * トークンはクライアントが保持するため、復元時には署名を
+ * 検証して改ざんされていないことを確認する。また、サーバが
+ * 大きすぎるトークンを発行したり、受け取ったりしないように、
+ * トークンのサイズをMAX_TOKEN_BYTESまでに制限する。
+ * （サイズの確認は署名の計算より前に行う）
+ *
+ * 発行日時は署名の対象となるため、クライアントが書き換えることは
+ * できない。トークンを受け取った側は、発行日時から一定の時間が
+ * 過ぎたトークンの単価をそのまま使わずに再計算する。
+ *
+ * 署名の鍵はシステム・プロパティ（KEY_PROPERTY）で指定する。
+ * クラスタ内のすべてのサーバで同じ鍵を指定すれば、
+ * どのサーバでもトークンを検証できる。
+ */
+public class CartTokenCodec {
+
+	/** 署名の鍵を指定するシステム・プロパティの名前 */
+	public static final String KEY_PROPERTY = "cart.token.key";
+
+	/** トークンの最大バイト数 */
+	public static final int MAX_TOKEN_BYTES = 8192;
+
+	private static final byte VERSION = 2;
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final int MAC_LENGTH = 32;
+
+	private final SecretKeySpec key;
+
+	// Macはスレッド・セーフではないため、スレッドごとに保持する
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(ALGORITHM);
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	/**
+	 * @param key 署名の鍵
+	 */
+	public CartTokenCodec(byte[] key) {
+		this.key = new SecretKeySpec(key.clone(), ALGORITHM);
+	}
+
+	/**
+	 * システム・プロパティで指定された鍵で署名するCartTokenCodecを作成する
+	 *
+	 * サーバごとに異なる鍵で署名すると、他のサーバや再起動前に発行した
+	 * トークンを検証できなくなるため、鍵が指定されていない場合は
+	 * 乱数で生成せずに例外をスローする。
+	 *
+	 * @throws IllegalStateException 鍵が指定されていない場合
+	 */
+	public static CartTokenCodec fromSystemProperty() {
+		String key = System.getProperty(KEY_PROPERTY);
+		if (key == null || key.length() == 0) {
+			throw new IllegalStateException("System property " + KEY_PROPERTY + " must be set");
+		}
+		try {
+			return new CartTokenCodec(key.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * カートの内容を、現在の日時を発行日時としてトークンに変換する
+	 * @param snapshot カートの内容
+	 * @return 署名付きのトークン
+	 * @throws CartTokenException トークンが最大バイト数を超える場合
+	 */
+	public byte[] encode(CartSnapshot snapshot) throws CartTokenException {
+		return encode(snapshot, System.currentTimeMillis());
+	}
+
+	/**
+	 * カートの内容を、発行日時を指定してトークンに変換する
+	 * @param snapshot カートの内容
+	 * @param issuedAt 発行日時（明細の単価を記録した日時）
+	 * @return 署名付きのトークン
+	 * @throws CartTokenException トークンが最大バイト数を超える場合
+	 */
+	public byte[] encode(CartSnapshot snapshot, long issuedAt) throws CartTokenException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeLong(issuedAt);
+			snapshot.write(out);
+			out.flush();
+		} catch (IOException e) {
+			// ByteArrayOutputStreamへの書き込みでは発生しない
+			throw new IllegalStateException(e);
+		}
+		if (bytes.size() + MAC_LENGTH > MAX_TOKEN_BYTES) {
+			throw new CartTokenException("Cart token is too large : "
+					+ (bytes.size() + MAC_LENGTH) + " bytes");
+		}
+
+		byte[] body = bytes.toByteArray();
+		byte[] token = Arrays.copyOf(body, body.length + MAC_LENGTH);
+		System.arraycopy(sign(body, body.length), 0, token, body.length, MAC_LENGTH);
+		return token;
+	}
+
+	/**
+	 * トークンの署名を検証してカートの内容に変換する
+	 * @param token encode()で作成したトークン（nullの場合は空のカート）
+	 * @return カートの内容
+	 * @throws CartTokenException トークンが不正な場合
+	 */
+	public CartSnapshot decode(byte[] token) throws CartTokenException {
+		return decodeContents(token).getSnapshot();
+	}
+
+	/**
+	 * トークンの署名を検証してカートの内容と発行日時に変換する
+	 * @param token encode()で作成したトークン（nullの場合は現在の日時に発行した空のカート）
+	 * @return カートの内容と発行日時
+	 * @throws CartTokenException トークンが不正な場合
+	 */
+	public Contents decodeContents(byte[] token) throws CartTokenException {
+		if (token == null) {
+			return new Contents(new CartSnapshot(), System.currentTimeMillis());
+		}
+		if (token.length > MAX_TOKEN_BYTES) {
+			throw new CartTokenException("Cart token is too large : " + token.length + " bytes");
+		}
+		if (token.length < 1 + 8 + MAC_LENGTH) {
+			throw new CartTokenException("Cart token is too short : " + token.length + " bytes");
+		}
+
+		int bodyLength = token.length - MAC_LENGTH;
+		byte[] expected = sign(token, bodyLength);
+		byte[] actual = Arrays.copyOfRange(token, bodyLength, token.length);
+		// 一致するまでの時間から署名を推測されないよう、常に全体を比較する
+		if (!MessageDigest.isEqual(expected, actual)) {
+			throw new CartTokenException("Cart token signature is invalid");
+		}
+		if (token[0] != VERSION) {
+			throw new CartTokenException("Unsupported cart token version : " + token[0]);
+		}
+
+		try {
+			DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(token, 1, bodyLength - 1));
+			long issuedAt = in.readLong();
+			CartSnapshot snapshot = CartSnapshot.read(in);
+			if (in.available() > 0) {
+				throw new CartTokenException("Cart token has trailing bytes");
+			}
+			return new Contents(snapshot, issuedAt);
+		} catch (IOException e) {
+			// 署名は正しいが形式が不正（鍵を共有する別の用途のデータなど）
+			throw new CartTokenException("Cart token is malformed : " + e.getMessage());
+		}
+	}
+
+	private byte[] sign(byte[] data, int length) {
+		Mac mac = macs.get();
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+
+	/**
+	 * トークンから復元したカートの内容と発行日時
+	 */
+	public static class Contents {
+
+		private final CartSnapshot snapshot;
+		private final long issuedAt;
+
+		public Contents(CartSnapshot snapshot, long issuedAt) {
+			this.snapshot = snapshot;
+			this.issuedAt = issuedAt;
+		}
+
+		public CartSnapshot getSnapshot() {
+			return snapshot;
+		}
+
+		/**
+		 * 発行日時（明細の単価を記録した日時）を取得する
+		 * @return 発行日時（ミリ秒）
+		 */
+		public long getIssuedAt() {
+			return issuedAt;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * TokenCartEJBのすべてのインスタンスが共有するCartTokenCodecを
+ * 保持するシングルトン・セッションBean。
+ *
+ * CartTokenCodecは、TokenCartEJBから最初に取得されたときに
+ * システム・プロパティ（CartTokenCodec.KEY_PROPERTY）の鍵で作成する。
+ * 鍵が指定されていない場合はTokenCartEJBの呼び出しだけが失敗し、
+ * トークンを使用しない他のBean（ShoppingCartEJBなど）は鍵がなくても
+ * デプロイして使用できる。鍵を指定すれば、再デプロイせずに次の
+ * 呼び出しからTokenCartEJBを使用できる。
+ *
+ * 一度作成したCartTokenCodecは変更しないため、サーバごとに
+ * 異なる鍵で動作して、他のサーバが発行したトークンを拒否するように
+ * なることはない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CartTokenCodecEJB {
+
+	// 最初に作成した後は変更しない
+	private volatile CartTokenCodec codec;
+
+	/**
+	 * トークンの変換に使用するCartTokenCodecを取得する
+	 *
+	 * 最初の呼び出しでCartTokenCodecを作成する。
+	 *
+	 * @return CartTokenCodec
+	 * @throws IllegalStateException 鍵が指定されていない場合
+	 */
+	public CartTokenCodec getCodec() {
+		CartTokenCodec result = codec;
+		if (result == null) {
+			synchronized (this) {
+				result = codec;
+				if (result == null) {
+					codec = result = CartTokenCodec.fromSystemProperty();
+				}
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,23 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * TokenCartEJBに渡されたカートのトークンが不正な場合、または
+ * カートの内容がトークンの上限サイズを超える場合にスローされる
+ * チェック例外。
+ *
+ * ＠ApplicationExceptionを付与しているため、この例外がスローされても
+ * トランザクションはロールバックされず、クライアントは元のトークンを
+ * そのまま使い続けることができる。
+ *
+ */
+@ApplicationException
+public class CartTokenException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public CartTokenException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,217 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * カタログ（Item02テーブル）の価格を、有効期限付きでメモリ上に
+ * キャッシュするシングルトン・セッションBean。
+ *
+ * ShoppingCartEJBは、クライアントから渡されたItem02エンティティの
+ * 価格ではなく、このBeanから取得した価格を明細の単価として
+ * 追加時に記録する。合計金額とチェックアウトはその単価だけを
+ * 使用するため、カートの表示でデータベースを読むことはなく、
+ * 人気のある商品の価格はキャッシュから返される。
+ *
+ * キャッシュの各エントリは有効期限（ttlMillis）を過ぎると読み直される。
+ * エントリはアクセス順のLinkedHashMapで保持し、エントリの数が
+ * maxEntriesを超えた場合は、最も長く参照されていないエントリを
+ * 1件だけ取り除く（LRU）。取り除くエントリはリストの先頭にあるため、
+ * エントリの数によらず定数時間で追い出せる。
+ *
+ * アクセス順のLinkedHashMapは読み込みでも順序を更新するため、
+ * 読み込みと書き込みはいずれもpricesをロックして行う。ロックを
+ * 保持するのはMapの操作の間だけであり、データベースの読み込み中は
+ * 保持しない。
+ *
+ * 同時に同じ商品の価格が読み込まれた場合は、それぞれがデータベースを
+ * 読むが、結果は同じ価格となるため排他制御は行わない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CatalogPriceEJB {
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	// 主キーごとの価格（最小通貨単位）。アクセス順に並び、
+	// 最も長く参照されていないエントリが先頭となる
+	private final LinkedHashMap<Long, Entry> prices = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+			return size() > maxEntries;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private volatile long ttlMillis = TimeUnit.MINUTES.toMillis(1);
+	private volatile int maxEntries = 10000;
+
+	/**
+	 * Item02エンティティの正式な価格を取得する
+	 *
+	 * 未永続化のItem02エンティティや、カタログから削除された
+	 * Item02エンティティはカタログに価格がないため、
+	 * Item02エンティティ自身の価格を返す。
+	 *
+	 * @param item 価格を取得するItem02エンティティ
+	 * @return 価格（最小通貨単位）
+	 */
+	public long getPrice(Item02 item) {
+		if (item.getId() == null) {
+			return toMinorUnits(item.getPrice());
+		}
+		Long price = getPrice(item.getId());
+		return price != null ? price : toMinorUnits(item.getPrice());
+	}
+
+	/**
+	 * 主キーを指定してカタログの価格を取得する
+	 * @param id Item02エンティティの主キー
+	 * @return 価格（最小通貨単位）。カタログにない場合はnull
+	 */
+	public Long getPrice(Long id) {
+		long now = System.currentTimeMillis();
+		Entry entry;
+		synchronized (prices) {
+			entry = prices.get(id);
+		}
+		if (entry != null && entry.expiresAt > now) {
+			hits.incrementAndGet();
+			return entry.price;
+		}
+
+		misses.incrementAndGet();
+		List<Float> found = em.createQuery(
+				"SELECT i.price FROM Item02 i WHERE i.id = :id", Float.class)
+				.setParameter("id", id)
+				.getResultList();
+		if (found.isEmpty()) {
+			invalidate(id);
+			return null;
+		}
+
+		long price = toMinorUnits(found.get(0));
+		synchronized (prices) {
+			// 最大数を超えた場合はremoveEldestEntry()で1件取り除かれる
+			prices.put(id, new Entry(price, now + ttlMillis));
+		}
+		return price;
+	}
+
+	/**
+	 * 価格が変更されたItem02エンティティのエントリを取り除く
+	 * @param id Item02エンティティの主キー
+	 */
+	public void invalidate(Long id) {
+		synchronized (prices) {
+			prices.remove(id);
+		}
+	}
+
+	/**
+	 * すべてのエントリを取り除く
+	 */
+	public void invalidateAll() {
+		synchronized (prices) {
+			prices.clear();
+		}
+	}
+
+	/**
+	 * キャッシュから価格を返した回数を取得する
+	 * @return キャッシュから返した回数
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * データベースから価格を読み込んだ回数を取得する
+	 * @return データベースから読み込んだ回数
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * キャッシュしているエントリの数を取得する
+	 * @return エントリの数
+	 */
+	public int size() {
+		synchronized (prices) {
+			return prices.size();
+		}
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	public void setTtlMillis(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * エントリの最大数を設定する
+	 *
+	 * 現在のエントリの数が新しい最大数を超えている場合は、
+	 * 最も長く参照されていないエントリから取り除く。
+	 *
+	 * @param maxEntries エントリの最大数
+	 */
+	public void setMaxEntries(int maxEntries) {
+		synchronized (prices) {
+			this.maxEntries = maxEntries;
+			Iterator<Long> it = prices.keySet().iterator();
+			while (prices.size() > maxEntries && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * 価格を最小通貨単位（1/100）の整数に換算する
+	 */
+	private static long toMinorUnits(Float price) {
+		if (price == null) {
+			return 0;
+		}
+		return Math.round(price.doubleValue() * 100);
+	}
+
+	/**
+	 * 1件の商品の価格と有効期限
+	 */
+	private static class Entry {
+
+		private final long price;
+		private final long expiresAt;
+
+		Entry(long price, long expiresAt) {
+			this.price = price;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * 同じ冪等キーのチェックアウトが処理中の場合にスローされる例外。
+ *
+ * ＠ApplicationException(rollback = true)を付与しているため、
+ * この例外がスローされるとトランザクションはロールバックされるが、
+ * Beanのインスタンスは破棄されずにEJBExceptionに包まれることなく
+ * クライアントに返される。クライアントは時間をおいて同じキーで
+ * 再試行すれば、先のチェックアウトの結果を取得できる。
+ *
+ */
+@ApplicationException(rollback = true)
+public class CheckoutInProgressException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String idempotencyKey;
+
+	public CheckoutInProgressException(String idempotencyKey) {
+		super("Checkout with the same key is in progress : " + idempotencyKey);
+		this.idempotencyKey = idempotencyKey;
+	}
+
+	/**
+	 * 処理中だった冪等キーを取得する
+	 * @return 冪等キー
+	 */
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+}
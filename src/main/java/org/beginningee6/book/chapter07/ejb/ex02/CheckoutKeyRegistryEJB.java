@@ -0,0 +1,276 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.TemporalType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * ShoppingCartEJBの冪等なチェックアウトのために、冪等キーと、
+ * そのキーで永続化されたSales02エンティティの主キーを記録する
+ * シングルトン・セッションBean。
+ *
+ * キーはCHECKOUT_KEYテーブルに、売上処理と同じトランザクションで
+ * INSERTする。したがって、キーが記録されるのは売上が実際に
+ * コミットされた場合だけであり、再デプロイの後や別のノードでも
+ * 同じキーの売上が重複して永続化されることはない。
+ * （CHECKOUT_KEYテーブルはデプロイ時に存在しなければ作成する）
+ *
+ * コミットされたキーは、テーブルを検索せずに済むように最近の
+ * 一定数をメモリ上にも保持する。メモリ上にないキーはテーブルを
+ * 検索する。
+ *
+ * 同じキーのチェックアウトがこのノードで処理中の場合、後から来た
+ * 呼び出しは待たずに直ちにCheckoutInProgressExceptionとなる。
+ * 別のノードで同時に処理された場合は、主キーの制約によって
+ * 後からコミットしようとした方がCheckoutInProgressExceptionとなる。
+ *
+ * 記録したキーは一定期間を過ぎると定期的に削除する。
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CheckoutKeyRegistryEJB {
+
+	private static final Logger logger = Logger.getLogger(CheckoutKeyRegistryEJB.class.getName());
+
+	// キーを記録するテーブル
+	static final String TABLE = "CHECKOUT_KEY";
+
+	// メモリ上に保持するキーの最大数
+	private static final int MAX_CACHED_KEYS = 100000;
+
+	// 記録したキーを保持する期間（クライアントが再試行する期間より十分に長くする）
+	private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	// テーブルを作成するステートレス・セッションBeanを注入
+	@EJB
+	private NativeTableEJB tables;
+
+	// コミットされたキーとSales02エンティティの主キー。アクセス順の
+	// LinkedHashMapにより、最も長く参照されていないキーから破棄する
+	// （thisをロックして読み書きする）
+	private final Map<String, Long> committed = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_CACHED_KEYS;
+		}
+	};
+
+	// このノードで処理中のキー（thisをロックして読み書きする）
+	private final Map<String, KeyState> inProgress = new HashMap<String, KeyState>();
+
+	/**
+	 * ＠PostConstructアノテーションにより、
+	 * このメソッドはインスタンスが生成された直後に
+	 * 自動で実行される。
+	 *
+	 * キーを記録するテーブルがなければ作成する。
+	 */
+	@PostConstruct
+	void init() {
+		if (!tables.exists(TABLE)) {
+			tables.create("CREATE TABLE " + TABLE + " ("
+					+ "IDEMPOTENCY_KEY VARCHAR(255) NOT NULL PRIMARY KEY, "
+					+ "SALES_ID BIGINT NOT NULL, "
+					+ "CREATED_AT TIMESTAMP NOT NULL)");
+			logger.info("Created table " + TABLE);
+		}
+	}
+
+	/**
+	 * 冪等キーによるチェックアウトを開始する
+	 *
+	 * キーが既にコミットされたチェックアウトに結び付いている場合は、
+	 * そのSales02エンティティの主キーを返す。そうでない場合は、
+	 * このキーを処理中として登録してnullを返す。呼び出し元は
+	 * 同じトランザクションの中でチェックアウトを行い、
+	 * complete()を呼び出すこと。
+	 *
+	 * @param key 冪等キー
+	 * @return 既にコミットされたSales02エンティティの主キー。
+	 * 新しいチェックアウトを行う場合はnull
+	 * @throws CheckoutInProgressException 同じキーのチェックアウトが処理中の場合
+	 */
+	public Long begin(String key) {
+		KeyState state = new KeyState();
+		synchronized (this) {
+			Long salesId = committed.get(key);
+			if (salesId != null) {
+				return salesId;
+			}
+			if (inProgress.containsKey(key)) {
+				throw new CheckoutInProgressException(key);
+			}
+			inProgress.put(key, state);
+		}
+
+		boolean registered = false;
+		try {
+			Long salesId = find(key);
+			if (salesId != null) {
+				synchronized (this) {
+					committed.put(key, salesId);
+				}
+				return salesId;
+			}
+			register(key, state);
+			registered = true;
+			return null;
+		} finally {
+			if (!registered) {
+				synchronized (this) {
+					inProgress.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * begin()で開始したチェックアウトで永続化されたSales02エンティティの
+	 * 主キーを、呼び出し元のトランザクションで記録する
+	 *
+	 * @param key 冪等キー
+	 * @param salesId 永続化されたSales02エンティティの主キー
+	 * @throws CheckoutInProgressException 別のノードで同じキーが記録された場合
+	 */
+	public void complete(String key, Long salesId) {
+		try {
+			em.createNativeQuery("INSERT INTO " + TABLE
+					+ " (IDEMPOTENCY_KEY, SALES_ID, CREATED_AT) VALUES (:key, :salesId, :createdAt)")
+					.setParameter("key", key)
+					.setParameter("salesId", salesId)
+					.setParameter("createdAt", new Date(), TemporalType.TIMESTAMP)
+					.executeUpdate();
+		} catch (PersistenceException e) {
+			throw new CheckoutInProgressException(key);
+		}
+		synchronized (this) {
+			KeyState state = inProgress.get(key);
+			if (state != null) {
+				state.pendingSalesId = salesId;
+			}
+		}
+	}
+
+	/**
+	 * コミット済みのキーを、呼び出し元のトランザクションで破棄する
+	 *
+	 * キーに結び付いたSales02エンティティが削除されていた場合などに使用する。
+	 * キーが別のSales02エンティティに結び付け直されていた場合は破棄しない。
+	 *
+	 * @param key 冪等キー
+	 * @param salesId begin()が返したSales02エンティティの主キー
+	 */
+	public void forget(String key, Long salesId) {
+		synchronized (this) {
+			if (salesId.equals(committed.get(key))) {
+				committed.remove(key);
+			}
+		}
+		em.createNativeQuery("DELETE FROM " + TABLE + " WHERE IDEMPOTENCY_KEY = :key AND SALES_ID = :salesId")
+				.setParameter("key", key)
+				.setParameter("salesId", salesId)
+				.executeUpdate();
+	}
+
+	/**
+	 * メモリ上に保持しているキーの数を取得する
+	 * @return キーの数
+	 */
+	public synchronized int size() {
+		return committed.size();
+	}
+
+	/**
+	 * メモリ上に保持しているキーを破棄する
+	 *
+	 * 以降はテーブルを検索してキーを確認する。
+	 */
+	public synchronized void clearCache() {
+		committed.clear();
+	}
+
+	/**
+	 * 保持期間を過ぎたキーを定期的に削除する
+	 */
+	@Schedule(hour = "*", minute = "15", persistent = false)
+	void purge() {
+		int purged = em.createNativeQuery("DELETE FROM " + TABLE + " WHERE CREATED_AT < :before")
+				.setParameter("before", new Date(System.currentTimeMillis() - RETENTION_MILLIS), TemporalType.TIMESTAMP)
+				.executeUpdate();
+		if (purged > 0) {
+			logger.info("Purged " + purged + " expired checkout keys");
+		}
+	}
+
+	/**
+	 * テーブルに記録されたキーのSales02エンティティの主キーを検索する
+	 * @return Sales02エンティティの主キー。記録されていない場合はnull
+	 */
+	private Long find(String key) {
+		@SuppressWarnings("unchecked")
+		List<Number> ids = em.createNativeQuery("SELECT SALES_ID FROM " + TABLE + " WHERE IDEMPOTENCY_KEY = :key")
+				.setParameter("key", key)
+				.getResultList();
+		return ids.isEmpty() ? null : ids.get(0).longValue();
+	}
+
+	/**
+	 * トランザクションの完了時にキーを確定または破棄するように登録する
+	 */
+	private void register(final String key, final KeyState state) {
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				synchronized (CheckoutKeyRegistryEJB.this) {
+					if (inProgress.get(key) == state) {
+						inProgress.remove(key);
+					}
+					if (status == Status.STATUS_COMMITTED && state.pendingSalesId != null) {
+						committed.put(key, state.pendingSalesId);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 処理中の1つの冪等キーの状態
+	 */
+	private static class KeyState {
+
+		// complete()で設定され、コミット時にメモリ上に保持する
+		private Long pendingSalesId;
+	}
+}
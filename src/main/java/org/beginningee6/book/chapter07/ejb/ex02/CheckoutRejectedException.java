@@ -0,0 +1,23 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * 非同期のチェックアウトを受け付けるキューが一杯で、
+ * チェックアウトを受け付けられなかった場合にスローされるチェック例外。
+ *
+ * ＠ApplicationExceptionを付与しているため、この例外がスローされても
+ * Beanのインスタンスは破棄されない。クライアントは同じカートで
+ * 時間をおいて再度チェックアウトするか、同期のチェックアウトを
+ * 行うことができる。
+ *
+ */
+@ApplicationException
+public class CheckoutRejectedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public CheckoutRejectedException(int capacity) {
+		super("Checkout queue is full : capacity = " + capacity);
+	}
+}
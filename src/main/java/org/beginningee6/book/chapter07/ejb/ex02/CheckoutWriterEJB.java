@@ -0,0 +1,299 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+
+/**
+ * ShoppingCartEJBの非同期のチェックアウトを、複数のカートごとに
+ * まとめて1つのトランザクションで書き込むシングルトン・セッションBean。
+ *
+ * チェックアウトはサイズに上限のあるキューに追加され、呼び出し元には
+ * 直ちにFuture&lt;Sales02&gt;が返される。キューから取り出して書き込む
+ * スレッド（＠Asynchronousメソッド）は常に1つだけで、最初の1件を
+ * 取り出してから最大でmaxWaitMillisの間、最大でmaxBatchSize件まで
+ * チェックアウトを集め、まとめて永続化してコミットする。
+ * これにより、コミットごとに発生するデータベースのログの書き出しを
+ * 複数のチェックアウトで共有することができる。
+ *
+ * 各チェックアウトは、同期的なチェックアウトと同様に、永続化する
+ * トランザクションの中でInventoryEJBにより在庫を引き当てる。
+ *
+ * まとめたトランザクションが失敗した場合（在庫数が足りない
+ * チェックアウトがあった場合を含む）は、そのバッチのチェックアウトを
+ * 1件ずつ別のトランザクションで書き込み直す。これにより、失敗の原因と
+ * なったチェックアウトだけが失敗し、他のカートには影響しない。
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class CheckoutWriterEJB {
+
+	private static final Logger logger = Logger.getLogger(CheckoutWriterEJB.class.getName());
+
+	// キューに入れられるチェックアウトの最大数
+	private static final int QUEUE_CAPACITY = 10000;
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private SessionContext context;
+
+	// 売上処理がコミットされた時点で記録されたカートを破棄するために注入
+	@EJB
+	private CartJournalEJB cartJournal;
+
+	// 売上処理がコミットされた時点でバックアップのカートを破棄するために注入
+	@EJB
+	private CartReplicatorEJB cartReplicator;
+
+	// 売上処理がコミットされた時点で集計値に反映するために注入
+	@EJB
+	private SalesRollupEJB salesRollup;
+
+	// 明細の数量分の在庫を引き当てるために注入
+	@EJB
+	private InventoryEJB inventory;
+
+	// 明細の数量を記録するために注入
+	@EJB
+	private SalesLineEJB salesLines;
+
+	private final BlockingQueue<PendingCheckout> queue 
+			= new ArrayBlockingQueue<PendingCheckout>(QUEUE_CAPACITY);
+
+	// キューから取り出して書き込むスレッドが動作中かどうか
+	private final AtomicBoolean draining = new AtomicBoolean();
+
+	// 1つのトランザクションで書き込むチェックアウトの最大数
+	private volatile int maxBatchSize = 100;
+
+	// 最初の1件を取り出してから、後続のチェックアウトを待つ最大時間
+	private volatile long maxWaitMillis = 5;
+
+	/**
+	 * チェックアウトをキューに追加する
+	 * @param customerName 商品をチェックアウトする顧客の名前
+	 * @param date 売上の日時
+	 * @param total 商品の合計金額
+	 * @param lines カートの内容
+	 * @param customerKey カートに対する操作を記録している顧客のキー（記録していない場合はnull）
+	 * @return 永続化されたSales02エンティティを返すFuture
+	 * @throws CheckoutRejectedException キューが一杯の場合
+	 */
+	public Future<Sales02> submit(String customerName, Date date, Float total, 
+			CartSnapshot lines, String customerKey) throws CheckoutRejectedException {
+		PendingCheckout checkout = new PendingCheckout(customerName, date, total, lines, customerKey);
+		if (!queue.offer(checkout)) {
+			throw new CheckoutRejectedException(QUEUE_CAPACITY);
+		}
+		startDraining();
+		return checkout;
+	}
+
+	/**
+	 * キューにあるチェックアウトをまとめて書き込む
+	 *
+	 * ＠Asynchronousアノテーションにより、このメソッドは
+	 * 呼び出し元とは別のスレッドで実行される。
+	 * このメソッド自身はトランザクションを開始しない。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void drain() {
+		List<PendingCheckout> batch = Collections.emptyList();
+		try {
+			// 割り込まれた場合は、取り出したバッチを書き込んでから終了する
+			while (!Thread.currentThread().isInterrupted() 
+					&& !(batch = nextBatch()).isEmpty()) {
+				write(batch);
+			}
+		} finally {
+			// 書き込みの途中で例外がスローされても、取り出したチェックアウトの
+			// クライアントを待たせたままにしない
+			failUnfinished(batch);
+			draining.set(false);
+		}
+		// 書き込みの終了直前に追加されたチェックアウトがあれば書き込む
+		if (!queue.isEmpty()) {
+			startDraining();
+		}
+	}
+
+	/**
+	 * チェックアウトをまとめて1つのトランザクションで永続化する
+	 *
+	 * 新しいトランザクションを開始するため、CheckoutWriterEJBの
+	 * ビジネス・オブジェクトを経由して呼び出すこと。
+	 *
+	 * @param batch 永続化するチェックアウト
+	 * @return 永続化されたSales02エンティティ（batchと同じ順序）
+	 * @throws OutOfStockException 在庫数が足りないチェックアウトがある場合
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public List<Sales02> persist(List<PendingCheckout> batch) {
+		List<Sales02> persisted = new ArrayList<Sales02>(batch.size());
+		for (PendingCheckout checkout : batch) {
+			// 明細の数量分の在庫を引き当てる
+			inventory.reserve(checkout.getLines());
+
+			Sales02 sales = new Sales02(checkout.getCustomerName(), checkout.getDate());
+			sales.setTotalAmount(checkout.getTotal());
+			SalesLines lines = checkout.getLines().link(em);
+			sales.setItems(lines.getItems());
+			em.persist(sales);
+			salesLines.record(sales.getId(), lines.getQuantities());
+			persisted.add(sales);
+
+			salesRollup.salesCreated(checkout.getDate(), checkout.getCustomerName(), checkout.getTotal());
+
+			if (checkout.getCustomerKey() != null) {
+				cartJournal.recordClear(checkout.getCustomerKey());
+				cartReplicator.recordClear(checkout.getCustomerKey());
+			}
+		}
+
+		return persisted;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("maxBatchSize must be positive");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxWaitMillis() {
+		return maxWaitMillis;
+	}
+
+	public void setMaxWaitMillis(long maxWaitMillis) {
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/**
+	 * キューで書き込みを待っているチェックアウトの件数を取得する
+	 * @return 書き込みを待っているチェックアウトの件数
+	 */
+	public int getPendingCount() {
+		return queue.size();
+	}
+
+	private void startDraining() {
+		// 書き込むスレッドが動作していなければ非同期に開始する
+		if (draining.compareAndSet(false, true)) {
+			context.getBusinessObject(CheckoutWriterEJB.class).drain();
+		}
+	}
+
+	/**
+	 * 次に書き込むチェックアウトを集める
+	 *
+	 * 後続のチェックアウトを待っている間に割り込まれた場合は、
+	 * 割り込みの状態を設定し直して、それまでに取り出した分を返す。
+	 *
+	 * @return 書き込むチェックアウト。キューが空の場合は空のリスト
+	 */
+	private List<PendingCheckout> nextBatch() {
+		int max = maxBatchSize;
+		List<PendingCheckout> batch = new ArrayList<PendingCheckout>(max);
+
+		PendingCheckout first = queue.poll();
+		if (first == null) {
+			return batch;
+		}
+		batch.add(first);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		while (batch.size() < max) {
+			// 既にキューにあるものはまとめて取り出す
+			if (queue.drainTo(batch, max - batch.size()) > 0) {
+				continue;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			PendingCheckout next;
+			try {
+				next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+		}
+		return batch;
+	}
+
+	/**
+	 * 結果が設定されていないチェックアウトを失敗させる
+	 * @param batch キューから取り出したチェックアウト
+	 */
+	private void failUnfinished(List<PendingCheckout> batch) {
+		for (PendingCheckout checkout : batch) {
+			if (!checkout.isDone()) {
+				checkout.fail(new EJBException("Checkout writer stopped before the checkout was written"));
+			}
+		}
+	}
+
+	private void write(List<PendingCheckout> batch) {
+		CheckoutWriterEJB self = context.getBusinessObject(CheckoutWriterEJB.class);
+		try {
+			List<Sales02> persisted = self.persist(batch);
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).complete(persisted.get(i));
+			}
+			return;
+		} catch (RuntimeException e) {
+			// OutOfStockException（アプリケーション例外）はEJBExceptionに
+			// 包まれずにスローされるため、RuntimeExceptionとして受け取る
+			if (batch.size() == 1) {
+				batch.get(0).fail(e);
+				return;
+			}
+			logger.log(Level.WARNING, "Group commit of " + batch.size() 
+					+ " checkouts failed, retrying one by one", e);
+		}
+
+		// 失敗したチェックアウトを特定するため1件ずつ書き込み直す
+		for (PendingCheckout checkout : batch) {
+			try {
+				checkout.complete(self.persist(Collections.singletonList(checkout)).get(0));
+			} catch (RuntimeException e) {
+				checkout.fail(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 同じJava VM内のCartBackupStoreにデルタのバッチを直接届ける
+ * トランスポート。
+ *
+ * ノード間の通信を行わずにレプリケーションを確認するための
+ * テスト用の実装であり、送信したバイト数とバッチの数を記録する。
+ */
+public class InJvmCartReplicationTransport implements CartReplicationTransport {
+
+	private final CartBackupStore backup;
+
+	private final AtomicLong sentBytes = new AtomicLong();
+	private final AtomicLong sentBatches = new AtomicLong();
+
+	/**
+	 * @param backup バッチを届けるバックアップ
+	 */
+	public InJvmCartReplicationTransport(CartBackupStore backup) {
+		this.backup = backup;
+	}
+
+	public Set<String> send(byte[] batch) throws IOException {
+		sentBytes.addAndGet(batch.length);
+		sentBatches.incrementAndGet();
+		return backup.apply(batch);
+	}
+
+	/**
+	 * これまでに送信したバイト数を取得する
+	 * @return 送信したバイト数
+	 */
+	public long getSentBytes() {
+		return sentBytes.get();
+	}
+
+	/**
+	 * これまでに送信したバッチの数を取得する
+	 * @return 送信したバッチの数
+	 */
+	public long getSentBatches() {
+		return sentBatches.get();
+	}
+}
@@ -0,0 +1,377 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * チェックアウト時に、カートの明細の数量分の在庫を引き当てる
+ * シングルトン・セッションBean。
+ *
+ * 在庫数の正本はINVENTORYテーブルであり、在庫数を設定するのは
+ * 入荷などの在庫管理の処理が呼び出すsetStock()とclear()だけである。
+ * （INVENTORYテーブルはデプロイ時に存在しなければ作成する）
+ * このBeanはデプロイ時と、その後は1分ごとにテーブルの在庫数を
+ * 読み込み、InventoryReservationsで商品の
+ * 主キーごとにメモリ上に保持する。
+ *
+ * 引き当てはまずメモリ上の在庫数に対して、主キーのハッシュ値で
+ * 分割したストライプごとのロックで行う。テーブル全体や1つの
+ * グローバルなロックで排他制御しないため、異なる商品を含む
+ * チェックアウトは互いを待たない。
+ *
+ * メモリ上で引き当てた数量は、呼び出し元のトランザクションの中で
+ * INVENTORYテーブルからも減らす。テーブルの在庫数が足りない場合
+ * （別のノードが先に引き当てた場合など）は、テーブルの在庫数に
+ * 従って引き当てを拒否する。したがって、テーブルの在庫数が
+ * 負になることはなく、同じ商品を引き当てるチェックアウトは
+ * コミットまでテーブルの行のロックを待ち合わせる。テーブルの行は
+ * 常に主キーの昇順に更新するため、複数の商品を含むチェックアウトが
+ * 互いの行ロックを待ってデッドロックになることはない。
+ *
+ * メモリ上の在庫数は、他のノードで行われた入荷（setStock()）を
+ * 次に読み込むまで反映していない。そのため、メモリ上の在庫数が
+ * 足りないという判定は参考にとどめ、その場合はテーブルの在庫数で
+ * 引き当てを行う。テーブルでも足りない場合だけ拒否し、テーブルで
+ * 引き当てられた場合はコミットの時点でメモリ上の在庫数を
+ * テーブルの値で置き換える。ただし、このノードが読み込んだ後に
+ * 他のノードで初めて在庫を管理するようになった商品は、次に
+ * 読み込むまで（最大1分間）引き当ての対象とならない。
+ *
+ * 引き当てた在庫は、呼び出し元のトランザクションがコミットされれば
+ * そのまま売上分として減ったままとなり、ロールバックされた場合は
+ * テーブルとメモリ上の在庫数の両方が元に戻される。
+ *
+ * 同期はInventoryReservationsが行うため、Bean管理の同時実行制御とする。
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class InventoryEJB {
+
+	private static final Logger logger = Logger.getLogger(InventoryEJB.class.getName());
+
+	// 在庫数を記録するテーブル
+	static final String TABLE = "INVENTORY";
+
+	// ストライプの数
+	private static final int STRIPES = 256;
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	// テーブルを作成するステートレス・セッションBeanを注入
+	@EJB
+	private NativeTableEJB tables;
+
+	private final InventoryReservations reservations = new InventoryReservations(STRIPES);
+
+	private final AtomicLong reservedCount = new AtomicLong();
+	private final AtomicLong releasedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * ＠PostConstructアノテーションにより、
+	 * このメソッドはインスタンスが生成された直後に
+	 * 自動で実行される。
+	 *
+	 * 在庫数を記録するテーブルがなければ作成し、
+	 * テーブルの在庫数をメモリ上に読み込む。
+	 */
+	@PostConstruct
+	void init() {
+		if (!tables.exists(TABLE)) {
+			tables.create("CREATE TABLE " + TABLE + " ("
+					+ "ITEM_ID BIGINT NOT NULL PRIMARY KEY, "
+					+ "STOCK INTEGER NOT NULL)");
+			logger.info("Created table " + TABLE);
+			return;
+		}
+		logger.info("Loaded stock of " + load() + " items");
+	}
+
+	/**
+	 * 他のノードでの入荷や、他のノードで在庫を管理するように
+	 * なった商品を反映するため、メモリ上の在庫数を定期的に
+	 * INVENTORYテーブルの在庫数で置き換える
+	 */
+	@Schedule(hour = "*", minute = "*", persistent = false)
+	void refresh() {
+		load();
+	}
+
+	/**
+	 * メモリ上の在庫数を、INVENTORYテーブルの在庫数で置き換える
+	 * @return 在庫を管理する商品の数
+	 */
+	private int load() {
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = em.createNativeQuery("SELECT ITEM_ID, STOCK FROM " + TABLE)
+				.getResultList();
+		Map<Long, Integer> stock = new HashMap<Long, Integer>();
+		for (Object[] row : rows) {
+			stock.put(((Number) row[0]).longValue(), ((Number) row[1]).intValue());
+		}
+		reservations.replaceAll(stock);
+		return stock.size();
+	}
+
+	/**
+	 * 商品の在庫数を設定する
+	 *
+	 * 呼び出し元のトランザクションでINVENTORYテーブルに記録し、
+	 * コミットされた時点でメモリ上の在庫数に反映する。
+	 *
+	 * @param id 商品の主キー
+	 * @param quantity 在庫数。負の値の場合は在庫を管理しない
+	 */
+	public void setStock(final Long id, final int quantity) {
+		if (quantity < 0) {
+			em.createNativeQuery("DELETE FROM " + TABLE + " WHERE ITEM_ID = :id")
+					.setParameter("id", id)
+					.executeUpdate();
+		} else {
+			int updated = em.createNativeQuery("UPDATE " + TABLE + " SET STOCK = :stock WHERE ITEM_ID = :id")
+					.setParameter("stock", quantity)
+					.setParameter("id", id)
+					.executeUpdate();
+			if (updated == 0) {
+				em.createNativeQuery("INSERT INTO " + TABLE + " (ITEM_ID, STOCK) VALUES (:id, :stock)")
+						.setParameter("id", id)
+						.setParameter("stock", quantity)
+						.executeUpdate();
+			}
+		}
+		afterCommit(new Runnable() {
+			public void run() {
+				reservations.setStock(id, quantity);
+			}
+		});
+	}
+
+	/**
+	 * 商品の引き当て可能な在庫数を取得する
+	 * @param id 商品の主キー
+	 * @return 在庫数。在庫を管理しない商品の場合は-1
+	 */
+	public int getStock(Long id) {
+		return reservations.getStock(id);
+	}
+
+	/**
+	 * すべての商品の在庫数を破棄し、在庫を管理しない状態に戻す
+	 *
+	 * 呼び出し元のトランザクションでINVENTORYテーブルから削除し、
+	 * コミットされた時点でメモリ上の在庫数も破棄する。
+	 */
+	public void clear() {
+		em.createNativeQuery("DELETE FROM " + TABLE).executeUpdate();
+		afterCommit(new Runnable() {
+			public void run() {
+				reservations.clear();
+			}
+		});
+	}
+
+	/**
+	 * カートの全明細の数量分の在庫を引き当てる
+	 *
+	 * 1つでも在庫数が足りない明細があれば、いずれの明細も引き当てずに
+	 * OutOfStockExceptionをスローする（トランザクションはロールバックされる）。
+	 * 未永続化のItem02エンティティと、在庫を管理しない商品は対象外とする。
+	 *
+	 * 引き当てた在庫は、呼び出し元のトランザクションがロールバックされた
+	 * 時点で在庫に戻される。
+	 *
+	 * @param items カートのItem02エンティティと明細
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 */
+	public void reserve(Map<Item02, CartLine> items) {
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		for (Map.Entry<Item02, CartLine> entry : items.entrySet()) {
+			Long id = entry.getKey().getId();
+			if (id == null) {
+				continue;
+			}
+			// 同じ主キーで値の異なる明細は数量を合算する
+			Integer quantity = quantities.get(id);
+			quantities.put(id, (quantity == null ? 0 : quantity) + entry.getValue().getQuantity());
+		}
+		reserveQuantities(quantities);
+	}
+
+	/**
+	 * CartSnapshotの全明細の数量分の在庫を引き当てる
+	 *
+	 * reserve(Map)と同様に、1つでも在庫数が足りない明細があれば
+	 * OutOfStockExceptionをスローする。TokenCartEJBとCheckoutWriterEJBの
+	 * チェックアウトが使用する。
+	 *
+	 * @param lines カートの内容
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 */
+	public void reserve(CartSnapshot lines) {
+		reserveQuantities(lines.getPersistedQuantities());
+	}
+
+	/**
+	 * 在庫を引き当てたチェックアウトの件数を取得する
+	 * @return 件数
+	 */
+	public long getReservedCount() {
+		return reservedCount.get();
+	}
+
+	/**
+	 * ロールバックにより引き当てを取り消したチェックアウトの件数を取得する
+	 * @return 件数
+	 */
+	public long getReleasedCount() {
+		return releasedCount.get();
+	}
+
+	/**
+	 * 在庫数が足りずに引き当てられなかったチェックアウトの件数を取得する
+	 * @return 件数
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * 商品ごとの数量を、メモリ上とINVENTORYテーブルの両方で引き当てる
+	 */
+	private void reserveQuantities(Map<Long, Integer> quantities) {
+		if (quantities.isEmpty()) {
+			return;
+		}
+
+		final SortedMap<Long, Integer> reserved;
+		try {
+			reserved = reservations.reserve(quantities);
+		} catch (OutOfStockException e) {
+			// メモリ上の在庫数は他のノードの入荷を反映していない可能性がある
+			reserveInTable(new TreeMap<Long, Integer>(quantities));
+			return;
+		}
+		if (reserved.isEmpty()) {
+			return;
+		}
+
+		// テーブルで拒否された場合もロールバックでメモリ上の在庫数を戻すため、
+		// テーブルを更新する前に登録する
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status != Status.STATUS_COMMITTED) {
+					reservations.release(reserved);
+					releasedCount.incrementAndGet();
+				}
+			}
+		});
+
+		updateTable(reserved);
+		reservedCount.incrementAndGet();
+	}
+
+	/**
+	 * メモリ上の在庫数が足りなかった商品ごとの数量を、INVENTORYテーブル
+	 * だけで引き当てる
+	 *
+	 * 引き当てられた場合は、コミットの時点でメモリ上の在庫数を
+	 * 引き当てた後のテーブルの在庫数で置き換える。
+	 */
+	private void reserveInTable(SortedMap<Long, Integer> quantities) {
+		updateTable(quantities);
+
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = em.createNativeQuery("SELECT ITEM_ID, STOCK FROM " + TABLE 
+				+ " WHERE ITEM_ID IN (:ids)")
+				.setParameter("ids", quantities.keySet())
+				.getResultList();
+		final Map<Long, Integer> stock = new HashMap<Long, Integer>();
+		for (Object[] row : rows) {
+			stock.put(((Number) row[0]).longValue(), ((Number) row[1]).intValue());
+		}
+		afterCommit(new Runnable() {
+			public void run() {
+				for (Map.Entry<Long, Integer> entry : stock.entrySet()) {
+					reservations.setStock(entry.getKey(), entry.getValue());
+				}
+			}
+		});
+		reservedCount.incrementAndGet();
+	}
+
+	/**
+	 * 商品ごとの数量をINVENTORYテーブルから減らす
+	 *
+	 * 行ロックの獲得順序をそろえるため、主キーの昇順に更新する。
+	 * テーブルにない商品は在庫を管理しないものとして扱う。
+	 *
+	 * @param quantities 主キーの昇順に並べた商品の主キーと数量
+	 * @throws OutOfStockException テーブルの在庫数が足りない商品がある場合
+	 */
+	private void updateTable(SortedMap<Long, Integer> quantities) {
+		for (Map.Entry<Long, Integer> entry : quantities.entrySet()) {
+			int updated = em.createNativeQuery("UPDATE " + TABLE
+					+ " SET STOCK = STOCK - :quantity WHERE ITEM_ID = :id AND STOCK >= :quantity")
+					.setParameter("quantity", entry.getValue())
+					.setParameter("id", entry.getKey())
+					.executeUpdate();
+			if (updated > 0) {
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			List<Number> stock = em.createNativeQuery("SELECT STOCK FROM " + TABLE + " WHERE ITEM_ID = :id")
+					.setParameter("id", entry.getKey())
+					.getResultList();
+			// テーブルから削除された商品は在庫を管理しない
+			if (!stock.isEmpty()) {
+				rejectedCount.incrementAndGet();
+				throw new OutOfStockException(entry.getKey(), entry.getValue(), stock.get(0).intValue());
+			}
+		}
+	}
+
+	/**
+	 * 呼び出し元のトランザクションがコミットされた時点で処理を実行する
+	 */
+	private void afterCommit(final Runnable action) {
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					action.run();
+				}
+			}
+		});
+	}
+}
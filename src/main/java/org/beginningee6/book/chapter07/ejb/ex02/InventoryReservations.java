@@ -0,0 +1,236 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 商品（Item02）の主キーごとの在庫数を保持し、チェックアウトする
+ * カートの明細の数量分を引き当てる在庫台帳。
+ *
+ * 在庫数は主キーのハッシュ値によって複数のストライプに分散して
+ * 保持し、ストライプごとのロックで保護する。これにより、異なる
+ * 商品を引き当てるチェックアウトは互いに待つことなく並行して
+ * 実行され、待ち合わせが起きるのは同じストライプの商品を
+ * 引き当てる場合だけとなる。
+ *
+ * カートの引き当ては全明細について行うか、1つも行わないかの
+ * いずれかである。必要なストライプのロックをすべて獲得してから
+ * 在庫数を確認して減らすため、一部の明細だけが引き当てられた
+ * 状態が他のスレッドから見えることはない。
+ *
+ * ロックは常にストライプの番号の昇順に獲得する。主キーの昇順に
+ * 並べた明細が属するストライプを重複なく昇順に獲得するため、
+ * 複数のカートが同じ商品を異なる順序で含んでいてもデッドロックは
+ * 起きない。
+ *
+ * 在庫数が設定されていない商品は在庫を管理しないものとして扱い、
+ * 引き当ての対象にしない。
+ */
+public class InventoryReservations {
+
+	private final Stripe[] stripes;
+
+	/**
+	 * @param stripes ストライプの数（2のべき乗に切り上げる）
+	 */
+	public InventoryReservations(int stripes) {
+		if (stripes <= 0) {
+			throw new IllegalArgumentException("stripes must be positive");
+		}
+		int size = Integer.highestOneBit(stripes);
+		if (size < stripes) {
+			size <<= 1;
+		}
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * 商品の在庫数を設定する
+	 * @param id 商品の主キー
+	 * @param quantity 在庫数。負の値の場合は在庫を管理しない
+	 */
+	public void setStock(Long id, int quantity) {
+		Stripe stripe = stripeOf(id);
+		stripe.lock.lock();
+		try {
+			if (quantity < 0) {
+				stripe.stock.remove(id);
+			} else {
+				stripe.stock.put(id, quantity);
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * 商品の引き当て可能な在庫数を取得する
+	 * @param id 商品の主キー
+	 * @return 在庫数。在庫を管理しない商品の場合は-1
+	 */
+	public int getStock(Long id) {
+		Stripe stripe = stripeOf(id);
+		stripe.lock.lock();
+		try {
+			Integer stock = stripe.stock.get(id);
+			return stock == null ? -1 : stock;
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * すべての商品の在庫数を置き換える
+	 *
+	 * ストライプごとに置き換えるため、置き換えの途中で他のスレッドが
+	 * 引き当てた場合は、置き換え前と後の在庫数が混在して見えることがある。
+	 *
+	 * @param stock 商品の主キーと在庫数（含まれない商品は在庫を管理しない）
+	 */
+	public void replaceAll(Map<Long, Integer> stock) {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.stock.clear();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		for (Map.Entry<Long, Integer> entry : stock.entrySet()) {
+			setStock(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * すべての商品の在庫数を破棄する
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.stock.clear();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 商品ごとの数量をすべて引き当てる
+	 *
+	 * 在庫を管理する商品のうち1つでも在庫数が足りなければ、
+	 * いずれの商品も引き当てずにOutOfStockExceptionをスローする。
+	 *
+	 * @param quantities 商品の主キーと数量
+	 * @return 引き当てた商品の主キーと数量（主キーの昇順、在庫を管理しない
+	 * 商品は含まない）
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 */
+	public SortedMap<Long, Integer> reserve(Map<Long, Integer> quantities) {
+		TreeMap<Long, Integer> sorted = new TreeMap<Long, Integer>(quantities);
+		int[] locked = lockAll(sorted);
+		try {
+			SortedMap<Long, Integer> reserved = new TreeMap<Long, Integer>();
+			for (Map.Entry<Long, Integer> entry : sorted.entrySet()) {
+				Integer stock = stripeOf(entry.getKey()).stock.get(entry.getKey());
+				if (stock == null) {
+					continue;
+				}
+				if (stock < entry.getValue()) {
+					throw new OutOfStockException(entry.getKey(), entry.getValue(), stock);
+				}
+				reserved.put(entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<Long, Integer> entry : reserved.entrySet()) {
+				Map<Long, Integer> stock = stripeOf(entry.getKey()).stock;
+				stock.put(entry.getKey(), stock.get(entry.getKey()) - entry.getValue());
+			}
+			return reserved;
+		} finally {
+			unlockAll(locked);
+		}
+	}
+
+	/**
+	 * reserve()で引き当てた数量を在庫に戻す
+	 * @param reserved reserve()が返した商品の主キーと数量
+	 */
+	public void release(Map<Long, Integer> reserved) {
+		TreeMap<Long, Integer> sorted = new TreeMap<Long, Integer>(reserved);
+		int[] locked = lockAll(sorted);
+		try {
+			for (Map.Entry<Long, Integer> entry : sorted.entrySet()) {
+				Map<Long, Integer> stock = stripeOf(entry.getKey()).stock;
+				Integer current = stock.get(entry.getKey());
+				// 引き当ての後に在庫を管理しなくなった商品はそのまま
+				if (current != null) {
+					stock.put(entry.getKey(), current + entry.getValue());
+				}
+			}
+		} finally {
+			unlockAll(locked);
+		}
+	}
+
+	/**
+	 * 主キーの昇順に並べた商品が属するストライプのロックを、
+	 * ストライプの番号の昇順に重複なく獲得する
+	 * @return 獲得したストライプの番号（昇順）
+	 */
+	private int[] lockAll(TreeMap<Long, Integer> sorted) {
+		int[] indexes = new int[sorted.size()];
+		int count = 0;
+		for (Long id : sorted.keySet()) {
+			indexes[count++] = indexOf(id);
+		}
+		Arrays.sort(indexes);
+
+		// 重複を取り除く
+		int distinct = 0;
+		for (int i = 0; i < count; i++) {
+			if (distinct == 0 || indexes[distinct - 1] != indexes[i]) {
+				indexes[distinct++] = indexes[i];
+			}
+		}
+		int[] locked = Arrays.copyOf(indexes, distinct);
+		for (int i = 0; i < locked.length; i++) {
+			stripes[locked[i]].lock.lock();
+		}
+		return locked;
+	}
+
+	private void unlockAll(int[] locked) {
+		for (int i = locked.length - 1; i >= 0; i--) {
+			stripes[locked[i]].lock.unlock();
+		}
+	}
+
+	private Stripe stripeOf(Long id) {
+		return stripes[indexOf(id)];
+	}
+
+	private int indexOf(Long id) {
+		long value = id.longValue();
+		int hash = (int) (value ^ (value >>> 32));
+		hash *= 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & (stripes.length - 1);
+	}
+
+	/**
+	 * 1つのストライプの在庫数とロック
+	 */
+	private static class Stripe {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		// lockを獲得して読み書きする
+		private final Map<Long, Integer> stock = new HashMap<Long, Integer>();
+	}
+}
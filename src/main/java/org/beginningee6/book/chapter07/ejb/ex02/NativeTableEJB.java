@@ -0,0 +1,59 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+
+/**
+ * エンティティに対応しないテーブル（CHECKOUT_KEYやINVENTORYなど）を、
+ * デプロイ時に存在しなければ作成するためのステートレス・セッションBean。
+ *
+ * テーブルの有無は、データベース固有のシステム・カタログではなく、
+ * 行を返さないSELECT文が成功するかどうかで判定する。Derbyと
+ * CartLoadSimulatorTestが使用するH2のどちらでも同じように動作する。
+ *
+ * 存在しないテーブルへのSELECT文が失敗すると、JPAの実装は
+ * 実行中のトランザクションをロールバックにマークする。そのため、
+ * 判定はトランザクションの外で行い、作成は独立した新しい
+ * トランザクションで行う。
+ */
+@Stateless	// ステートレス・セッションBeanであることを宣言する
+public class NativeTableEJB {
+
+	// エンティティのデータアクセス用にEntity Managerを注入
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	/**
+	 * テーブルが存在するかどうかを判定する
+	 *
+	 * このメソッド自身はトランザクションを開始しない。
+	 *
+	 * @param table テーブル名
+	 * @return 存在する場合はtrue
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public boolean exists(String table) {
+		try {
+			em.createNativeQuery("SELECT COUNT(*) FROM " + table + " WHERE 1 = 0").getSingleResult();
+			return true;
+		} catch (PersistenceException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * テーブルを作成する
+	 *
+	 * 呼び出し元とは独立した新しいトランザクションで実行される。
+	 *
+	 * @param ddl テーブルを作成するCREATE TABLE文
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void create(String ddl) {
+		em.createNativeQuery(ddl).executeUpdate();
+	}
+}
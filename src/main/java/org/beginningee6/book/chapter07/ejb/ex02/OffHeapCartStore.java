@@ -0,0 +1,228 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.nio.ByteBuffer;
+
+/**
+ * カートの内容をJavaヒープの外（ダイレクト・バッファ）に保持する
+ * ストレージ。
+ *
+ * 領域は固定長のスロットに分割されており、1つのカートのデータは
+ * 必要な数のスロットを連結して格納される。空きスロットは
+ * フリーリスト（スタック）で管理するため、確保と解放は使用する
+ * スロット数に比例した時間で行える。
+ *
+ * 格納したデータはハンドル（long値）で参照する。ハンドルには
+ * 先頭スロットの世代番号が含まれており、解放済み（または期限切れで
+ * 回収済み）のスロットを古いハンドルで参照することはできない。
+ *
+ * 各スロットは以下のヘッダを持つ。
+ *
+ * ・世代番号（int）
+ * ・次のスロットの番号（int、最後のスロットは-1）
+ * ・このスロットに格納したデータの長さ（int）
+ * ・先頭スロットかどうか（int、先頭スロットは1）
+ * ・データが格納された時刻、またはtouch()で最後に使用を記録した時刻
+ * 　（long、先頭スロットのみ有効）
+ *
+ * ヒープ上に保持するのはフリーリストだけであり、カートの数や
+ * 内容の大きさによってヒープの使用量は増えない。
+ */
+public class OffHeapCartStore {
+
+	/** データを格納できなかったことを示すハンドル */
+	public static final long NO_HANDLE = -1L;
+
+	private static final int GENERATION = 0;
+	private static final int NEXT = 4;
+	private static final int LENGTH = 8;
+	private static final int HEAD = 12;
+	private static final int ACCESSED = 16;
+	private static final int HEADER_SIZE = 24;
+
+	private final ByteBuffer buffer;
+	private final int slotSize;
+	private final int slotCount;
+
+	// 空きスロットのスタック
+	private final int[] freeSlots;
+	private int freeCount;
+
+	/**
+	 * @param slotSize 1スロットのバイト数（ヘッダを含む）
+	 * @param slotCount スロットの数
+	 */
+	public OffHeapCartStore(int slotSize, int slotCount) {
+		if (slotSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("slotSize must be greater than " + HEADER_SIZE);
+		}
+		this.slotSize = slotSize;
+		this.slotCount = slotCount;
+		this.buffer = ByteBuffer.allocateDirect(slotSize * slotCount);
+		this.freeSlots = new int[slotCount];
+		for (int i = 0; i < slotCount; i++) {
+			freeSlots[i] = slotCount - 1 - i;
+		}
+		this.freeCount = slotCount;
+	}
+
+	/**
+	 * データを格納する
+	 * @param data 格納するデータ
+	 * @return 格納したデータのハンドル。空きスロットが足りない場合はNO_HANDLE
+	 */
+	public synchronized long put(byte[] data) {
+		int payload = slotSize - HEADER_SIZE;
+		int needed = Math.max(1, (data.length + payload - 1) / payload);
+
+		int[] slots = allocate(needed);
+		if (slots == null) {
+			return NO_HANDLE;
+		}
+
+		ByteBuffer view = buffer.duplicate();
+		for (int i = 0; i < slots.length; i++) {
+			int base = slots[i] * slotSize;
+			int offset = i * payload;
+			int length = Math.min(payload, data.length - offset);
+
+			view.putInt(base + NEXT, i + 1 < slots.length ? slots[i + 1] : -1);
+			view.putInt(base + LENGTH, length);
+			view.putInt(base + HEAD, i == 0 ? 1 : 0);
+			view.putLong(base + ACCESSED, System.currentTimeMillis());
+			view.position(base + HEADER_SIZE);
+			view.put(data, offset, length);
+		}
+
+		int head = slots[0];
+		return handle(head, view.getInt(head * slotSize + GENERATION));
+	}
+
+	/**
+	 * データを取り出し、格納していたスロットを解放する
+	 * @param handle put()で取得したハンドル
+	 * @return 格納していたデータ。ハンドルが無効な場合はnull
+	 */
+	public synchronized byte[] take(long handle) {
+		byte[] data = read(handle);
+		if (data != null) {
+			free(handle);
+		}
+		return data;
+	}
+
+	/**
+	 * 格納していたデータを読み込まずにスロットを解放する
+	 * @param handle put()で取得したハンドル
+	 */
+	public synchronized void free(long handle) {
+		if (!isValid(handle)) {
+			return;
+		}
+		int slot = slotOf(handle);
+		while (slot >= 0) {
+			int base = slot * slotSize;
+			int next = buffer.getInt(base + NEXT);
+			// 世代番号を進めて古いハンドルを無効にする
+			buffer.putInt(base + GENERATION, buffer.getInt(base + GENERATION) + 1);
+			buffer.putInt(base + HEAD, 0);
+			freeSlots[freeCount++] = slot;
+			slot = next;
+		}
+	}
+
+	/**
+	 * データがまだ使用されていることを記録する
+	 *
+	 * 記録した時刻はpurge()の判定に使用される。
+	 *
+	 * @param handle put()で取得したハンドル
+	 * @return 記録した場合はtrue（ハンドルが無効な場合はfalse）
+	 */
+	public synchronized boolean touch(long handle) {
+		if (!isValid(handle)) {
+			return false;
+		}
+		buffer.putLong(slotOf(handle) * slotSize + ACCESSED, System.currentTimeMillis());
+		return true;
+	}
+
+	/**
+	 * 指定した時刻より前に格納（またはtouch()で使用を記録）され、
+	 * まだ取り出されていないデータを解放する
+	 * @param expiry この時刻より前に格納されたデータを解放する
+	 * @return 解放したデータの件数
+	 */
+	public synchronized int purge(long expiry) {
+		int purged = 0;
+		for (int slot = 0; slot < slotCount; slot++) {
+			int base = slot * slotSize;
+			if (buffer.getInt(base + HEAD) == 1 && buffer.getLong(base + ACCESSED) < expiry) {
+				free(handle(slot, buffer.getInt(base + GENERATION)));
+				purged++;
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * 空きスロットの数を取得する
+	 * @return 空きスロットの数
+	 */
+	public synchronized int getFreeSlots() {
+		return freeCount;
+	}
+
+	private synchronized int[] allocate(int needed) {
+		if (freeCount < needed) {
+			return null;
+		}
+		int[] slots = new int[needed];
+		for (int i = 0; i < needed; i++) {
+			slots[i] = freeSlots[--freeCount];
+		}
+		return slots;
+	}
+
+	private synchronized byte[] read(long handle) {
+		if (!isValid(handle)) {
+			return null;
+		}
+		int length = 0;
+		for (int slot = slotOf(handle); slot >= 0; slot = buffer.getInt(slot * slotSize + NEXT)) {
+			length += buffer.getInt(slot * slotSize + LENGTH);
+		}
+
+		byte[] data = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		int offset = 0;
+		for (int slot = slotOf(handle); slot >= 0; slot = view.getInt(slot * slotSize + NEXT)) {
+			int base = slot * slotSize;
+			int slotLength = view.getInt(base + LENGTH);
+			view.position(base + HEADER_SIZE);
+			view.get(data, offset, slotLength);
+			offset += slotLength;
+		}
+		return data;
+	}
+
+	private boolean isValid(long handle) {
+		if (handle == NO_HANDLE) {
+			return false;
+		}
+		int slot = slotOf(handle);
+		if (slot < 0 || slot >= slotCount) {
+			return false;
+		}
+		int base = slot * slotSize;
+		return buffer.getInt(base + HEAD) == 1
+				&& buffer.getInt(base + GENERATION) == (int) (handle >>> 32);
+	}
+
+	private static long handle(int slot, int generation) {
+		return ((long) generation << 32) | (slot & 0xffffffffL);
+	}
+
+	private static int slotOf(long handle) {
+		return (int) handle;
+	}
+}
@@ -0,0 +1,35 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import javax.ejb.ApplicationException;
+
+/**
+ * チェックアウトするカートの明細の数量に対して、商品の在庫数が
+ * 足りない場合にスローされる例外。
+ *
+ * ＠ApplicationException(rollback = true)を付与しているため、
+ * この例外がスローされるとトランザクションはロールバックされるが、
+ * Beanのインスタンスは破棄されずにEJBExceptionに包まれることなく
+ * クライアントに返される。
+ *
+ */
+@ApplicationException(rollback = true)
+public class OutOfStockException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Long itemId;
+
+	public OutOfStockException(Long itemId, int requested, int available) {
+		super("Out of stock : item = " + itemId + ", requested = " + requested
+				+ ", available = " + available);
+		this.itemId = itemId;
+	}
+
+	/**
+	 * 在庫数が足りなかった商品の主キーを取得する
+	 * @return 商品の主キー
+	 */
+	public Long getItemId() {
+		return itemId;
+	}
+}
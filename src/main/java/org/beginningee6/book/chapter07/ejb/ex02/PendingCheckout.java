@@ -0,0 +1,104 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+
+/**
+ * CheckoutWriterEJBのキューで書き込みを待っている1件のチェックアウト。
+ *
+ * チェックアウトを依頼したクライアントには、このオブジェクトが
+ * Future&lt;Sales02&gt;として返され、CheckoutWriterEJBが
+ * Sales02エンティティを永続化したトランザクションがコミット
+ * （または失敗）した時点で結果が設定される。
+ */
+public class PendingCheckout implements Future<Sales02> {
+
+	private final String customerName;
+	private final Date date;
+	private final Float total;
+	private final CartSnapshot lines;
+	private final String customerKey;
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Sales02 result;
+	private volatile Throwable failure;
+
+	PendingCheckout(String customerName, Date date, Float total, CartSnapshot lines, String customerKey) {
+		this.customerName = customerName;
+		this.date = date;
+		this.total = total;
+		this.lines = lines;
+		this.customerKey = customerKey;
+	}
+
+	public String getCustomerName() {
+		return customerName;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public Float getTotal() {
+		return total;
+	}
+
+	public CartSnapshot getLines() {
+		return lines;
+	}
+
+	public String getCustomerKey() {
+		return customerKey;
+	}
+
+	void complete(Sales02 sales) {
+		result = sales;
+		done.countDown();
+	}
+
+	void fail(Throwable cause) {
+		failure = cause;
+		done.countDown();
+	}
+
+	/**
+	 * キューに入ったチェックアウトは取り消せないため、常にfalseを返す
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	public Sales02 get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	public Sales02 get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private Sales02 result() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return result;
+	}
+}
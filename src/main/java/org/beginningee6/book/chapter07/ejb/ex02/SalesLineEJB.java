@@ -0,0 +1,135 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+
+/**
+ * チェックアウトした明細の数量を、売上とItem02エンティティの
+ * 関連とともに記録するシングルトン・セッションBean。
+ *
+ * Sales02エンティティとItem02エンティティの関連には数量の属性が
+ * ない。数量の分だけ同じItem02エンティティを繰り返して関連付けると、
+ * 数量が100の明細では関連テーブルに100行が作成されてしまう。
+ * そこで、Item02エンティティは明細ごとに1回だけ関連付け、数量は
+ * SALES_LINE_QUANTITYテーブルに売上とItem02エンティティの主キーの
+ * 組ごとに1行で記録する。
+ * （SALES_LINE_QUANTITYテーブルはデプロイ時に存在しなければ作成する）
+ *
+ * Sales02エンティティとItem02エンティティはJPAのライブラリで
+ * 定義されているため、関連テーブル自体に列を追加することはできない。
+ *
+ * 数量は呼び出し元のトランザクションでINSERTするため、売上が
+ * コミットされた場合にだけ記録される。メモリ上に状態を持たないため、
+ * Bean管理の同時実行制御とする。
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class SalesLineEJB {
+
+	private static final Logger logger = Logger.getLogger(SalesLineEJB.class.getName());
+
+	// 数量を記録するテーブル
+	static final String TABLE = "SALES_LINE_QUANTITY";
+
+	// 1つのINSERT文で挿入する最大の行数
+	private static final int ROWS_PER_INSERT = 100;
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	// テーブルを作成するステートレス・セッションBeanを注入
+	@EJB
+	private NativeTableEJB tables;
+
+	/**
+	 * ＠PostConstructアノテーションにより、
+	 * このメソッドはインスタンスが生成された直後に
+	 * 自動で実行される。
+	 *
+	 * 数量を記録するテーブルがなければ作成する。
+	 */
+	@PostConstruct
+	void init() {
+		if (!tables.exists(TABLE)) {
+			tables.create("CREATE TABLE " + TABLE + " ("
+					+ "SALES_ID BIGINT NOT NULL, "
+					+ "ITEM_ID BIGINT NOT NULL, "
+					+ "QUANTITY INTEGER NOT NULL, "
+					+ "PRIMARY KEY (SALES_ID, ITEM_ID))");
+			logger.info("Created table " + TABLE);
+		}
+	}
+
+	/**
+	 * 売上の明細の数量を記録する
+	 *
+	 * 明細ごとにINSERT文を発行せずに、ROWS_PER_INSERT件ずつの行を
+	 * 1つのINSERT文（複数行のVALUES句）でまとめて挿入する。
+	 * 1,000件の明細でも発行されるINSERT文は10件となる。
+	 *
+	 * 永続化したSales02エンティティの主キーが必要なため、
+	 * Sales02エンティティを永続化した後で呼び出すこと。
+	 * 最初のINSERT文の前に、それまでに永続化したエンティティが
+	 * 1回のフラッシュでまとめてデータベースに書き込まれる。
+	 *
+	 * @param salesId Sales02エンティティの主キー
+	 * @param quantities Item02エンティティの主キーと数量
+	 */
+	public void record(Long salesId, Map<Long, Integer> quantities) {
+		List<Map.Entry<Long, Integer>> rows = new ArrayList<Map.Entry<Long, Integer>>(quantities.entrySet());
+		for (int from = 0; from < rows.size(); from += ROWS_PER_INSERT) {
+			List<Map.Entry<Long, Integer>> chunk = rows.subList(from, Math.min(from + ROWS_PER_INSERT, rows.size()));
+
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(TABLE)
+					.append(" (SALES_ID, ITEM_ID, QUANTITY) VALUES ");
+			for (int i = 0; i < chunk.size(); i++) {
+				sql.append(i == 0 ? "" : ", ")
+					.append("(:salesId, :itemId").append(i).append(", :quantity").append(i).append(")");
+			}
+			Query query = em.createNativeQuery(sql.toString());
+			query.setParameter("salesId", salesId);
+			for (int i = 0; i < chunk.size(); i++) {
+				query.setParameter("itemId" + i, chunk.get(i).getKey());
+				query.setParameter("quantity" + i, chunk.get(i).getValue());
+			}
+			query.executeUpdate();
+		}
+	}
+
+	/**
+	 * 売上の明細の数量を取得する
+	 *
+	 * 数量が記録されていないItem02エンティティ（数量を記録する前に
+	 * 永続化された売上など）は戻り値に含まれない。その場合は、
+	 * 関連付けられた回数を数量とする。
+	 *
+	 * @param salesId Sales02エンティティの主キー
+	 * @return Item02エンティティの主キーと数量
+	 */
+	public Map<Long, Integer> getQuantities(Long salesId) {
+		@SuppressWarnings("unchecked")
+		List<Object[]> rows = em.createNativeQuery("SELECT ITEM_ID, QUANTITY FROM " + TABLE
+				+ " WHERE SALES_ID = :salesId ORDER BY ITEM_ID")
+				.setParameter("salesId", salesId)
+				.getResultList();
+		Map<Long, Integer> quantities = new LinkedHashMap<Long, Integer>();
+		for (Object[] row : rows) {
+			quantities.put(((Number) row[0]).longValue(), ((Number) row[1]).intValue());
+		}
+		return quantities;
+	}
+}
@@ -0,0 +1,59 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * チェックアウトでSales02エンティティに関連付けるItem02エンティティと、
+ * その数量。
+ *
+ * Item02エンティティは主キーごとに1回だけ関連付け、数量は
+ * SalesLineEJBがSALES_LINE_QUANTITYテーブルに記録する。
+ * 同じ主キーの明細が複数ある場合は数量を合算する。
+ *
+ * 主キーで照合するため、Item02エンティティは永続化済み
+ * （参照を含む）でなければならない。参照のequals()や
+ * hashCode()は呼び出さないため、参照が初期化されることはない。
+ */
+public class SalesLines {
+
+	// 関連付けるItem02エンティティ（明細の順序）
+	private final List<Item02> items = new ArrayList<Item02>();
+
+	// 主キーごとの数量
+	private final Map<Long, Integer> quantities = new LinkedHashMap<Long, Integer>();
+
+	/**
+	 * 明細を追加する
+	 * @param item 永続化済みのItem02エンティティ
+	 * @param quantity 数量
+	 */
+	public void add(Item02 item, int quantity) {
+		Integer current = quantities.get(item.getId());
+		if (current == null) {
+			items.add(item);
+			current = 0;
+		}
+		quantities.put(item.getId(), current + quantity);
+	}
+
+	/**
+	 * Sales02エンティティに関連付けるItem02エンティティを取得する
+	 * @return 主キーごとに1つのItem02エンティティ
+	 */
+	public List<Item02> getItems() {
+		return items;
+	}
+
+	/**
+	 * 主キーごとの数量を取得する
+	 * @return Item02エンティティの主キーと数量
+	 */
+	public Map<Long, Integer> getQuantities() {
+		return quantities;
+	}
+}
@@ -0,0 +1,155 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TemporalType;
+import javax.persistence.TypedQuery;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+
+/**
+ * 
+ * ShoppingCartEJBのチェックアウトで永続化されたSales02エンティティを
+ * 検索するステートレス・セッションBean
+ * 
+ * 検索結果は並べ替えのキー（顧客名の検索では主キー、日時の範囲の
+ * 検索では売上の日時と主キーの組）の順に並べ、前のページの最後の
+ * キーを指定して次のページを取得する（キーセット・ページネーション）。
+ * OFFSETを使用する場合と異なり、後ろのページになっても
+ * 読み飛ばす行が増えないため、ページの取得に要する時間は一定となる。
+ * 
+ * 各ページのSales02エンティティに関連付けられたItem02エンティティは、
+ * ページごとに1回のクエリでまとめて取得する。
+ * 
+ * 検索条件の列（customerName、salesDate）と主キーを組み合わせた
+ * インデックスがSales02テーブルに作成されていることを前提とする。
+ * インデックスを作成するDDLはsrc/main/sql/sales02-indexes.sqlにあり、
+ * デプロイ前にデータベースに対して一度だけ実行する。
+ * 
+ * 1ページの最大件数は1以上とし、MAX_LIMITを超える件数を指定した
+ * 場合はMAX_LIMIT件とする。
+ * 
+ */
+@Stateless	// ステートレス・セッションBeanであることを宣言する
+public class SalesQueryEJB {
+
+	/** 1ページの最大件数の上限 */
+	public static final int MAX_LIMIT = 1000;
+
+	// エンティティのデータアクセス用にEntity Managerを注入
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	/**
+	 * 顧客名を指定してSales02エンティティを取得する
+	 * 
+	 * @param customerName 顧客名
+	 * @param afterId 前のページの最後の主キー（最初のページの場合はnull）
+	 * @param limit 1ページの最大件数（1以上）
+	 * @return 主キーの順に並べたSales02エンティティのリスト
+	 * （Item02エンティティは取得済み）
+	 * @throws IllegalArgumentException limitが1未満の場合
+	 */
+	public List<Sales02> findSalesByCustomer(String customerName, Long afterId, int limit) {
+		TypedQuery<Long> query = em.createQuery(
+				"SELECT s.id FROM Sales02 s " +
+				"WHERE s.customerName = :customerName AND s.id > :afterId ORDER BY s.id", 
+				Long.class);
+		query.setParameter("customerName", customerName);
+		query.setParameter("afterId", afterId == null ? Long.MIN_VALUE : afterId);
+		query.setMaxResults(checkLimit(limit));
+
+		return fetchWithItems(query.getResultList());
+	}
+
+	/**
+	 * 売上の日時の範囲を指定してSales02エンティティを取得する
+	 * 
+	 * 売上の日時の順（同じ日時の場合は主キーの順）に並べるため、
+	 * (SALESDATE, ID)のインデックスを範囲の先頭から順に走査するだけで
+	 * ページを取得できる。次のページは、前のページの最後の
+	 * Sales02エンティティの日時と主キーを指定して取得する。
+	 * 
+	 * @param from 範囲の開始日時（この日時を含む）
+	 * @param to 範囲の終了日時（この日時を含まない）
+	 * @param afterDate 前のページの最後の売上の日時（最初のページの場合はnull）
+	 * @param afterId 前のページの最後の主キー（最初のページの場合はnull）
+	 * @param limit 1ページの最大件数（1以上）
+	 * @return 売上の日時と主キーの順に並べたSales02エンティティのリスト
+	 * （Item02エンティティは取得済み）
+	 * @throws IllegalArgumentException limitが1未満の場合や、
+	 * afterDateとafterIdの一方だけを指定した場合
+	 */
+	public List<Sales02> findSalesBetween(Date from, Date to, Date afterDate, Long afterId, int limit) {
+		if ((afterDate == null) != (afterId == null)) {
+			throw new IllegalArgumentException(
+					"afterDate and afterId must be given together : " + afterDate + ", " + afterId);
+		}
+		TypedQuery<Long> query = em.createQuery(
+				"SELECT s.id FROM Sales02 s " +
+				"WHERE s.salesDate >= :from AND s.salesDate < :to " +
+				(afterId == null ? "" : 
+					"AND (s.salesDate > :afterDate OR (s.salesDate = :afterDate AND s.id > :afterId)) ") +
+				"ORDER BY s.salesDate, s.id", 
+				Long.class);
+		query.setParameter("from", from, TemporalType.TIMESTAMP);
+		query.setParameter("to", to, TemporalType.TIMESTAMP);
+		if (afterId != null) {
+			query.setParameter("afterDate", afterDate, TemporalType.TIMESTAMP);
+			query.setParameter("afterId", afterId);
+		}
+		query.setMaxResults(checkLimit(limit));
+
+		return fetchWithItems(query.getResultList());
+	}
+
+	private static int checkLimit(int limit) {
+		// 0件ずつでは取得が進まず、クライアントが際限なく呼び出し続けてしまう
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be at least 1 : " + limit);
+		}
+		return Math.min(limit, MAX_LIMIT);
+	}
+
+	/**
+	 * 主キーを指定して、Sales02エンティティを関連付けられた
+	 * Item02エンティティとともに1回のクエリで取得する
+	 * 
+	 * ページングはItem02エンティティとの結合前に主キーだけで行っているため、
+	 * 結合による行の増加がページの件数に影響することはない。
+	 * 戻り値は、指定した主キーのリストと同じ順に並べる。
+	 */
+	private List<Sales02> fetchWithItems(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		TypedQuery<Sales02> query = em.createQuery(
+				"SELECT DISTINCT s FROM Sales02 s LEFT JOIN FETCH s.items " +
+				"WHERE s.id IN :ids", 
+				Sales02.class);
+		query.setParameter("ids", ids);
+
+		Map<Long, Sales02> found = new HashMap<Long, Sales02>();
+		for (Sales02 sales : query.getResultList()) {
+			found.put(sales.getId(), sales);
+		}
+		List<Sales02> page = new ArrayList<Sales02>(ids.size());
+		for (Long id : ids) {
+			Sales02 sales = found.get(id);
+			// ページの主キーを取得した後で削除された売上は含めない
+			if (sales != null) {
+				page.add(sales);
+			}
+		}
+		return page;
+	}
+}
@@ -0,0 +1,46 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.Serializable;
+
+/**
+ * 日ごと、または顧客ごとに集計したSales02エンティティの
+ * 件数と合計金額を表すクラス。
+ *
+ * SalesRollupEJBの集計値の取得メソッドの戻り値として使用される。
+ */
+public class SalesRollup implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// 集計の単位（日ごとの場合はyyyyMMdd形式の日付、顧客ごとの場合は顧客名）
+	private final String key;
+
+	// Sales02エンティティの件数
+	private final long count;
+
+	// Sales02エンティティの合計金額
+	private final float totalAmount;
+
+	public SalesRollup(String key, long count, float totalAmount) {
+		this.key = key;
+		this.count = count;
+		this.totalAmount = totalAmount;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public float getTotalAmount() {
+		return totalAmount;
+	}
+
+	@Override
+	public String toString() {
+		return "SalesRollup [key=" + key + ", count=" + count + ", totalAmount=" + totalAmount + "]";
+	}
+}
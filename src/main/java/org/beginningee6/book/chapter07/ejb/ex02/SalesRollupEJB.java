@@ -0,0 +1,326 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Sales02エンティティを日ごと、顧客ごとに集計した件数と合計金額を
+ * メモリ上に保持するシングルトン・セッションBean。
+ *
+ * ShoppingCartEJBとCheckoutWriterEJBのチェックアウトから呼び出され、
+ * トランザクションのコミット後に集計値が差分で更新される。
+ * これにより、集計値の取得時にSales02テーブルを走査する必要がなくなり、
+ * 1日分（または顧客1人分）の集計値を一定の時間で取得できる。
+ *
+ * 多数のチェックアウトが同じ日・同じ顧客の集計値を同時に更新しても
+ * 競合しないように、集計値はStripedCounterで保持する。
+ *
+ * 日ごと、顧客ごとの集計値はデプロイ時にデータベースの集計結果で
+ * 初期化される。（日ごとの集計は売上の日時の年・月・日でグループ化する）
+ *
+ * 集計値はこのBeanのインスタンス、つまりサーバ（ノード）ごとに
+ * メモリ上で保持される。差分が反映されるのは、そのノードで
+ * チェックアウトしてコミットされた売上だけである。複数のノードで
+ * チェックアウトする構成では、他のノードの売上は次にrebuild()を
+ * 呼び出してデータベースから集計し直すまで反映されない。
+ * （各ノードの集計値は、最後に集計し直した時点のデータベースの値に、
+ * そのノードの差分を加えたものとなる）
+ *
+ * rebuild()は集計値のMapを置き換えずに、同じMapの内容を入れ替える。
+ * 差分の反映と集計し直しは読み書きロックで排他する。ただし、集計の
+ * クエリと並行してコミットされた差分は、クエリの結果に含まれているか
+ * どうかがわからない。（含まれている差分をもう一度反映すると二重に
+ * 数えてしまう）そのため、MusicCompanyIndexEJBと同様に、差分を
+ * 登録したトランザクションのコミットの開始（beforeCompletion）と
+ * 差分の反映の完了を数えておき、コミット中の差分がなくなるのを
+ * 待ってからクエリを実行する。クエリの実行中に新たにコミットが
+ * 始まった場合は、結果を捨てて集計し直す。
+ */
+@Singleton
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class SalesRollupEJB {
+
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	@Resource
+	private TransactionSynchronizationRegistry txRegistry;
+
+	// yyyyMMdd形式の日付ごとの集計値
+	private final ConcurrentMap<Integer, Rollup> daily = new ConcurrentHashMap<Integer, Rollup>();
+
+	// 顧客名ごとの集計値
+	private final ConcurrentMap<String, Rollup> customers = new ConcurrentHashMap<String, Rollup>();
+
+	// 集計し直しを試行する最大の回数
+	private static final int MAX_REBUILD_ATTEMPTS = 100;
+
+	// 差分の反映（読み込みロック）と集計し直し（書き込みロック）を排他する
+	private final ReadWriteLock rebuildLock = new ReentrantReadWriteLock();
+
+	// 差分を登録したトランザクションのコミットを開始した回数と、
+	// 差分の反映（またはロールバック）を完了した回数
+	private final Object commitMonitor = new Object();
+	private long commitsStarted;
+	private long commitsFinished;
+
+	@PostConstruct
+	void init() {
+		rebuild();
+	}
+
+	/**
+	 * データベースのSales02エンティティを日ごと、顧客ごとに集計し直して
+	 * 集計値を置き換える
+	 *
+	 * 差分のコミットと並行せずに集計できるまで再試行する。
+	 *
+	 * @throws IllegalStateException 差分のコミットが続き、
+	 * 最大の回数まで再試行しても集計できなかった場合
+	 */
+	public void rebuild() {
+		TypedQuery<Object[]> byDay = em.createQuery(
+				"SELECT YEAR(s.salesDate), MONTH(s.salesDate), DAY(s.salesDate), COUNT(s), SUM(s.totalAmount) " +
+				"FROM Sales02 s WHERE s.salesDate IS NOT NULL " +
+				"GROUP BY YEAR(s.salesDate), MONTH(s.salesDate), DAY(s.salesDate)", 
+				Object[].class);
+		TypedQuery<Object[]> byCustomer = em.createQuery(
+				"SELECT s.customerName, COUNT(s), SUM(s.totalAmount) " +
+				"FROM Sales02 s WHERE s.customerName IS NOT NULL GROUP BY s.customerName", 
+				Object[].class);
+
+		for (int attempt = 0; attempt < MAX_REBUILD_ATTEMPTS; attempt++) {
+			long started = awaitNoCommitInProgress();
+			rebuildLock.writeLock().lock();
+			try {
+				List<Object[]> dayRows = byDay.getResultList();
+				List<Object[]> customerRows = byCustomer.getResultList();
+				// 待ち合わせた後やクエリの実行中にコミットが始まった差分は、
+				// クエリの結果に含まれているかどうかがわからない
+				if (getCommitsStarted() != started) {
+					continue;
+				}
+				daily.clear();
+				for (Object[] row : dayRows) {
+					int key = ((Number) row[0]).intValue() * 10000 
+							+ ((Number) row[1]).intValue() * 100 + ((Number) row[2]).intValue();
+					daily.put(key, toRollup(row[3], row[4]));
+				}
+				customers.clear();
+				for (Object[] row : customerRows) {
+					customers.put((String) row[0], toRollup(row[1], row[2]));
+				}
+				return;
+			} finally {
+				rebuildLock.writeLock().unlock();
+			}
+		}
+		throw new IllegalStateException(
+				"Could not rebuild the sales rollups between concurrent checkouts : attempts = " 
+				+ MAX_REBUILD_ATTEMPTS);
+	}
+
+	/**
+	 * Sales02エンティティが永続化されたことを集計値に反映する
+	 *
+	 * トランザクションの中で呼び出された場合は、トランザクションが
+	 * コミットされた時点で反映する。反映されるのはこのノードの
+	 * 集計値だけである。
+	 *
+	 * @param date 売上の日時
+	 * @param customerName 顧客名
+	 * @param totalAmount 合計金額
+	 */
+	public void salesCreated(final Date date, final String customerName, final Float totalAmount) {
+		if (txRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			commitStarted();
+			try {
+				apply(date, customerName, totalAmount);
+			} finally {
+				commitFinished();
+			}
+			return;
+		}
+		txRegistry.registerInterposedSynchronization(new Synchronization() {
+			// ロールバックの場合はbeforeCompletion()が呼び出されないことがある
+			private volatile boolean started;
+
+			public void beforeCompletion() {
+				commitStarted();
+				started = true;
+			}
+
+			public void afterCompletion(int status) {
+				try {
+					if (status == Status.STATUS_COMMITTED) {
+						apply(date, customerName, totalAmount);
+					}
+				} finally {
+					if (started) {
+						commitFinished();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * 1日分の集計値を取得する
+	 * @param day 集計値を取得する日（時刻は無視される）
+	 * @return その日の件数と合計金額
+	 */
+	public SalesRollup getDailyRollup(Date day) {
+		int key = dayKey(day);
+		return toSalesRollup(String.valueOf(key), daily.get(key));
+	}
+
+	/**
+	 * 期間内の日ごとの集計値を取得する
+	 * @param from 期間の最初の日
+	 * @param to 期間の最後の日
+	 * @return 日ごとの件数と合計金額（日付の順）
+	 */
+	public List<SalesRollup> getDailyRollups(Date from, Date to) {
+		List<SalesRollup> rollups = new ArrayList<SalesRollup>();
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(from);
+		int last = dayKey(to);
+		for (int key = dayKey(calendar.getTime()); key <= last; key = dayKey(calendar.getTime())) {
+			rollups.add(toSalesRollup(String.valueOf(key), daily.get(key)));
+			calendar.add(Calendar.DATE, 1);
+		}
+		return rollups;
+	}
+
+	/**
+	 * 顧客1人分の集計値を取得する
+	 * @param customerName 顧客名
+	 * @return その顧客の件数と合計金額
+	 */
+	public SalesRollup getCustomerRollup(String customerName) {
+		return toSalesRollup(customerName, customers.get(customerName));
+	}
+
+	private void commitStarted() {
+		synchronized (commitMonitor) {
+			commitsStarted++;
+		}
+	}
+
+	private void commitFinished() {
+		synchronized (commitMonitor) {
+			commitsFinished++;
+			commitMonitor.notifyAll();
+		}
+	}
+
+	private long getCommitsStarted() {
+		synchronized (commitMonitor) {
+			return commitsStarted;
+		}
+	}
+
+	/**
+	 * コミット中の差分がなくなるまで待つ
+	 * @return その時点でコミットを開始した回数
+	 */
+	private long awaitNoCommitInProgress() {
+		synchronized (commitMonitor) {
+			while (commitsStarted != commitsFinished) {
+				try {
+					commitMonitor.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Interrupted while waiting for checkouts to commit", e);
+				}
+			}
+			return commitsStarted;
+		}
+	}
+
+	private void apply(Date date, String customerName, Float totalAmount) {
+		long amount = totalAmount == null ? 0L : toMinorUnits(totalAmount);
+		// 差分どうしは並行して反映し、集計し直している間だけ待つ
+		rebuildLock.readLock().lock();
+		try {
+			rollup(daily, dayKey(date)).add(1, amount);
+			if (customerName != null) {
+				rollup(customers, customerName).add(1, amount);
+			}
+		} finally {
+			rebuildLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * 集計クエリの件数と合計金額から集計値を作成する
+	 */
+	private static Rollup toRollup(Object count, Object totalAmount) {
+		Rollup rollup = new Rollup();
+		rollup.add(((Number) count).longValue(), 
+				totalAmount == null ? 0L : toMinorUnits(((Number) totalAmount).floatValue()));
+		return rollup;
+	}
+
+	private static <K> Rollup rollup(ConcurrentMap<K, Rollup> rollups, K key) {
+		Rollup rollup = rollups.get(key);
+		if (rollup == null) {
+			Rollup created = new Rollup();
+			rollup = rollups.putIfAbsent(key, created);
+			if (rollup == null) {
+				rollup = created;
+			}
+		}
+		return rollup;
+	}
+
+	private static SalesRollup toSalesRollup(String key, Rollup rollup) {
+		if (rollup == null) {
+			return new SalesRollup(key, 0L, 0f);
+		}
+		return new SalesRollup(key, rollup.count.sum(), (float) (rollup.amount.sum() / 100d));
+	}
+
+	private static int dayKey(Date date) {
+		return Integer.parseInt(new SimpleDateFormat("yyyyMMdd").format(date));
+	}
+
+	private static long toMinorUnits(float amount) {
+		return Math.round(amount * 100d);
+	}
+
+	/**
+	 * 1つの集計単位の件数と合計金額（最小通貨単位）
+	 */
+	private static class Rollup {
+
+		private final StripedCounter count = new StripedCounter();
+		private final StripedCounter amount = new StripedCounter();
+
+		void add(long count, long amount) {
+			this.count.add(count);
+			this.amount.add(amount);
+		}
+	}
+}
@@ -1,13 +1,21 @@
 package org.beginningee6.book.chapter07.ejb.ex02;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.List;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.EJB;
+import javax.ejb.PrePassivate;
 import javax.ejb.Remove;
 import javax.ejb.Stateful;
 import javax.ejb.StatefulTimeout;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
@@ -47,70 +55,291 @@ public class ShoppingCartEJB {
 	// エンティティのデータアクセス用にEntity Managerを注入
 	@PersistenceContext(unitName = "Chapter07ProductionPU")
 	private EntityManager em;
+	
+	// パッシベーションされている間のカートの内容を
+	// ヒープの外に保持するシングルトン・セッションBeanを注入
+	@EJB
+	private CartStoreEJB cartStore;
+	
+	// カートに対する操作を顧客のキーごとにファイルに記録する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CartJournalEJB cartJournal;
+	
+	// カートに対する操作をデルタとしてバックアップのノードに
+	// レプリケーションするシングルトン・セッションBeanを注入
+	@EJB
+	private CartReplicatorEJB cartReplicator;
+	
+	// 非同期のチェックアウトをまとめて書き込む
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CheckoutWriterEJB checkoutWriter;
+	
+	// 冪等なチェックアウトのためのキーを保持する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CheckoutKeyRegistryEJB checkoutKeys;
+	
+	// 売上を日ごと、顧客ごとに集計する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private SalesRollupEJB salesRollup;
+	
+	// メモリ上に保持するカートの数を制限する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CartCapacityEJB capacity;
+	
+	// 明細の単価をカタログから取得する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CatalogPriceEJB catalogPrices;
+	
+	// チェックアウト時に明細の数量分の在庫を引き当てる
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private InventoryEJB inventory;
+	
+	// チェックアウトした明細の数量を記録する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private SalesLineEJB salesLines;
 
 	// ステートフル・セッションBeanのインスタンスが内部的に
 	// 保持するデータ
 	// 
 	// ステートフル・セッションBeanのインスタンスが生成されてから
 	// のメソッド実行で共通してこのデータを読み書きすることができる
-	private List<Item02> cartItems = new ArrayList<Item02>();
+	// 
+	// 追加された順序を保ちつつ、追加・削除・存在確認を定数時間で
+	// 行うためにLinkedHashMapを使用する。
+	// （Item02.equals()とItem02.hashCode()に依存）
+	// 
+	// 値には、追加した時点のItem02エンティティの単価を
+	// 最小通貨単位（1/100）に換算したものと、数量を保持する。
+	// 同じ値のItem02エンティティを追加した場合は、
+	// 明細を増やさずに数量を増やす。
+	// 
+	// カートの内容はSpillableCartが保持する。パッシベーション時と、
+	// メモリ上のカートの数がCartCapacityEJBの上限を超えた時には
+	// CartStoreEJBに退避され、次にカートの内容が必要になった時点で
+	// items()により復元される。
+	private SpillableCart cart = new SpillableCart();
+	
+	// カートにあるItem02エンティティの合計金額（最小通貨単位）
+	// 
+	// getTotal()のたびにカート全体を走査しないように、また、
+	// floatの加減算による丸め誤差が蓄積しないように、
+	// 明細の更新時にlongの値として差分を更新する。
+	private long totalInMinorUnits;
+	
+	// カートにある商品の個数（全明細の数量の合計）
+	// 
+	// 合計金額と同様に明細の更新時に差分を更新する。
+	// パッシベーションされている間も保持されるため、
+	// カートの内容を復元せずに個数を返すことができる。
+	private int numberOfUnits;
+	
+	// カートに対する操作を記録する顧客のキー
+	// （nullの場合は記録しない）
+	private String customerKey;
+
+	/**
+	 * カートに対する操作を記録する顧客のキーを設定する
+	 * 
+	 * 設定した後のカートに対する操作はCartJournalEJBに記録され、
+	 * このインスタンスが＠StatefulTimeoutにより破棄された後でも、
+	 * 別のインスタンスでresume()を呼び出すことで復元できる。
+	 * 
+	 * @param customerKey 顧客のキー
+	 */
+	public void setCustomerKey(String customerKey) {
+		this.customerKey = customerKey;
+		
+		// 既にあるカートの内容をまとめて記録する
+		Map<Item02, CartLine> items = items();
+		if (customerKey != null && !items.isEmpty()) {
+			CartSnapshot snapshot = CartSnapshot.of(items);
+			cartJournal.recordSnapshot(customerKey, snapshot);
+			cartReplicator.recordSnapshot(customerKey, snapshot);
+		}
+	}
+	
+	/**
+	 * 顧客のキーについて記録されたカートの内容を復元する
+	 * 
+	 * 記録がある場合は、現在のカートの内容を記録された内容で置き換える。
+	 * 以降のカートに対する操作は、この顧客のキーで記録される。
+	 * 
+	 * @param customerKey 顧客のキー
+	 * @return 復元後の商品の個数
+	 */
+	public Integer resume(String customerKey) {
+		this.customerKey = customerKey;
+		
+		Map<Item02, CartLine> restored = cartJournal.load(customerKey);
+		if (restored != null) {
+			cart.setItems(restored, cartStore);
+			capacity.activated(cart);
+			recalculateTotal();
+			
+			// バックアップのカートを復元した内容で置き換える
+			cartReplicator.recordSnapshot(customerKey, CartSnapshot.of(restored));
+		}
+		
+		return getNumberOfItems();
+	}
 
 	/**
 	 * カートにItem02エンティティを追加する
+	 * 
+	 * 同じ値のItem02エンティティが既にある場合は、
+	 * その明細の数量を1つ増やす。
+	 * 
 	 * @param item カートに追加するItem02エンティティ
 	 */
 	public void addItem(Item02	item) {
-		// contains()はItem02.equals()に依存
-		if (!cartItems.contains(item)) {
-			cartItems.add(item);
-		}
+		add(items(), item);
 	}
 
 	/**
 	 * カートからItem02エンティティを削除する
+	 * 
+	 * 数量によらず、その明細をカートから削除する。
+	 * 
 	 * @param item カートから削除するItem02エンティティ
 	 */
 	public void removeItem(Item02 item) {
-		// contains()はItem02.equals()に依存
-		if (cartItems.contains(item)) {
-			cartItems.remove(item);
-		}
+		remove(items(), item);
 	}
 	
 	/**
-	 * カートに追加されたItem02エンティティの件数を取得する
-	 * @return Item02エンティティの件数
+	 * カートに複数のItem02エンティティをまとめて追加する
+	 * 
+	 * 1回の呼び出しで追加できるため、リモートのクライアントが
+	 * addItem()を明細の件数だけ呼び出す必要がなくなる。
+	 * 
+	 * @param items カートに追加するItem02エンティティ
+	 * @return 追加後のカートの件数と合計金額
 	 */
-	public Integer getNumberOfItems() {
-		if (cartItems == null || cartItems.isEmpty()) {
-			return 0;
+	public CartSummary addItems(Collection<Item02> items) {
+		return applyDelta(items, null);
+	}
+	
+	/**
+	 * カートから複数のItem02エンティティをまとめて削除する
+	 * @param items カートから削除するItem02エンティティ
+	 * @return 削除後のカートの件数と合計金額
+	 */
+	public CartSummary removeItems(Collection<Item02> items) {
+		return applyDelta(null, items);
+	}
+	
+	/**
+	 * カートへの追加と削除をまとめて行う
+	 * 
+	 * 削除を先に行い、その後に追加を行う。したがって、
+	 * 両方に同じ値のItem02エンティティが含まれる場合は、
+	 * そのItem02エンティティは数量1の明細としてカートに残る。
+	 * 
+	 * @param adds カートに追加するItem02エンティティ（nullの場合は追加しない）
+	 * @param removes カートから削除するItem02エンティティ（nullの場合は削除しない）
+	 * @return 更新後のカートの件数と合計金額
+	 */
+	public CartSummary applyDelta(Collection<Item02> adds, Collection<Item02> removes) {
+		Map<Item02, CartLine> items = items();
+		if (removes != null) {
+			for (Item02 item : removes) {
+				remove(items, item);
+			}
+		}
+		if (adds != null) {
+			for (Item02 item : adds) {
+				add(items, item);
+			}
 		}
 		
-		return cartItems.size();
+		return summary();
 	}
 	
 	/**
-	 * カートにあるすべてのItem02エンティティの合計金額を計算する
+	 * カートにあるItem02エンティティの数量を設定する
+	 * 
+	 * カートにないItem02エンティティの場合は、指定した数量の
+	 * 明細として追加する。数量に0以下を指定した場合は、
+	 * その明細をカートから削除する。
+	 * 
+	 * @param item 数量を設定するItem02エンティティ
+	 * @param quantity 数量
+	 * @return 更新後のカートの件数と合計金額
+	 */
+	public CartSummary setQuantity(Item02 item, int quantity) {
+		updateQuantity(items(), item, quantity);
+		return summary();
+	}
+	
+	/**
+	 * カートにあるItem02エンティティの数量を増減する
+	 * 
+	 * 増減後の数量が0以下になった場合は、その明細をカートから削除する。
+	 * 
+	 * @param item 数量を増減するItem02エンティティ
+	 * @param delta 数量の増分（負の値で減らす）
+	 * @return 更新後のカートの件数と合計金額
+	 */
+	public CartSummary increment(Item02 item, int delta) {
+		Map<Item02, CartLine> items = items();
+		updateQuantity(items, item, getQuantity(items, item) + delta);
+		return summary();
+	}
+	
+	/**
+	 * カートにあるItem02エンティティの数量を取得する
+	 * @param item 数量を取得するItem02エンティティ
+	 * @return 数量（カートにない場合は0）
+	 */
+	public Integer getQuantity(Item02 item) {
+		return getQuantity(items(), item);
+	}
+	
+	/**
+	 * カートにある商品の個数（全明細の数量の合計）を取得する
+	 * 
+	 * パッシベーションされていた場合でも、カートの内容を
+	 * 復元せずに個数を返す。
+	 * 
+	 * @return 商品の個数
+	 */
+	public Integer getNumberOfItems() {
+		return numberOfUnits;
+	}
+	
+	/**
+	 * カートにあるすべてのItem02エンティティの合計金額を取得する
+	 * 
+	 * 合計金額はカートの更新時に計算済みのため、
+	 * カートの件数によらず定数時間で取得できる。
+	 * 
 	 * @return Item02エンティティの合計金額
 	 */
 	public Float getTotal() {
-		if (cartItems == null || cartItems.isEmpty()) {
-			return 0f;
-		}
-		
-		Float total = 0f;
-		for(Item02 item : cartItems) {
-			total += item.getPrice();
-		}
-		
-		return total;
+		return toPrice(totalInMinorUnits);
 	}
 
 	/**
 	 * カートからすべてのItem02エンティティを削除する
 	 */
 	public void empty() {
-		cartItems.clear();
+		cart.setItems(new LinkedHashMap<Item02, CartLine>(), cartStore);
+		capacity.activated(cart);
+		numberOfUnits = 0;
+		totalInMinorUnits = 0;
+		
+		if (customerKey != null) {
+			cartJournal.recordClear(customerKey);
+			cartReplicator.recordClear(customerKey);
+		}
 	}
 	
 	/**
@@ -121,28 +350,329 @@ public class ShoppingCartEJB {
 	 * 商品の合計金額と顧客名を元にSales02エンティティが
 	 * 永続化される。
 	 * 
+	 * Item02エンティティは明細ごとに1回だけ関連付け、明細の数量は
+	 * SalesLineEJBでSALES_LINE_QUANTITYテーブルに記録する。
+	 * 数量が2以上の明細でも、Item02エンティティと関連テーブルの行は
+	 * 1つずつとなる。数量の行は複数行のINSERT文でまとめて挿入され、
+	 * それまでに永続化したエンティティはその直前の1回のフラッシュで
+	 * データベースに書き込まれる。
+	 * 
+	 * 既に永続化されている（主キーを持つ）Item02エンティティは
+	 * 永続化し直さずに、Entity Managerから取得した参照で関連付ける。
+	 * 参照の取得ではデータベースへのアクセスは行われないため、
+	 * INSERT文が発行されるのは新しいItem02エンティティだけとなる。
+	 * （返されるSales02エンティティでは、既存のItem02エンティティは
+	 * 未初期化の参照として含まれる）
+	 * 
+	 * 永続化の前に、既に永続化されているItem02エンティティについて
+	 * 明細の数量分の在庫をInventoryEJBで引き当てる。在庫数が足りない
+	 * 明細があればOutOfStockExceptionがスローされ、売上は永続化されない。
+	 * 引き当てた在庫は、このトランザクションがロールバックされた場合に
+	 * 在庫に戻される。
+	 * 
 	 * なお、このメソッドには＠Removeアノテーションが付与されているため、
 	 * このメソッド完了後にこのEJBのインスタンスは破棄される。
 	 * したがって、このメソッドを実行した後に、同じインスタンスに対して
 	 * いずれかの公開メソッドを実行しようとすると例外がスローされる。
+	 * ただし、OutOfStockExceptionがスローされた場合は、インスタンスは
+	 * 破棄されずにカートの内容も保持される。
 	 * 
 	 * @param customerName 商品をチェックアウトする顧客の名前
 	 * @return 永続化されたSales02エンティティ
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
 	 */
-	@Remove
+	@Remove(retainIfException = true)
 	public Sales02 checkout(String customerName) {
 		// Sales02エンティティを生成
-		Sales02 sales = new Sales02(customerName, new Date());
+		Date date = new Date();
+		Sales02 sales = new Sales02(customerName, date);
+		Map<Item02, CartLine> items = items();
+		
+		// 明細の数量分の在庫を引き当てる
+		inventory.reserve(items);
 		sales.setTotalAmount(getTotal());	// 商品の合計金額
-		sales.setItems(cartItems);			// カートにあるItem02エンティティと関連付け
 		
-		// Item02エンティティを永続化
-		for(Item02 item : cartItems) {
-			em.persist(item);
+		SalesLines lines = new SalesLines();
+		for(Map.Entry<Item02, CartLine> entry : items.entrySet()) {
+			Item02 item = entry.getKey();
+			if (item.getId() == null) {
+				// 新しいItem02エンティティを永続化
+				em.persist(item);
+			} else {
+				// 既存のItem02エンティティは読み込まずに参照だけを取得
+				item = em.getReference(Item02.class, item.getId());
+			}
+			lines.add(item, entry.getValue().getQuantity());
 		}
+		sales.setItems(lines.getItems());	// カートにあるItem02エンティティと関連付け
+		
 		// Sales02エンティティを永続化
 		em.persist(sales);
 		
+		// 明細の数量を記録
+		salesLines.record(sales.getId(), lines.getQuantities());
+		
+		// 売上処理がコミットされた時点で集計値に反映する
+		salesRollup.salesCreated(date, customerName, sales.getTotalAmount());
+		
+		// 売上処理がコミットされた時点で記録されたカートを破棄する
+		if (customerKey != null) {
+			cartJournal.recordClear(customerKey);
+			cartReplicator.recordClear(customerKey);
+		}
+		
 		return sales;
 	}
+	
+	/**
+	 * 
+	 * 冪等キーを指定して、カートにある商品（Item02）の売上処理を行う。
+	 * 
+	 * タイムアウトしたクライアントが同じキーで再試行した場合など、
+	 * 同じキーで既に売上処理がコミットされていれば、新たに永続化は
+	 * 行わずに、その時に永続化されたSales02エンティティを返す。
+	 * 同じキーの売上処理が実行中であれば、その完了を待たずに
+	 * CheckoutInProgressExceptionがスローされる。
+	 * 
+	 * キーは売上処理と同じトランザクションでCheckoutKeyRegistryEJBに
+	 * 記録されるため、売上処理がコミットされた場合にだけ記録される。
+	 * 
+	 * @param customerName 商品をチェックアウトする顧客の名前
+	 * @param idempotencyKey 冪等キー
+	 * @return 永続化された（または既に永続化されていた）Sales02エンティティ
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 * @throws CheckoutInProgressException 同じキーの売上処理が実行中の場合
+	 */
+	@Remove(retainIfException = true)
+	public Sales02 checkout(String customerName, String idempotencyKey) {
+		Long salesId;
+		while ((salesId = checkoutKeys.begin(idempotencyKey)) != null) {
+			Sales02 original = em.find(Sales02.class, salesId);
+			if (original != null) {
+				return original;
+			}
+			// 売上が削除されていた場合はキーを破棄して新たにチェックアウトする
+			checkoutKeys.forget(idempotencyKey, salesId);
+		}
+		
+		Sales02 sales = checkout(customerName);
+		checkoutKeys.complete(idempotencyKey, sales.getId());
+		
+		return sales;
+	}
+	
+	/**
+	 * 
+	 * カートにある商品（Item02）の売上処理を非同期に行う。
+	 * 
+	 * カートの内容はCheckoutWriterEJBのキューに追加され、
+	 * 他のカートのチェックアウトとまとめて1つのトランザクションで
+	 * 永続化される。このメソッドは永続化の完了を待たずに戻り、
+	 * 永続化されたSales02エンティティは返されたFutureから取得する。
+	 * （永続化に失敗した場合、Future.get()はExecutionExceptionを
+	 * スローする）
+	 * 
+	 * 在庫は永続化するトランザクションの中で引き当てる。在庫数が
+	 * 足りない場合は、ExecutionExceptionの原因がOutOfStockExceptionとなる。
+	 * 
+	 * checkout()と同様に、このメソッドの完了後にこのEJBの
+	 * インスタンスは破棄される。ただし、キューが一杯で
+	 * CheckoutRejectedExceptionがスローされた場合は、
+	 * インスタンスは破棄されずにカートの内容も保持される。
+	 * 
+	 * @param customerName 商品をチェックアウトする顧客の名前
+	 * @return 永続化されたSales02エンティティを返すFuture
+	 * @throws CheckoutRejectedException キューが一杯の場合
+	 */
+	@Remove(retainIfException = true)
+	public Future<Sales02> checkoutAsync(String customerName) throws CheckoutRejectedException {
+		Map<Item02, CartLine> items = items();
+		return checkoutWriter.submit(customerName, new Date(), getTotal(), 
+				CartSnapshot.of(items), customerKey);
+	}
+	
+	/**
+	 * ＠PostConstructアノテーションにより、
+	 * このメソッドはインスタンスが生成された直後に
+	 * 自動で実行される。
+	 * 
+	 * メモリ上に作られたカートをCartCapacityEJBに記録する。
+	 */
+	@PostConstruct
+	void init() {
+		capacity.activated(cart);
+	}
+	
+	/**
+	 * ＠AroundInvokeアノテーションにより、
+	 * このメソッドはこのBeanのビジネス・メソッドの呼び出しごとに
+	 * 自動で実行される。
+	 * 
+	 * ビジネス・メソッドの実行中は、CartCapacityEJBによって
+	 * カートの内容が退避されないようにロックする。
+	 * 
+	 * また、カートの内容がCartStoreEJBに預けられている場合は、
+	 * 呼び出しごとに使用を記録する。getNumberOfItems()のように
+	 * 内容を取り出さないメソッドだけが呼び出され続けても、
+	 * このインスタンスが生きている間に預けた内容が保持期間を
+	 * 過ぎて解放されることはない。
+	 */
+	@AroundInvoke
+	Object lockCart(InvocationContext ic) throws Exception {
+		cart.lock();
+		try {
+			cart.keepAlive(cartStore);
+			return ic.proceed();
+		} finally {
+			cart.unlock();
+		}
+	}
+	
+	/**
+	 * ＠PrePassivateアノテーションにより、
+	 * このメソッドはインスタンスがパッシベーションされる直前に
+	 * 自動で実行される。
+	 * 
+	 * カートにあるItem02エンティティをそのままシリアライズせずに、
+	 * 主キーと価格を中心としたコンパクトな形式に詰め直して
+	 * CartStoreEJBに預け、このインスタンスはハンドルだけを保持する。
+	 * （CartCapacityEJBにより既に退避されていた場合はそのまま）
+	 */
+	@PrePassivate
+	void passivate() {
+		cart.lock();
+		try {
+			capacity.passivated(cart, cart.spill(cartStore));
+		} finally {
+			cart.unlock();
+		}
+	}
+	
+	/**
+	 * ＠PreDestroyアノテーションにより、
+	 * このメソッドはインスタンスが破棄される直前に
+	 * 自動で実行される。
+	 * 
+	 * CartStoreEJBに預けたままのカートの内容があれば解放する。
+	 * また、＠StatefulTimeoutにより破棄される場合も含めて、
+	 * バックアップのカートを破棄する。（CartJournalEJBの記録は
+	 * resume()で復元できるように残す）
+	 */
+	@PreDestroy
+	void release() {
+		cart.lock();
+		try {
+			capacity.released(cart);
+			cart.release(cartStore);
+		} finally {
+			cart.unlock();
+		}
+		if (customerKey != null) {
+			cartReplicator.recordClear(customerKey);
+		}
+	}
+	
+	/**
+	 * カートの内容を取得する
+	 * 
+	 * パッシベーションされていた場合や、CartCapacityEJBにより
+	 * 退避されていた場合は、初めてカートの内容が必要になった
+	 * この時点で復元する。
+	 */
+	private Map<Item02, CartLine> items() {
+		Map<Item02, CartLine> items = cart.getItems();
+		if (items == null) {
+			items = cart.restore(cartStore, em);
+			capacity.restored(cart);
+			
+			// 削除されていたItem02エンティティが取り除かれている
+			// 可能性があるため、個数と合計金額を計算し直す
+			recalculateTotal();
+		} else {
+			cart.touch();
+		}
+		
+		return items;
+	}
+	
+	/**
+	 * カートにItem02エンティティを1個追加する
+	 */
+	private void add(Map<Item02, CartLine> items, Item02 item) {
+		// 同じ値のItem02エンティティが既にある場合は数量を増やす
+		updateQuantity(items, item, getQuantity(items, item) + 1);
+	}
+	
+	/**
+	 * カートからItem02エンティティの明細を削除する
+	 */
+	private void remove(Map<Item02, CartLine> items, Item02 item) {
+		// 同じ値のItem02エンティティがない場合は何もしない
+		updateQuantity(items, item, 0);
+	}
+	
+	/**
+	 * 明細の数量を更新し、個数と合計金額に差分を反映する
+	 * 
+	 * 明細の追加・削除・数量の変更はすべてこのメソッドで行う。
+	 */
+	private void updateQuantity(Map<Item02, CartLine> items, Item02 item, int quantity) {
+		CartLine line = items.get(item);
+		
+		if (quantity <= 0) {
+			if (line != null) {
+				items.remove(item);
+				numberOfUnits -= line.getQuantity();
+				totalInMinorUnits -= line.getAmount();
+				
+				if (customerKey != null) {
+					cartJournal.recordRemove(customerKey, item);
+					cartReplicator.recordRemove(customerKey, item, items);
+				}
+			}
+			return;
+		}
+		
+		if (line == null) {
+			// クライアントから渡された価格ではなく、カタログの価格を記録する
+			line = new CartLine(catalogPrices.getPrice(item), 0);
+			items.put(item, line);
+		}
+		numberOfUnits += quantity - line.getQuantity();
+		totalInMinorUnits += line.getPrice() * (quantity - line.getQuantity());
+		line.setQuantity(quantity);
+		
+		if (customerKey != null) {
+			cartJournal.recordLine(customerKey, item, line);
+			cartReplicator.recordLine(customerKey, item, line, items);
+		}
+	}
+	
+	private static int getQuantity(Map<Item02, CartLine> items, Item02 item) {
+		CartLine line = items.get(item);
+		return line == null ? 0 : line.getQuantity();
+	}
+	
+	private CartSummary summary() {
+		return new CartSummary(numberOfUnits, getTotal());
+	}
+	
+	/**
+	 * カートの内容から個数と合計金額を計算し直す
+	 */
+	private void recalculateTotal() {
+		numberOfUnits = 0;
+		totalInMinorUnits = 0;
+		for (CartLine line : cart.getItems().values()) {
+			numberOfUnits += line.getQuantity();
+			totalInMinorUnits += line.getAmount();
+		}
+	}
+	
+	/**
+	 * 最小通貨単位（1/100）の整数を価格に換算する
+	 */
+	private static Float toPrice(long minorUnits) {
+		return (float) (minorUnits / 100d);
+	}
 }
@@ -0,0 +1,176 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.persistence.EntityManager;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * ShoppingCartEJBのカートの内容を保持し、必要に応じてメモリの外に
+ * 退避（スピル）するクラス。
+ *
+ * カートの内容は、メモリ上にItem02エンティティと明細として
+ * 保持されているか、CartStoreEJBにハンドルで預けられているかの
+ * いずれかの状態となる。CartStoreEJBの空き領域が足りなかった場合に
+ * 限り、CartSnapshotとしてヒープ上に保持する。
+ *
+ * スピルはShoppingCartEJBのパッシベーションと、CartCapacityEJBによる
+ * メモリ上のカートの数の制限の2つの契機で行われる。後者は
+ * ShoppingCartEJBとは別のスレッドで行われるため、カートの内容を
+ * 読み書きする間はlock()でロックを取得すること。CartCapacityEJBは
+ * tryLock()で取得できたカートだけをスピルするため、使用中の
+ * カートがスピルされることはない。
+ *
+ * パッシベーションではスピルした状態でシリアライズされる。
+ */
+public class SpillableCart implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// メモリ上のカートの内容（スピルされている間はnull）
+	private transient Map<Item02, CartLine> items = new LinkedHashMap<Item02, CartLine>();
+
+	// スピルされている間のカートの内容のハンドル
+	private long handle = OffHeapCartStore.NO_HANDLE;
+
+	// CartStoreEJBの空き領域が足りなかった場合に限り、
+	// スピルされている間のカートの内容をここに保持する
+	private CartSnapshot snapshot;
+
+	private transient ReentrantLock lock = new ReentrantLock();
+
+	// 最後にカートの内容が使用された時刻（LRUの判定に使用する）
+	private transient volatile long lastAccess = System.nanoTime();
+
+	/**
+	 * メモリ上のカートの内容を取得する
+	 * @return カートの内容（スピルされている場合はnull）
+	 */
+	public Map<Item02, CartLine> getItems() {
+		return items;
+	}
+
+	/**
+	 * カートの内容を置き換える
+	 *
+	 * スピルされていた内容は破棄する。
+	 *
+	 * @param items 新しいカートの内容
+	 * @param store スピルされていた内容を預けたCartStoreEJB
+	 */
+	public void setItems(Map<Item02, CartLine> items, CartStoreEJB store) {
+		release(store);
+		this.items = items;
+		touch();
+	}
+
+	/**
+	 * カートの内容をメモリの外に退避する
+	 * @param store カートの内容を預けるCartStoreEJB
+	 * @return 退避した場合はtrue（既に退避されていた場合はfalse）
+	 */
+	public boolean spill(CartStoreEJB store) {
+		if (items == null) {
+			return false;
+		}
+		CartSnapshot spilled = CartSnapshot.of(items);
+		handle = store.put(spilled);
+		if (handle == OffHeapCartStore.NO_HANDLE) {
+			// 空き領域が足りない場合は、コンパクトな形式でヒープ上に保持する
+			snapshot = spilled;
+		}
+		items = null;
+		return true;
+	}
+
+	/**
+	 * 退避したカートの内容をメモリ上に復元する
+	 *
+	 * 永続化済みの明細はデータベースから取得し直すため、
+	 * その間に削除されていたItem02エンティティは取り除かれる。
+	 * また、CartStoreEJBの保持期間を過ぎて解放されていた場合は
+	 * 空のカートとなる。
+	 *
+	 * @param store カートの内容を預けたCartStoreEJB
+	 * @param em Item02エンティティの取得に使用するEntity Manager
+	 * @return 復元したカートの内容
+	 */
+	public Map<Item02, CartLine> restore(CartStoreEJB store, EntityManager em) {
+		if (items != null) {
+			return items;
+		}
+		CartSnapshot spilled = snapshot;
+		if (handle != OffHeapCartStore.NO_HANDLE) {
+			spilled = store.take(handle);
+			handle = OffHeapCartStore.NO_HANDLE;
+		}
+		items = spilled == null 
+				? new LinkedHashMap<Item02, CartLine>() 
+				: spilled.restore(em);
+		snapshot = null;
+		touch();
+		return items;
+	}
+
+	/**
+	 * CartStoreEJBに預けたままのカートの内容があれば、まだ使用されて
+	 * いることを記録して、保持期間を過ぎても解放されないようにする
+	 * @param store カートの内容を預けたCartStoreEJB
+	 */
+	public void keepAlive(CartStoreEJB store) {
+		if (handle != OffHeapCartStore.NO_HANDLE) {
+			store.touch(handle);
+		}
+	}
+
+	/**
+	 * CartStoreEJBに預けたままのカートの内容があれば解放する
+	 * @param store カートの内容を預けたCartStoreEJB
+	 */
+	public void release(CartStoreEJB store) {
+		if (handle != OffHeapCartStore.NO_HANDLE) {
+			store.free(handle);
+			handle = OffHeapCartStore.NO_HANDLE;
+		}
+		snapshot = null;
+	}
+
+	/**
+	 * カートが使用されたことを記録する
+	 */
+	public void touch() {
+		lastAccess = System.nanoTime();
+	}
+
+	/**
+	 * 最後にカートが使用された時刻を取得する
+	 * @return System.nanoTime()による時刻
+	 */
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	public void lock() {
+		lock.lock();
+	}
+
+	public boolean tryLock() {
+		return lock.tryLock();
+	}
+
+	public void unlock() {
+		lock.unlock();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lock = new ReentrantLock();
+		lastAccess = System.nanoTime();
+	}
+}
@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 複数のスレッドから同時に加算される値を、競合を避けるために
+ * 複数のセル（ストライプ）に分散して保持するカウンター。
+ *
+ * 加算はスレッドごとに決まる1つのセルに対して行われるため、
+ * 多数のスレッドが同じカウンターを更新しても1つの値を
+ * 奪い合うことがない。値の取得はすべてのセルを合計して行う。
+ * セルの数は固定のため、取得に要する時間は一定となる。
+ *
+ * 隣り合うセルが同じキャッシュラインに載ることによる競合
+ * （フォルス・シェアリング）を避けるため、セルの間隔を空けて配置する。
+ */
+public class StripedCounter {
+
+	// セルの数（2のべき乗）
+	private static final int STRIPES = 16;
+
+	// セルの間隔（long 8個分＝64バイト）
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * 値を加算する
+	 * @param delta 加算する値
+	 */
+	public void add(long delta) {
+		cells.addAndGet(index(), delta);
+	}
+
+	/**
+	 * 値を取得する
+	 * @return すべてのセルの合計
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int index() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32));
+		hash ^= (hash >>> 16);
+		hash *= 0x9e3779b9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+}
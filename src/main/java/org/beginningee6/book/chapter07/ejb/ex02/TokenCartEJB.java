@@ -0,0 +1,294 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+
+/**
+ * ShoppingCartEJBと同じカートの操作を、ステートレス・セッションBeanで
+ * 提供するサンプル。
+ * 
+ * カートの内容（主キー、単価、数量）はサーバ側には保持せず、
+ * CartTokenCodecで署名付きのバイナリ形式のトークンに変換して
+ * クライアントに返す。クライアントは次の操作でそのトークンを渡し、
+ * 各メソッドは更新後の新しいトークンを返す。
+ * 
+ * このため、ShoppingCartEJBと異なり、利用者の数によらずサーバの
+ * ヒープを消費せず、パッシベーションも発生しない。また、どの
+ * インスタンス（同じ鍵を持つどのサーバ）でも操作を処理できる。
+ * その代わりに、操作のたびにトークンの検証と変換が必要となり、
+ * トークンの大きさ（CartTokenCodec.MAX_TOKEN_BYTESまで）に
+ * 比例した通信量が増える。
+ * 
+ * トークンには明細の単価を記録した日時（発行日時）が署名とともに
+ * 含まれる。発行日時からPRICE_VALIDITY_MILLISを過ぎたトークンは、
+ * 永続化済みの明細の単価をカタログの現在の価格で計算し直してから
+ * 使用し、発行日時を更新する。それ以外の操作では発行日時を
+ * 引き継ぐため、トークンを更新し続けても古い単価のまま
+ * チェックアウトすることはできない。
+ * 
+ * トークンはクライアントが保持するため、同じトークンで
+ * 繰り返しチェックアウトすることができてしまう。これを防ぐには、
+ * 冪等キーを指定するcheckout()を使用する。
+ * 
+ */
+@Stateless	// ステートレス・セッションBeanであることを宣言
+public class TokenCartEJB {
+	
+	// トークンの単価をそのまま使用する期間
+	static final long PRICE_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+	
+	// 署名の鍵をシステム・プロパティから取得し、すべてのインスタンスで
+	// 共有するCartTokenCodecを保持するシングルトン・セッションBeanを注入
+	@EJB
+	private CartTokenCodecEJB tokenCodec;
+	
+	private CartTokenCodec codec;
+	
+	// エンティティのデータアクセス用にEntity Managerを注入
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+	
+	// 冪等なチェックアウトのためのキーを保持する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CheckoutKeyRegistryEJB checkoutKeys;
+	
+	// 売上を日ごと、顧客ごとに集計する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private SalesRollupEJB salesRollup;
+	
+	// 明細の単価をカタログから取得する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private CatalogPriceEJB catalogPrices;
+	
+	// チェックアウト時に在庫を引き当てる
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private InventoryEJB inventory;
+	
+	// チェックアウトした明細の数量を記録する
+	// シングルトン・セッションBeanを注入
+	@EJB
+	private SalesLineEJB salesLines;
+	
+	/**
+	 * ＠PostConstructアノテーションにより、
+	 * このメソッドはインスタンスが生成された直後に
+	 * 自動で実行される。
+	 *
+	 * 署名の鍵が指定されていない場合は、このBeanのインスタンスの
+	 * 生成だけが失敗する。
+	 */
+	@PostConstruct
+	void init() {
+		codec = tokenCodec.getCodec();
+	}
+	
+	/**
+	 * 空のカートのトークンを作成する
+	 * @return 空のカートのトークン
+	 */
+	public byte[] newCart() throws CartTokenException {
+		return codec.encode(new CartSnapshot());
+	}
+	
+	/**
+	 * カートにItem02エンティティを追加する
+	 * 
+	 * 同じ値のItem02エンティティが既にある場合は、
+	 * その明細の数量を1つ増やす。
+	 * 
+	 * @param token カートのトークン（nullの場合は空のカート）
+	 * @param item カートに追加するItem02エンティティ
+	 * @return 更新後のカートのトークン
+	 * @throws CartTokenException トークンが不正な場合、または更新後のトークンが大きすぎる場合
+	 */
+	public byte[] addItem(byte[] token, Item02 item) throws CartTokenException {
+		CartTokenCodec.Contents contents = decode(token);
+		CartSnapshot snapshot = contents.getSnapshot();
+		return codec.encode(withQuantity(snapshot, item, snapshot.getQuantity(item) + 1), 
+				contents.getIssuedAt());
+	}
+	
+	/**
+	 * カートからItem02エンティティを削除する
+	 * 
+	 * 数量によらず、その明細をカートから削除する。
+	 * 
+	 * @param token カートのトークン
+	 * @param item カートから削除するItem02エンティティ
+	 * @return 更新後のカートのトークン
+	 * @throws CartTokenException トークンが不正な場合
+	 */
+	public byte[] removeItem(byte[] token, Item02 item) throws CartTokenException {
+		return setQuantity(token, item, 0);
+	}
+	
+	/**
+	 * カートにあるItem02エンティティの数量を設定する
+	 * 
+	 * カートにないItem02エンティティの場合は、指定した数量の
+	 * 明細として追加する。数量に0以下を指定した場合は、
+	 * その明細をカートから削除する。
+	 * 
+	 * @param token カートのトークン
+	 * @param item 数量を設定するItem02エンティティ
+	 * @param quantity 数量
+	 * @return 更新後のカートのトークン
+	 * @throws CartTokenException トークンが不正な場合、または更新後のトークンが大きすぎる場合
+	 */
+	public byte[] setQuantity(byte[] token, Item02 item, int quantity) throws CartTokenException {
+		CartTokenCodec.Contents contents = decode(token);
+		return codec.encode(withQuantity(contents.getSnapshot(), item, quantity), 
+				contents.getIssuedAt());
+	}
+	
+	/**
+	 * カートにある商品の個数（全明細の数量の合計）を取得する
+	 * @param token カートのトークン
+	 * @return 商品の個数
+	 * @throws CartTokenException トークンが不正な場合
+	 */
+	public Integer getNumberOfItems(byte[] token) throws CartTokenException {
+		return decode(token).getSnapshot().getNumberOfUnits();
+	}
+	
+	/**
+	 * カートにあるすべてのItem02エンティティの合計金額を取得する
+	 * @param token カートのトークン
+	 * @return Item02エンティティの合計金額
+	 * @throws CartTokenException トークンが不正な場合
+	 */
+	public Float getTotal(byte[] token) throws CartTokenException {
+		return toPrice(decode(token).getSnapshot().getTotal());
+	}
+	
+	/**
+	 * 
+	 * トークンのカートにある商品（Item02）の売上処理を行う。
+	 * 
+	 * ShoppingCartEJB.checkout()と同様に、明細の数量分の在庫を引き当て、
+	 * 新しいItem02エンティティだけを永続化し、既存のItem02エンティティは
+	 * 参照で関連付ける。
+	 * 
+	 * @param token カートのトークン
+	 * @param customerName 商品をチェックアウトする顧客の名前
+	 * @return 永続化されたSales02エンティティ
+	 * @throws CartTokenException トークンが不正な場合
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 */
+	public Sales02 checkout(byte[] token, String customerName) throws CartTokenException {
+		CartSnapshot snapshot = decode(token).getSnapshot();
+		
+		// 明細の数量分の在庫を引き当てる
+		inventory.reserve(snapshot);
+		
+		Date date = new Date();
+		Sales02 sales = new Sales02(customerName, date);
+		sales.setTotalAmount(toPrice(snapshot.getTotal()));
+		
+		SalesLines lines = snapshot.link(em);
+		sales.setItems(lines.getItems());
+		em.persist(sales);
+		salesLines.record(sales.getId(), lines.getQuantities());
+		
+		// 売上処理がコミットされた時点で集計値に反映する
+		salesRollup.salesCreated(date, customerName, sales.getTotalAmount());
+		
+		return sales;
+	}
+	
+	/**
+	 * 
+	 * 冪等キーを指定して、トークンのカートにある商品（Item02）の
+	 * 売上処理を行う。
+	 * 
+	 * 同じキーで既に売上処理がコミットされていれば、新たに永続化は
+	 * 行わずに、その時に永続化されたSales02エンティティを返す。
+	 * 同じキーの売上処理が実行中であれば、その完了を待たずに
+	 * CheckoutInProgressExceptionがスローされる。
+	 * 
+	 * @param token カートのトークン
+	 * @param customerName 商品をチェックアウトする顧客の名前
+	 * @param idempotencyKey 冪等キー
+	 * @return 永続化された（または既に永続化されていた）Sales02エンティティ
+	 * @throws CartTokenException トークンが不正な場合
+	 * @throws OutOfStockException 在庫数が足りない商品がある場合
+	 * @throws CheckoutInProgressException 同じキーの売上処理が実行中の場合
+	 */
+	public Sales02 checkout(byte[] token, String customerName, String idempotencyKey) 
+			throws CartTokenException {
+		Long salesId;
+		while ((salesId = checkoutKeys.begin(idempotencyKey)) != null) {
+			Sales02 original = em.find(Sales02.class, salesId);
+			if (original != null) {
+				return original;
+			}
+			// 売上が削除されていた場合はキーを破棄して新たにチェックアウトする
+			checkoutKeys.forget(idempotencyKey, salesId);
+		}
+		
+		Sales02 sales = checkout(token, customerName);
+		checkoutKeys.complete(idempotencyKey, sales.getId());
+		
+		return sales;
+	}
+	
+	/**
+	 * トークンの署名を検証してカートの内容と発行日時に変換する
+	 * 
+	 * 発行日時からPRICE_VALIDITY_MILLISを過ぎている場合は、永続化済みの
+	 * 明細の単価をカタログの現在の価格に置き換え、発行日時を現在の日時とする。
+	 * （カタログから削除された商品の明細は、記録された単価のままとする）
+	 */
+	private CartTokenCodec.Contents decode(byte[] token) throws CartTokenException {
+		CartTokenCodec.Contents contents = codec.decodeContents(token);
+		long now = System.currentTimeMillis();
+		if (now - contents.getIssuedAt() <= PRICE_VALIDITY_MILLIS) {
+			return contents;
+		}
+		
+		CartSnapshot snapshot = contents.getSnapshot();
+		Map<Long, Long> prices = new HashMap<Long, Long>();
+		for (Long id : snapshot.getPersistedIds()) {
+			Long price = catalogPrices.getPrice(id);
+			if (price != null) {
+				prices.put(id, price);
+			}
+		}
+		return new CartTokenCodec.Contents(snapshot.withPrices(prices), now);
+	}
+	
+	/**
+	 * 明細の数量を変更する
+	 * 
+	 * 明細を新たに追加する場合に限り、カタログの価格を単価として記録する。
+	 */
+	private CartSnapshot withQuantity(CartSnapshot snapshot, Item02 item, int quantity) {
+		long price = 0;
+		if (quantity > 0 && snapshot.getQuantity(item) == 0) {
+			price = catalogPrices.getPrice(item);
+		}
+		return snapshot.withQuantity(item, price, quantity);
+	}
+	
+	/**
+	 * 最小通貨単位（1/100）の整数を価格に換算する
+	 */
+	private static Float toPrice(long minorUnits) {
+		return (float) (minorUnits / 100d);
+	}
+}
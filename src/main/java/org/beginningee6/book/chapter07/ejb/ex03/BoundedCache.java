@@ -0,0 +1,501 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 最大エントリ数を超えるとエントリを追い出すキャッシュ。
+ *
+ * シングルトン・セッションBeanのキャッシュが際限なく大きくなって
+ * ヒープを使い果たすことがないように、SingletonCacheEJBWithBMCなどが
+ * 内部で使用する。
+ *
+ * エントリはConcurrentHashMapで保持し、読み込みはロックを獲得せずに
+ * 行う。追い出す順序は、キーのハッシュ値で分割したセグメントごとに
+ * 双方向リストで管理し、セグメントごとのロックで保護する。
+ * キャッシュ全体を1つのロックで保護することはない。
+ *
+ * 追い出しのポリシーは以下のいずれかを選択できる。
+ *
+ * １．Policy.TINY_LFU（W-TinyLFU）
+ * 　・新しいエントリは小さなウィンドウ（容量の1%）のLRUに追加する。
+ * 　・ウィンドウからあふれたエントリは、メインの領域で最も長く
+ * 　　参照されていないエントリとFrequencySketchで頻度を比べ、
+ * 　　頻度の高い方を残す。一度しか参照されないエントリが、
+ * 　　頻繁に参照されるエントリを追い出すことを防ぐ。
+ * 　・メインの領域はSLRUとし、2回以上参照されたエントリを
+ * 　　保護領域（メインの80%）に移す。
+ *
+ * ２．Policy.LRU
+ * 　・最も長く参照されていないエントリから追い出す。
+ *
+ * TINY_LFUの頻度の記録は、読み込みのたびにFrequencySketchを
+ * 更新する（キー1つあたり4回のCAS）代わりに、セグメントごとの
+ * 小さなバッファ（ACCESS_BUFFER_SIZE件）にキーを追加するだけとする。
+ * バッファが一杯になった時と、エントリを追加して追い出す候補と
+ * 頻度を比べる前に、セグメントのロックを獲得してまとめて
+ * FrequencySketchに反映する。バッファが一杯でロックを獲得できない
+ * 間の読み込みは記録しないが、頻度は近似値のため問題としない。
+ *
+ * 追い出しはエントリの追加時に行い、追加1回あたりに追い出す
+ * エントリの数は定数となる（償却O(1)）。読み込み時の参照順の更新は、
+ * セグメントのロックを待たずに獲得できた場合だけ行う。
+ * （獲得できない場合は更新を省略するため、読み込みがブロックされる
+ * ことはない）
+ *
+ * エントリの追加と追い出しの間は、一時的に最大エントリ数を
+ * 同時に追加しているスレッドの数だけ超えることがある。
+ *
+ * @param <K> キーの型
+ * @param <V> 値の型
+ */
+public class BoundedCache<K, V> {
+
+	/** 追い出しのポリシー */
+	public enum Policy { TINY_LFU, LRU }
+
+	// 1セグメントあたりの最小エントリ数（これより小さい場合はセグメントを分割しない）
+	private static final int MIN_SEGMENT_SIZE = 128;
+
+	// セグメントの最大数
+	private static final int MAX_SEGMENTS = 16;
+
+	// セグメントごとに頻度の反映を待つキーの最大数
+	private static final int ACCESS_BUFFER_SIZE = 16;
+
+	// エントリが属するリスト
+	private static final int NONE = 0;
+	private static final int WINDOW = 1;
+	private static final int PROBATION = 2;
+	private static final int PROTECTED = 3;
+
+	private final ConcurrentMap<K, Node<K, V>> map = new ConcurrentHashMap<K, Node<K, V>>();
+
+	private final int maximumSize;
+	private final Policy policy;
+	private final FrequencySketch sketch;
+	private final List<Segment> segments;
+
+	/**
+	 * @param maximumSize 最大エントリ数
+	 * @param policy 追い出しのポリシー
+	 */
+	public BoundedCache(int maximumSize, Policy policy) {
+		if (maximumSize <= 0) {
+			throw new IllegalArgumentException("maximumSize must be positive");
+		}
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		this.maximumSize = maximumSize;
+		this.policy = policy;
+		this.sketch = policy == Policy.TINY_LFU ? new FrequencySketch(maximumSize) : null;
+
+		int count = 1;
+		while (count < MAX_SEGMENTS && maximumSize / (count * 2) >= MIN_SEGMENT_SIZE) {
+			count <<= 1;
+		}
+		this.segments = new ArrayList<Segment>(count);
+		for (int i = 0; i < count; i++) {
+			// 最大エントリ数をセグメントに配分する
+			segments.add(new Segment(maximumSize / count + (i < maximumSize % count ? 1 : 0)));
+		}
+	}
+
+	/**
+	 * 指定したキーの値を取得する
+	 * @param key キー
+	 * @return 値。エントリがない場合はnull
+	 */
+	public V get(K key) {
+		Segment segment = segmentOf(key);
+		if (sketch != null) {
+			segment.recordAccess(key);
+		}
+		Node<K, V> node = map.get(key);
+		if (node == null) {
+			return null;
+		}
+		if (segment.lock.tryLock()) {
+			try {
+				segment.onAccess(node);
+				segment.drainAccessesIfFull();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * 指定したキーのエントリがなければ追加する
+	 *
+	 * 追加によって最大エントリ数を超える場合は、ポリシーに従って
+	 * エントリを追い出す。TINY_LFUの場合は、追加したエントリ自身が
+	 * 追い出されることもある。
+	 *
+	 * @param key キー
+	 * @param value 値
+	 * @return 既にあったエントリの値。追加した場合はnull
+	 */
+	public V putIfAbsent(K key, V value) {
+		Segment segment = segmentOf(key);
+		if (sketch != null) {
+			segment.recordAccess(key);
+		}
+		Node<K, V> node = new Node<K, V>(key, value);
+		Node<K, V> existing = map.putIfAbsent(key, node);
+		if (existing != null) {
+			return existing.value;
+		}
+		segment.lock.lock();
+		try {
+			// ロックを獲得するまでの間に削除されていなければリストに加える
+			if (map.get(key) == node) {
+				segment.add(node);
+			}
+		} finally {
+			segment.lock.unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * 指定したキーのエントリを削除する
+	 * @param key キー
+	 */
+	public void remove(K key) {
+		Node<K, V> node = map.remove(key);
+		if (node == null) {
+			return;
+		}
+		Segment segment = segmentOf(key);
+		segment.lock.lock();
+		try {
+			segment.unlink(node);
+		} finally {
+			segment.lock.unlock();
+		}
+	}
+
+	/**
+	 * すべてのエントリを削除する
+	 *
+	 * 削除中に他のスレッドが追加したエントリは残る場合がある。
+	 */
+	public void clear() {
+		map.clear();
+		for (Segment segment : segments) {
+			segment.lock.lock();
+			try {
+				segment.unlinkRemoved();
+			} finally {
+				segment.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * エントリの数を取得する
+	 * @return エントリの数
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	/**
+	 * 最大エントリ数を取得する
+	 * @return 最大エントリ数
+	 */
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	/**
+	 * 追い出しのポリシーを取得する
+	 * @return ポリシー
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * 最大エントリ数を超えたために追い出したエントリの数を取得する
+	 *
+	 * TINY_LFUで追加したエントリ自身を追い出した場合も含む。
+	 *
+	 * @return 追い出したエントリの数
+	 */
+	public long getEvictionCount() {
+		long count = 0;
+		for (Segment segment : segments) {
+			count += segment.evictions;
+		}
+		return count;
+	}
+
+	private Segment segmentOf(K key) {
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		hash *= 0x9e3779b9;
+		return segments.get((hash >>> 16) & (segments.size() - 1));
+	}
+
+	/**
+	 * エントリ（ノード）
+	 *
+	 * prev、next、queueはセグメントのロックを獲得して読み書きする。
+	 */
+	private static class Node<K, V> {
+
+		private final K key;
+		private final V value;
+
+		private Node<K, V> prev;
+		private Node<K, V> next;
+		private int queue = NONE;
+
+		Node(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * 1つのセグメントの追い出し順序
+	 *
+	 * ウィンドウ、試用領域、保護領域の3つの双方向リストを持ち、
+	 * いずれも先頭が最も長く参照されていないエントリとなる。
+	 * （LRUではウィンドウだけを使用する）
+	 */
+	private class Segment {
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		// 番兵（循環リストの先頭）
+		private final Node<K, V> window = sentinel();
+		private final Node<K, V> probation = sentinel();
+		private final Node<K, V> protectedQueue = sentinel();
+
+		private int windowSize;
+		private int probationSize;
+		private int protectedSize;
+
+		private final int windowCapacity;
+		private final int mainCapacity;
+		private final int protectedCapacity;
+
+		// lockを獲得して更新し、getEvictionCount()ではロックせずに読み込む
+		private volatile long evictions;
+
+		// FrequencySketchへの反映を待っているキーと、その件数
+		// （件数はACCESS_BUFFER_SIZEを超えることがあり、その分は記録しない）
+		private final AtomicReferenceArray<K> accesses = new AtomicReferenceArray<K>(ACCESS_BUFFER_SIZE);
+		private final AtomicInteger accessCount = new AtomicInteger();
+
+		Segment(int capacity) {
+			if (policy == Policy.LRU) {
+				windowCapacity = capacity;
+				mainCapacity = 0;
+				protectedCapacity = 0;
+			} else {
+				windowCapacity = Math.max(1, capacity / 100);
+				mainCapacity = capacity - windowCapacity;
+				protectedCapacity = mainCapacity * 80 / 100;
+			}
+		}
+
+		/**
+		 * 追加したエントリをウィンドウに加え、容量を超えた分を追い出す
+		 */
+		void add(Node<K, V> node) {
+			if (sketch != null) {
+				// 追い出す候補と頻度を比べる前に、最近の読み込みを反映する
+				drainAccesses();
+			}
+			link(node, WINDOW);
+			while (windowSize > windowCapacity) {
+				Node<K, V> candidate = window.next;
+				unlink(candidate);
+				if (policy == Policy.LRU) {
+					evict(candidate);
+				} else {
+					admit(candidate);
+				}
+			}
+		}
+
+		/**
+		 * ウィンドウからあふれたエントリを、メインの領域の追い出し候補と
+		 * 頻度で比べて、頻度の高い方を残す
+		 */
+		private void admit(Node<K, V> candidate) {
+			if (probationSize + protectedSize < mainCapacity) {
+				link(candidate, PROBATION);
+				return;
+			}
+			Node<K, V> victim = probationSize > 0 ? probation.next
+					: (protectedSize > 0 ? protectedQueue.next : null);
+			if (victim == null) {
+				evict(candidate);
+				return;
+			}
+			if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+				unlink(victim);
+				evict(victim);
+				link(candidate, PROBATION);
+			} else {
+				evict(candidate);
+			}
+		}
+
+		/**
+		 * 読み込まれたキーをバッファに記録する（ロックは獲得しない）
+		 *
+		 * バッファが一杯になった場合は、ロックを待たずに獲得できれば
+		 * FrequencySketchに反映する。
+		 */
+		void recordAccess(K key) {
+			if (accessCount.get() < ACCESS_BUFFER_SIZE) {
+				int index = accessCount.getAndIncrement();
+				if (index < ACCESS_BUFFER_SIZE) {
+					accesses.lazySet(index, key);
+				}
+				if (index < ACCESS_BUFFER_SIZE - 1) {
+					return;
+				}
+			}
+			if (lock.tryLock()) {
+				try {
+					drainAccessesIfFull();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		/**
+		 * バッファが一杯であればFrequencySketchに反映する（lockを獲得して呼び出すこと）
+		 */
+		void drainAccessesIfFull() {
+			if (sketch != null && accessCount.get() >= ACCESS_BUFFER_SIZE) {
+				drainAccesses();
+			}
+		}
+
+		/**
+		 * バッファのキーをFrequencySketchに反映する（lockを獲得して呼び出すこと）
+		 *
+		 * 反映している間に記録されたキーは、次の反映まで残るか、
+		 * 上書きされて失われる。
+		 */
+		private void drainAccesses() {
+			int count = Math.min(accessCount.get(), ACCESS_BUFFER_SIZE);
+			for (int i = 0; i < count; i++) {
+				K key = accesses.get(i);
+				if (key != null) {
+					sketch.increment(key);
+					accesses.lazySet(i, null);
+				}
+			}
+			accessCount.set(0);
+		}
+
+		/**
+		 * 参照されたエントリの順序を更新する
+		 */
+		void onAccess(Node<K, V> node) {
+			switch (node.queue) {
+			case WINDOW:
+				unlink(node);
+				link(node, WINDOW);
+				break;
+			case PROBATION:
+				// 2回目の参照で保護領域に移す
+				unlink(node);
+				link(node, PROTECTED);
+				while (protectedSize > protectedCapacity) {
+					Node<K, V> demoted = protectedQueue.next;
+					unlink(demoted);
+					link(demoted, PROBATION);
+				}
+				break;
+			case PROTECTED:
+				unlink(node);
+				link(node, PROTECTED);
+				break;
+			default:
+				// 既に削除されている
+			}
+		}
+
+		/**
+		 * clear()によってMapから削除されたエントリをリストから外す
+		 */
+		void unlinkRemoved() {
+			unlinkRemoved(window);
+			unlinkRemoved(probation);
+			unlinkRemoved(protectedQueue);
+		}
+
+		private void unlinkRemoved(Node<K, V> head) {
+			Node<K, V> node = head.next;
+			while (node != head) {
+				Node<K, V> next = node.next;
+				if (map.get(node.key) != node) {
+					unlink(node);
+				}
+				node = next;
+			}
+		}
+
+		private void evict(Node<K, V> node) {
+			map.remove(node.key, node);
+			evictions++;
+		}
+
+		private void link(Node<K, V> node, int queue) {
+			Node<K, V> head = queue == WINDOW ? window : (queue == PROBATION ? probation : protectedQueue);
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+			node.queue = queue;
+			resize(queue, 1);
+		}
+
+		void unlink(Node<K, V> node) {
+			if (node.queue == NONE) {
+				return;
+			}
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			resize(node.queue, -1);
+			node.queue = NONE;
+		}
+
+		private void resize(int queue, int delta) {
+			if (queue == WINDOW) {
+				windowSize += delta;
+			} else if (queue == PROBATION) {
+				probationSize += delta;
+			} else {
+				protectedSize += delta;
+			}
+		}
+
+		private Node<K, V> sentinel() {
+			Node<K, V> head = new Node<K, V>(null, null);
+			head.prev = head;
+			head.next = head;
+			return head;
+		}
+	}
+}
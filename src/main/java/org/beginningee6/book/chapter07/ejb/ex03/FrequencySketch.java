@@ -0,0 +1,136 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * キーごとのアクセス頻度を、固定サイズの表で近似的に数える
+ * Count-Min Sketch。
+ *
+ * BoundedCacheがエントリを追加する際に、追加するエントリと
+ * 追い出す候補のエントリのどちらを残すかを判定するために使用する。
+ *
+ * 1つのキーに対して4つのカウンターを使い、その最小値を頻度とする。
+ * カウンターは4ビット（最大15）で、long 1個に16個を詰めて保持する。
+ * 表の大きさはキャッシュの最大エントリ数に比例し、キーの数には
+ * よらない。
+ *
+ * 加算の回数が最大エントリ数の10倍に達するたびに、すべての
+ * カウンターを半分にする。これにより、過去に頻繁にアクセスされた
+ * キーの頻度が徐々に下がり、最近の傾向が反映される。
+ *
+ * カウンターの更新はCASで行うため、ロックを獲得しない。
+ * 半分にしている間に加算された値の一部が失われることがあるが、
+ * 頻度は近似値のため問題としない。
+ */
+public class FrequencySketch {
+
+	private static final long[] SEEDS = {
+		0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	// 各カウンターの最上位ビットを除いたマスク（半分にする時に使用）
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final AtomicLongArray table;
+	private final int mask;
+	private final int sampleSize;
+
+	private final AtomicInteger additions = new AtomicInteger();
+	private final AtomicBoolean resetting = new AtomicBoolean();
+
+	/**
+	 * @param maximumSize キャッシュの最大エントリ数
+	 */
+	public FrequencySketch(int maximumSize) {
+		int size = Math.max(16, maximumSize);
+		int width = Integer.highestOneBit(size);
+		if (width < size) {
+			width <<= 1;
+		}
+		this.table = new AtomicLongArray(width);
+		this.mask = width - 1;
+		this.sampleSize = 10 * Math.max(1, maximumSize);
+	}
+
+	/**
+	 * キーの頻度を取得する
+	 * @param key キー
+	 * @return 頻度（0～15）
+	 */
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			int index = indexOf(hash, i);
+			int offset = (start + i) << 2;
+			frequency = Math.min(frequency, (int) ((table.get(index) >>> offset) & 0xfL));
+		}
+		return frequency;
+	}
+
+	/**
+	 * キーの頻度を1つ加算する
+	 * @param key キー
+	 */
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			added |= incrementAt(indexOf(hash, i), (start + i) << 2);
+		}
+		if (added && additions.incrementAndGet() >= sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int index, int offset) {
+		long mask = 0xfL << offset;
+		while (true) {
+			long value = table.get(index);
+			if ((value & mask) == mask) {
+				// 既に最大値
+				return false;
+			}
+			if (table.compareAndSet(index, value, value + (1L << offset))) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * すべてのカウンターを半分にする（同時に1つのスレッドだけが行う）
+	 */
+	private void reset() {
+		if (!resetting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			for (int i = 0; i < table.length(); i++) {
+				while (true) {
+					long value = table.get(i);
+					if (table.compareAndSet(i, value, (value >>> 1) & RESET_MASK)) {
+						break;
+					}
+				}
+			}
+			additions.set(sampleSize / 2);
+		} finally {
+			resetting.set(false);
+		}
+	}
+
+	private int indexOf(int hash, int i) {
+		long h = (hash + SEEDS[i]) * SEEDS[i];
+		h += (h >>> 32);
+		return ((int) h) & mask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
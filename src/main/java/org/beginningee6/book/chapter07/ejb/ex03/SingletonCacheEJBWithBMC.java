@@ -1,8 +1,5 @@
 package org.beginningee6.book.chapter07.ejb.ex03;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
@@ -23,84 +20,158 @@ import javax.ejb.Startup;
  * 
  * Beanの実装では、メソッドをsynchronizedキーワードにより
  * 修飾するなどして同時実行制御を実装する。
+ * 
+ * このBeanでは、synchronizedキーワードでインスタンス全体を
+ * ロックする代わりに、キャッシュをBoundedCache（内部で
+ * ConcurrentHashMapを使用）で保持する。エントリの追加と削除は
+ * putIfAbsent()とremove()により不可分に行われ、書き込みどうしが
+ * 待ち合わせるのは同じバケット（追い出しの順序の更新では同じ
+ * セグメント。BoundedCacheはキーのハッシュ値で最大16個の
+ * セグメントに分割する）を更新する場合だけとなる。読み込みはロックを
+ * 獲得せずに行われるため、書き込み中であっても待たされることはない。
+ * 
+ * キャッシュに保持するエントリの数には上限（初期値は10,000件）があり、
+ * 上限を超えるとBoundedCacheのポリシー（初期値はW-TinyLFU）に従って
+ * エントリを追い出す。上限とポリシーはsetMaxEntries()と
+ * setEvictionPolicy()で変更できる。
+ * 
+ * なお、ConcurrentHashMapはnullのキーと値を保持できないため、
+ * キーまたは値がnullのエントリは追加しない。
  */
 @Singleton	// シングルトン・セッションBeanであることを宣言する
 @Startup	// デプロイ直後にインスタンスを生成するように設定
 @ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
 public class SingletonCacheEJBWithBMC {
 	
-	// キャッシュとして保持するMap
-	private Map<Long, Object> cache = new HashMap<Long, Object>();
+	// エントリの最大数の初期値
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	
+	// キャッシュ
+	// 
+	// 最大数またはポリシーの設定により別のインスタンスに置き換わるため、
+	// volatileとする
+	private volatile BoundedCache<Long, Object> cache 
+			= new BoundedCache<Long, Object>(DEFAULT_MAX_ENTRIES, BoundedCache.Policy.TINY_LFU);
 	
 	/**
 	 * キャッシュにエントリを追加する
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、synchronizedキーワード
-	 * をメソッド宣言に追加してメソッド実行時にインスタンスをロック
-	 * することによりHashMap更新の同期を図る。
+	 * 指定したキーのエントリが既に存在する場合は何もしない。
+	 * 存在の確認と追加はputIfAbsent()により不可分に行われるため、
+	 * 複数のスレッドが同じキーで同時に追加しても、最初に追加された
+	 * 値だけが保持される。
+	 * 
+	 * エントリの数が最大数を超える場合は、ポリシーに従ってエントリを
+	 * 追い出す（追加したエントリ自身が追い出されることもある）。
 	 * 
 	 * @param id 追加するエントリのキー
 	 * @param object 追加するエントリの値
 	 */
-	public synchronized void addToCache(Long id, Object object) {
-		if (!cache.containsKey(id)) {
-			cache.put(id, object);
+	public void addToCache(Long id, Object object) {
+		if (id == null || object == null) {
+			return;
 		}
+		cache.putIfAbsent(id, object);
 	}
 	
 	/**
 	 * キャッシュからエントリを削除する
 	 * @param id 削除するエントリのキー
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、synchronizedキーワード
-	 * をメソッド宣言に追加してメソッド実行時にインスタンスをロック
-	 * することによりHashMap更新の同期を図る。
+	 * 指定したキーのエントリが存在しない場合は何もしない。
 	 * 
 	 */
-	public synchronized void removeFromCache(Long id) {
-		if (cache.containsKey(id)) {
-			cache.remove(id);
+	public void removeFromCache(Long id) {
+		if (id == null) {
+			return;
 		}
+		cache.remove(id);
 	}
 	
 	/**
 	 * キャッシュにあるすべてのエントリを削除する
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、synchronizedキーワード
-	 * をメソッド宣言に追加してメソッド実行時にインスタンスをロック
-	 * することによりHashMap更新の同期を図る。
+	 * 削除中に他のスレッドが追加したエントリは残る場合がある。
 	 * 
 	 */
-	public synchronized void clearcCache() {
+	public void clearcCache() {
 		cache.clear();
 	}
 	
 	/**
 	 * 指定したキーのエントリが持つ値を取得する
 	 * 
+	 * ロックを獲得せずに読み込むため、書き込み中であっても待たされない。
+	 * 存在の確認と取得を別々に行うと、その間に削除された場合に
+	 * 結果が食い違うため、get()の1回だけで取得する。
+	 * 
 	 * @param id 取得したい値を持つエントリのキー
 	 * @return 指定したキーのエントリが持つ値
 	 */
 	public Object getFromCache(Long id) {
-		if (cache.containsKey(id)) {
-			return cache.get(id);
-		} else {
+		if (id == null) {
 			return null;
 		}
+		return cache.get(id);
 	}
 	
 	/**
 	 * キャッシュにあるエントリの数を取得する
 	 * 
-	 * クラスに指定されているLockType.READで同期する
+	 * 他のスレッドが更新中の場合は、その時点での概数となる。
 	 * 
 	 * @return キャッシュにあるエントリの数
 	 */
 	public Integer getNumberOfItems() {
-		if (cache == null || cache.size() == 0) {
-			return 0;
-		}
-		
 		return cache.size();
 	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param maxEntries エントリの最大数
+	 */
+	public synchronized void setMaxEntries(int maxEntries) {
+		cache = new BoundedCache<Long, Object>(maxEntries, cache.getPolicy());
+	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を取得する
+	 * @return エントリの最大数
+	 */
+	public int getMaxEntries() {
+		return cache.getMaximumSize();
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param policy 追い出しのポリシー
+	 */
+	public synchronized void setEvictionPolicy(BoundedCache.Policy policy) {
+		cache = new BoundedCache<Long, Object>(cache.getMaximumSize(), policy);
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを取得する
+	 * @return 追い出しのポリシー
+	 */
+	public BoundedCache.Policy getEvictionPolicy() {
+		return cache.getPolicy();
+	}
+	
+	/**
+	 * エントリの最大数を超えたために追い出したエントリの数を取得する
+	 * 
+	 * 最大数またはポリシーを最後に設定してからの数となる。
+	 * 
+	 * @return 追い出したエントリの数
+	 */
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
 }
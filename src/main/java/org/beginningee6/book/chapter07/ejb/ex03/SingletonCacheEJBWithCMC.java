@@ -1,7 +1,5 @@
 package org.beginningee6.book.chapter07.ejb.ex03;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import javax.ejb.AccessTimeout;
@@ -54,6 +52,12 @@ import javax.ejb.Startup;
  * valueを-１にすると無限に待機し、０にするとメソッドの並列実行が許可されなくなる。
  * タイムアウトするとCuncurrentAccessExceptionが発生する。
  * 
+ * キャッシュに保持するエントリの数には上限（初期値は10,000件）があり、
+ * 上限を超えるとBoundedCacheのポリシー（初期値はW-TinyLFU）に従って
+ * エントリを追い出す。上限とポリシーはsetMaxEntries()と
+ * setEvictionPolicy()で変更できる。なお、BoundedCacheはnullのキーと
+ * 値を保持できないため、キーまたは値がnullのエントリは追加しない。
+ * 
  */
 @Singleton	// シングルトン・セッションBeanであることを宣言する
 @Startup	// デプロイ直後にインスタンスを生成するように設定
@@ -61,14 +65,21 @@ import javax.ejb.Startup;
 @Lock(LockType.READ)	// すべてのメソッドの同期タイプとしてLockType.READを設定
 public class SingletonCacheEJBWithCMC {
 	
-	// キャッシュとして保持するMap
-	private Map<Long, Object> cache = new HashMap<Long, Object>();
+	// エントリの最大数の初期値
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	
+	// キャッシュ
+	// 
+	// 最大数またはポリシーの設定により別のインスタンスに置き換わるため、
+	// volatileとする
+	private volatile BoundedCache<Long, Object> cache 
+			= new BoundedCache<Long, Object>(DEFAULT_MAX_ENTRIES, BoundedCache.Policy.TINY_LFU);
 	
 	/**
 	 * キャッシュにエントリを追加する
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、排他ロックにより
-	 * HashMap更新の同期を図る。
+	 * キャッシュの更新（エントリの追い出しを含む）を伴うので、
+	 * 排他ロックにより更新の同期を図る。
 	 * 
 	 * @param id 追加するエントリのキー
 	 * @param object 追加するエントリの値
@@ -76,32 +87,34 @@ public class SingletonCacheEJBWithCMC {
 	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
 	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
 	public void addToCache(Long id, Object object) {
-		if (!cache.containsKey(id)) {
-			cache.put(id, object);
+		if (id == null || object == null) {
+			return;
 		}
+		cache.putIfAbsent(id, object);
 	}
 	
 	/**
 	 * キャッシュからエントリを削除する
 	 * @param id 削除するエントリのキー
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、排他ロックにより
-	 * HashMap更新の同期を図る。
+	 * キャッシュの更新を伴うので、排他ロックにより
+	 * 更新の同期を図る。
 	 * 
 	 */
 	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
 	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
 	public void removeFromCache(Long id) {
-		if (cache.containsKey(id)) {
-			cache.remove(id);
+		if (id == null) {
+			return;
 		}
+		cache.remove(id);
 	}
 	
 	/**
 	 * キャッシュにあるすべてのエントリを削除する
 	 * 
-	 * 同期化されないHashMapの更新を伴うので、排他ロックにより
-	 * HashMap更新の同期を図る。
+	 * キャッシュの更新を伴うので、排他ロックにより
+	 * 更新の同期を図る。
 	 * 
 	 */
 	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
@@ -119,11 +132,10 @@ public class SingletonCacheEJBWithCMC {
 	 * @return 指定したキーのエントリが持つ値
 	 */
 	public Object getFromCache(Long id) {
-		if (cache.containsKey(id)) {
-			return cache.get(id);
-		} else {
+		if (id == null) {
 			return null;
 		}
+		return cache.get(id);
 	}
 
 	/**
@@ -134,10 +146,66 @@ public class SingletonCacheEJBWithCMC {
 	 * @return キャッシュにあるエントリの数
 	 */
 	public Integer getNumberOfItems() {
-		if (cache == null || cache.size() == 0) {
-			return 0;
-		}
-		
 		return cache.size();
 	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param maxEntries エントリの最大数
+	 */
+	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
+	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
+	public void setMaxEntries(int maxEntries) {
+		cache = new BoundedCache<Long, Object>(maxEntries, cache.getPolicy());
+	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を取得する
+	 * 
+	 * クラスに指定されているLockType.READで同期する
+	 * 
+	 * @return エントリの最大数
+	 */
+	public int getMaxEntries() {
+		return cache.getMaximumSize();
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param policy 追い出しのポリシー
+	 */
+	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
+	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
+	public void setEvictionPolicy(BoundedCache.Policy policy) {
+		cache = new BoundedCache<Long, Object>(cache.getMaximumSize(), policy);
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを取得する
+	 * 
+	 * クラスに指定されているLockType.READで同期する
+	 * 
+	 * @return 追い出しのポリシー
+	 */
+	public BoundedCache.Policy getEvictionPolicy() {
+		return cache.getPolicy();
+	}
+	
+	/**
+	 * エントリの最大数を超えたために追い出したエントリの数を取得する
+	 * 
+	 * クラスに指定されているLockType.READで同期する。
+	 * 最大数またはポリシーを最後に設定してからの数となる。
+	 * 
+	 * @return 追い出したエントリの数
+	 */
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
 }
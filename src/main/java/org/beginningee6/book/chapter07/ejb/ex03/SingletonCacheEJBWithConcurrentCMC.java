@@ -0,0 +1,193 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.ejb.AccessTimeout;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+
+/**
+ * コンテナにより同時実行制御が行われるように実装された
+ * シングルトン・セッションBeanのサンプル。
+ * 
+ * SingletonCacheEJBWithCMCでは、キャッシュを更新するメソッドに
+ * LockType.WRITE（排他ロック）を指定しているため、1つのクライアントが
+ * エントリを追加している間は、他のすべてのクライアントの読み込みと
+ * 書き込みがブロックされる。
+ * 
+ * このBeanでは、キャッシュをBoundedCache（内部でConcurrentHashMapを
+ * 使用）で保持し、同期はBoundedCacheの内部の細粒度のロックにゆだねる。
+ * これにより、同時実行制御はコンテナ管理のまま、すべてのメソッドを
+ * LockType.READ（共有ロック）で実行することができる。
+ * 
+ * ・読み込みはロックを獲得せずに行われ、書き込み中であっても
+ * 　ブロックされない。
+ * ・書き込みどうしが待ち合わせるのは、同じバケットを更新する
+ * 　場合と、追い出しの順序を管理するBoundedCacheのセグメント
+ * 　（最大16個、キーのハッシュ値で分割）のロックが同じ場合だけとなる。
+ * 　エントリを追加するたびに、そのキーが属するセグメントの
+ * 　ロックを獲得して順序を更新する。
+ * ・エントリの存在の確認と追加はputIfAbsent()により不可分に行われる。
+ * 
+ * キャッシュの読み書きにはLockType.WRITEのメソッドがないため、
+ * ＠AccessTimeoutアノテーションによるブロックのタイムアウトも不要となる。
+ * 
+ * キャッシュに保持するエントリの数には上限（初期値は10,000件）があり、
+ * 上限を超えるとBoundedCacheのポリシー（初期値はW-TinyLFU）に従って
+ * エントリを追い出す。上限とポリシーはsetMaxEntries()と
+ * setEvictionPolicy()で変更できる。追い出しもキャッシュ全体をロック
+ * せずに行われるため、LockType.READのままでよい。
+ * ただし、上限とポリシーの変更は現在のキャッシュの設定を読んで
+ * 新しいキャッシュに置き換えるため、同時に変更されて一方の設定が
+ * 失われないようにLockType.WRITEとする。（設定の変更はまれであり、
+ * その間だけ読み込みと書き込みがブロックされる）
+ * 
+ * なお、ConcurrentHashMapはnullのキーと値を保持できないため、
+ * キーまたは値がnullのエントリは追加しない。
+ * 
+ */
+@Singleton	// シングルトン・セッションBeanであることを宣言する
+@Startup	// デプロイ直後にインスタンスを生成するように設定
+@ConcurrencyManagement(ConcurrencyManagementType.CONTAINER)	// コンテナ管理の同時実行制御
+@Lock(LockType.READ)	// すべてのメソッドの同期タイプとしてLockType.READを設定
+public class SingletonCacheEJBWithConcurrentCMC {
+	
+	// エントリの最大数の初期値
+	public static final int DEFAULT_MAX_ENTRIES = 10000;
+	
+	// キャッシュ
+	// 
+	// 最大数またはポリシーの設定により別のインスタンスに置き換わるため、
+	// volatileとする
+	private volatile BoundedCache<Long, Object> cache 
+			= new BoundedCache<Long, Object>(DEFAULT_MAX_ENTRIES, BoundedCache.Policy.TINY_LFU);
+	
+	/**
+	 * キャッシュにエントリを追加する
+	 * 
+	 * 指定したキーのエントリが既に存在する場合は何もしない。
+	 * エントリの数が最大数を超える場合は、ポリシーに従ってエントリを
+	 * 追い出す（追加したエントリ自身が追い出されることもある）。
+	 * クラスに指定されているLockType.READで同期し、
+	 * 更新の同期はBoundedCacheが行う。
+	 * 
+	 * @param id 追加するエントリのキー
+	 * @param object 追加するエントリの値
+	 */
+	public void addToCache(Long id, Object object) {
+		if (id == null || object == null) {
+			return;
+		}
+		cache.putIfAbsent(id, object);
+	}
+	
+	/**
+	 * キャッシュからエントリを削除する
+	 * @param id 削除するエントリのキー
+	 * 
+	 * クラスに指定されているLockType.READで同期し、
+	 * 更新の同期はBoundedCacheが行う。
+	 * 
+	 */
+	public void removeFromCache(Long id) {
+		if (id == null) {
+			return;
+		}
+		cache.remove(id);
+	}
+	
+	/**
+	 * キャッシュにあるすべてのエントリを削除する
+	 * 
+	 * クラスに指定されているLockType.READで同期する。
+	 * 削除中に他のクライアントが追加したエントリは残る場合がある。
+	 * 
+	 */
+	public void clearCache() {
+		cache.clear();
+	}
+	
+	/**
+	 * 指定したキーのエントリが持つ値を取得する
+	 * 
+	 * クラスに指定されているLockType.READで同期する
+	 * 
+	 * @param id 取得したい値を持つエントリのキー
+	 * @return 指定したキーのエントリが持つ値
+	 */
+	public Object getFromCache(Long id) {
+		if (id == null) {
+			return null;
+		}
+		return cache.get(id);
+	}
+
+	/**
+	 * キャッシュにあるエントリの数を取得する
+	 * 
+	 * クラスに指定されているLockType.READで同期する。
+	 * 他のクライアントが更新中の場合は、その時点での概数となる。
+	 * 
+	 * @return キャッシュにあるエントリの数
+	 */
+	public Integer getNumberOfItems() {
+		return cache.size();
+	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param maxEntries エントリの最大数
+	 */
+	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
+	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
+	public void setMaxEntries(int maxEntries) {
+		cache = new BoundedCache<Long, Object>(maxEntries, cache.getPolicy());
+	}
+	
+	/**
+	 * キャッシュに保持するエントリの最大数を取得する
+	 * @return エントリの最大数
+	 */
+	public int getMaxEntries() {
+		return cache.getMaximumSize();
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを設定する
+	 * 
+	 * 設定を変更すると、キャッシュにあるエントリはすべて破棄される。
+	 * 
+	 * @param policy 追い出しのポリシー
+	 */
+	@AccessTimeout(value = 20, unit = TimeUnit.SECONDS)	// ブロックのタイムアウトを20秒に設定
+	@Lock(LockType.WRITE)								// 同期タイプをLockType.WRITEでオーバライド
+	public void setEvictionPolicy(BoundedCache.Policy policy) {
+		cache = new BoundedCache<Long, Object>(cache.getMaximumSize(), policy);
+	}
+	
+	/**
+	 * エントリの最大数を超えた時の追い出しのポリシーを取得する
+	 * @return 追い出しのポリシー
+	 */
+	public BoundedCache.Policy getEvictionPolicy() {
+		return cache.getPolicy();
+	}
+	
+	/**
+	 * エントリの最大数を超えたために追い出したエントリの数を取得する
+	 * 
+	 * 最大数またはポリシーを最後に設定してからの数となる。
+	 * 
+	 * @return 追い出したエントリの数
+	 */
+	public long getEvictionCount() {
+		return cache.getEvictionCount();
+	}
+}
@@ -0,0 +1,22 @@
+-- ItemEJBのレーベル（musicCompany）ごとの検索と、MusicCompanyIndexEJBの
+-- 集計のためのインデックス。
+--
+-- CD01エンティティは永続性ユニット（Chapter07ProductionPU）とともに
+-- JPAのライブラリ（beginningee6-chapter07-jpa）で定義されているため、
+-- テーブルの作成時にはインデックスが作成されない。ItemEJBを
+-- 使用するアプリケーションをデプロイする前に、データベースに対して
+-- 一度だけ実行する。（Derbyのij、またはJDBCで実行する）
+--
+-- テーブル名、列名は、CD01エンティティのデフォルトのマッピング
+-- （エンティティ名、属性名と同じ）による。
+
+-- findCDsByMusicCompany()：WHERE MUSICCOMPANY = ? ORDER BY ID
+-- 検索条件の列の後に主キーを加えることで、並べ替えをせずに
+-- インデックスの範囲走査だけで処理できる。
+CREATE INDEX CD01_MUSICCOMPANY_ID ON CD01 (MUSICCOMPANY, ID);
+
+-- MusicCompanyIndexEJB.rebuild()：
+-- SELECT MUSICCOMPANY, COUNT(*), SUM(TOTALDURATION) ... GROUP BY MUSICCOMPANY
+-- 集計に使用する列をすべて含めることで、テーブルを読まずに
+-- インデックスの走査だけで集計できる。
+CREATE INDEX CD01_MUSICCOMPANY_DURATION ON CD01 (MUSICCOMPANY, TOTALDURATION);
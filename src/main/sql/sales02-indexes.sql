@@ -0,0 +1,20 @@
+-- SalesQueryEJBのキーセット・ページネーションのためのインデックス。
+--
+-- Sales02エンティティは永続性ユニット（Chapter07ProductionPU）とともに
+-- JPAのライブラリ（beginningee6-chapter07-jpa）で定義されているため、
+-- テーブルの作成時にはインデックスが作成されない。SalesQueryEJBを
+-- 使用するアプリケーションをデプロイする前に、データベースに対して
+-- 一度だけ実行する。（Derbyのij、またはJDBCで実行する）
+--
+-- テーブル名、列名は、Sales02エンティティのデフォルトのマッピング
+-- （エンティティ名、属性名と同じ）による。
+--
+-- 検索条件の列の後に主キーを加えることで、ページの条件と並べ替えを
+-- インデックスの範囲走査だけで処理できる。
+
+-- findSalesByCustomer()：WHERE CUSTOMERNAME = ? AND ID > ? ORDER BY ID
+CREATE INDEX SALES02_CUSTOMER_ID ON SALES02 (CUSTOMERNAME, ID);
+
+-- findSalesBetween()：WHERE SALESDATE >= ? AND SALESDATE < ?
+--   AND (SALESDATE > ? OR (SALESDATE = ? AND ID > ?)) ORDER BY SALESDATE, ID
+CREATE INDEX SALES02_DATE_ID ON SALES02 (SALESDATE, ID);
@@ -2,12 +2,23 @@ package org.beginningee6.book.chapter07.ejb.ex01;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
+import javax.ejb.EJBException;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -75,6 +86,12 @@ public class ItemEJBTest {
 	@EJB
 	ItemEJB itemEJB;	// ステートレス・セッションBeanの注入
 
+	@EJB
+	MusicCompanyIndexEJB musicCompanyIndex;
+
+	@EJB
+	PessimisticItemEJB pessimisticItemEJB;	// 悲観的ロックによる更新（比較用）
+
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -89,6 +106,9 @@ public class ItemEJBTest {
 		em.createQuery("DELETE FROM Book01").executeUpdate();
 		em.createQuery("DELETE FROM CD01").executeUpdate();
 		userTransaction.commit();
+		
+		// 一括削除はレーベルごとの集計値に反映されないので集計し直す
+		musicCompanyIndex.rebuild();
 	}
 
 	/**
@@ -253,6 +273,311 @@ public class ItemEJBTest {
 		assertThat(found.size(), is(2));
 		assertThat(found, hasItems(created1, created2));
 	}
+
+	/**
+	 * ・永続化された複数のBook01エンティティのフィールド値を
+	 * 　一括して更新する。
+	 * ・競合が検出されずに空のリストが返され、すべての
+	 * 　エンティティの更新がデータベースに反映されていることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testUpdateBooks() throws Exception {
+		
+		///// 準備 /////
+		
+		Book01 book1 = new Book01(
+				"Book 1 Title", 
+				10.0F, 
+				"Book 1 Description", 
+				"1-11111-111-1", 
+				111, 
+				true);
+
+		Book01 book2 = new Book01(
+				"Book 2 Title", 
+				20.0F, 
+				"Book 2 Description", 
+				"2-22222-222-2", 
+				222, 
+				true);
+
+		Book01 created1 = itemEJB.createBook(book1);
+		Book01 created2 = itemEJB.createBook(book2);
+
+        ///// テスト /////
+
+		// 変更を加える前の状態を読み込んでおく
+		Book01 expected1 = itemEJB.findBookById(created1.getId());
+		Book01 expected2 = itemEJB.findBookById(created2.getId());
+		
+		created1.setTitle("Book 1 Title - Updated");
+		created2.setTitle("Book 2 Title - Updated");
+		List<Long> conflicts = itemEJB.updateBooks(
+				Arrays.asList(expected1, expected2), Arrays.asList(created1, created2));
+        
+        ///// 検証 /////
+        
+		// 競合は検出されていない
+		assertThat(conflicts.isEmpty(), is(true));
+		
+		// すべてのBook01エンティティのフィールド値が更新されていることを確認
+		assertThat(itemEJB.findBookById(created1.getId()).getTitle(), is("Book 1 Title - Updated"));
+		assertThat(itemEJB.findBookById(created2.getId()).getTitle(), is("Book 2 Title - Updated"));
+	}
+
+	/**
+	 * ・2つのクライアントが同じBook01エンティティを読み込み、
+	 * 　一方が先に価格を更新する。
+	 * ・もう一方のクライアントが、そのエンティティと別のエンティティを
+	 * 　一括して更新する。
+	 * ・先に更新されたエンティティの主キーだけが競合として返され、
+	 * 　そのエンティティは先の更新が上書きされずに残り、別の
+	 * 　エンティティの更新はデータベースに反映されていることを確認する。
+	 * ・削除されたエンティティの更新も競合として検出されることを確認する。
+	 */
+	@Test
+	public void testUpdateBooksDetectsConflicts() throws Exception {
+		
+		///// 準備 /////
+		
+		Book01 created1 = itemEJB.createBook(new Book01(
+				"Book 1 Title", 
+				10.0F, 
+				"Book 1 Description", 
+				"1-11111-111-1", 
+				111, 
+				true));
+		Book01 created2 = itemEJB.createBook(new Book01(
+				"Book 2 Title", 
+				20.0F, 
+				"Book 2 Description", 
+				"2-22222-222-2", 
+				222, 
+				true));
+		
+		// 2つのクライアントがそれぞれ読み込む
+		Book01 expectedA = itemEJB.findBookById(created1.getId());
+		Book01 bookA = itemEJB.findBookById(created1.getId());
+		Book01 expectedB1 = itemEJB.findBookById(created1.getId());
+		Book01 bookB1 = itemEJB.findBookById(created1.getId());
+		Book01 expectedB2 = itemEJB.findBookById(created2.getId());
+		Book01 bookB2 = itemEJB.findBookById(created2.getId());
+		
+		// クライアントAが先に更新する
+		bookA.setPrice(11.0F);
+		itemEJB.updateBookChecked(expectedA, bookA);
+
+        ///// テスト /////
+		
+		bookB1.setPrice(12.0F);
+		bookB2.setPrice(22.0F);
+		List<Long> conflicts = itemEJB.updateBooks(
+				Arrays.asList(expectedB1, expectedB2), Arrays.asList(bookB1, bookB2));
+        
+        ///// 検証 /////
+        
+		assertThat(conflicts.size(), is(1));
+		assertThat(conflicts.get(0), is(created1.getId()));
+		
+		// クライアントAの更新は上書きされていない
+		assertThat(itemEJB.findBookById(created1.getId()).getPrice(), is(11.0F));
+		// 競合しなかったエンティティは更新されている
+		assertThat(itemEJB.findBookById(created2.getId()).getPrice(), is(22.0F));
+		
+		// 削除されたエンティティの更新も競合となる
+		Book01 expectedDeleted = itemEJB.findBookById(created2.getId());
+		Book01 deleted = itemEJB.findBookById(created2.getId());
+		itemEJB.deleteBook(itemEJB.findBookById(created2.getId()));
+		deleted.setPrice(23.0F);
+		try {
+			itemEJB.updateBookChecked(expectedDeleted, deleted);
+			fail("UpdateConflictException must be thrown");
+		} catch (UpdateConflictException e) {
+			assertThat(e.getId(), is(created2.getId()));
+		}
+	}
+
+	/**
+	 * ・20件のBook01エンティティの価格を、1、8、32スレッドから
+	 * 　並行して変更する。（読み込みから更新までに5ミリ秒かかるものとする）
+	 * ・行ロックを保持して更新するPessimisticItemEJBと、
+	 * 　updateBookChecked()による楽観的な更新のスループットをログに出力する。
+	 * ・悲観的ロックではすべての更新が成功し、楽観的な更新では
+	 * 　成功と競合の合計が更新の回数と一致すること、いずれの方法でも
+	 * 　成功した更新が失われずにデータベースに反映されていることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testUpdateThroughputAgainstPessimisticLocking() throws Exception {
+		
+		///// 準備 /////
+		
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 20; i++) {
+			ids.add(itemEJB.createBook(new Book01(
+					"Book " + i + " Title", 
+					10.0F, 
+					"Book " + i + " Description", 
+					"1-11111-111-1", 
+					111, 
+					true)).getId());
+		}
+		long updated = 0;
+
+        ///// テスト＆検証 /////
+        
+		for (int threads : new int[] { 1, 8, 32 }) {
+			long[] locked = repriceConcurrently(ids, threads, true);
+			long[] optimistic = repriceConcurrently(ids, threads, false);
+			
+			logger.info("PESSIMISTIC_WRITE : " + toString(threads, locked));
+			logger.info("updateBookChecked : " + toString(threads, optimistic));
+			
+			assertThat(locked[0], is(threads * 20L));
+			assertThat(locked[1], is(0L));
+			assertThat(optimistic[0] + optimistic[1], is(threads * 20L));
+			updated += locked[0] + optimistic[0];
+		}
+		
+		// 成功した更新はすべて反映されている（失われた更新はない）
+		float total = 0;
+		for (Long id : ids) {
+			total += itemEJB.findBookById(id).getPrice();
+		}
+		assertThat(total, is(20 * 10.0F + updated));
+	}
+	
+	/**
+	 * 各スレッドがすべてのBook01エンティティの価格に1を加算する
+	 * @return 成功した更新の回数、競合の回数、経過時間（ナノ秒）
+	 */
+	private long[] repriceConcurrently(final List<Long> ids, int threads, final boolean locked) 
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					long[] counts = new long[2];
+					ready.countDown();
+					go.await();
+					for (Long id : ids) {
+						if (locked) {
+							pessimisticItemEJB.repriceBook(id, 1.0F, 5);
+							counts[0]++;
+							continue;
+						}
+						Book01 expected = itemEJB.findBookById(id);
+						Book01 book = itemEJB.findBookById(id);
+						PessimisticItemEJB.sleep(5);
+						book.setPrice(book.getPrice() + 1.0F);
+						try {
+							itemEJB.updateBookChecked(expected, book);
+							counts[0]++;
+						} catch (UpdateConflictException e) {
+							counts[1]++;
+						}
+					}
+					return counts;
+				}
+			}));
+		}
+		ready.await();
+		long start = System.nanoTime();
+		go.countDown();
+		long[] total = new long[3];
+		for (Future<long[]> future : futures) {
+			long[] counts = future.get(10, TimeUnit.MINUTES);
+			total[0] += counts[0];
+			total[1] += counts[1];
+		}
+		total[2] = System.nanoTime() - start;
+		executor.shutdown();
+		
+		return total;
+	}
+	
+	private static String toString(int threads, long[] result) {
+		return threads + " threads : " + result[0] + " updated, " + result[1] + " conflicts in "
+				+ TimeUnit.NANOSECONDS.toMillis(result[2]) + " ms, "
+				+ result[0] * TimeUnit.SECONDS.toNanos(1) / Math.max(1, result[2]) + " updates/s";
+	}
+
+	/**
+	 * ・基準時刻より後に、Book01エンティティの作成、更新、削除を行う。
+	 * ・差分として、作成・更新されたエンティティと削除された
+	 * 　エンティティの主キーだけが取得できることを確認する。
+	 */
+	@Test
+	public void testFindBooksModifiedSince() throws Exception {
+		
+		///// 準備 /////
+		
+		// 基準時刻がないので全件の再取得が要求される
+		ItemDelta<Book01> initial = itemEJB.findBooksModifiedSince(null, 10);
+		assertThat(initial.isFullRefreshRequired(), is(true));
+		
+		Book01 book1 = new Book01(
+				"Book 1 Title", 
+				10.0F, 
+				"Book 1 Description", 
+				"1-11111-111-1", 
+				111, 
+				true);
+
+		Book01 book2 = new Book01(
+				"Book 2 Title", 
+				20.0F, 
+				"Book 2 Description", 
+				"2-22222-222-2", 
+				222, 
+				true);
+
+		Book01 created1 = itemEJB.createBook(book1);
+		Book01 created2 = itemEJB.createBook(book2);
+		created1.setTitle("Book 1 Title - Updated");
+		Book01 updated1 = itemEJB.updateBook(created1);
+		itemEJB.deleteBook(created2);
+
+        ///// テスト /////
+
+		ItemDelta<Book01> delta = itemEJB.findBooksModifiedSince(initial.getUntil(), 10);
+        
+        ///// 検証 /////
+        
+		assertThat(delta.isFullRefreshRequired(), is(false));
+		assertThat(delta.isHasMore(), is(false));
+		assertThat(delta.getModified().size(), is(1));
+		assertThat(delta.getModified(), hasItem(updated1));
+		assertThat(delta.getDeletedIds().size(), is(1));
+		assertThat(delta.getDeletedIds(), hasItem(created2.getId()));
+		
+		// 取得した差分の後には変更がない
+		ItemDelta<Book01> next = itemEJB.findBooksModifiedSince(delta.getUntil(), 10);
+		assertThat(next.getModified().isEmpty(), is(true));
+		assertThat(next.getDeletedIds().isEmpty(), is(true));
+	}
+
+	/**
+	 * ・1未満のlimitを指定して差分を取得する。
+	 * ・取得が進まない呼び出しにならないように、例外がスローされる
+	 * 　ことを確認する。
+	 */
+	@Test
+	public void testFindBooksModifiedSinceRejectsInvalidLimit() throws Exception {
+		for (int limit : new int[] { 0, -1 }) {
+			try {
+				itemEJB.findBooksModifiedSince(new Date(), limit);
+				fail("Exception must be thrown : limit = " + limit);
+			} catch (EJBException e) {
+				// システム例外はEJBExceptionに包まれる
+				assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+			}
+		}
+	}
 	
 	/**
 	 * CD01エンティティを永続化するテスト。
@@ -429,4 +754,75 @@ public class ItemEJBTest {
 		assertThat(found, hasItems(created1, created2));
 	}
 
+	/**
+	 * ・レーベルの異なる複数のCD01エンティティが永続化されている状態で、
+	 * 　レーベルを指定してCD01エンティティを取得する。
+	 * ・指定したレーベルのエンティティだけが取得できること、
+	 * 　レーベルごとの件数と合計演奏時間が作成・更新・削除に
+	 * 　追従していることを確認する。
+	 */
+	@Test
+	public void testFindCDsByMusicCompanyAndStatistics() throws Exception {
+		
+		///// 準備 /////
+		
+        CD01 cd1 = new CD01(
+        		"CD 1 Title",
+        		10.0F,
+        		"CD 1 Description",
+        		null,
+        		"Music Company 1",
+        		1,
+        		100.0F,
+        		"male");
+        CD01 cd2 = new CD01(
+        		"CD 2 Title",
+        		20.0F,
+        		"CD 2 Description",
+        		null,
+        		"Music Company 2",
+        		2,
+        		200.0F,
+        		"female");
+        CD01 cd3 = new CD01(
+        		"CD 3 Title",
+        		30.0F,
+        		"CD 3 Description",
+        		null,
+        		"Music Company 1",
+        		3,
+        		300.0F,
+        		"male");
+
+		CD01 created1 = itemEJB.createCD(cd1);
+		CD01 created2 = itemEJB.createCD(cd2);
+		CD01 created3 = itemEJB.createCD(cd3);
+
+        ///// テスト＆検証 /////
+		
+		List<CD01> found = itemEJB.findCDsByMusicCompany("Music Company 1");
+		assertThat(found.size(), is(2));
+		assertThat(found, hasItems(created1, created3));
+		
+		List<MusicCompanyStatistics> statistics = itemEJB.getMusicCompanyStatistics();
+		assertThat(statistics.size(), is(2));
+		assertThat(statistics.get(0).getMusicCompany(), is("Music Company 1"));
+		assertThat(statistics.get(0).getCount(), is(2L));
+		assertThat(statistics.get(0).getTotalDuration(), is(400.0F));
+		assertThat(statistics.get(1).getMusicCompany(), is("Music Company 2"));
+		assertThat(statistics.get(1).getCount(), is(1L));
+		assertThat(statistics.get(1).getTotalDuration(), is(200.0F));
+		
+		// レーベルの変更と削除が集計値に反映される
+		created3.setMusicCompany("Music Company 2");
+		itemEJB.updateCD(created3);
+		itemEJB.deleteCD(created1);
+		
+		statistics = itemEJB.getMusicCompanyStatistics();
+		assertThat(statistics.size(), is(1));
+		assertThat(statistics.get(0).getMusicCompany(), is("Music Company 2"));
+		assertThat(statistics.get(0).getCount(), is(2L));
+		assertThat(statistics.get(0).getTotalDuration(), is(500.0F));
+		assertThat(itemEJB.findCDsByMusicCompany("Music Company 2"), hasItems(created2));
+	}
 }
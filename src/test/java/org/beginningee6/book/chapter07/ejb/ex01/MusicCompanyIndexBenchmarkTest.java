@@ -0,0 +1,202 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter07.jpa.ex01.CD01;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * 500,000件のCD01エンティティに対して、レーベルごとの検索と
+ * 集計値の取得にかかる時間を計測するベンチマーク。
+ *
+ * 1,000のレーベルに500件ずつのCD01エンティティを作成し、
+ * findCDsByMusicCompany()、MusicCompanyIndexEJBによる集計値の取得、
+ * 比較のためにデータベースで毎回集計するGROUP BYのクエリ、
+ * rebuild()のそれぞれにかかる時間をログに出力する。
+ *
+ * データベースにはsrc/main/sql/cd01-indexes.sqlのインデックスを
+ * 作成しておくこと。（作成していない場合も実行はできるが、
+ * 検索と集計がテーブルの走査になる）
+ *
+ */
+@RunWith(Arquillian.class)
+public class MusicCompanyIndexBenchmarkTest {
+	private static final Logger logger = Logger.getLogger(MusicCompanyIndexBenchmarkTest.class
+			.getName());
+
+	// レーベルの数と、レーベルごとのCD01エンティティの数
+	private static final int COMPANIES = 1000;
+	private static final int CDS_PER_COMPANY = 500;
+
+	// 1つのトランザクションで永続化する件数
+	private static final int CHUNK = 1000;
+
+	// 検索・集計を繰り返す回数
+	private static final int QUERIES = 200;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs
+			= Maven
+				.configureResolver()
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+//				.fromFile("C:\\Maven\\apache-maven-3.0.5\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter07-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(ItemEJB.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	ItemEJB itemEJB;
+
+	@EJB
+	MusicCompanyIndexEJB musicCompanyIndex;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM CD01").executeUpdate();
+		userTransaction.commit();
+
+		musicCompanyIndex.rebuild();
+	}
+
+	/**
+	 * ・500,000件のCD01エンティティを永続化し、集計し直す。
+	 * ・ランダムに選んだレーベルでfindCDsByMusicCompany()を実行し、
+	 * 　レーベルごとの件数が取得できることを確認する。
+	 * ・MusicCompanyIndexEJBの集計値が、データベースで集計した
+	 * 　結果と一致することを確認する。
+	 * ・それぞれの1回あたりの時間をログに出力する。
+	 */
+	@Test
+	public void testMusicCompanyQueriesOn500kCDs() throws Exception {
+
+		///// 準備 /////
+
+		long start = System.nanoTime();
+		for (int i = 0; i < COMPANIES * CDS_PER_COMPANY; i += CHUNK) {
+			userTransaction.begin();
+			em.joinTransaction();
+			for (int j = i; j < i + CHUNK; j++) {
+				em.persist(new CD01(
+						"CD " + j + " Title",
+						10.0F,
+						"CD " + j + " Description",
+						null,
+						company(j % COMPANIES),
+						1,
+						(float) (j % 60 + 1),
+						"male"));
+			}
+			userTransaction.commit();
+		}
+		logger.info("Loaded " + COMPANIES * CDS_PER_COMPANY + " CDs in " + millisSince(start) + " ms");
+
+		// ItemEJBを経由せずに永続化したので集計し直す
+		start = System.nanoTime();
+		musicCompanyIndex.rebuild();
+		logger.info("rebuild() : " + millisSince(start) + " ms");
+
+        ///// テスト＆検証 /////
+
+		Random random = new Random(0);
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			List<CD01> found = itemEJB.findCDsByMusicCompany(company(random.nextInt(COMPANIES)));
+			assertThat(found.size(), is(CDS_PER_COMPANY));
+		}
+		logger.info("findCDsByMusicCompany() : " + perQuery(start) + " us/query");
+
+		List<MusicCompanyStatistics> statistics = null;
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			statistics = itemEJB.getMusicCompanyStatistics();
+		}
+		logger.info("getMusicCompanyStatistics() : " + perQuery(start) + " us/query");
+
+		List<Object[]> grouped = null;
+		start = System.nanoTime();
+		for (int i = 0; i < QUERIES; i++) {
+			grouped = em.createQuery(
+					"SELECT c.musicCompany, COUNT(c), SUM(c.totalDuration) " +
+					"FROM CD01 c WHERE c.musicCompany IS NOT NULL " +
+					"GROUP BY c.musicCompany ORDER BY c.musicCompany",
+					Object[].class).getResultList();
+		}
+		logger.info("GROUP BY query : " + perQuery(start) + " us/query");
+
+		assertThat(statistics.size(), is(COMPANIES));
+		assertThat(grouped.size(), is(COMPANIES));
+		for (int i = 0; i < COMPANIES; i++) {
+			assertThat(statistics.get(i).getMusicCompany(), is(grouped.get(i)[0]));
+			assertThat(statistics.get(i).getCount(), is(((Number) grouped.get(i)[1]).longValue()));
+			assertThat(statistics.get(i).getTotalDuration(),
+					is(((Number) grouped.get(i)[2]).floatValue()));
+		}
+	}
+
+	private static String company(int i) {
+		// レーベル名の順と番号の順を一致させる
+		return String.format("Music Company %04d", i);
+	}
+
+	private static long millisSince(long start) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private static long perQuery(long start) {
+		return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) / QUERIES;
+	}
+}
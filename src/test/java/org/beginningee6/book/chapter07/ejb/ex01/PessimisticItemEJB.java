@@ -0,0 +1,45 @@
+package org.beginningee6.book.chapter07.ejb.ex01;
+
+import javax.ejb.Stateless;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter07.jpa.ex01.Book01;
+
+/**
+ * ItemEJBのテストで、楽観的な更新（updateBookChecked）と比較するための
+ * ステートレス・セッションBean。
+ *
+ * 従来の安全な更新方法である悲観的ロックの実装である。読み込みの時点で
+ * 行ロックを獲得し、新しい値を計算してトランザクションがコミット
+ * されるまでロックを保持するため、同じ行を更新するクライアントは
+ * 1つずつ順に実行される。
+ */
+@Stateless	// ステートレス・セッションBeanであることを宣言する
+public class PessimisticItemEJB {
+
+	// エンティティのデータアクセス用にEntity Managerを注入
+	@PersistenceContext(unitName = "Chapter07ProductionPU")
+	private EntityManager em;
+
+	/**
+	 * 行ロックを獲得してBook01エンティティを読み込み、価格を変更する
+	 * @param id 主キー
+	 * @param delta 価格に加算する値
+	 * @param thinkMillis 読み込みから更新までに新しい価格の計算にかかる時間
+	 */
+	public void repriceBook(Long id, float delta, long thinkMillis) {
+		Book01 book = em.find(Book01.class, id, LockModeType.PESSIMISTIC_WRITE);
+		sleep(thinkMillis);
+		book.setPrice(book.getPrice() + delta);
+	}
+
+	static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
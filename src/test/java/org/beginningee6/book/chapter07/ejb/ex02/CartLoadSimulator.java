@@ -0,0 +1,270 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+
+/**
+ * ShoppingCartEJBに対して、複数の顧客の操作を並行して実行する
+ * 負荷シミュレータ。
+ *
+ * 各顧客は新しいカートを取得し、追加・削除・合計金額の取得を
+ * 指定した割合でランダムに実行した後、指定した割合でチェックアウトする。
+ * （チェックアウトしない顧客のカートは、＠StatefulTimeoutにより
+ * 破棄されるまで放置される）
+ *
+ * 操作の種類ごとに応答時間を記録し、スループットと応答時間の
+ * パーセンタイルをReportとして返す。
+ *
+ * カートに追加するItem02エンティティは、顧客ごとに新しく作成する。
+ * 永続化されていないItem02エンティティはチェックアウトで永続化される
+ * ため、同じインスタンスを複数の顧客（スレッド）で共有すると、
+ * 並行するチェックアウトが同じインスタンスを永続化してしまう。
+ */
+public class CartLoadSimulator {
+
+	/** 操作の種類 */
+	public enum Operation { ADD, REMOVE, TOTAL, CHECKOUT }
+
+	/**
+	 * シミュレータが使用するカートを作成する
+	 */
+	public interface CartFactory {
+		ShoppingCartEJB newCart() throws Exception;
+	}
+
+	private final CartFactory factory;
+
+	private int customers = 100;
+	private int operationsPerCustomer = 20;
+	private int threads = 8;
+	private int catalogSize = 100;
+
+	// 追加・削除・合計金額の取得の割合（合計100）
+	private int addPercent = 60;
+	private int removePercent = 15;
+
+	// 操作を終えた顧客がチェックアウトする割合
+	private int checkoutPercent = 70;
+
+	public CartLoadSimulator(CartFactory factory) {
+		this.factory = factory;
+	}
+
+	public void setCustomers(int customers) {
+		this.customers = customers;
+	}
+
+	public void setOperationsPerCustomer(int operationsPerCustomer) {
+		this.operationsPerCustomer = operationsPerCustomer;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setCatalogSize(int catalogSize) {
+		this.catalogSize = catalogSize;
+	}
+
+	/**
+	 * 操作の割合を設定する
+	 * @param addPercent 追加の割合
+	 * @param removePercent 削除の割合（残りは合計金額の取得）
+	 * @param checkoutPercent 操作を終えた顧客がチェックアウトする割合
+	 */
+	public void setMix(int addPercent, int removePercent, int checkoutPercent) {
+		this.addPercent = addPercent;
+		this.removePercent = removePercent;
+		this.checkoutPercent = checkoutPercent;
+	}
+
+	/**
+	 * シミュレーションを実行する
+	 * @return 実行結果
+	 */
+	public Report run() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Recorder>> futures = new ArrayList<Future<Recorder>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			futures.add(executor.submit(new Callable<Recorder>() {
+				public Recorder call() throws Exception {
+					Recorder recorder = new Recorder();
+					Random random = new Random(thread);
+					// 顧客をスレッドに均等に割り当てる
+					for (int c = thread; c < customers; c += threads) {
+						simulateCustomer(c, random, recorder);
+					}
+					return recorder;
+				}
+			}));
+		}
+		Recorder total = new Recorder();
+		for (Future<Recorder> future : futures) {
+			total.addAll(future.get());
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		return new Report(total, elapsed);
+	}
+
+	private void simulateCustomer(int customer, Random random, Recorder recorder) throws Exception {
+		List<Item02> catalog = newCatalog();
+		ShoppingCartEJB cart = factory.newCart();
+		List<Item02> added = new ArrayList<Item02>();
+
+		for (int i = 0; i < operationsPerCustomer; i++) {
+			int dice = random.nextInt(100);
+			long start = System.nanoTime();
+			if (dice < addPercent || (dice < addPercent + removePercent && added.isEmpty())) {
+				Item02 item = catalog.get(random.nextInt(catalog.size()));
+				cart.addItem(item);
+				added.add(item);
+				recorder.record(Operation.ADD, System.nanoTime() - start);
+			} else if (dice < addPercent + removePercent) {
+				cart.removeItem(added.remove(random.nextInt(added.size())));
+				recorder.record(Operation.REMOVE, System.nanoTime() - start);
+			} else {
+				cart.getTotal();
+				recorder.record(Operation.TOTAL, System.nanoTime() - start);
+			}
+		}
+
+		if (random.nextInt(100) < checkoutPercent) {
+			long start = System.nanoTime();
+			cart.checkout("Simulated Customer " + customer);
+			recorder.record(Operation.CHECKOUT, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * 1人の顧客が使用するItem02エンティティを作成する
+	 *
+	 * 顧客ごとにインスタンスは異なるが、値（名前と価格）は
+	 * すべての顧客で同じとなる。
+	 */
+	private List<Item02> newCatalog() {
+		List<Item02> catalog = new ArrayList<Item02>(catalogSize);
+		for (int i = 0; i < catalogSize; i++) {
+			catalog.add(new Item02("Item " + i, 1f + i % 10, "Item " + i + " Description"));
+		}
+		return catalog;
+	}
+
+	/**
+	 * 1つのスレッドで記録した操作ごとの応答時間
+	 */
+	private static class Recorder {
+
+		private final long[][] latencies = new long[Operation.values().length][];
+		private final int[] counts = new int[Operation.values().length];
+
+		Recorder() {
+			for (int i = 0; i < latencies.length; i++) {
+				latencies[i] = new long[1024];
+			}
+		}
+
+		void record(Operation operation, long nanos) {
+			int o = operation.ordinal();
+			if (counts[o] == latencies[o].length) {
+				latencies[o] = Arrays.copyOf(latencies[o], counts[o] * 2);
+			}
+			latencies[o][counts[o]++] = nanos;
+		}
+
+		void addAll(Recorder other) {
+			for (Operation operation : Operation.values()) {
+				int o = operation.ordinal();
+				for (int i = 0; i < other.counts[o]; i++) {
+					record(operation, other.latencies[o][i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * シミュレーションの実行結果
+	 */
+	public static class Report {
+
+		private final long[][] sorted = new long[Operation.values().length][];
+		private final long elapsedNanos;
+
+		Report(Recorder recorder, long elapsedNanos) {
+			for (int o = 0; o < sorted.length; o++) {
+				sorted[o] = Arrays.copyOf(recorder.latencies[o], recorder.counts[o]);
+				Arrays.sort(sorted[o]);
+			}
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * 実行した操作の件数を取得する
+		 */
+		public int getCount(Operation operation) {
+			return sorted[operation.ordinal()].length;
+		}
+
+		/**
+		 * すべての操作の件数を取得する
+		 */
+		public int getTotalCount() {
+			int total = 0;
+			for (long[] latencies : sorted) {
+				total += latencies.length;
+			}
+			return total;
+		}
+
+		/**
+		 * 1秒あたりの操作の件数を取得する
+		 */
+		public long getThroughput() {
+			return getTotalCount() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+		}
+
+		/**
+		 * 応答時間のパーセンタイルを取得する
+		 * @param operation 操作の種類
+		 * @param percentile パーセンタイル（0～100）
+		 * @return 応答時間（マイクロ秒、操作がない場合は0）
+		 */
+		public long getLatencyMicros(Operation operation, double percentile) {
+			long[] latencies = sorted[operation.ordinal()];
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+			return TimeUnit.NANOSECONDS.toMicros(latencies[Math.max(0, index)]);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(getTotalCount()).append(" operations in ")
+					.append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append(" ms : ")
+					.append(getThroughput()).append(" ops/sec");
+			for (Operation operation : Operation.values()) {
+				report.append("\n  ").append(operation)
+						.append(" : count=").append(getCount(operation))
+						.append(", p50=").append(getLatencyMicros(operation, 50)).append(" us")
+						.append(", p90=").append(getLatencyMicros(operation, 90)).append(" us")
+						.append(", p99=").append(getLatencyMicros(operation, 99)).append(" us")
+						.append(", max=").append(getLatencyMicros(operation, 100)).append(" us");
+			}
+			return report.toString();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.naming.InitialContext;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter07.ejb.ex02.CartLoadSimulator.Operation;
+import org.beginningee6.book.chapter07.ejb.ex02.CartLoadSimulator.Report;
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * CartLoadSimulatorでShoppingCartEJBに負荷をかけ、
+ * クラスタのサイジングに必要な値を計測するテスト。
+ * 
+ * 外部のDerbyサーバに依存せずに実行できるように、
+ * jbossas-ds-embedded.xmlで定義したインメモリのH2データベースを
+ * 同じJNDI名のデータソースとしてデプロイする。
+ * 
+ * 永続性ユニット（Chapter07ProductionPU）はJPAのライブラリで
+ * 定義されており、参照するJNDI名を変更できないため、他のテストと
+ * 同様にデータソースはテストのアーカイブとともにデプロイする。
+ * したがって、サーバの設定（standalone.xml）に同じJNDI名
+ * （jdbc/BeginningJavaEE6Chapter07Production）のデータソースが
+ * 定義されている場合は、JNDI名が重複してデプロイに失敗する。
+ * このテストを実行する前に、サーバの設定からそのデータソースを
+ * 削除しておくこと。
+ * 
+ * 計測した値（スループット、応答時間のパーセンタイル、
+ * カートあたりのヒープ使用量、パッシベーションと退避の回数、
+ * チェックアウトあたりのSQL文の数）はログに出力する。
+ * 
+ */
+@RunWith(Arquillian.class)
+public class CartLoadSimulatorTest {
+	
+	private static final Logger logger = Logger.getLogger(CartLoadSimulatorTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs 
+			= Maven
+				.configureResolver()				
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+//				.fromFile("C:\\Maven\\apache-maven-3.0.5\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter07-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(ShoppingCartEJB.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds-embedded.xml", "jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	CartCapacityEJB cartCapacity;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item02").executeUpdate();
+		em.createQuery("DELETE FROM Sales02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * ・500人の顧客が8スレッドで並行して、20回ずつ追加・削除・合計金額の
+	 * 　取得を行い、70%の顧客がチェックアウトする。
+	 * ・チェックアウトした顧客の数だけSales02エンティティが
+	 * 　永続化されていることを確認する。
+	 * ・スループット、操作ごとの応答時間のパーセンタイル、
+	 * 　パッシベーションと退避の回数、チェックアウトあたりの
+	 * 　SQL文の数をログに出力する。
+	 */
+	@Test
+	public void testSimulateCustomers() throws Exception {
+		
+		///// 準備 /////
+		
+		Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+		
+		long passivatedBefore = cartCapacity.getPassivatedCount();
+		long spilledBefore = cartCapacity.getSpilledCount();
+		long restoredBefore = cartCapacity.getRestoredCount();
+		
+		CartLoadSimulator simulator = new CartLoadSimulator(new CartLoadSimulator.CartFactory() {
+			public ShoppingCartEJB newCart() throws Exception {
+				return lookupCart();
+			}
+		});
+		simulator.setCustomers(500);
+		simulator.setOperationsPerCustomer(20);
+		simulator.setThreads(8);
+		simulator.setMix(60, 15, 70);
+
+        ///// テスト /////
+		
+		Report report = simulator.run();
+
+        ///// 検証 /////
+		
+		int checkouts = report.getCount(Operation.CHECKOUT);
+		assertThat(checkouts > 0, is(true));
+		assertThat(em.createQuery("SELECT COUNT(s) FROM Sales02 s", Long.class)
+				.getSingleResult(), is((long) checkouts));
+		
+		logger.info("simulated customers : " + report);
+		logger.info("statements per checkout : " 
+				+ ((double) statistics.getPrepareStatementCount() / checkouts));
+		logger.info("passivated : " + (cartCapacity.getPassivatedCount() - passivatedBefore)
+				+ ", spilled : " + (cartCapacity.getSpilledCount() - spilledBefore)
+				+ ", restored : " + (cartCapacity.getRestoredCount() - restoredBefore)
+				+ ", active : " + cartCapacity.getActiveCount());
+	}
+
+	/**
+	 * ・明細の数が1、10、100のカートをそれぞれ1,000個作成する。
+	 * ・作成の前後のヒープ使用量の差から、カートあたりのヒープ使用量を
+	 * 　ログに出力する。
+	 * 
+	 * （カートはチェックアウトせずに＠StatefulTimeoutで破棄させる）
+	 */
+	@Test
+	public void testRetainedHeapPerCart() throws Exception {
+		
+		///// 準備 /////
+		
+		int numCarts = 1000;
+		
+		for (int itemsPerCart : new int[] { 1, 10, 100 }) {
+			List<Item02> items = new ArrayList<Item02>();
+			for (int i = 0; i < itemsPerCart; i++) {
+				items.add(new Item02("Item " + i, 1f, "Item " + i + " Description"));
+			}
+			
+	        ///// テスト /////
+			
+			long heapBefore = usedHeap();
+			List<ShoppingCartEJB> carts = new ArrayList<ShoppingCartEJB>();
+			for (int c = 0; c < numCarts; c++) {
+				ShoppingCartEJB cart = lookupCart();
+				cart.addItems(items);
+				carts.add(cart);
+			}
+			long heapAfter = usedHeap();
+			
+	        ///// 検証 /////
+			
+			assertThat(carts.get(numCarts - 1).getNumberOfItems(), is(itemsPerCart));
+			logger.info("retained heap for " + itemsPerCart + " items : " 
+					+ ((heapAfter - heapBefore) / numCarts) + " bytes/cart, " 
+					+ cartCapacity.getActiveCount() + " active carts");
+		}
+	}
+	
+	private static ShoppingCartEJB lookupCart() throws Exception {
+		return (ShoppingCartEJB) new InitialContext().lookup("java:module/ShoppingCartEJB");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
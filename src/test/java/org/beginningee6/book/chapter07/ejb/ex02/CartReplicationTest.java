@@ -0,0 +1,308 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.junit.Test;
+
+/**
+ * カートのデルタをバックアップにレプリケーションする
+ * CartDeltaBufferとCartBackupStoreのテスト。
+ *
+ * どちらもEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ * CartReplicatorEJBと同じ手順（記録、取り出し、変換、送信）を
+ * テストの中で行う。
+ */
+public class CartReplicationTest {
+
+	private static final Logger logger = Logger.getLogger(CartReplicationTest.class
+			.getName());
+
+	private final CartDeltaBuffer buffer = new CartDeltaBuffer();
+
+	private final CartBackupStore backup = new CartBackupStore();
+
+	private final InJvmCartReplicationTransport transport = new InJvmCartReplicationTransport(backup);
+
+	/**
+	 * ・明細の追加、数量の変更、削除を行い、その都度送信する。
+	 * ・バックアップのカートの内容がプライマリのカートと等しいことを確認する。
+	 * ・カートを破棄するとバックアップからも破棄されることを確認する。
+	 */
+	@Test
+	public void testReplicateDeltas() throws Exception {
+
+		///// 準備 /////
+
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		Map<Item02, CartLine> cart = new LinkedHashMap<Item02, CartLine>();
+
+        ///// テスト＆検証 /////
+
+		setQuantity(cart, "customer-1", itemA, 1);
+		send();
+		setQuantity(cart, "customer-1", itemB, 2);
+		send();
+		assertReplicated(cart, "customer-1");
+		assertThat(backup.getSequence("customer-1"), is(2L));
+
+		setQuantity(cart, "customer-1", itemA, 0);
+		send();
+		assertReplicated(cart, "customer-1");
+		assertThat(backup.get("customer-1").size(), is(1));
+
+		buffer.recordClear("customer-1");
+		send();
+		assertThat(backup.get("customer-1"), is(nullValue()));
+		assertThat(backup.size(), is(0));
+
+		// 破棄した後の操作は空のカートからの置き換えとして送信される
+		cart.clear();
+		setQuantity(cart, "customer-1", itemB, 1);
+		send();
+		assertReplicated(cart, "customer-1");
+	}
+
+	/**
+	 * ・送信せずに同じ明細に対する操作を繰り返す。
+	 * ・1件のデルタにまとめられ、最後の数量だけが送信されることを確認する。
+	 * ・送信に失敗したデルタが、その後の操作とまとめて再送されることを確認する。
+	 */
+	@Test
+	public void testCoalesceAndPutBack() throws Exception {
+
+		///// 準備 /////
+
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		Map<Item02, CartLine> cart = new LinkedHashMap<Item02, CartLine>();
+
+        ///// テスト＆検証 /////
+
+		for (int quantity = 1; quantity <= 10; quantity++) {
+			setQuantity(cart, "customer-1", itemA, quantity);
+		}
+		List<CartDeltaBuffer.Delta> deltas = buffer.take(100);
+		assertThat(deltas.size(), is(1));
+		assertThat(deltas.get(0).changes.size(), is(1));
+		assertThat(deltas.get(0).sequence, is(10L));
+
+		// 送信に失敗したものとして戻し、その後の操作とまとめる
+		buffer.putBack(deltas);
+		setQuantity(cart, "customer-1", itemB, 3);
+		setQuantity(cart, "customer-1", itemA, 0);
+		assertThat(buffer.getPendingCount(), is(1));
+
+		send();
+		assertReplicated(cart, "customer-1");
+		assertThat(transport.getSentBatches(), is(1L));
+	}
+
+	/**
+	 * ・デルタの一部がバックアップに届かなかった場合に、バックアップの
+	 * 　カートの内容が使用されなくなり、カート全体の内容が要求される
+	 * 　ことを確認する。
+	 * ・次の操作でカート全体が送信し直され、再び使用できることを確認する。
+	 */
+	@Test
+	public void testDetectMissingDelta() throws Exception {
+
+		///// 準備 /////
+
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		Map<Item02, CartLine> cart = new LinkedHashMap<Item02, CartLine>();
+		setQuantity(cart, "customer-1", itemA, 1);
+		send();
+
+        ///// テスト＆検証 /////
+
+		// 送信されずに失われたデルタ
+		setQuantity(cart, "customer-1", itemB, 1);
+		buffer.take(100);
+
+		setQuantity(cart, "customer-1", itemA, 2);
+		send();
+		assertThat(backup.get("customer-1"), is(nullValue()));
+		assertThat(buffer.isSnapshotRequested("customer-1"), is(true));
+
+		// 次の操作ではカート全体が置き換えとして送信される
+		setQuantity(cart, "customer-1", itemA, 3);
+		assertThat(buffer.isSnapshotRequested("customer-1"), is(false));
+		send();
+		assertReplicated(cart, "customer-1");
+
+		// 以降は再び変更分だけが送信される
+		setQuantity(cart, "customer-1", itemB, 2);
+		send();
+		assertReplicated(cart, "customer-1");
+	}
+
+	/**
+	 * ・放置されたカートのシーケンス番号とバックアップが、expireIdle()で
+	 * 　破棄されることを確認する。
+	 * ・送信を待っているデルタがある顧客のキーは破棄されないことを確認する。
+	 * ・破棄した後の操作は空のカートからの置き換えとして送信されることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testExpireIdleCarts() throws Exception {
+
+		///// 準備 /////
+
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		Map<Item02, CartLine> abandoned = new LinkedHashMap<Item02, CartLine>();
+		Map<Item02, CartLine> active = new LinkedHashMap<Item02, CartLine>();
+		setQuantity(abandoned, "customer-1", itemA, 1);
+		send();
+		setQuantity(active, "customer-2", itemA, 1);
+
+        ///// テスト＆検証 /////
+
+		// customer-2は送信を待っているため破棄されない
+		assertThat(buffer.expireIdle(System.currentTimeMillis() + 1), is(1));
+		assertThat(buffer.getTrackedCount(), is(1));
+		send();
+
+		assertThat(backup.expireIdle(System.currentTimeMillis() + 1), is(2));
+		assertThat(backup.size(), is(0));
+
+		// 破棄した後の操作は空のカートからの置き換えとなる
+		abandoned.clear();
+		setQuantity(abandoned, "customer-1", itemB, 2);
+		send();
+		assertReplicated(abandoned, "customer-1");
+		assertThat(backup.getSequence("customer-1"), is(1L));
+	}
+
+	/**
+	 * ・1,000人の顧客のカート（最大20明細）に対してランダムに操作を行い、
+	 * 　100操作ごとにデルタを送信する。
+	 * ・すべてのカートがバックアップと等しいことを確認する。
+	 * ・操作ごとにカート全体を送信した場合と比較して、1操作あたりの
+	 * 　送信バイト数が小さいことを確認し、ログに出力する。
+	 */
+	@Test
+	public void testCompareWithFullStateReplication() throws Exception {
+
+		///// 準備 /////
+
+		int numCustomers = 1000;
+		int numMutations = 100000;
+		List<Item02> catalog = new ArrayList<Item02>();
+		for (int i = 0; i < 20; i++) {
+			catalog.add(new Item02("Item " + i, 10f + i, "Item " + i + " Description"));
+		}
+		List<Map<Item02, CartLine>> carts = new ArrayList<Map<Item02, CartLine>>();
+		for (int c = 0; c < numCustomers; c++) {
+			carts.add(new LinkedHashMap<Item02, CartLine>());
+		}
+		Random random = new Random(42);
+
+        ///// テスト /////
+
+		long fullStateBytes = 0;
+		for (int m = 0; m < numMutations; m++) {
+			int c = random.nextInt(numCustomers);
+			setQuantity(carts.get(c), "customer-" + c, 
+					catalog.get(random.nextInt(catalog.size())), random.nextInt(4));
+
+			// カート全体を送信した場合のバイト数（キーとシーケンス番号を含む）
+			fullStateBytes += fullStateSize("customer-" + c, carts.get(c));
+
+			if (m % 100 == 99) {
+				send();
+			}
+		}
+		send();
+
+        ///// 検証 /////
+
+		for (int c = 0; c < numCustomers; c++) {
+			assertReplicated(carts.get(c), "customer-" + c);
+		}
+
+		long deltaBytes = transport.getSentBytes();
+		logger.info("full state replication : " + (fullStateBytes / numMutations) + " bytes/mutation");
+		logger.info("delta replication : " + (deltaBytes / numMutations) + " bytes/mutation, "
+				+ transport.getSentBatches() + " batches");
+
+		assertThat(deltaBytes < fullStateBytes, is(true));
+	}
+
+	/**
+	 * ShoppingCartEJBとCartReplicatorEJBと同じように、プライマリの
+	 * カートを更新して操作を記録する
+	 */
+	private void setQuantity(Map<Item02, CartLine> cart, String customerKey, Item02 item, int quantity) {
+		if (quantity <= 0) {
+			if (cart.remove(item) != null) {
+				if (buffer.isSnapshotRequested(customerKey)) {
+					buffer.recordSnapshot(customerKey, CartSnapshot.of(cart));
+				} else {
+					buffer.recordRemove(customerKey, item);
+				}
+			}
+			return;
+		}
+		CartLine line = new CartLine(Math.round(item.getPrice() * 100d), quantity);
+		cart.put(item, line);
+		if (buffer.isSnapshotRequested(customerKey)) {
+			buffer.recordSnapshot(customerKey, CartSnapshot.of(cart));
+		} else {
+			buffer.recordLine(customerKey, item, line);
+		}
+	}
+
+	/**
+	 * CartReplicatorEJBと同じように、送信を待っているデルタをすべて送信する
+	 */
+	private void send() throws Exception {
+		List<CartDeltaBuffer.Delta> deltas;
+		while (!(deltas = buffer.take(500)).isEmpty()) {
+			Set<String> stale = transport.send(CartDeltaBuffer.encode(deltas));
+			if (!stale.isEmpty()) {
+				buffer.requestSnapshots(stale);
+			}
+		}
+	}
+
+	private void assertReplicated(Map<Item02, CartLine> cart, String customerKey) {
+		CartSnapshot replicated = backup.get(customerKey);
+		if (cart.isEmpty()) {
+			// 削除によって空になったカートは明細のない内容として残る
+			assertThat(replicated == null || replicated.size() == 0, is(true));
+			return;
+		}
+		assertThat(replicated, is(notNullValue()));
+		assertThat(replicated.size(), is(cart.size()));
+		for (Map.Entry<Item02, CartLine> entry : cart.entrySet()) {
+			assertThat(replicated.getQuantity(entry.getKey()), is(entry.getValue().getQuantity()));
+		}
+		assertThat(replicated.getTotal(), is(CartSnapshot.of(cart).getTotal()));
+	}
+
+	private static int fullStateSize(String customerKey, Map<Item02, CartLine> cart) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(customerKey);
+		out.writeLong(0L);
+		CartSnapshot.of(cart).write(out);
+		out.close();
+		return bytes.size();
+	}
+}
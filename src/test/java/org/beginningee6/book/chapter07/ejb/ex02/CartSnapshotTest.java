@@ -0,0 +1,145 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.junit.Test;
+
+/**
+ * ShoppingCartEJBのパッシベーションで使用するCartSnapshotのテスト。
+ *
+ * CartSnapshotはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ *
+ * カートの内容をそのままシリアライズした場合と比較して、
+ * シリアライズ後のバイト数とシリアライズ・デシリアライズに
+ * 要した時間をログに出力する。
+ */
+public class CartSnapshotTest {
+
+	private static final Logger logger = Logger.getLogger(CartSnapshotTest.class
+			.getName());
+
+	private static final int NUM_ITEMS = 1000;
+
+	private static final int REPEAT = 100;
+
+	/**
+	 * ・未永続化のItem02エンティティを持つカートのスナップショットを
+	 * 　シリアライズ、デシリアライズする。
+	 * ・復元したカートの内容が元のカートと等しいことを確認する。
+	 */
+	@Test
+	public void testSerializeAndRestore() throws Exception {
+
+		///// 準備 /////
+
+		Map<Item02, CartLine> items = new LinkedHashMap<Item02, CartLine>();
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		items.put(itemA, new CartLine(2300L, 1));
+		items.put(itemB, new CartLine(1250L, 3));
+
+        ///// テスト /////
+
+		CartSnapshot restored = (CartSnapshot) deserialize(serialize(CartSnapshot.of(items)));
+
+        ///// 検証 /////
+
+		assertThat(restored.size(), is(2));
+
+		// 未永続化の明細だけなのでEntity Managerは使用されない
+		Map<Item02, CartLine> restoredItems = restored.restore(null);
+		List<Item02> expected = new ArrayList<Item02>(items.keySet());
+		assertThat(new ArrayList<Item02>(restoredItems.keySet()), is(expected));
+		assertThat(restoredItems.get(itemA).getPrice(), is(2300L));
+		assertThat(restoredItems.get(itemA).getQuantity(), is(1));
+		assertThat(restoredItems.get(itemB).getPrice(), is(1250L));
+		assertThat(restoredItems.get(itemB).getQuantity(), is(3));
+	}
+
+	/**
+	 * ・1,000件の明細を持つカートについて、Item02エンティティのリストと
+	 * 　明細ごとの単価、数量をそのままシリアライズした場合と、CartSnapshot
+	 * 　としてシリアライズした場合のバイト数と所要時間を比較する。
+	 * ・CartSnapshotの方がバイト数が小さいことを確認する。
+	 */
+	@Test
+	public void testCompareWithDefaultSerialization() throws Exception {
+
+		///// 準備 /////
+
+		Map<Item02, CartLine> items = new LinkedHashMap<Item02, CartLine>();
+		for (int i = 0; i < NUM_ITEMS; i++) {
+			items.put(new Item02("Item " + i, 10f, "Item " + i + " Description"), new CartLine(1000L, 1));
+		}
+		List<Item02> list = new ArrayList<Item02>(items.keySet());
+		long[] prices = new long[NUM_ITEMS];
+		int[] quantities = new int[NUM_ITEMS];
+		int line = 0;
+		for (CartLine cartLine : items.values()) {
+			prices[line] = cartLine.getPrice();
+			quantities[line] = cartLine.getQuantity();
+			line++;
+		}
+		// CartSnapshotと同じ情報を持つ状態
+		Object[] state = new Object[] { list, prices, quantities };
+
+        ///// テスト /////
+
+		byte[] defaultBytes = null;
+		long start = System.nanoTime();
+		for (int i = 0; i < REPEAT; i++) {
+			defaultBytes = serialize(state);
+			deserialize(defaultBytes);
+		}
+		long defaultElapsed = System.nanoTime() - start;
+
+		byte[] snapshotBytes = null;
+		start = System.nanoTime();
+		for (int i = 0; i < REPEAT; i++) {
+			snapshotBytes = serialize(CartSnapshot.of(items));
+			deserialize(snapshotBytes);
+		}
+		long snapshotElapsed = System.nanoTime() - start;
+
+        ///// 検証 /////
+
+		logger.info("default serialization : " + defaultBytes.length + " bytes/cart, "
+				+ TimeUnit.NANOSECONDS.toMicros(defaultElapsed / REPEAT) + " us/cart");
+		logger.info("CartSnapshot : " + snapshotBytes.length + " bytes/cart, "
+				+ TimeUnit.NANOSECONDS.toMicros(snapshotElapsed / REPEAT) + " us/cart");
+
+		assertThat(snapshotBytes.length < defaultBytes.length, is(true));
+	}
+
+	private static byte[] serialize(Object object) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+}
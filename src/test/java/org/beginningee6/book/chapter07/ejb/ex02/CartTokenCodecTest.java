@@ -0,0 +1,192 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.junit.Test;
+
+/**
+ * TokenCartEJBで使用するCartTokenCodecのテスト。
+ *
+ * CartTokenCodecはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ */
+public class CartTokenCodecTest {
+
+	private final CartTokenCodec codec = new CartTokenCodec("test-key".getBytes());
+
+	/**
+	 * ・明細を追加、変更したカートの内容をトークンに変換して復元する。
+	 * ・復元したカートの個数、合計金額、数量が元のカートと等しいことを確認する。
+	 */
+	@Test
+	public void testEncodeAndDecode() throws Exception {
+
+		///// 準備 /////
+
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, null);
+		CartSnapshot snapshot = new CartSnapshot()
+				.withQuantity(itemA, 2300L, 1)
+				.withQuantity(itemB, 1250L, 3)
+				.withQuantity(itemA, 2300L, 2);
+
+        ///// テスト /////
+
+		CartSnapshot restored = codec.decode(codec.encode(snapshot));
+
+        ///// 検証 /////
+
+		assertThat(restored.size(), is(2));
+		assertThat(restored.getNumberOfUnits(), is(5));
+		assertThat(restored.getTotal(), is(2300L * 2 + 1250L * 3));
+		assertThat(restored.getQuantity(itemA), is(2));
+		assertThat(restored.getQuantity(itemB), is(3));
+
+		// 数量に0を指定すると明細が削除される
+		assertThat(restored.withQuantity(itemA, 2300L, 0).size(), is(1));
+	}
+
+	/**
+	 * ・トークンを1バイトでも改ざんすると復元できないことを確認する。
+	 * ・別の鍵で署名したトークンは復元できないことを確認する。
+	 */
+	@Test
+	public void testRejectTamperedToken() throws Exception {
+
+		///// 準備 /////
+
+		Item02 item = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		byte[] token = codec.encode(new CartSnapshot().withQuantity(item, 2300L, 1));
+
+        ///// テスト＆検証 /////
+
+		// 数量を書き換えたトークン（末尾32バイトは署名）
+		for (int i = 0; i < token.length; i++) {
+			byte[] tampered = token.clone();
+			tampered[i] ^= 1;
+			try {
+				codec.decode(tampered);
+				fail("tampered token was accepted at byte " + i);
+			} catch (CartTokenException e) {
+				// 改ざんが検出された
+			}
+		}
+
+		// 別の鍵で署名したトークン
+		CartTokenCodec otherCodec = new CartTokenCodec("other-key".getBytes());
+		try {
+			codec.decode(otherCodec.encode(new CartSnapshot().withQuantity(item, 2300L, 1)));
+			fail();
+		} catch (CartTokenException e) {
+			// 署名が一致しない
+		}
+	}
+
+	/**
+	 * ・発行日時を指定してトークンに変換し、復元した発行日時が
+	 * 　指定した日時と等しいことを確認する。
+	 * ・発行日時だけを書き換えたトークンは復元できないことを確認する。
+	 */
+	@Test
+	public void testIssuedAtIsSigned() throws Exception {
+
+		///// 準備 /////
+
+		Item02 item = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		CartSnapshot snapshot = new CartSnapshot().withQuantity(item, 2300L, 1);
+		long issuedAt = 1234567890123L;
+
+        ///// テスト /////
+
+		byte[] token = codec.encode(snapshot, issuedAt);
+		CartTokenCodec.Contents contents = codec.decodeContents(token);
+
+        ///// 検証 /////
+
+		assertThat(contents.getIssuedAt(), is(issuedAt));
+		assertThat(contents.getSnapshot().getTotal(), is(2300L));
+
+		// 発行日時（バージョンの直後の8バイト）を現在の日時に書き換える
+		byte[] tampered = token.clone();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 8; i++) {
+			tampered[1 + i] = (byte) (now >>> (56 - i * 8));
+		}
+		try {
+			codec.decode(tampered);
+			fail();
+		} catch (CartTokenException e) {
+			// 改ざんが検出された
+		}
+	}
+
+	/**
+	 * ・システム・プロパティで鍵が指定されていない場合は、
+	 * 　CartTokenCodecを作成できないことを確認する。
+	 * ・同じ鍵を指定したCartTokenCodecどうしでは、
+	 * 　トークンを相互に復元できることを確認する。
+	 */
+	@Test
+	public void testFromSystemPropertyRequiresKey() throws Exception {
+		String original = System.getProperty(CartTokenCodec.KEY_PROPERTY);
+		try {
+
+			///// テスト＆検証 /////
+
+			System.clearProperty(CartTokenCodec.KEY_PROPERTY);
+			try {
+				CartTokenCodec.fromSystemProperty();
+				fail();
+			} catch (IllegalStateException e) {
+				// 鍵が指定されていない
+			}
+
+			System.setProperty(CartTokenCodec.KEY_PROPERTY, "test-key");
+			CartSnapshot snapshot = new CartSnapshot().withQuantity(
+					new Item02("Zoot Allure", 23f, "Another Zappa's master piece"), 2300L, 1);
+			byte[] token = CartTokenCodec.fromSystemProperty().encode(snapshot);
+			assertThat(codec.decode(token).getTotal(), is(2300L));
+
+		} finally {
+			if (original != null) {
+				System.setProperty(CartTokenCodec.KEY_PROPERTY, original);
+			} else {
+				System.clearProperty(CartTokenCodec.KEY_PROPERTY);
+			}
+		}
+	}
+
+	/**
+	 * ・上限サイズを超えるカートの内容はトークンに変換できないことを確認する。
+	 * ・上限サイズを超えるトークンは署名を検証せずに拒否されることを確認する。
+	 */
+	@Test
+	public void testBoundTokenSize() throws Exception {
+
+		///// 準備 /////
+
+		CartSnapshot snapshot = new CartSnapshot();
+		for (int i = 0; i < 1000; i++) {
+			snapshot = snapshot.withQuantity(
+					new Item02("Item " + i, 10f, "Item " + i + " Description"), 1000L, 1);
+		}
+
+        ///// テスト＆検証 /////
+
+		try {
+			codec.encode(snapshot);
+			fail();
+		} catch (CartTokenException e) {
+			// 上限サイズを超えている
+		}
+
+		try {
+			codec.decode(new byte[CartTokenCodec.MAX_TOKEN_BYTES + 1]);
+			fail();
+		} catch (CartTokenException e) {
+			// 上限サイズを超えている
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.naming.InitialContext;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * カタログの価格をキャッシュするシングルトン・セッションBeanのテスト。
+ * 
+ * キャッシュはテスト間で保持されるため、各テストの前後で
+ * すべてのエントリを取り除き、有効期限と最大数を元に戻す。
+ * 
+ */
+@RunWith(Arquillian.class)
+public class CatalogPriceEJBTest {
+	
+	private static final Logger logger = Logger.getLogger(CatalogPriceEJBTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs 
+			= Maven
+				.configureResolver()				
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+//				.fromFile("C:\\Maven\\apache-maven-3.0.5\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter07-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(CatalogPriceEJB.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	CatalogPriceEJB catalogPrices;
+
+	private long ttlMillis;
+	private int maxEntries;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		ttlMillis = catalogPrices.getTtlMillis();
+		maxEntries = catalogPrices.getMaxEntries();
+		catalogPrices.invalidateAll();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		catalogPrices.setTtlMillis(ttlMillis);
+		catalogPrices.setMaxEntries(maxEntries);
+		catalogPrices.invalidateAll();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item02").executeUpdate();
+		em.createQuery("DELETE FROM Sales02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * ・カタログの価格が23のItem02エンティティを、価格を1に書き換えて
+	 * 　カートに追加する。
+	 * ・カートの合計金額とチェックアウトした売上の合計金額が、
+	 * 　カタログの価格で計算されることを確認する。
+	 */
+	@Test
+	public void testCartUsesCatalogPrice() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 item = persistItem("Zoot Allure", 23f);
+		
+		// クライアントが価格を書き換えたItem02エンティティ
+		Item02 tampered = em.find(Item02.class, item.getId());
+		em.detach(tampered);
+		tampered.setPrice(1f);
+		
+		ShoppingCartEJB cart = (ShoppingCartEJB) new InitialContext()
+				.lookup("java:module/ShoppingCartEJB");
+
+        ///// テスト /////
+		
+		cart.addItem(tampered);
+		cart.addItem(tampered);
+		Float total = cart.getTotal();
+		Sales02 sales = cart.checkout("Catalog Customer");
+
+        ///// 検証 /////
+		
+		assertThat(total, is(46F));
+		assertThat(sales.getTotalAmount(), is(46F));
+	}
+
+	/**
+	 * ・同じItem02エンティティの価格を繰り返し取得する。
+	 * ・データベースから読み込むのは最初の1回だけで、
+	 * 　以降はキャッシュから返されることを確認する。
+	 * ・有効期限を過ぎると読み直され、変更後の価格が返されることを確認する。
+	 */
+	@Test
+	public void testCacheHitAndExpiry() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 item = persistItem("Zoot Allure", 23f);
+		long hitsBefore = catalogPrices.getHitCount();
+		long missesBefore = catalogPrices.getMissCount();
+
+        ///// テスト＆検証 /////
+		
+		for (int i = 0; i < 100; i++) {
+			assertThat(catalogPrices.getPrice(item), is(2300L));
+		}
+		assertThat(catalogPrices.getMissCount() - missesBefore, is(1L));
+		assertThat(catalogPrices.getHitCount() - hitsBefore, is(99L));
+		
+		// 価格を変更しても有効期限内はキャッシュの価格が返される
+		updatePrice(item.getId(), 25f);
+		assertThat(catalogPrices.getPrice(item), is(2300L));
+		
+		// 有効期限を過ぎると読み直される
+		catalogPrices.setTtlMillis(1);
+		catalogPrices.invalidate(item.getId());
+		assertThat(catalogPrices.getPrice(item), is(2500L));
+		Thread.sleep(10);
+		updatePrice(item.getId(), 27f);
+		assertThat(catalogPrices.getPrice(item), is(2700L));
+	}
+
+	/**
+	 * ・最大数を10に設定して、20件のItem02エンティティの価格を取得する。
+	 * ・キャッシュのエントリの数が最大数を超えないことを確認する。
+	 * ・未永続化のItem02エンティティはキャッシュされず、自身の価格が
+	 * 　返されることを確認する。
+	 */
+	@Test
+	public void testBoundedEntries() throws Exception {
+		
+		///// 準備 /////
+		
+		catalogPrices.setMaxEntries(10);
+
+        ///// テスト＆検証 /////
+		
+		for (int i = 0; i < 20; i++) {
+			Item02 item = persistItem("Item " + i, 10f + i);
+			assertThat(catalogPrices.getPrice(item), is(1000L + i * 100));
+			assertThat(catalogPrices.size() <= 10, is(true));
+		}
+		
+		int size = catalogPrices.size();
+		assertThat(catalogPrices.getPrice(new Item02("Transient", 12.5F, null)), is(1250L));
+		assertThat(catalogPrices.size(), is(size));
+	}
+	
+	private Item02 persistItem(String title, Float price) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 item = new Item02(title, price, title + " Description");
+		em.persist(item);
+		userTransaction.commit();
+		return item;
+	}
+	
+	private void updatePrice(Long id, Float price) throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+		em.find(Item02.class, id).setPrice(price);
+		userTransaction.commit();
+	}
+}
@@ -0,0 +1,245 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * チェックアウト時に在庫を引き当てるInventoryReservationsのテスト。
+ *
+ * InventoryReservationsはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ */
+public class InventoryReservationsTest {
+
+	private static final Logger logger = Logger.getLogger(InventoryReservationsTest.class
+			.getName());
+
+	/**
+	 * ・在庫数が足りない明細を含むカートを引き当てる。
+	 * ・OutOfStockExceptionがスローされ、どの商品の在庫数も
+	 * 　変わらないことを確認する。
+	 * ・在庫数が足りるカートを引き当て、在庫を管理しない商品を除いて
+	 * 　引き当てられること、戻すと元の在庫数になることを確認する。
+	 */
+	@Test
+	public void testReserveAllOrNothing() throws Exception {
+
+		///// 準備 /////
+
+		InventoryReservations inventory = new InventoryReservations(16);
+		inventory.setStock(1L, 2);
+		inventory.setStock(2L, 1);
+
+        ///// テスト＆検証 /////
+
+		Map<Long, Integer> tooMany = new HashMap<Long, Integer>();
+		tooMany.put(1L, 1);
+		tooMany.put(2L, 2);
+		try {
+			inventory.reserve(tooMany);
+			fail("OutOfStockException must be thrown");
+		} catch (OutOfStockException e) {
+			assertThat(e.getItemId(), is(2L));
+		}
+		assertThat(inventory.getStock(1L), is(2));
+		assertThat(inventory.getStock(2L), is(1));
+
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		quantities.put(1L, 2);
+		quantities.put(2L, 1);
+		quantities.put(3L, 5);	// 在庫を管理しない商品
+		Map<Long, Integer> reserved = inventory.reserve(quantities);
+
+		assertThat(reserved.size(), is(2));
+		assertThat(inventory.getStock(1L), is(0));
+		assertThat(inventory.getStock(2L), is(0));
+		assertThat(inventory.getStock(3L), is(-1));
+
+		inventory.release(reserved);
+		assertThat(inventory.getStock(1L), is(2));
+		assertThat(inventory.getStock(2L), is(1));
+	}
+
+	/**
+	 * ・主キーの順と異なる順序で明細を並べたカートを引き当てる。
+	 * ・引き当てた商品が主キーの昇順で返される（INVENTORYテーブルの
+	 * 　行をこの順に更新する）ことを確認する。
+	 * ・replaceAll()で在庫数を置き換えると、含まれない商品は在庫を
+	 * 　管理しなくなることを確認する。
+	 */
+	@Test
+	public void testReserveInKeyOrderAndReplaceAll() throws Exception {
+
+		///// 準備 /////
+
+		InventoryReservations inventory = new InventoryReservations(16);
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		for (long id = 1000; id > 0; id -= 37) {
+			inventory.setStock(id, 10);
+			quantities.put(id, 1);
+		}
+
+        ///// テスト＆検証 /////
+
+		List<Long> ids = new ArrayList<Long>(inventory.reserve(quantities).keySet());
+		assertThat(ids.size(), is(quantities.size()));
+		for (int i = 1; i < ids.size(); i++) {
+			assertThat(ids.get(i) > ids.get(i - 1), is(true));
+		}
+
+		Map<Long, Integer> stock = new HashMap<Long, Integer>();
+		stock.put(1000L, 3);
+		stock.put(2000L, 5);
+		inventory.replaceAll(stock);
+		assertThat(inventory.getStock(1000L), is(3));
+		assertThat(inventory.getStock(2000L), is(5));
+		assertThat(inventory.getStock(963L), is(-1));
+	}
+
+	/**
+	 * ・8スレッドから並行して、20件の商品からランダムに選んだ
+	 * 　3明細のカートを、在庫がなくなるまで引き当てる。
+	 * 　（スレッドごとに明細の順序は異なる）
+	 * ・デッドロックせずに完了し、引き当てた数量と残りの在庫数の
+	 * 　合計が最初の在庫数と等しいこと（過剰に引き当てないこと）を
+	 * 　確認する。
+	 */
+	@Test
+	public void testConcurrentReservationsDoNotOversell() throws Exception {
+
+		///// 準備 /////
+
+		final int numThreads = 8;
+		final int numItems = 20;
+		final int initialStock = 1000;
+		final InventoryReservations inventory = new InventoryReservations(4);
+		for (long id = 0; id < numItems; id++) {
+			inventory.setStock(id, initialStock);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        ///// テスト /////
+
+		List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+		for (int t = 0; t < numThreads; t++) {
+			final Random random = new Random(t);
+			tasks.add(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					long[] reserved = new long[numItems];
+					int failures = 0;
+					while (failures < 100) {
+						Map<Long, Integer> cart = new HashMap<Long, Integer>();
+						while (cart.size() < 3) {
+							cart.put((long) random.nextInt(numItems), 1 + random.nextInt(3));
+						}
+						try {
+							for (Map.Entry<Long, Integer> line : inventory.reserve(cart).entrySet()) {
+								reserved[line.getKey().intValue()] += line.getValue();
+							}
+						} catch (OutOfStockException e) {
+							failures++;
+						}
+					}
+					return reserved;
+				}
+			});
+		}
+		long[] reserved = new long[numItems];
+		for (Future<long[]> future : executor.invokeAll(tasks)) {
+			long[] threadReserved = future.get(60, TimeUnit.SECONDS);
+			for (int i = 0; i < numItems; i++) {
+				reserved[i] += threadReserved[i];
+			}
+		}
+		executor.shutdown();
+
+        ///// 検証 /////
+
+		for (int i = 0; i < numItems; i++) {
+			assertThat(inventory.getStock((long) i) >= 0, is(true));
+			assertThat(reserved[i] + inventory.getStock((long) i), is((long) initialStock));
+		}
+	}
+
+	/**
+	 * ・10,000件の商品のうち、明細の9割が10件の人気商品に集中する
+	 * 　カートと、明細が全商品に均等に分散するカートを、32スレッドから
+	 * 　並行して引き当てては戻す。
+	 * ・1つのロック（ストライプ数1）で排他制御する場合と、
+	 * 　256のストライプに分割する場合の所要時間をログに出力する。
+	 * ・いずれの場合も、すべての在庫が元に戻ることを確認する。
+	 * 
+	 * （人気商品に集中する場合は、同じ商品のストライプで待ち合わせが
+	 * 　起きるため、ストライプに分割しても差は小さくなる）
+	 */
+	@Test
+	public void testContentionWithHotItems() throws Exception {
+		int numThreads = 32;
+		int numCarts = 10000;
+		for (int hotPercent : new int[] { 90, 0 }) {
+			for (int stripes : new int[] { 1, 256 }) {
+				long elapsed = runHotItems(stripes, hotPercent, numThreads, numCarts);
+				logger.info(hotPercent + "% hot, " + stripes + " stripes : "
+						+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+						+ ((long) numThreads * numCarts * 1000000000L / Math.max(1, elapsed))
+						+ " reservations/s");
+			}
+		}
+	}
+
+	private long runHotItems(int stripes, final int hotPercent, int numThreads, final int numCarts) throws Exception {
+		final int numItems = 10000;
+		final int hotItems = 10;
+		final int initialStock = 1000000;
+		final InventoryReservations inventory = new InventoryReservations(stripes);
+		for (long id = 0; id < numItems; id++) {
+			inventory.setStock(id, initialStock);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < numThreads; t++) {
+			final Random random = new Random(t);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < numCarts; i++) {
+						Map<Long, Integer> cart = new HashMap<Long, Integer>();
+						while (cart.size() < 5) {
+							long id = random.nextInt(100) < hotPercent
+									? random.nextInt(hotItems)
+									: hotItems + random.nextInt(numItems - hotItems);
+							cart.put(id, 1);
+						}
+						inventory.release(inventory.reserve(cart));
+					}
+					return null;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			future.get(60, TimeUnit.SECONDS);
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		for (long id = 0; id < numItems; id++) {
+			assertThat(inventory.getStock(id), is(initialStock));
+		}
+		return elapsed;
+	}
+}
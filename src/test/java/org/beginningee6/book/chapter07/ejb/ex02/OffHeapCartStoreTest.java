@@ -0,0 +1,211 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * パッシベーションされたカートの内容をヒープの外に保持する
+ * OffHeapCartStoreのテスト。
+ *
+ * OffHeapCartStoreはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ */
+public class OffHeapCartStoreTest {
+
+	private static final Logger logger = Logger.getLogger(OffHeapCartStoreTest.class
+			.getName());
+
+	/**
+	 * ・複数のスロットにまたがるデータを格納して取り出す。
+	 * ・取り出したデータが格納したデータと等しいこと、
+	 * 　取り出した後はスロットが解放され、同じハンドルで
+	 * 　再度取り出せないことを確認する。
+	 */
+	@Test
+	public void testPutAndTake() throws Exception {
+
+		///// 準備 /////
+
+		OffHeapCartStore store = new OffHeapCartStore(64, 10);
+		byte[] data = new byte[100];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+        ///// テスト /////
+
+		long handle = store.put(data);
+
+        ///// 検証 /////
+
+		// 1スロットあたり40バイトなので3スロットを使用する
+		assertThat(store.getFreeSlots(), is(7));
+
+		assertThat(Arrays.equals(store.take(handle), data), is(true));
+		assertThat(store.getFreeSlots(), is(10));
+
+		// 解放済みのハンドルでは取り出せない
+		assertThat(store.take(handle), is(nullValue()));
+	}
+
+	/**
+	 * ・空きスロットが足りない場合は格納できないことを確認する。
+	 * ・保持期間を過ぎたデータが解放されることを確認する。
+	 */
+	@Test
+	public void testPutWhenStoreIsFullAndPurge() throws Exception {
+
+		///// 準備 /////
+
+		OffHeapCartStore store = new OffHeapCartStore(64, 2);
+		long handle = store.put(new byte[80]);
+
+        ///// テスト＆検証 /////
+
+		// 空きスロットが足りない
+		assertThat(store.put(new byte[10]), is(OffHeapCartStore.NO_HANDLE));
+
+		// 保持期間を過ぎたデータを解放
+		assertThat(store.purge(System.currentTimeMillis() + 1), is(1));
+		assertThat(store.getFreeSlots(), is(2));
+		assertThat(store.take(handle), is(nullValue()));
+	}
+
+	/**
+	 * ・格納したデータの使用をtouch()で記録する。
+	 * ・格納した時刻を過ぎても、使用を記録した時刻より前を指定した
+	 * 　purge()では解放されないことを確認する。
+	 * ・解放済みのハンドルのtouch()は無視されることを確認する。
+	 */
+	@Test
+	public void testTouchKeepsDataFromPurge() throws Exception {
+
+		///// 準備 /////
+
+		OffHeapCartStore store = new OffHeapCartStore(64, 4);
+		long handle = store.put(new byte[] { 1, 2, 3 });
+		Thread.sleep(20);
+		long storedBefore = System.currentTimeMillis();
+		Thread.sleep(20);
+
+        ///// テスト＆検証 /////
+
+		assertThat(store.touch(handle), is(true));
+		assertThat(store.purge(storedBefore), is(0));
+		assertThat(Arrays.equals(store.take(handle), new byte[] { 1, 2, 3 }), is(true));
+
+		assertThat(store.touch(handle), is(false));
+		assertThat(store.getFreeSlots(), is(4));
+	}
+
+	/**
+	 * ・100,000件のカートの内容を複数のスレッドから並行して
+	 * 　格納し、取り出す。
+	 * ・すべてのカートの内容が正しく取り出せること、すべての
+	 * 　スロットが解放されることを確認する。
+	 * ・所要時間と、格納している間のヒープ使用量の増分を
+	 * 　ログに出力する。
+	 */
+	@Test
+	public void testConcurrentCarts() throws Exception {
+
+		///// 準備 /////
+
+		final int numCarts = 100000;
+		final int numThreads = 8;
+		final OffHeapCartStore store = new OffHeapCartStore(128, numCarts * 2);
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        ///// テスト /////
+
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+
+		// 各スレッドでカートの内容を格納
+		List<Future<long[]>> puts = new ArrayList<Future<long[]>>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			puts.add(executor.submit(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					long[] handles = new long[numCarts / numThreads];
+					for (int i = 0; i < handles.length; i++) {
+						handles[i] = store.put(cartData(thread * handles.length + i));
+					}
+					return handles;
+				}
+			}));
+		}
+		final List<long[]> handles = new ArrayList<long[]>();
+		for (Future<long[]> put : puts) {
+			handles.add(put.get());
+		}
+		long stored = System.nanoTime();
+		long heapStored = usedHeap();
+
+		// 各スレッドでカートの内容を取り出して検証
+		List<Future<Boolean>> takes = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < numThreads; t++) {
+			final int thread = t;
+			takes.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					long[] threadHandles = handles.get(thread);
+					for (int i = 0; i < threadHandles.length; i++) {
+						byte[] expected = cartData(thread * threadHandles.length + i);
+						if (!Arrays.equals(store.take(threadHandles[i]), expected)) {
+							return false;
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		boolean allRestored = true;
+		for (Future<Boolean> take : takes) {
+			allRestored &= take.get();
+		}
+		long taken = System.nanoTime();
+		executor.shutdown();
+
+        ///// 検証 /////
+
+		assertThat(allRestored, is(true));
+		assertThat(store.getFreeSlots(), is(numCarts * 2));
+
+		logger.info("put " + numCarts + " carts : "
+				+ TimeUnit.NANOSECONDS.toMillis(stored - start) + " ms");
+		logger.info("take " + numCarts + " carts : "
+				+ TimeUnit.NANOSECONDS.toMillis(taken - stored) + " ms");
+		logger.info("heap used while stored : "
+				+ ((heapStored - heapBefore) / numCarts) + " bytes/cart");
+	}
+
+	/**
+	 * カートの番号ごとに異なる内容（10明細分）を生成する
+	 */
+	private static byte[] cartData(int cart) {
+		byte[] data = new byte[160];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (cart + i);
+		}
+		return data;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
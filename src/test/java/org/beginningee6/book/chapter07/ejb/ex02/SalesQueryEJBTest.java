@@ -0,0 +1,293 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Sales02エンティティを検索するステートレス・セッションBeanのテスト。
+ * 
+ * 各テストの前に、顧客名と売上の日時の異なるSales02エンティティを
+ * 永続化しておき、キーセット・ページネーションで順にページを
+ * 取得できることを確認する。
+ * 
+ */
+@RunWith(Arquillian.class)
+public class SalesQueryEJBTest {
+	
+	private static final Logger logger = Logger.getLogger(SalesQueryEJBTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs 
+			= Maven
+				.configureResolver()				
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+//				.fromFile("C:\\Maven\\apache-maven-3.0.5\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter07-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(SalesQueryEJB.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	SalesQueryEJB salesQueryEJB;
+
+	// 今日の0時から見て何日前の売上かを表す日時
+	private Date today;
+	private Date yesterday;
+	private Date twoDaysAgo;
+
+	@Before
+	public void setUp() throws Exception {
+		long midnight = System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1) * TimeUnit.DAYS.toMillis(1);
+		today = new Date(midnight + TimeUnit.HOURS.toMillis(1));
+		yesterday = new Date(today.getTime() - TimeUnit.DAYS.toMillis(1));
+		twoDaysAgo = new Date(today.getTime() - TimeUnit.DAYS.toMillis(2));
+
+		clearData();
+		insertData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item02").executeUpdate();
+		em.createQuery("DELETE FROM Sales02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * Customer Aの売上を5件（今日3件、昨日2件）、
+	 * Customer Bの売上を2件（2日前）永続化する。
+	 * 各売上には2件のItem02エンティティを関連付ける。
+	 */
+	private void insertData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		Date[] customerADates = { yesterday, yesterday, today, today, today };
+		for (int i = 0; i < customerADates.length; i++) {
+			persistSales("Customer A", customerADates[i], i);
+		}
+		for (int i = 0; i < 2; i++) {
+			persistSales("Customer B", twoDaysAgo, 10 + i);
+		}
+
+		userTransaction.commit();
+	}
+
+	private void persistSales(String customerName, Date date, int number) {
+		Item02 itemA = new Item02("Item " + number + "-A", 1f, "Item Description");
+		Item02 itemB = new Item02("Item " + number + "-B", 2f, "Item Description");
+		em.persist(itemA);
+		em.persist(itemB);
+
+		Sales02 sales = new Sales02(customerName, date);
+		sales.setTotalAmount(3f);
+		sales.setItems(new ArrayList<Item02>(Arrays.asList(itemA, itemB)));
+		em.persist(sales);
+	}
+
+	/**
+	 * ・Customer Aの売上を1ページ2件で順に取得する。
+	 * ・2件、2件、1件、0件の順にページが返され、主キーが重複せずに
+	 * 　昇順となっていること、各売上のItem02エンティティが
+	 * 　取得済みであることを確認する。
+	 */
+	@Test
+	public void testFindSalesByCustomer() throws Exception {
+
+        ///// テスト /////
+		
+		List<Integer> pageSizes = new ArrayList<Integer>();
+		List<Long> ids = new ArrayList<Long>();
+		Long afterId = null;
+		while (true) {
+			List<Sales02> page = salesQueryEJB.findSalesByCustomer("Customer A", afterId, 2);
+			pageSizes.add(page.size());
+			if (page.isEmpty()) {
+				break;
+			}
+			for (Sales02 sales : page) {
+				assertThat(sales.getCustomerName(), is("Customer A"));
+				// トランザクションの外でも参照できる
+				assertThat(sales.getItems().size(), is(2));
+				ids.add(sales.getId());
+			}
+			afterId = page.get(page.size() - 1).getId();
+		}
+
+        ///// 検証 /////
+		
+		assertThat(pageSizes, is(Arrays.asList(2, 2, 1, 0)));
+		assertThat(ids.size(), is(5));
+		for (int i = 1; i < ids.size(); i++) {
+			assertThat(ids.get(i) > ids.get(i - 1), is(true));
+		}
+	}
+
+	/**
+	 * ・昨日の0時から今日の終わりまでの売上を1ページ4件で取得する。
+	 * ・Customer Aの5件だけが4件、1件のページで返されることを確認する。
+	 */
+	@Test
+	public void testFindSalesBetween() throws Exception {
+
+		///// 準備 /////
+		
+		Date from = new Date(yesterday.getTime() - TimeUnit.HOURS.toMillis(1));
+		Date to = new Date(today.getTime() + TimeUnit.DAYS.toMillis(1));
+
+        ///// テスト /////
+		
+		List<Sales02> first = salesQueryEJB.findSalesBetween(from, to, null, null, 4);
+		Sales02 last = first.get(first.size() - 1);
+		List<Sales02> second = salesQueryEJB.findSalesBetween(
+				from, to, last.getSalesDate(), last.getId(), 4);
+
+        ///// 検証 /////
+		
+		assertThat(first.size(), is(4));
+		assertThat(second.size(), is(1));
+		for (Sales02 sales : first) {
+			assertThat(sales.getCustomerName(), is("Customer A"));
+			assertThat(sales.getItems().size(), is(2));
+		}
+		assertThat(second.get(0).getCustomerName(), is("Customer A"));
+	}
+
+	/**
+	 * ・主キーの順と日時の順が逆になるように、今日の売上を3件
+	 * 　（日時の遅いものから順、うち2件は同じ日時）永続化する。
+	 * ・今日の売上を1ページ1件で順に取得する。
+	 * ・売上の日時の順（同じ日時では主キーの順）に、今日の6件が
+	 * 　重複も欠落もなく返されることを確認する。
+	 */
+	@Test
+	public void testFindSalesBetweenPagesByDate() throws Exception {
+
+		///// 準備 /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		persistSales("Customer C", new Date(today.getTime() + TimeUnit.HOURS.toMillis(3)), 20);
+		persistSales("Customer C", new Date(today.getTime() + TimeUnit.HOURS.toMillis(2)), 21);
+		persistSales("Customer C", new Date(today.getTime() + TimeUnit.HOURS.toMillis(2)), 22);
+		userTransaction.commit();
+		
+		Date from = new Date(today.getTime() - TimeUnit.HOURS.toMillis(1));
+		Date to = new Date(today.getTime() + TimeUnit.DAYS.toMillis(1));
+
+        ///// テスト /////
+		
+		List<Sales02> found = new ArrayList<Sales02>();
+		Date afterDate = null;
+		Long afterId = null;
+		while (true) {
+			List<Sales02> page = salesQueryEJB.findSalesBetween(from, to, afterDate, afterId, 1);
+			if (page.isEmpty()) {
+				break;
+			}
+			found.addAll(page);
+			afterDate = page.get(0).getSalesDate();
+			afterId = page.get(0).getId();
+		}
+
+        ///// 検証 /////
+		
+		assertThat(found.size(), is(6));
+		for (int i = 1; i < found.size(); i++) {
+			Sales02 previous = found.get(i - 1);
+			Sales02 current = found.get(i);
+			int byDate = current.getSalesDate().compareTo(previous.getSalesDate());
+			assertThat(byDate > 0 || (byDate == 0 && current.getId() > previous.getId()), is(true));
+		}
+	}
+
+	/**
+	 * ・1未満のlimitを指定して売上を取得する。
+	 * ・取得が進まない呼び出しにならないように、例外がスローされる
+	 * 　ことを確認する。
+	 */
+	@Test
+	public void testFindSalesRejectsInvalidLimit() throws Exception {
+		for (int limit : new int[] { 0, -1 }) {
+			try {
+				salesQueryEJB.findSalesByCustomer("Customer A", null, limit);
+				fail("Exception must be thrown : limit = " + limit);
+			} catch (EJBException e) {
+				// システム例外はEJBExceptionに包まれる
+				assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+			}
+			try {
+				salesQueryEJB.findSalesBetween(twoDaysAgo, new Date(), null, null, limit);
+				fail("Exception must be thrown : limit = " + limit);
+			} catch (EJBException e) {
+				assertThat(e.getCause(), is(instanceOf(IllegalArgumentException.class)));
+			}
+		}
+	}
+
+	/**
+	 * ・上限を超えるlimitを指定して売上を取得する。
+	 * ・上限の件数で取得され、全件（Customer Aの5件）が返される
+	 * 　ことを確認する。
+	 */
+	@Test
+	public void testFindSalesCapsLimit() throws Exception {
+
+        ///// テスト /////
+		
+		List<Sales02> page = salesQueryEJB.findSalesByCustomer("Customer A", null, Integer.MAX_VALUE);
+
+        ///// 検証 /////
+		
+		assertThat(page.size(), is(5));
+	}
+}
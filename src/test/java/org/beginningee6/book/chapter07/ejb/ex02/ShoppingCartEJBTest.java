@@ -4,12 +4,23 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
 import javax.inject.Inject;
+import javax.naming.InitialContext;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
@@ -18,6 +29,8 @@ import javax.transaction.UserTransaction;
 import org.beginningee6.book.chapter07.ejb.ex02.ShoppingCartEJB;
 import org.beginningee6.book.chapter07.jpa.ex02.Item02;
 import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -78,6 +91,27 @@ public class ShoppingCartEJBTest {
 
 	@EJB
 	ShoppingCartEJB cartEJB;	// ステートフル・セッションBeanの注入
+	
+	@EJB
+	CheckoutWriterEJB checkoutWriter;
+	
+	@EJB
+	SalesRollupEJB salesRollup;
+	
+	@EJB
+	CartReplicatorEJB cartReplicator;
+	
+	@EJB
+	CartCapacityEJB cartCapacity;
+	
+	@EJB
+	InventoryEJB inventory;
+	
+	@EJB
+	CheckoutKeyRegistryEJB checkoutKeys;
+
+	@EJB
+	SalesLineEJB salesLines;
 
 	@Before
 	public void setUp() throws Exception {
@@ -120,6 +154,7 @@ public class ShoppingCartEJBTest {
 
 		em.createQuery("DELETE FROM Item02").executeUpdate();
 		em.createQuery("DELETE FROM Sales02").executeUpdate();
+		em.createNativeQuery("DELETE FROM " + SalesLineEJB.TABLE).executeUpdate();
 		userTransaction.commit();
 	}
 
@@ -165,16 +200,16 @@ public class ShoppingCartEJBTest {
 	/**
 	 * ・ステートフル・セッションBeanのカートにItem02エンティティが
 	 * 　1つ追加されている状態で、同じオブジェクトを加える。
-	 * ・この時、カートにある商品の個数および合計金額が
-	 * 　変化しないことを確認する。
+	 * ・この時、明細は増えずにその明細の数量が2となり、
+	 * 　カートにある商品の個数および合計金額が1個分
+	 * 　増加することを確認する。
 	 * 
-	 * （cartEJB.addItemは、List.contains()がfalseの場合のみ
-	 * リストに加えるように実装されており、List.contains()は
-	 * Item02クラスのequals()メソッドの実装に依存する。
+	 * （cartEJB.addItemは、Map.containsKey()がtrueの場合は
+	 * 明細の数量を増やすように実装されており、Map.containsKey()は
+	 * Item02クラスのequals()、hashCode()メソッドの実装に依存する。
 	 * 実装は同じオブジェクト参照または同じ値のオブジェクトで
 	 * trueとなるようになっているため、同じオブジェクトを
-	 * 加えてもリストにそのオブジェクトが追加されないように
-	 * なっている。）
+	 * 加えると既存の明細の数量が増えるようになっている。）
 	 * 
 	 */
 	@Test
@@ -194,25 +229,27 @@ public class ShoppingCartEJBTest {
         
         ///// 検証 /////
         
-		// 商品の数、合計金額が変化しないことを確認
-		assertThat(cartEJB.getNumberOfItems(), 	is(beforeNumItems));
-		assertThat(cartEJB.getTotal(), 			is(beforeTotal));
+		// 商品の数、合計金額が1個分増加することを確認
+		assertThat(cartEJB.getNumberOfItems(), 	is(beforeNumItems + 1));
+		assertThat(cartEJB.getTotal(), 			is(beforeTotal + 23f));
+		assertThat(cartEJB.getQuantity(itemA), 	is(2));
 	}
 
 	/**
 	 * ・ステートフル・セッションBeanのカートにItem02エンティティが
 	 * 　1つ追加されている状態で、追加されているエンティティと
 	 * 　同じ値を持つ別のオブジェクトを加える。
-	 * ・この時、カートにある商品の個数および合計金額が
-	 * 　変化しないことを確認する。
+	 * ・この時、明細は増えずにその明細の数量が2となり、
+	 * 　カートにある商品の個数および合計金額が1個分
+	 * 　増加することを確認する。
 	 * 
-	 * （cartEJB.addItemは、List.contains()がfalseの場合のみ
-	 * リストに加えるように実装されており、List.contains()は
-	 * Item02クラスのequals()メソッドの実装に依存する。
+	 * （cartEJB.addItemは、Map.containsKey()がtrueの場合は
+	 * 明細の数量を増やすように実装されており、Map.containsKey()は
+	 * Item02クラスのequals()、hashCode()メソッドの実装に依存する。
 	 * 実装は同じオブジェクト参照または同じ値のオブジェクトで
 	 * trueとなるようになっているため、同じフィールド値を持つ
-	 * オブジェクトを加えてもリストにそのオブジェクトが追加
-	 * されないようになっている。）
+	 * オブジェクトを加えると既存の明細の数量が増えるように
+	 * なっている。）
 	 */
 	@Test
 	public void testAddItemAWhenCartHasItemBofSameValue() throws Exception {
@@ -232,9 +269,10 @@ public class ShoppingCartEJBTest {
         
         ///// 検証 /////
         
-		// 商品の数、合計金額が変化しないことを確認
-		assertThat(cartEJB.getNumberOfItems(), 	is(beforeNumItems));
-		assertThat(cartEJB.getTotal(), 			is(beforeTotal));
+		// 商品の数、合計金額が1個分増加することを確認
+		assertThat(cartEJB.getNumberOfItems(), 	is(beforeNumItems + 1));
+		assertThat(cartEJB.getTotal(), 			is(beforeTotal + 23f));
+		assertThat(cartEJB.getQuantity(itemA), 	is(2));
 	}
 
 	/**
@@ -267,6 +305,136 @@ public class ShoppingCartEJBTest {
 		assertThat(cartEJB.getTotal(), 			is(beforeTotal + 12.5f));
 	}
 	
+	/**
+	 * ・ステートフル・セッションBeanのカートに価格が0.1の
+	 * 　Item02エンティティを10件加え、そのうち5件を削除する。
+	 * ・合計金額にfloatの加減算による丸め誤差が生じないことを
+	 * 　確認する。
+	 */
+	@Test
+	public void testTotalHasNoRoundingError() throws Exception {
+		
+		///// 準備 /////
+		
+		List<Item02> items = new ArrayList<Item02>();
+		for (int i = 0; i < 10; i++) {
+			items.add(new Item02("Item " + i, 0.1f, "Item " + i + " Description"));
+		}
+
+        ///// テスト＆検証 /////
+        
+		for (Item02 item : items) {
+			cartEJB.addItem(item);
+		}
+		assertThat(cartEJB.getTotal(), is(1.0f));
+		
+		for (Item02 item : items.subList(0, 5)) {
+			cartEJB.removeItem(item);
+		}
+		assertThat(cartEJB.getTotal(), is(0.5f));
+	}
+	
+	/**
+	 * ・カートにあるItem02エンティティの数量を設定・増減する。
+	 * ・個数と合計金額が数量に応じて更新され、数量が0以下に
+	 * 　なった明細は削除されることを確認する。
+	 */
+	@Test
+	public void testSetQuantityAndIncrement() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+
+        ///// テスト＆検証 /////
+		
+		// カートにない場合は指定した数量で追加される
+		CartSummary summary = cartEJB.setQuantity(itemA, 3);
+		assertThat(summary.getNumberOfItems(), is(3));
+		assertThat(summary.getTotal(), is(69f));
+		
+		summary = cartEJB.increment(itemB, 2);
+		assertThat(summary.getNumberOfItems(), is(5));
+		assertThat(summary.getTotal(), is(94f));
+		
+		summary = cartEJB.increment(itemA, -1);
+		assertThat(summary.getNumberOfItems(), is(4));
+		assertThat(summary.getTotal(), is(71f));
+		assertThat(cartEJB.getQuantity(itemA), is(2));
+		
+		// 数量が0以下になると明細が削除される
+		summary = cartEJB.increment(itemB, -5);
+		assertThat(summary.getNumberOfItems(), is(2));
+		assertThat(summary.getTotal(), is(46f));
+		assertThat(cartEJB.getQuantity(itemB), is(0));
+		
+		summary = cartEJB.setQuantity(itemA, 0);
+		assertThat(summary.getNumberOfItems(), is(0));
+		assertThat(summary.getTotal(), is(0f));
+	}
+	
+	/**
+	 * ・200件のItem02エンティティを1回の呼び出しでカートに加える。
+	 * ・返された件数と合計金額が、カートの件数と合計金額に
+	 * 　一致することを確認する。
+	 */
+	@Test
+	public void testAddItems() throws Exception {
+		
+		///// 準備 /////
+		
+		List<Item02> items = new ArrayList<Item02>();
+		for (int i = 0; i < 200; i++) {
+			items.add(new Item02("Item " + i, 1.5f, "Item " + i + " Description"));
+		}
+
+        ///// テスト /////
+        
+		CartSummary summary = cartEJB.addItems(items);
+        
+        ///// 検証 /////
+        
+		assertThat(summary.getNumberOfItems(), is(200));
+		assertThat(summary.getTotal(), is(300f));
+		assertThat(cartEJB.getNumberOfItems(), is(200));
+		assertThat(cartEJB.getTotal(), is(300f));
+		
+		// 削除もまとめて行える
+		summary = cartEJB.removeItems(items.subList(0, 100));
+		assertThat(summary.getNumberOfItems(), is(100));
+		assertThat(summary.getTotal(), is(150f));
+	}
+	
+	/**
+	 * ・ステートフル・セッションBeanのカートにItem02エンティティが
+	 * 　2つある状態で、1つを削除して別の1つを加える更新を
+	 * 　1回の呼び出しで行う。
+	 * ・削除と追加の両方に含まれるItem02エンティティはカートに
+	 * 　残ることを確認する。
+	 */
+	@Test
+	public void testApplyDelta() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		Item02 itemC = new Item02("Item C", 1f, "Item C Description");
+		cartEJB.addItems(Arrays.asList(itemA, itemB));
+
+        ///// テスト /////
+        
+		CartSummary summary = cartEJB.applyDelta(
+				Arrays.asList(itemB, itemC), Arrays.asList(itemA, itemB));
+        
+        ///// 検証 /////
+        
+		// itemAが削除され、itemCが追加され、itemBは残る
+		assertThat(summary.getNumberOfItems(), is(2));
+		assertThat(summary.getTotal(), is(13.5f));
+	}
+	
 	/**
 	 * ・ステートフル・セッションBeanの初期状態（カートに商品がない状態）から、
 	 * 　Item02エンティティを削除する。
@@ -294,12 +462,12 @@ public class ShoppingCartEJBTest {
 	 * ステートフル・セッションBeanのカートにItem02エンティティが
 	 * 追加されている状態で、同じオブジェクトを削除する。
 	 * 
-	 * （cartEJB.removeItemは、List.contains()がtrueの場合のみ
-	 * リストから削除するように実装されており、List.contains()は
-	 * Item02クラスのequals()メソッドの実装に依存する。
+	 * （cartEJB.removeItemは、Set.contains()がtrueの場合のみ
+	 * セットから削除するように実装されており、Set.contains()は
+	 * Item02クラスのequals()、hashCode()メソッドの実装に依存する。
 	 * 実装は同じオブジェクト参照または同じ値のオブジェクトで
 	 * trueとなるようになっているため、同じオブジェクトを
-	 * 引数に指定したばあいは、そのオブジェクトがリストから
+	 * 引数に指定したばあいは、そのオブジェクトがセットから
 	 * 削除されるようになっている。）
 	 * 
 	 */
@@ -326,12 +494,12 @@ public class ShoppingCartEJBTest {
 	 * ステートフル・セッションBeanのカートにItem02エンティティが
 	 * 加えられている状態で、同じ値を持つ別のオブジェクトを削除する。
 	 * 
-	 * （cartEJB.removeItemは、List.contains()がtrueの場合のみ
-	 * リストから削除するように実装されており、List.contains()は
-	 * Item02クラスのequals()メソッドの実装に依存する。
+	 * （cartEJB.removeItemは、Set.contains()がtrueの場合のみ
+	 * セットから削除するように実装されており、Set.contains()は
+	 * Item02クラスのequals()、hashCode()メソッドの実装に依存する。
 	 * 実装は同じオブジェクト参照または同じ値のオブジェクトで
 	 * trueとなるようになっているため、同じ値を持つ別のオブジェクトを
-	 * 引数に指定した場合は、同じ値を持つオブジェクトがリストから
+	 * 引数に指定した場合は、同じ値を持つオブジェクトがセットから
 	 * 削除されるようになっている。）
 	 */
 	@Test
@@ -428,6 +596,61 @@ public class ShoppingCartEJBTest {
 		assertThat(cartEJB.getTotal(), is(0f));
 	}
 	
+	/**
+	 * ・ステートフル・セッションBeanのカートに10,000件の異なる
+	 * 　Item02エンティティを加え、同じ値を持つ別のオブジェクトで
+	 * 　重複して加えた後、すべて削除する。
+	 * ・重複した分は明細の数量として数えられ、すべて削除される
+	 * 　ことを確認するとともに、
+	 * 　それぞれの処理に要した時間をログに出力する。
+	 * 
+	 * （カートの件数に比例して1件あたりの処理時間が増えないことを
+	 * 　ログで確認するためのテスト。）
+	 */
+	@Test
+	public void testAddAndRemoveManyItems() throws Exception {
+		
+		///// 準備 /////
+		
+		final int numItems = 10000;
+		List<Item02> items = new ArrayList<Item02>();
+		List<Item02> sameValueItems = new ArrayList<Item02>();
+		for (int i = 0; i < numItems; i++) {
+			items.add(new Item02("Item " + i, 1f, "Item " + i + " Description"));
+			sameValueItems.add(new Item02("Item " + i, 1f, "Item " + i + " Description"));
+		}
+
+        ///// テスト＆検証 /////
+		
+		long start = System.nanoTime();
+		for (Item02 item : items) {
+			cartEJB.addItem(item);
+		}
+		long added = System.nanoTime();
+		for (Item02 item : sameValueItems) {
+			cartEJB.addItem(item);
+		}
+		long addedAgain = System.nanoTime();
+		
+		// 重複した分は数量として数えられている
+		assertThat(cartEJB.getNumberOfItems(), is(numItems * 2));
+		
+		for (Item02 item : sameValueItems) {
+			cartEJB.removeItem(item);
+		}
+		long removed = System.nanoTime();
+		
+		// すべて削除されている
+		assertThat(cartEJB.getNumberOfItems(), is(0));
+		
+		logger.info("add " + numItems + " items : " 
+				+ TimeUnit.NANOSECONDS.toMillis(added - start) + " ms");
+		logger.info("add " + numItems + " duplicated items : " 
+				+ TimeUnit.NANOSECONDS.toMillis(addedAgain - added) + " ms");
+		logger.info("remove " + numItems + " items : " 
+				+ TimeUnit.NANOSECONDS.toMillis(removed - addedAgain) + " ms");
+	}
+	
 	/**
 	 * ・ステートフル・セッションBeanのカートにItem02エンティティが
 	 * 　2つある状態でチェックアウトする。
@@ -475,6 +698,718 @@ public class ShoppingCartEJBTest {
 		
 	}
 	
+	/**
+	 * ・明細が1件、10件、100件、1,000件のカートをそれぞれチェックアウトする。
+	 * 　（新しいItem02エンティティのカートと、永続化済みのItem02エンティティの
+	 * 　カートの両方）
+	 * ・すべての明細と数量が永続化されることを確認するとともに、
+	 * 　チェックアウト1回あたりに発行されたSQL文の数（Hibernateの
+	 * 　統計情報によるPreparedStatementの数）と所要時間を
+	 * 　ログに出力する。
+	 */
+	@Test
+	public void testCheckoutStatementsAndLatency() throws Exception {
+		
+		///// 準備 /////
+		
+		Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		
+		for (boolean persistedItems : new boolean[] { false, true }) {
+			for (int numItems : new int[] { 1, 10, 100, 1000 }) {
+				List<Item02> items = new ArrayList<Item02>();
+				if (persistedItems) {
+					userTransaction.begin();
+					em.joinTransaction();
+				}
+				for (int i = 0; i < numItems; i++) {
+					Item02 item = new Item02("Item " + i, 1f, "Item " + i + " Description");
+					if (persistedItems) {
+						em.persist(item);
+					}
+					items.add(item);
+				}
+				if (persistedItems) {
+					userTransaction.commit();
+				}
+				ShoppingCartEJB cart = lookupCart();
+				for (Item02 item : items) {
+					cart.setQuantity(item, 2);
+				}
+				
+		        ///// テスト /////
+				
+				statistics.clear();
+				long start = System.nanoTime();
+				Sales02 returned = cart.checkout("Test Customer");
+				long elapsed = System.nanoTime() - start;
+				
+		        ///// 検証 /////
+				
+				Sales02 persisted = em.find(Sales02.class, returned.getId());
+				assertThat(persisted.getItems().size(), is(numItems));
+				Map<Long, Integer> quantities = salesLines.getQuantities(returned.getId());
+				assertThat(quantities.size(), is(numItems));
+				for (Integer quantity : quantities.values()) {
+					assertThat(quantity, is(2));
+				}
+				
+				logger.info("checkout " + numItems + (persistedItems ? " persisted" : " new") + " items : " 
+						+ statistics.getPrepareStatementCount() + " statements, " 
+						+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+			}
+		}
+	}
+	
+	/**
+	 * ・永続化済みのItem02エンティティと新しいItem02エンティティが
+	 * 　ある状態でチェックアウトする。
+	 * ・新しいItem02エンティティだけがINSERTされ、永続化済みの
+	 * 　Item02エンティティは読み込まれずに関連付けられることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testCheckoutReusesPersistedItems() throws Exception {
+		
+		///// 準備 /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		em.persist(itemA);
+		userTransaction.commit();
+		
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		cartEJB.addItem(itemA);
+		cartEJB.addItem(itemB);
+		
+		Statistics statistics = em.unwrap(Session.class).getSessionFactory().getStatistics();
+		statistics.setStatisticsEnabled(true);
+		statistics.clear();
+
+        ///// テスト /////
+        
+		Sales02 returned = cartEJB.checkout("Test Customer");
+        
+        ///// 検証 /////
+		
+		// INSERTされたのはitemBとSales02エンティティだけで、
+		// itemAは読み込まれていない
+		assertThat(statistics.getEntityInsertCount(), is(2L));
+		assertThat(statistics.getEntityLoadCount(), is(0L));
+		logger.info("checkout with a persisted item : " 
+				+ statistics.getPrepareStatementCount() + " statements");
+		
+		// Item02エンティティの行は重複していない
+		Long numItems = em.createQuery("SELECT COUNT(i) FROM Item02 i", Long.class)
+				.getSingleResult();
+		assertThat(numItems, is(2L));
+		
+		Sales02 persisted = em.find(Sales02.class, returned.getId());
+		assertThat(persisted.getItems().size(), is(2));
+		assertThat(persisted.getItems(), hasItems(itemA, itemB));
+	}
+	
+	/**
+	 * ・在庫数を3に設定したItem02エンティティを2つずつ含むカートを
+	 * 　2つチェックアウトする。
+	 * ・1つ目のチェックアウトで在庫数が1になり、2つ目のチェックアウトでは
+	 * 　OutOfStockExceptionがスローされて在庫数が変わらないこと、
+	 * 　カートのインスタンスと内容が保持されていることを確認する。
+	 * ・トランザクションの中でチェックアウトしてロールバックすると、
+	 * 　引き当てた在庫が戻されることを確認する。
+	 */
+	@Test
+	public void testCheckoutReservesStock() throws Exception {
+		
+		///// 準備 /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		em.persist(itemA);
+		userTransaction.commit();
+		
+		inventory.setStock(itemA.getId(), 3);
+		try {
+			cartEJB.setQuantity(itemA, 2);
+			ShoppingCartEJB another = lookupCart();
+			another.setQuantity(itemA, 2);
+
+	        ///// テスト＆検証 /////
+	        
+			cartEJB.checkout("Test Customer");
+			assertThat(inventory.getStock(itemA.getId()), is(1));
+			
+			try {
+				another.checkout("Test Customer");
+				fail("OutOfStockException must be thrown");
+			} catch (OutOfStockException e) {
+				assertThat(e.getItemId(), is(itemA.getId()));
+			}
+			assertThat(inventory.getStock(itemA.getId()), is(1));
+			assertThat(another.getQuantity(itemA), is(2));
+			
+			// 在庫数に合わせて数量を減らせばチェックアウトできる
+			another.setQuantity(itemA, 1);
+			long releasedBefore = inventory.getReleasedCount();
+			userTransaction.begin();
+			another.checkout("Test Customer");
+			assertThat(inventory.getStock(itemA.getId()), is(0));
+			userTransaction.rollback();
+			
+			// ロールバックにより在庫が戻される
+			assertThat(inventory.getStock(itemA.getId()), is(1));
+			assertThat(inventory.getReleasedCount() - releasedBefore, is(1L));
+		} finally {
+			inventory.clear();
+		}
+	}
+	
+	/**
+	 * ・在庫数を0に設定した後、別のノードでの入荷を想定して、
+	 * 　InventoryEJBを経由せずにINVENTORYテーブルの在庫数を5にする。
+	 * ・メモリ上の在庫数が0のままでも、テーブルの在庫数で引き当てられて
+	 * 　チェックアウトできることを確認する。
+	 * ・コミットの後、メモリ上の在庫数がテーブルの在庫数（3）で
+	 * 　置き換えられることを確認する。
+	 */
+	@Test
+	public void testCheckoutUsesTableStockWhenLedgerIsStale() throws Exception {
+		
+		///// 準備 /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		em.persist(itemA);
+		userTransaction.commit();
+		
+		inventory.setStock(itemA.getId(), 0);
+		try {
+			userTransaction.begin();
+			em.joinTransaction();
+			em.createNativeQuery("UPDATE " + InventoryEJB.TABLE + " SET STOCK = 5 WHERE ITEM_ID = :id")
+					.setParameter("id", itemA.getId())
+					.executeUpdate();
+			userTransaction.commit();
+			
+			cartEJB.setQuantity(itemA, 2);
+			
+	        ///// テスト /////
+			
+			Sales02 sales = cartEJB.checkout("Test Customer");
+			
+	        ///// 検証 /////
+			
+			assertThat(sales.getId(), is(notNullValue()));
+			assertThat(inventory.getStock(itemA.getId()), is(3));
+			Object stock = em.createNativeQuery("SELECT STOCK FROM " + InventoryEJB.TABLE + " WHERE ITEM_ID = :id")
+					.setParameter("id", itemA.getId())
+					.getSingleResult();
+			assertThat(((Number) stock).intValue(), is(3));
+		} finally {
+			inventory.clear();
+		}
+	}
+	
+	/**
+	 * ・在庫数を1に設定した商品を1個ずつ含む2つのカートを
+	 * 　非同期にチェックアウトする。
+	 * ・一方だけが永続化され、もう一方はOutOfStockExceptionを原因とする
+	 * 　ExecutionExceptionとなることを確認する。
+	 * ・メモリ上とINVENTORYテーブルの在庫数がともに0になることを確認する。
+	 */
+	@Test
+	public void testCheckoutAsyncReservesStock() throws Exception {
+		
+		///// 準備 /////
+		
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		em.persist(itemA);
+		userTransaction.commit();
+		
+		inventory.setStock(itemA.getId(), 1);
+		try {
+			ShoppingCartEJB first = lookupCart();
+			ShoppingCartEJB second = lookupCart();
+			first.addItem(itemA);
+			second.addItem(itemA);
+			
+	        ///// テスト /////
+			
+			List<Future<Sales02>> futures = new ArrayList<Future<Sales02>>();
+			futures.add(first.checkoutAsync("Customer 1"));
+			futures.add(second.checkoutAsync("Customer 2"));
+			
+	        ///// 検証 /////
+			
+			int persisted = 0;
+			int outOfStock = 0;
+			for (Future<Sales02> future : futures) {
+				try {
+					future.get(10, TimeUnit.SECONDS);
+					persisted++;
+				} catch (ExecutionException e) {
+					assertThat(e.getCause() instanceof OutOfStockException, is(true));
+					outOfStock++;
+				}
+			}
+			assertThat(persisted, is(1));
+			assertThat(outOfStock, is(1));
+			
+			assertThat(inventory.getStock(itemA.getId()), is(0));
+			Object stock = em.createNativeQuery("SELECT STOCK FROM " + InventoryEJB.TABLE + " WHERE ITEM_ID = :id")
+					.setParameter("id", itemA.getId())
+					.getSingleResult();
+			assertThat(((Number) stock).intValue(), is(0));
+		} finally {
+			inventory.clear();
+		}
+	}
+	
+	/**
+	 * ・ステートフル・セッションBeanのカートにItem02エンティティが
+	 * 　2つある状態で非同期にチェックアウトする。
+	 * ・返されたFutureから取得したSales02エンティティが
+	 * 　永続化されていることを確認する。
+	 */
+	@Test
+	public void testCheckoutAsync() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		cartEJB.addItem(itemA);
+		cartEJB.addItem(itemB);
+
+        ///// テスト /////
+        
+		Future<Sales02> future = cartEJB.checkoutAsync("Test Customer");
+		// ここでセッション終了
+		Sales02 returned = future.get(10, TimeUnit.SECONDS);
+        
+        ///// 検証 /////
+		
+		Sales02 persisted = em.find(Sales02.class, returned.getId());
+		assertThat(persisted.getCustomerName(), is("Test Customer"));
+		assertThat(persisted.getTotalAmount(), 	is(35.5f));
+		assertThat(persisted.getItems().size(), is(2));
+		assertThat(persisted.getItems(), 		hasItems(itemA, itemB));
+	}
+	
+	/**
+	 * ・3つのカートを非同期にチェックアウトし、そのうち1つのカートには
+	 * 　データベースから削除されたItem02エンティティを含めておく。
+	 * ・3つのチェックアウトが同じバッチにまとめられても、削除された
+	 * 　Item02エンティティを含むカートだけが失敗し、他の2つのカートは
+	 * 　永続化されることを確認する。
+	 */
+	@Test
+	public void testCheckoutAsyncIsolatesFailure() throws Exception {
+		
+		///// 準備 /////
+		
+		// 永続化した後に削除し、主キーだけを持つItem02エンティティ
+		userTransaction.begin();
+		em.joinTransaction();
+		Item02 deleted = new Item02("Deleted Item", 1f, "Deleted Item Description");
+		em.persist(deleted);
+		userTransaction.commit();
+		userTransaction.begin();
+		em.joinTransaction();
+		em.remove(em.find(Item02.class, deleted.getId()));
+		userTransaction.commit();
+		
+		ShoppingCartEJB good1 = lookupCart();
+		ShoppingCartEJB bad = lookupCart();
+		ShoppingCartEJB good2 = lookupCart();
+		good1.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+		bad.addItem(deleted);
+		good2.addItem(new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book"));
+		
+		// 3つのチェックアウトが同じバッチにまとめられるようにする
+		int maxBatchSize = checkoutWriter.getMaxBatchSize();
+		long maxWaitMillis = checkoutWriter.getMaxWaitMillis();
+		checkoutWriter.setMaxBatchSize(3);
+		checkoutWriter.setMaxWaitMillis(1000);
+		
+		try {
+			
+	        ///// テスト /////
+			
+			Future<Sales02> future1 = good1.checkoutAsync("Customer 1");
+			Future<Sales02> future2 = bad.checkoutAsync("Customer 2");
+			Future<Sales02> future3 = good2.checkoutAsync("Customer 3");
+			
+	        ///// 検証 /////
+			
+			assertThat(future1.get(10, TimeUnit.SECONDS).getCustomerName(), is("Customer 1"));
+			assertThat(future3.get(10, TimeUnit.SECONDS).getCustomerName(), is("Customer 3"));
+			try {
+				future2.get(10, TimeUnit.SECONDS);
+				fail("Should throw exception");
+			} catch (ExecutionException e) {
+				// 失敗したカートだけが例外となる
+			}
+			
+			TypedQuery<Sales02> query = em.createNamedQuery("Sales02.findAllSales", Sales02.class);
+			assertThat(query.getResultList().size(), is(2));
+		} finally {
+			checkoutWriter.setMaxBatchSize(maxBatchSize);
+			checkoutWriter.setMaxWaitMillis(maxWaitMillis);
+		}
+	}
+	
+	/**
+	 * ・8スレッドから並行して、それぞれ明細が3件のカートを
+	 * 　同期と非同期でチェックアウトする。
+	 * ・すべてのSales02エンティティが永続化されることを確認し、
+	 * 　それぞれの1秒あたりのチェックアウト件数をログに出力する。
+	 */
+	@Test
+	public void testCheckoutThroughputSyncAndAsync() throws Exception {
+		
+		///// 準備 /////
+		
+		final int numCarts = 1000;
+		final int numThreads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        ///// テスト /////
+		
+		// 同期のチェックアウト
+		List<Callable<Sales02>> syncTasks = new ArrayList<Callable<Sales02>>();
+		for (int i = 0; i < numCarts; i++) {
+			final int cart = i;
+			syncTasks.add(new Callable<Sales02>() {
+				public Sales02 call() throws Exception {
+					return fillCart(cart).checkout("Sync Customer " + cart);
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Sales02> future : executor.invokeAll(syncTasks)) {
+			future.get();
+		}
+		long syncElapsed = System.nanoTime() - start;
+		
+		// 非同期のチェックアウト
+		List<Callable<Future<Sales02>>> asyncTasks = new ArrayList<Callable<Future<Sales02>>>();
+		for (int i = 0; i < numCarts; i++) {
+			final int cart = i;
+			asyncTasks.add(new Callable<Future<Sales02>>() {
+				public Future<Sales02> call() throws Exception {
+					return fillCart(cart).checkoutAsync("Async Customer " + cart);
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (Future<Future<Sales02>> future : executor.invokeAll(asyncTasks)) {
+			future.get().get();
+		}
+		long asyncElapsed = System.nanoTime() - start;
+		executor.shutdown();
+		
+        ///// 検証 /////
+		
+		TypedQuery<Sales02> query = em.createNamedQuery("Sales02.findAllSales", Sales02.class);
+		assertThat(query.getResultList().size(), is(numCarts * 2));
+		
+		logger.info("synchronous checkout : " 
+				+ (numCarts * TimeUnit.SECONDS.toNanos(1) / syncElapsed) + " checkouts/sec");
+		logger.info("asynchronous checkout : " 
+				+ (numCarts * TimeUnit.SECONDS.toNanos(1) / asyncElapsed) + " checkouts/sec");
+	}
+	
+	/**
+	 * ・数量が3の明細と数量が1の明細があるカートをチェックアウトする。
+	 * ・Item02エンティティの行は明細の数だけ作成され、Sales02エンティティ
+	 * 　には明細ごとに1回だけ関連付けられ、数量がSalesLineEJBに
+	 * 　記録されていることを確認する。
+	 */
+	@Test
+	public void testCheckoutWithQuantities() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		cartEJB.setQuantity(itemA, 3);
+		cartEJB.addItem(itemB);
+
+        ///// テスト /////
+        
+		Sales02 returned = cartEJB.checkout("Test Customer");
+        
+        ///// 検証 /////
+		
+		Long numItems = em.createQuery("SELECT COUNT(i) FROM Item02 i", Long.class)
+				.getSingleResult();
+		assertThat(numItems, is(2L));
+		
+		Sales02 persisted = em.find(Sales02.class, returned.getId());
+		assertThat(persisted.getTotalAmount(), 	is(81.5f));
+		assertThat(persisted.getItems().size(), is(2));
+		
+		Collection<Integer> quantities = salesLines.getQuantities(returned.getId()).values();
+		assertThat(quantities.size(), is(2));
+		assertThat(quantities, hasItems(3, 1));
+	}
+	
+	/**
+	 * ・冪等キーを指定してチェックアウトした後、同じ内容の別のカートで
+	 * 　同じ冪等キーを指定してチェックアウトする（クライアントの再試行）。
+	 * ・2回目のチェックアウトでは新たに永続化されずに、1回目の
+	 * 　Sales02エンティティが返されることを確認する。
+	 */
+	@Test
+	public void testCheckoutWithIdempotencyKey() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		cartEJB.addItem(itemA);
+		cartEJB.addItem(itemB);
+		Sales02 first = cartEJB.checkout("Test Customer", "checkout-key-1");
+		
+		ShoppingCartEJB retry = lookupCart();
+		retry.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+		retry.addItem(new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book"));
+
+        ///// テスト /////
+        
+		Sales02 second = retry.checkout("Test Customer", "checkout-key-1");
+        
+        ///// 検証 /////
+		
+		assertThat(second.getId(), is(first.getId()));
+		
+		// Sales02エンティティ、Item02エンティティともに重複していない
+		TypedQuery<Sales02> query = em.createNamedQuery("Sales02.findAllSales", Sales02.class);
+		assertThat(query.getResultList().size(), is(1));
+		Long numItems = em.createQuery("SELECT COUNT(i) FROM Item02 i", Long.class)
+				.getSingleResult();
+		assertThat(numItems, is(2L));
+	}
+	
+	/**
+	 * ・冪等キーを指定してチェックアウトした後、メモリ上に保持された
+	 * 　キーを破棄してから（再デプロイや別のノードでの再試行を想定）、
+	 * 　同じ冪等キーを指定して別のカートでチェックアウトする。
+	 * ・キーが売上と同じトランザクションでテーブルに記録されており、
+	 * 　2回目のチェックアウトでは1回目のSales02エンティティが返される
+	 * 　ことを確認する。
+	 */
+	@Test
+	public void testCheckoutWithIdempotencyKeyAfterCacheCleared() throws Exception {
+		
+		///// 準備 /////
+		
+		cartEJB.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+		Sales02 first = cartEJB.checkout("Test Customer", "checkout-key-2");
+		checkoutKeys.clearCache();
+		
+		ShoppingCartEJB retry = lookupCart();
+		retry.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+
+        ///// テスト /////
+        
+		Sales02 second = retry.checkout("Test Customer", "checkout-key-2");
+        
+        ///// 検証 /////
+		
+		assertThat(second.getId(), is(first.getId()));
+		
+		Number recorded = (Number) em.createNativeQuery("SELECT SALES_ID FROM " 
+				+ CheckoutKeyRegistryEJB.TABLE + " WHERE IDEMPOTENCY_KEY = :key")
+				.setParameter("key", "checkout-key-2")
+				.getSingleResult();
+		assertThat(recorded.longValue(), is(first.getId()));
+		
+		TypedQuery<Sales02> query = em.createNamedQuery("Sales02.findAllSales", Sales02.class);
+		assertThat(query.getResultList().size(), is(1));
+	}
+	
+	/**
+	 * ・同じ顧客のカートを同期と非同期で1回ずつチェックアウトする。
+	 * ・当日の集計値と顧客の集計値に、2件分の件数と合計金額が
+	 * 　加算されることを確認する。
+	 * 
+	 * （集計値はテスト間で保持されるため、チェックアウト前の
+	 * 　集計値との差分で確認する。）
+	 */
+	@Test
+	public void testSalesRollupUpdatedAtCheckout() throws Exception {
+		
+		///// 準備 /////
+		
+		Date today = new Date();
+		SalesRollup dailyBefore = salesRollup.getDailyRollup(today);
+		SalesRollup customerBefore = salesRollup.getCustomerRollup("Rollup Customer");
+		
+		cartEJB.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+		ShoppingCartEJB another = lookupCart();
+		another.addItem(new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book"));
+
+        ///// テスト /////
+        
+		cartEJB.checkout("Rollup Customer");
+		another.checkoutAsync("Rollup Customer").get(10, TimeUnit.SECONDS);
+        
+        ///// 検証 /////
+		
+		SalesRollup dailyAfter = salesRollup.getDailyRollup(today);
+		assertThat(dailyAfter.getCount() - dailyBefore.getCount(), is(2L));
+		assertThat(dailyAfter.getTotalAmount() - dailyBefore.getTotalAmount(), is(35.5f));
+		
+		SalesRollup customerAfter = salesRollup.getCustomerRollup("Rollup Customer");
+		assertThat(customerAfter.getCount() - customerBefore.getCount(), is(2L));
+		assertThat(customerAfter.getTotalAmount() - customerBefore.getTotalAmount(), is(35.5f));
+		
+		// 期間を指定した場合は日ごとに返される
+		List<SalesRollup> rollups = salesRollup.getDailyRollups(today, today);
+		assertThat(rollups.size(), is(1));
+		assertThat(rollups.get(0).getCount(), is(dailyAfter.getCount()));
+	}
+	
+	/**
+	 * ・同じ顧客のカートを2回チェックアウトしてから、集計値を
+	 * 　データベースから集計し直す。
+	 * ・当日の集計値と顧客の集計値が、データベースにある2件分の
+	 * 　件数と合計金額になることを確認する。
+	 * 
+	 * （各テストの前にSales02テーブルは空にされるため、
+	 * 　データベースにあるのはこのテストの2件だけとなる。）
+	 */
+	@Test
+	public void testSalesRollupRebuiltFromDatabase() throws Exception {
+		
+		///// 準備 /////
+		
+		Date today = new Date();
+		cartEJB.addItem(new Item02("Zoot Allure", 23f, "Another Zappa's master piece"));
+		cartEJB.checkout("Rebuild Customer");
+		ShoppingCartEJB another = lookupCart();
+		another.addItem(new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book"));
+		another.checkout("Rebuild Customer");
+
+        ///// テスト /////
+        
+		salesRollup.rebuild();
+        
+        ///// 検証 /////
+		
+		SalesRollup daily = salesRollup.getDailyRollup(today);
+		assertThat(daily.getCount(), is(2L));
+		assertThat(daily.getTotalAmount(), is(35.5f));
+		
+		SalesRollup customer = salesRollup.getCustomerRollup("Rebuild Customer");
+		assertThat(customer.getCount(), is(2L));
+		assertThat(customer.getTotalAmount(), is(35.5f));
+	}
+	
+	/**
+	 * ・同じJava VM内のバックアップにレプリケーションするトランスポートを
+	 * 　設定し、顧客のキーを設定したカートを操作する。
+	 * ・バックアップのカートの内容がカートと等しいこと、チェックアウト後は
+	 * 　バックアップから破棄されることを確認する。
+	 */
+	@Test
+	public void testReplicateCartToBackup() throws Exception {
+		
+		///// 準備 /////
+		
+		CartBackupStore backup = new CartBackupStore();
+		cartReplicator.setTransport(new InJvmCartReplicationTransport(backup));
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		
+		try {
+			
+	        ///// テスト＆検証 /////
+			
+			cartEJB.setCustomerKey("replicated-customer");
+			cartEJB.addItem(itemA);
+			cartEJB.setQuantity(itemB, 3);
+			cartEJB.increment(itemA, 1);
+			assertThat(cartReplicator.flush(), is(true));
+			
+			CartSnapshot replicated = backup.get("replicated-customer");
+			assertThat(replicated.getQuantity(itemA), is(2));
+			assertThat(replicated.getQuantity(itemB), is(3));
+			assertThat(replicated.getTotal(), is(8350L));
+			
+			cartEJB.checkout("Replicated Customer");
+			assertThat(cartReplicator.flush(), is(true));
+			assertThat(backup.get("replicated-customer"), is(nullValue()));
+		} finally {
+			cartReplicator.setTransport(null);
+		}
+	}
+	
+	/**
+	 * ・メモリ上のカートの数の上限を10に設定して、50個のカートを作成する。
+	 * ・上限を超えた分のカートが退避され、メモリ上のカートの数が
+	 * 　上限以下になることを確認する。
+	 * ・退避されたカートも、次の呼び出しで内容が復元されることを確認する。
+	 */
+	@Test
+	public void testSpillLeastRecentlyUsedCarts() throws Exception {
+		
+		///// 準備 /////
+		
+		int maxActiveCarts = cartCapacity.getMaxActiveCarts();
+		long spilledBefore = cartCapacity.getSpilledCount();
+		long restoredBefore = cartCapacity.getRestoredCount();
+		Item02 item = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		
+		try {
+			cartCapacity.setMaxActiveCarts(10);
+			
+	        ///// テスト /////
+			
+			List<ShoppingCartEJB> carts = new ArrayList<ShoppingCartEJB>();
+			for (int i = 0; i < 50; i++) {
+				ShoppingCartEJB cart = lookupCart();
+				cart.setQuantity(item, i + 1);
+				carts.add(cart);
+			}
+			
+			// 退避は別のスレッドで行われるため、上限以下になるまで待つ
+			long deadline = System.currentTimeMillis() + 10000;
+			while (cartCapacity.getActiveCount() > 10 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			
+	        ///// 検証 /////
+			
+			assertThat(cartCapacity.getActiveCount() <= 10, is(true));
+			assertThat(cartCapacity.getSpilledCount() - spilledBefore >= 40L, is(true));
+			
+			// 最初に作成したカートは退避されているが、内容は復元される
+			for (int i = 0; i < carts.size(); i++) {
+				assertThat(carts.get(i).getQuantity(item), is(i + 1));
+			}
+			assertThat(cartCapacity.getRestoredCount() - restoredBefore > 0L, is(true));
+			
+			logger.info("active carts : " + cartCapacity.getActiveCount() 
+					+ ", spilled : " + (cartCapacity.getSpilledCount() - spilledBefore) 
+					+ ", restored : " + (cartCapacity.getRestoredCount() - restoredBefore));
+			
+			for (ShoppingCartEJB cart : carts) {
+				cart.checkout("Spilled Customer");
+			}
+		} finally {
+			cartCapacity.setMaxActiveCarts(maxActiveCarts);
+		}
+	}
+	
 	/**
 	 * ・チェックアウトした後、再度チェックアウトする。
 	 * ・1回目のチェックアウトで＠Removeアノテーションによりステートフル・
@@ -555,4 +1490,69 @@ public class ShoppingCartEJBTest {
 
 	}
 
+	/**
+	 * ・顧客のキーを設定したカートにItem02エンティティを2つ加えて1つ削除し、
+	 * 　＠StatefulTimeoutによりインスタンスが破棄されるまで待機する。
+	 * ・新しいインスタンスで同じ顧客のキーを指定してresume()を呼び出すと、
+	 * 　破棄される前のカートの内容が復元されることを確認する。
+	 */
+	@Test
+	public void testResumeAfterTimeout() throws Exception {
+
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		Item02 itemC = new Item02("Item C", 1f, "Item C Description");
+		cartEJB.setCustomerKey("customer-1");
+		cartEJB.addItem(itemA);
+		cartEJB.addItem(itemB);
+		cartEJB.addItem(itemC);
+		cartEJB.removeItem(itemC);
+		
+		try {
+			TimeUnit.SECONDS.sleep(25);	// 余裕を持って20秒以上待機
+		} catch (Exception e) {
+		}
+		
+		// この時点では、cartEJBのインスタンスは破棄されている
+		
+        ///// テスト /////
+		
+		// ルックアップにより新しいインスタンスを取得
+		ShoppingCartEJB resumed = lookupCart();
+		Integer numItems = resumed.resume("customer-1");
+        
+        ///// 検証 /////
+		
+		assertThat(numItems, is(2));
+		assertThat(resumed.getTotal(), is(35.5f));
+		
+		// 破棄されたカートの記録は復元されない
+		resumed.empty();
+		ShoppingCartEJB another = lookupCart();
+		assertThat(another.resume("customer-1"), is(0));
+		
+		resumed.checkout("Test Customer");
+		another.checkout("Test Customer");
+	}
+
+	/**
+	 * ルックアップにより新しいステートフル・セッションBeanのインスタンスを取得する
+	 */
+	private static ShoppingCartEJB lookupCart() throws Exception {
+		return (ShoppingCartEJB) new InitialContext().lookup("java:module/ShoppingCartEJB");
+	}
+	
+	/**
+	 * 新しいカートに明細を3件加える
+	 */
+	private static ShoppingCartEJB fillCart(int cart) throws Exception {
+		ShoppingCartEJB shoppingCart = lookupCart();
+		for (int i = 0; i < 3; i++) {
+			shoppingCart.addItem(new Item02("Item " + cart + "-" + i, 1f, "Item Description"));
+		}
+		return shoppingCart;
+	}
+
 }
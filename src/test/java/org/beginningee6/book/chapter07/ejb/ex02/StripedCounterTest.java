@@ -0,0 +1,91 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * 売上の集計値を保持するStripedCounterのテスト。
+ *
+ * StripedCounterはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ */
+public class StripedCounterTest {
+
+	private static final Logger logger = Logger.getLogger(StripedCounterTest.class
+			.getName());
+
+	/**
+	 * ・1つのスレッドから加算し、合計が正しいことを確認する。
+	 */
+	@Test
+	public void testAdd() throws Exception {
+
+		///// 準備 /////
+
+		StripedCounter counter = new StripedCounter();
+
+        ///// テスト /////
+
+		counter.add(3);
+		counter.add(-1);
+		counter.add(10);
+
+        ///// 検証 /////
+
+		assertThat(counter.sum(), is(12L));
+	}
+
+	/**
+	 * ・8スレッドから並行して1,000,000回ずつ加算する。
+	 * ・合計が加算した回数と等しいことを確認し、
+	 * 　所要時間をログに出力する。
+	 */
+	@Test
+	public void testConcurrentAdd() throws Exception {
+
+		///// 準備 /////
+
+		final int numThreads = 8;
+		final int numAdds = 1000000;
+		final StripedCounter counter = new StripedCounter();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        ///// テスト /////
+
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < numThreads; t++) {
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = 0; i < numAdds; i++) {
+						counter.add(1);
+					}
+					return null;
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Future<Void> future : executor.invokeAll(tasks)) {
+			future.get();
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+        ///// 検証 /////
+
+		assertThat(counter.sum(), is((long) numThreads * numAdds));
+
+		logger.info("add " + (numThreads * numAdds) + " times on " + numThreads + " threads : "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+	}
+}
@@ -0,0 +1,285 @@
+package org.beginningee6.book.chapter07.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.naming.InitialContext;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter07.jpa.ex02.Item02;
+import org.beginningee6.book.chapter07.jpa.ex02.Sales02;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * カートの内容をトークンとしてクライアントに保持させる
+ * ステートレス・セッションBeanのテスト。
+ * 
+ * ステートレス・セッションBeanのため、ShoppingCartEJBTestと
+ * 異なり、テストメソッドごとにインスタンスを破棄する必要はない。
+ * 各テストメソッドは空のカートのトークンから始める。
+ * 
+ */
+@RunWith(Arquillian.class)
+public class TokenCartEJBTest {
+	
+	private static final Logger logger = Logger.getLogger(TokenCartEJBTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs 
+			= Maven
+				.configureResolver()				
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+//				.fromFile("C:\\Maven\\apache-maven-3.0.5\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter07-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(TokenCartEJB.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	TokenCartEJB tokenCartEJB;	// ステートレス・セッションBeanの注入
+
+	@EJB
+	SalesLineEJB salesLines;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item02").executeUpdate();
+		em.createQuery("DELETE FROM Sales02").executeUpdate();
+		em.createNativeQuery("DELETE FROM " + SalesLineEJB.TABLE).executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * ・トークンに対してItem02エンティティの追加、数量の変更、削除を行う。
+	 * ・各操作で返されたトークンの個数と合計金額が正しいことを確認する。
+	 * ・元のトークンは変更されず、以前の状態のまま使えることを確認する。
+	 */
+	@Test
+	public void testAddRemoveAndTotal() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		byte[] empty = tokenCartEJB.newCart();
+
+        ///// テスト＆検証 /////
+		
+		byte[] token = tokenCartEJB.addItem(empty, itemA);
+		token = tokenCartEJB.addItem(token, itemB);
+		token = tokenCartEJB.addItem(token, itemA);
+		assertThat(tokenCartEJB.getNumberOfItems(token), is(3));
+		assertThat(tokenCartEJB.getTotal(token), is(58.5F));
+		
+		token = tokenCartEJB.setQuantity(token, itemB, 4);
+		assertThat(tokenCartEJB.getNumberOfItems(token), is(6));
+		assertThat(tokenCartEJB.getTotal(token), is(96F));
+		
+		token = tokenCartEJB.removeItem(token, itemA);
+		assertThat(tokenCartEJB.getNumberOfItems(token), is(4));
+		assertThat(tokenCartEJB.getTotal(token), is(50F));
+		
+		// 元のトークンは空のカートのまま
+		assertThat(tokenCartEJB.getNumberOfItems(empty), is(0));
+	}
+
+	/**
+	 * ・トークンのカートをチェックアウトする。
+	 * ・明細ごとにItem02エンティティが関連付けられたSales02エンティティが
+	 * 　永続化され、数量がSalesLineEJBに記録されることを確認する。
+	 * ・同じ冪等キーで再度チェックアウトしても、新たに永続化されないことを確認する。
+	 */
+	@Test
+	public void testCheckout() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 itemA = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		Item02 itemB = new Item02("The Hitchhiker's Guide to the Galaxy", 12.5F, "Science fiction comedy book");
+		byte[] token = tokenCartEJB.setQuantity(null, itemA, 2);
+		token = tokenCartEJB.addItem(token, itemB);
+
+        ///// テスト /////
+		
+		Sales02 sales = tokenCartEJB.checkout(token, "Token Customer", "token-checkout-1");
+		Sales02 retried = tokenCartEJB.checkout(token, "Token Customer", "token-checkout-1");
+
+        ///// 検証 /////
+		
+		assertThat(sales.getTotalAmount(), is(58.5F));
+		assertThat(retried.getId(), is(sales.getId()));
+		
+		Sales02 persisted = em.find(Sales02.class, sales.getId());
+		assertThat(persisted.getItems().size(), is(2));
+		assertThat(salesLines.getQuantities(sales.getId()).values(), hasItems(2, 1));
+		assertThat(em.createQuery("SELECT COUNT(s) FROM Sales02 s", Long.class)
+				.getSingleResult(), is(1L));
+		assertThat(em.createQuery("SELECT COUNT(i) FROM Item02 i", Long.class)
+				.getSingleResult(), is(2L));
+	}
+
+	/**
+	 * ・改ざんしたトークンでは操作もチェックアウトもできないことを確認する。
+	 * ・上限サイズを超える明細を追加できないことを確認する。
+	 */
+	@Test
+	public void testRejectTamperedAndOversizeToken() throws Exception {
+		
+		///// 準備 /////
+		
+		Item02 item = new Item02("Zoot Allure", 23f, "Another Zappa's master piece");
+		byte[] token = tokenCartEJB.addItem(null, item);
+		byte[] tampered = token.clone();
+		tampered[tampered.length / 2] ^= 1;
+
+        ///// テスト＆検証 /////
+		
+		try {
+			tokenCartEJB.checkout(tampered, "Token Customer");
+			fail();
+		} catch (CartTokenException e) {
+			// 改ざんが検出された
+		}
+		try {
+			tokenCartEJB.addItem(tampered, item);
+			fail();
+		} catch (CartTokenException e) {
+			// 改ざんが検出された
+		}
+		
+		int added = 0;
+		try {
+			for (; added < 1000; added++) {
+				token = tokenCartEJB.addItem(token, 
+						new Item02("Item " + added, 10f, "Item " + added + " Description"));
+			}
+			fail();
+		} catch (CartTokenException e) {
+			// 上限サイズを超えた
+		}
+		logger.info("cart token limit : " + (added + 1) + " lines, " 
+				+ token.length + " bytes");
+		assertThat(token.length <= CartTokenCodec.MAX_TOKEN_BYTES, is(true));
+		assertThat(em.createQuery("SELECT COUNT(s) FROM Sales02 s", Long.class)
+				.getSingleResult(), is(0L));
+	}
+
+	/**
+	 * ・同じ内容のカートを、ShoppingCartEJBとTokenCartEJBでそれぞれ
+	 * 　利用者の数だけ作成する。
+	 * ・利用者あたりのヒープ使用量、トークンのバイト数、
+	 * 　1秒あたりの操作数をログに出力する。
+	 */
+	@Test
+	public void testCompareWithStatefulCart() throws Exception {
+		
+		///// 準備 /////
+		
+		final int numUsers = 1000;
+		final int itemsPerCart = 10;
+		List<Item02> items = new ArrayList<Item02>();
+		for (int i = 0; i < itemsPerCart; i++) {
+			items.add(new Item02("Item " + i, 10f, "Item " + i + " Description"));
+		}
+
+        ///// テスト /////
+		
+		// ステートフル・セッションBeanのカート
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		List<ShoppingCartEJB> carts = new ArrayList<ShoppingCartEJB>();
+		for (int user = 0; user < numUsers; user++) {
+			ShoppingCartEJB cart = (ShoppingCartEJB) new InitialContext()
+					.lookup("java:module/ShoppingCartEJB");
+			for (Item02 item : items) {
+				cart.addItem(item);
+			}
+			cart.getTotal();
+			carts.add(cart);
+		}
+		long statefulElapsed = System.nanoTime() - start;
+		long statefulHeap = usedHeap() - heapBefore;
+		for (ShoppingCartEJB cart : carts) {
+			cart.empty();
+		}
+		
+		// トークンのカート（トークンはクライアントが保持する）
+		heapBefore = usedHeap();
+		start = System.nanoTime();
+		List<byte[]> tokens = new ArrayList<byte[]>();
+		for (int user = 0; user < numUsers; user++) {
+			byte[] token = null;
+			for (Item02 item : items) {
+				token = tokenCartEJB.addItem(token, item);
+			}
+			tokenCartEJB.getTotal(token);
+			tokens.add(token);
+		}
+		long tokenElapsed = System.nanoTime() - start;
+		long tokenHeap = usedHeap() - heapBefore;
+
+        ///// 検証 /////
+		
+		assertThat(tokenCartEJB.getNumberOfItems(tokens.get(0)), is(itemsPerCart));
+		
+		long operations = (long) numUsers * (itemsPerCart + 1);
+		logger.info("stateful cart : " 
+				+ (statefulHeap / numUsers) + " bytes/user (server heap), " 
+				+ (operations * TimeUnit.SECONDS.toNanos(1) / statefulElapsed) + " ops/sec");
+		logger.info("token cart : " 
+				+ (tokenHeap / numUsers) + " bytes/user (client heap), " 
+				+ tokens.get(0).length + " bytes/user (token), "
+				+ (operations * TimeUnit.SECONDS.toNanos(1) / tokenElapsed) + " ops/sec");
+	}
+	
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,305 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.beginningee6.book.chapter07.ejb.ex03.BoundedCache.Policy;
+import org.junit.Test;
+
+/**
+ * シングルトン・セッションBeanのキャッシュが使用するBoundedCacheのテスト。
+ *
+ * BoundedCacheはEJBコンテナのサービスを利用しないため、
+ * Arquillianを使わずに通常のJUnitのテストとして実行する。
+ */
+public class BoundedCacheTest {
+
+	private static final Logger logger = Logger.getLogger(BoundedCacheTest.class
+			.getName());
+
+	/**
+	 * ・最大エントリ数100のキャッシュに、1,000件のエントリを追加する。
+	 * ・いずれのポリシーでも、エントリの数が最大エントリ数を超えないこと、
+	 * 　追加した数と残ったエントリの数の差が追い出した数と等しいことを
+	 * 　確認する。
+	 */
+	@Test
+	public void testBoundedSize() throws Exception {
+		for (Policy policy : Policy.values()) {
+
+			///// 準備 /////
+
+			BoundedCache<Long, String> cache = new BoundedCache<Long, String>(100, policy);
+
+	        ///// テスト /////
+
+			for (long id = 0; id < 1000; id++) {
+				cache.putIfAbsent(id, "Item " + id);
+				assertThat(cache.size() <= 100, is(true));
+			}
+
+	        ///// 検証 /////
+
+			assertThat(cache.size(), is(100));
+			assertThat(cache.getEvictionCount(), is(900L));
+		}
+	}
+
+	/**
+	 * ・LRUのキャッシュで、最初に追加したエントリを参照し続けながら
+	 * 　エントリを追加する。
+	 * ・参照し続けたエントリは追い出されず、参照しなかったエントリから
+	 * 　追い出されることを確認する。
+	 */
+	@Test
+	public void testLruEvictsLeastRecentlyUsed() throws Exception {
+
+		///// 準備 /////
+
+		BoundedCache<Long, String> cache = new BoundedCache<Long, String>(3, Policy.LRU);
+		cache.putIfAbsent(1L, "ItemA");
+		cache.putIfAbsent(2L, "ItemB");
+		cache.putIfAbsent(3L, "ItemC");
+
+        ///// テスト /////
+
+		cache.get(1L);
+		cache.putIfAbsent(4L, "ItemD");
+
+        ///// 検証 /////
+
+		assertThat(cache.get(1L), is("ItemA"));
+		assertThat(cache.get(2L), is(nullValue()));
+		assertThat(cache.get(3L), is("ItemC"));
+		assertThat(cache.get(4L), is("ItemD"));
+	}
+
+	/**
+	 * ・最大エントリ数100のキャッシュを、頻繁に参照するエントリで
+	 * 　一杯にしてから、一度しか参照しないエントリを1,000件追加する。
+	 * ・TINY_LFUでは、頻繁に参照したエントリの9割以上が追い出されずに
+	 * 　残ることを確認する。
+	 * ・LRUでは同じ操作ですべて追い出されることを確認する。
+	 */
+	@Test
+	public void testTinyLfuResistsScan() throws Exception {
+		for (Policy policy : Policy.values()) {
+
+			///// 準備 /////
+
+			BoundedCache<Long, String> cache = new BoundedCache<Long, String>(100, policy);
+			for (int round = 0; round < 5; round++) {
+				for (long id = 0; id < 100; id++) {
+					if (cache.get(id) == null) {
+						cache.putIfAbsent(id, "Hot " + id);
+					}
+				}
+			}
+
+	        ///// テスト /////
+
+			for (long id = 1000; id < 2000; id++) {
+				cache.putIfAbsent(id, "Scan " + id);
+			}
+
+	        ///// 検証 /////
+
+			int hot = 0;
+			for (long id = 0; id < 100; id++) {
+				if (cache.get(id) != null) {
+					hot++;
+				}
+			}
+			logger.info(policy + " : " + hot + " of 100 hot entries survived a scan");
+			if (policy == Policy.TINY_LFU) {
+				assertThat(hot >= 90, is(true));
+			} else {
+				assertThat(hot, is(0));
+			}
+		}
+	}
+
+	/**
+	 * ・エントリを削除、全削除する。
+	 * ・削除したエントリが取得できず、削除した後に再び追加できることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testRemoveAndClear() throws Exception {
+		for (Policy policy : Policy.values()) {
+
+			///// 準備 /////
+
+			BoundedCache<Long, String> cache = new BoundedCache<Long, String>(10, policy);
+			cache.putIfAbsent(1L, "ItemA");
+			cache.putIfAbsent(2L, "ItemB");
+
+	        ///// テスト＆検証 /////
+
+			// 既にあるキーでは追加されない
+			assertThat(cache.putIfAbsent(1L, "ItemC"), is("ItemA"));
+
+			cache.remove(1L);
+			assertThat(cache.get(1L), is(nullValue()));
+			assertThat(cache.size(), is(1));
+
+			cache.clear();
+			assertThat(cache.size(), is(0));
+
+			for (long id = 0; id < 10; id++) {
+				assertThat(cache.putIfAbsent(id, "Item " + id), is(nullValue()));
+			}
+			assertThat(cache.size(), is(10));
+			assertThat(cache.getEvictionCount(), is(0L));
+		}
+	}
+
+	/**
+	 * ・最大エントリ数1,000のキャッシュに、16スレッドから並行して
+	 * 　読み込みと追加、削除を行う。
+	 * ・完了後にエントリの数が最大エントリ数を超えていないこと、
+	 * 　さらに追加すると最大エントリ数ちょうどで追い出しが行われる
+	 * 　こと（追い出しの順序のリストとMapが整合していること）を確認する。
+	 */
+	@Test
+	public void testConcurrentAccessKeepsBound() throws Exception {
+		for (Policy policy : Policy.values()) {
+
+			///// 準備 /////
+
+			final BoundedCache<Long, String> cache = new BoundedCache<Long, String>(1000, policy);
+			final int numThreads = 16;
+			ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+	        ///// テスト /////
+
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < numThreads; t++) {
+				final Random random = new Random(t);
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						for (int i = 0; i < 50000; i++) {
+							Long id = Long.valueOf(random.nextInt(5000));
+							int operation = random.nextInt(10);
+							if (operation < 7) {
+								cache.get(id);
+							} else if (operation < 9) {
+								cache.putIfAbsent(id, "Item " + id);
+							} else {
+								cache.remove(id);
+							}
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<Void> future : executor.invokeAll(tasks)) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			executor.shutdown();
+
+	        ///// 検証 /////
+
+			assertThat(cache.size() <= 1000, is(true));
+
+			for (long id = 10000; id < 12000; id++) {
+				cache.putIfAbsent(id, "Item " + id);
+			}
+			assertThat(cache.size(), is(1000));
+			logger.info(policy + " : " + cache.getEvictionCount() + " evictions");
+		}
+	}
+
+	/**
+	 * ・100,000件のキーからZipf分布（指数0.8と1.0）で選んだキーの
+	 * 　トレースを、最大エントリ数1,000のキャッシュで再生する。
+	 * 　（取得できなかった場合は追加する）
+	 * ・ポリシーごとのヒット率と所要時間をログに出力し、TINY_LFUの
+	 * 　ヒット率がLRUより高いことを確認する。
+	 */
+	@Test
+	public void testHitRateOnZipfianTrace() throws Exception {
+		for (double exponent : new double[] { 0.8, 1.0 }) {
+
+			///// 準備 /////
+
+			long[] trace = zipfTrace(100000, exponent, 1000000, new Random(42));
+
+	        ///// テスト /////
+
+			double[] hitRates = new double[Policy.values().length];
+			for (Policy policy : Policy.values()) {
+				BoundedCache<Long, String> cache = new BoundedCache<Long, String>(1000, policy);
+				long hits = 0;
+				long start = System.nanoTime();
+				for (long key : trace) {
+					Long id = Long.valueOf(key);
+					if (cache.get(id) != null) {
+						hits++;
+					} else {
+						cache.putIfAbsent(id, "Item " + id);
+					}
+				}
+				long elapsed = System.nanoTime() - start;
+
+				hitRates[policy.ordinal()] = (double) hits / trace.length;
+				logger.info("zipf " + exponent + ", " + policy + " : hit rate "
+						+ String.format("%.2f%%", hitRates[policy.ordinal()] * 100) + ", "
+						+ cache.getEvictionCount() + " evictions, "
+						+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+			}
+
+	        ///// 検証 /////
+
+			assertThat(hitRates[Policy.TINY_LFU.ordinal()] > hitRates[Policy.LRU.ordinal()], is(true));
+		}
+	}
+
+	/**
+	 * Zipf分布に従うキーのトレースを生成する
+	 * @param keys キーの数
+	 * @param exponent 分布の指数（大きいほど偏る）
+	 * @param length トレースの長さ
+	 */
+	private static long[] zipfTrace(int keys, double exponent, int length, Random random) {
+		double[] cumulative = new double[keys];
+		double sum = 0;
+		for (int i = 0; i < keys; i++) {
+			sum += 1.0 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+
+		// キーの番号と人気の順位が一致しないように並べ替える
+		long[] ids = new long[keys];
+		for (int i = 0; i < keys; i++) {
+			ids[i] = i;
+		}
+		for (int i = keys - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			long swap = ids[i];
+			ids[i] = ids[j];
+			ids[j] = swap;
+		}
+
+		long[] trace = new long[length];
+		for (int i = 0; i < length; i++) {
+			int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			if (rank < 0) {
+				rank = -rank - 1;
+			}
+			trace[i] = ids[Math.min(rank, keys - 1)];
+		}
+		return trace;
+	}
+}
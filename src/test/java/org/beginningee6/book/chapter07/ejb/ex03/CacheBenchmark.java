@@ -0,0 +1,164 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * シングルトン・セッションBeanのキャッシュに対して、読み込みと
+ * 書き込みを指定した割合で並行して実行するベンチマーク。
+ *
+ * 各スレッドは指定した数のキーからランダムに選んだキーで、
+ * 読み込み（getFromCache）か書き込み（addToCacheまたは
+ * removeFromCacheを半分ずつ）を実行する。全スレッドが揃ってから
+ * 一斉に開始し、全スレッドの操作が終わるまでの時間を計測する。
+ */
+public class CacheBenchmark {
+
+	/**
+	 * ベンチマークの対象となるキャッシュ
+	 */
+	public interface Cache {
+		Object get(Long id);
+		void add(Long id, Object object);
+		void remove(Long id);
+	}
+
+	private final Cache cache;
+
+	private int threads = 8;
+	private int operationsPerThread = 10000;
+	private int keys = 1000;
+	private int readPercent = 95;
+
+	public CacheBenchmark(Cache cache) {
+		this.cache = cache;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setOperationsPerThread(int operationsPerThread) {
+		this.operationsPerThread = operationsPerThread;
+	}
+
+	public void setKeys(int keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * 読み込みの割合を設定する
+	 * @param readPercent 読み込みの割合（残りは書き込み）
+	 */
+	public void setReadPercent(int readPercent) {
+		this.readPercent = readPercent;
+	}
+
+	/**
+	 * ベンチマークを実行する
+	 * @return 実行結果
+	 */
+	public Result run() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch go = new CountDownLatch(1);
+		List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			futures.add(executor.submit(new Callable<long[]>() {
+				public long[] call() throws Exception {
+					// 読み込み回数、ヒット数、書き込み回数
+					long[] counts = new long[3];
+					ready.countDown();
+					go.await();
+					for (int i = 0; i < operationsPerThread; i++) {
+						Long id = Long.valueOf(random.nextInt(keys));
+						if (random.nextInt(100) < readPercent) {
+							counts[0]++;
+							if (cache.get(id) != null) {
+								counts[1]++;
+							}
+						} else {
+							counts[2]++;
+							if (random.nextBoolean()) {
+								cache.add(id, "Item " + id);
+							} else {
+								cache.remove(id);
+							}
+						}
+					}
+					return counts;
+				}
+			}));
+		}
+		ready.await();
+		long start = System.nanoTime();
+		go.countDown();
+		long[] total = new long[3];
+		for (Future<long[]> future : futures) {
+			long[] counts = future.get(10, TimeUnit.MINUTES);
+			for (int i = 0; i < total.length; i++) {
+				total[i] += counts[i];
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		executor.shutdown();
+
+		return new Result(threads, total[0], total[1], total[2], elapsed);
+	}
+
+	/**
+	 * ベンチマークの実行結果
+	 */
+	public static class Result {
+
+		private final int threads;
+		private final long reads;
+		private final long hits;
+		private final long writes;
+		private final long elapsed;
+
+		Result(int threads, long reads, long hits, long writes, long elapsed) {
+			this.threads = threads;
+			this.reads = reads;
+			this.hits = hits;
+			this.writes = writes;
+			this.elapsed = elapsed;
+		}
+
+		public long getReads() {
+			return reads;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getWrites() {
+			return writes;
+		}
+
+		/**
+		 * スループットを取得する
+		 * @return 1秒あたりの操作数
+		 */
+		public long getThroughput() {
+			return (reads + writes) * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsed);
+		}
+
+		@Override
+		public String toString() {
+			return threads + " threads : " + (reads + writes) + " operations ("
+					+ reads + " reads, " + writes + " writes) in "
+					+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+					+ getThroughput() + " ops/s";
+		}
+	}
+}
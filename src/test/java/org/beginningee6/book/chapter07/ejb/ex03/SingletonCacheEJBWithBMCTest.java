@@ -3,6 +3,18 @@ package org.beginningee6.book.chapter07.ejb.ex03;
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
 import javax.ejb.EJB;
 
 import org.beginningee6.book.chapter07.ejb.ex03.SingletonCacheEJBWithBMC;
@@ -22,6 +34,9 @@ import org.junit.runner.RunWith;
  */
 @RunWith(Arquillian.class)
 public class SingletonCacheEJBWithBMCTest {
+	
+	private static final Logger logger = Logger.getLogger(SingletonCacheEJBWithBMCTest.class
+			.getName());
 
 	@Deployment
 	public static Archive<?> createDeployment() {
@@ -35,10 +50,17 @@ public class SingletonCacheEJBWithBMCTest {
 
 	@EJB
 	SingletonCacheEJBWithBMC cacheEJB;	// シングルトン・セッションBeanを注入
+	
+	@EJB
+	SynchronizedSingletonCacheEJB synchronizedCacheEJB;	// 比較用の従来の実装
 
 	@Before
 	public void setUp() throws Exception {
+		// 他のテストで変更された設定を初期値に戻す
+		cacheEJB.setEvictionPolicy(BoundedCache.Policy.TINY_LFU);
+		cacheEJB.setMaxEntries(SingletonCacheEJBWithBMC.DEFAULT_MAX_ENTRIES);
 		cacheEJB.clearcCache();
+		synchronizedCacheEJB.clearcCache();
 	}
 	
 	/**
@@ -214,5 +236,181 @@ public class SingletonCacheEJBWithBMCTest {
 
 		assertThat(cacheEJB.getNumberOfItems(), is(1));
 	}
+	
+	/**
+	 * ・16スレッドが一斉に、同じ1,000件のキーに対してスレッドごとに
+	 * 　異なる値のエントリを追加する。
+	 * ・キーごとに1つの値だけが保持され、すべてのスレッドが追加後に
+	 * 　取得した値がその値と等しいこと（後から追加した値で
+	 * 　上書きされないこと）を確認する。
+	 * ・続いて、16スレッドが一斉に偶数のキーのエントリを削除し、
+	 * 　奇数のキーのエントリだけが残ることを確認する。
+	 */
+	@Test
+	public void testConcurrentAddAndRemove() throws Exception {
+		
+		///// 準備 /////
+		
+		final int numThreads = 16;
+		final int numKeys = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		final CountDownLatch go = new CountDownLatch(1);
+
+        ///// テスト /////
+        
+		List<Future<Object[]>> adds = new ArrayList<Future<Object[]>>();
+		for (int t = 0; t < numThreads; t++) {
+			final String value = "Thread " + t;
+			adds.add(executor.submit(new Callable<Object[]>() {
+				public Object[] call() throws Exception {
+					go.await();
+					Object[] seen = new Object[numKeys];
+					for (long id = 0; id < numKeys; id++) {
+						cacheEJB.addToCache(id, value);
+						seen[(int) id] = cacheEJB.getFromCache(id);
+					}
+					return seen;
+				}
+			}));
+		}
+		go.countDown();
+		List<Object[]> seen = new ArrayList<Object[]>();
+		for (Future<Object[]> add : adds) {
+			seen.add(add.get(60, TimeUnit.SECONDS));
+		}
+		
+		final CountDownLatch goRemove = new CountDownLatch(1);
+		List<Future<Void>> removes = new ArrayList<Future<Void>>();
+		for (int t = 0; t < numThreads; t++) {
+			removes.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					goRemove.await();
+					for (long id = 0; id < numKeys; id += 2) {
+						cacheEJB.removeFromCache(id);
+					}
+					return null;
+				}
+			}));
+		}
+		goRemove.countDown();
+		for (Future<Void> remove : removes) {
+			remove.get(60, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+        
+        ///// 検証 /////
+        
+		Set<Object> winners = new HashSet<Object>();
+		for (int id = 0; id < numKeys; id++) {
+			Object winner = seen.get(0)[id];
+			assertThat(winner, is(notNullValue()));
+			for (Object[] threadSeen : seen) {
+				assertThat(threadSeen[id], is(winner));
+			}
+			winners.add(winner);
+			
+			if (id % 2 == 0) {
+				assertThat(cacheEJB.getFromCache((long) id), is(nullValue()));
+			} else {
+				assertThat(cacheEJB.getFromCache((long) id), is(winner));
+			}
+		}
+		assertThat(cacheEJB.getNumberOfItems(), is(numKeys / 2));
+		logger.info(winners.size() + " threads won at least one key");
+	}
+	
+	/**
+	 * ・読み込み9割、書き込み1割の操作を、1、8、32スレッドから
+	 * 　1,000件のキーに対して並行して実行する。
+	 * ・HashMapをsynchronizedで保護した従来の実装と、このBeanの
+	 * 　スループットをログに出力する。
+	 * ・いずれも、すべての操作が完了することを確認する。
+	 */
+	@Test
+	public void testThroughputAgainstSynchronizedHashMap() throws Exception {
+		
+		///// 準備 /////
+		
+		CacheBenchmark.Cache concurrent = new CacheBenchmark.Cache() {
+			public Object get(Long id) {
+				return cacheEJB.getFromCache(id);
+			}
+			public void add(Long id, Object object) {
+				cacheEJB.addToCache(id, object);
+			}
+			public void remove(Long id) {
+				cacheEJB.removeFromCache(id);
+			}
+		};
+		CacheBenchmark.Cache synchronizedMap = new CacheBenchmark.Cache() {
+			public Object get(Long id) {
+				return synchronizedCacheEJB.getFromCache(id);
+			}
+			public void add(Long id, Object object) {
+				synchronizedCacheEJB.addToCache(id, object);
+			}
+			public void remove(Long id) {
+				synchronizedCacheEJB.removeFromCache(id);
+			}
+		};
+
+        ///// テスト＆検証 /////
+        
+		for (int threads : new int[] { 1, 8, 32 }) {
+			CacheBenchmark.Result before = benchmark(synchronizedMap, threads);
+			CacheBenchmark.Result after = benchmark(concurrent, threads);
+			
+			logger.info("synchronized HashMap : " + before);
+			logger.info("ConcurrentHashMap    : " + after);
+			
+			assertThat(before.getReads() + before.getWrites(), is(threads * 20000L));
+			assertThat(after.getReads() + after.getWrites(), is(threads * 20000L));
+		}
+	}
+	
+	private static CacheBenchmark.Result benchmark(CacheBenchmark.Cache cache, int threads) 
+			throws Exception {
+		CacheBenchmark benchmark = new CacheBenchmark(cache);
+		benchmark.setThreads(threads);
+		benchmark.setOperationsPerThread(20000);
+		benchmark.setKeys(1000);
+		benchmark.setReadPercent(90);
+		return benchmark.run();
+	}
+	
+	/**
+	 * ・エントリの最大数を100に設定し、ポリシーごとに1,000件の
+	 * 　エントリを追加する。
+	 * ・キャッシュにあるエントリの件数が100件で、追い出した
+	 * 　エントリの数が900件であることを確認する。
+	 * ・LRUでは最後に追加したエントリが残ることを確認する。
+	 */
+	@Test
+	public void testEvictWhenCacheIsFull() throws Exception {
+		for (BoundedCache.Policy policy : BoundedCache.Policy.values()) {
+			
+			///// 準備 /////
+			
+			cacheEJB.setEvictionPolicy(policy);
+			cacheEJB.setMaxEntries(100);
+
+	        ///// テスト /////
+	        
+			for (long id = 0; id < 1000; id++) {
+				cacheEJB.addToCache(id, "Item " + id);
+			}
+	        
+	        ///// 検証 /////
+	        
+			assertThat(cacheEJB.getMaxEntries(), is(100));
+			assertThat(cacheEJB.getEvictionPolicy(), is(policy));
+			assertThat(cacheEJB.getNumberOfItems(), is(100));
+			assertThat(cacheEJB.getEvictionCount(), is(900L));
+			if (policy == BoundedCache.Policy.LRU) {
+				assertThat((String) cacheEJB.getFromCache(999L), is("Item 999"));
+				assertThat(cacheEJB.getFromCache(0L), is(nullValue()));
+			}
+		}
+	}
 
-}
\ No newline at end of file
+}
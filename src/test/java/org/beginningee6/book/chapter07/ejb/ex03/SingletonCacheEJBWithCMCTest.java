@@ -38,6 +38,9 @@ public class SingletonCacheEJBWithCMCTest {
 
 	@Before
 	public void setUp() throws Exception {
+		// 他のテストで変更された設定を初期値に戻す
+		cacheEJB.setEvictionPolicy(BoundedCache.Policy.TINY_LFU);
+		cacheEJB.setMaxEntries(SingletonCacheEJBWithCMC.DEFAULT_MAX_ENTRIES);
 		cacheEJB.clearCache();
 	}
 	
@@ -211,5 +214,40 @@ public class SingletonCacheEJBWithCMCTest {
 
 		assertThat(cacheEJB.getNumberOfItems(), is(1));
 	}
+	
+	/**
+	 * ・エントリの最大数を100に設定し、ポリシーごとに1,000件の
+	 * 　エントリを追加する。
+	 * ・キャッシュにあるエントリの件数が100件で、追い出した
+	 * 　エントリの数が900件であることを確認する。
+	 * ・LRUでは最後に追加したエントリが残ることを確認する。
+	 */
+	@Test
+	public void testEvictWhenCacheIsFull() throws Exception {
+		for (BoundedCache.Policy policy : BoundedCache.Policy.values()) {
+			
+			///// 準備 /////
+			
+			cacheEJB.setEvictionPolicy(policy);
+			cacheEJB.setMaxEntries(100);
+
+	        ///// テスト /////
+	        
+			for (long id = 0; id < 1000; id++) {
+				cacheEJB.addToCache(id, "Item " + id);
+			}
+	        
+	        ///// 検証 /////
+	        
+			assertThat(cacheEJB.getMaxEntries(), is(100));
+			assertThat(cacheEJB.getEvictionPolicy(), is(policy));
+			assertThat(cacheEJB.getNumberOfItems(), is(100));
+			assertThat(cacheEJB.getEvictionCount(), is(900L));
+			if (policy == BoundedCache.Policy.LRU) {
+				assertThat((String) cacheEJB.getFromCache(999L), is("Item 999"));
+				assertThat(cacheEJB.getFromCache(0L), is(nullValue()));
+			}
+		}
+	}
 
-}
\ No newline at end of file
+}
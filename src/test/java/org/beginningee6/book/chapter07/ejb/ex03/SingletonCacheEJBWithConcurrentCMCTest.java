@@ -0,0 +1,284 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+
+import org.beginningee6.book.chapter07.ejb.ex03.SingletonCacheEJBWithConcurrentCMC;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * コンテナにより同時実行制御が行われ、すべてのメソッドを
+ * LockType.READで実行するシングルトン・セッションBeanのテスト。
+ */
+@RunWith(Arquillian.class)
+public class SingletonCacheEJBWithConcurrentCMCTest {
+	
+	private static final Logger logger = Logger.getLogger(SingletonCacheEJBWithConcurrentCMCTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(SingletonCacheEJBWithConcurrentCMC.class.getPackage())
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@EJB
+	SingletonCacheEJBWithConcurrentCMC cacheEJB;		// シングルトン・セッションBeanを注入
+	
+	@EJB
+	SingletonCacheEJBWithCMC writeLockCacheEJB;		// 比較用のLockType.WRITEを使う実装
+
+	@Before
+	public void setUp() throws Exception {
+		cacheEJB.clearCache();
+		writeLockCacheEJB.clearCache();
+	}
+	
+	/**
+	 * ・シングルトン・セッションBeanの持つキャッシュが
+	 * 　空の状態で、idを指定してデータを取得する。
+	 * ・結果としてnullが取得され、かつ、キャッシュにある
+	 * 　エントリの件数は0であることを確認する。
+	 */
+	@Test
+	public void testGetFromCacheWhenCacheIsEmpty() throws Exception {
+		
+		///// 準備 /////
+		
+		Object returned = cacheEJB.getFromCache(1L);
+        
+        ///// 検証 /////
+        
+		// nullが返却される⇒データは取得できていない
+		assertThat(returned, is(nullValue()));
+		assertThat(cacheEJB.getNumberOfItems(), is(0));
+	}
+	
+	/**
+	 * シングルトン・セッションBeanの持つキャッシュに
+	 * 1件のエントリがある状態で、そのエントリのキーを
+	 * 指定して値が取得できることを確認する。
+	 */
+	@Test
+	public void testAddItemAToCacheWhenCacheIsEmpty() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.addToCache(1L, "ItemA");
+        
+        ///// 検証 /////
+        
+		String returned = (String)cacheEJB.getFromCache(1L);
+		
+		// データが取得できている
+		assertThat(returned, is("ItemA"));
+		assertThat(cacheEJB.getNumberOfItems(), is(1));
+	}
+	
+	/**
+	 * シングルトン・セッションBeanの持つキャッシュに
+	 * 1件のエントリがある状態で、そのエントリの値が
+	 * 書き換えられないことを確認する。
+	 * 
+	 * （SingletonCacheEJBWithConcurrentCMCクラスの実装で、
+	 * 　idで指定したキーのエントリが既に存在している場合は無視
+	 * 　するようになっているため。）
+	 */
+	@Test
+	public void testAddItemBToCacheWhenCacheHasItemAWithSameKey() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.addToCache(1L, "ItemA");
+
+        ///// テスト /////
+        
+		cacheEJB.addToCache(1L, "ItemB");
+        
+        ///// 検証 /////
+        
+		String returned = (String)cacheEJB.getFromCache(1L);
+		
+		// 最初に設定したデータが取得される
+		assertThat(returned, is("ItemA"));
+		assertThat(cacheEJB.getNumberOfItems(), is(1));
+	}
+
+	/**
+	 * ・シングルトン・セッションBeanの持つキャッシュが
+	 * 　空の状態で、それぞれキーの異なるエントリをキャッシュに
+	 * 　2件追加する。
+	 * ・キャッシュにあるエントリの件数が2件であること、
+	 * 　追加時に指定したキーでキャッシュから値が取り出せることを
+	 * 　確認する。
+	 */
+	@Test
+	public void testAddItemBToCacheWhenCacheHasItemAWithDifferentKey() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.addToCache(1L, "ItemA");
+
+        ///// テスト /////
+        
+		cacheEJB.addToCache(2L, "ItemB");
+        
+        ///// 検証 /////
+        
+		String returnedA = (String)cacheEJB.getFromCache(1L);
+		assertThat(returnedA, is("ItemA"));
+		String returnedB = (String)cacheEJB.getFromCache(2L);
+		assertThat(returnedB, is("ItemB"));
+
+		assertThat(cacheEJB.getNumberOfItems(), is(2));
+	}
+	
+	/**
+	 * ・シングルトン・セッションBeanの持つキャッシュが
+	 * 　空の状態で、（存在しないキー）のエントリを削除し、
+	 * 　エントリの件数に変化が無いことを確認する。
+	 * 
+	 * （SingletonCacheEJBWithConcurrentCMCクラスの実装で、
+	 * 　指定したキーのエントリが存在しない場合は無視する
+	 * 　ようになっているため。）
+	 */
+	@Test
+	public void testRemoveItemFromCacheWhenCacheIsEmpty() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.removeFromCache(1L);
+        
+        ///// 検証 /////
+        
+		assertThat(cacheEJB.getNumberOfItems(), is(0));
+	}
+	
+	/**
+	 * シングルトン・セッションBeanの持つキャッシュに
+	 * 1件のエントリがある状態で、そのエントリのキーを
+	 * 指定してエントリが削除できることを確認する。
+	 */
+	@Test
+	public void testRemoveItemFromCacheWhenCacheHasItemWithSameKey() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.addToCache(1L, "ItemA");
+
+        ///// テスト /////
+        
+		cacheEJB.removeFromCache(1L);
+        
+        ///// 検証 /////
+        
+		assertThat(cacheEJB.getNumberOfItems(), is(0));
+	}
+	
+	/**
+	 * ・シングルトン・セッションBeanの持つキャッシュに
+	 * 　1件のエントリがある状態で、そのエントリは異なるキー
+	 * 　を指定してエントリを削除しても、エントリの件数に変化が
+	 * 　無いことを確認する。
+	 * 
+	 * （SingletonCacheEJBWithConcurrentCMCクラスの実装で、
+	 * 　指定したキーのエントリが存在しない場合は無視する
+	 * 　ようになっているため。）
+	 */
+	@Test
+	public void testRemoveItemFromCacheWhenCacheHasItemWithDirrefentKey() throws Exception {
+		
+		///// 準備 /////
+		
+		cacheEJB.addToCache(1L, "ItemA");
+
+        ///// テスト /////
+        
+		cacheEJB.removeFromCache(2L);
+        
+        ///// 検証 /////
+        
+		String returned1 = (String)cacheEJB.getFromCache(1L);
+		assertThat(returned1, is("ItemA"));
+		String returned2 = (String)cacheEJB.getFromCache(2L);
+		assertThat(returned2, is(nullValue()));
+
+		assertThat(cacheEJB.getNumberOfItems(), is(1));
+	}
+	
+	/**
+	 * ・読み込み95%、書き込み5%の操作を、1、8、32、128スレッドから
+	 * 　1,000件のキーに対して並行して実行する。
+	 * ・書き込みにLockType.WRITEを使うSingletonCacheEJBWithCMCと、
+	 * 　このBeanのスループットをログに出力する。
+	 * ・いずれも、すべての操作が完了することを確認する。
+	 */
+	@Test
+	public void testThroughputAgainstWriteLock() throws Exception {
+		
+		///// 準備 /////
+		
+		CacheBenchmark.Cache readLock = new CacheBenchmark.Cache() {
+			public Object get(Long id) {
+				return cacheEJB.getFromCache(id);
+			}
+			public void add(Long id, Object object) {
+				cacheEJB.addToCache(id, object);
+			}
+			public void remove(Long id) {
+				cacheEJB.removeFromCache(id);
+			}
+		};
+		CacheBenchmark.Cache writeLock = new CacheBenchmark.Cache() {
+			public Object get(Long id) {
+				return writeLockCacheEJB.getFromCache(id);
+			}
+			public void add(Long id, Object object) {
+				writeLockCacheEJB.addToCache(id, object);
+			}
+			public void remove(Long id) {
+				writeLockCacheEJB.removeFromCache(id);
+			}
+		};
+
+        ///// テスト＆検証 /////
+        
+		for (int threads : new int[] { 1, 8, 32, 128 }) {
+			CacheBenchmark.Result before = benchmark(writeLock, threads);
+			CacheBenchmark.Result after = benchmark(readLock, threads);
+			
+			logger.info("@Lock(WRITE) : " + before);
+			logger.info("@Lock(READ)  : " + after);
+			
+			assertThat(before.getReads() + before.getWrites(), is(threads * 5000L));
+			assertThat(after.getReads() + after.getWrites(), is(threads * 5000L));
+		}
+	}
+	
+	private static CacheBenchmark.Result benchmark(CacheBenchmark.Cache cache, int threads) 
+			throws Exception {
+		CacheBenchmark benchmark = new CacheBenchmark(cache);
+		benchmark.setThreads(threads);
+		benchmark.setOperationsPerThread(5000);
+		benchmark.setKeys(1000);
+		benchmark.setReadPercent(95);
+		return benchmark.run();
+	}
+
+}
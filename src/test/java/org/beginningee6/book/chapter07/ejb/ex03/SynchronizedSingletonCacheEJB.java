@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter07.ejb.ex03;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * SingletonCacheEJBWithBMCのテストで、従来の実装と比較するための
+ * シングルトン・セッションBean。
+ * 
+ * HashMapをsynchronizedキーワードによりインスタンス全体のロックで
+ * 保護する従来の実装である。従来の実装では読み込みを同期していなかった
+ * ため、書き込みと同時に読み込むとHashMapの内部状態が壊れる
+ * おそれがある。比較のテストを安全に実行できるように、ここでは
+ * 読み込みも同期している。
+ */
+@Singleton	// シングルトン・セッションBeanであることを宣言する
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)	// Bean管理の同時実行制御
+public class SynchronizedSingletonCacheEJB {
+	
+	// キャッシュとして保持するMap
+	private Map<Long, Object> cache = new HashMap<Long, Object>();
+	
+	public synchronized void addToCache(Long id, Object object) {
+		if (!cache.containsKey(id)) {
+			cache.put(id, object);
+		}
+	}
+	
+	public synchronized void removeFromCache(Long id) {
+		if (cache.containsKey(id)) {
+			cache.remove(id);
+		}
+	}
+	
+	public synchronized void clearcCache() {
+		cache.clear();
+	}
+	
+	public synchronized Object getFromCache(Long id) {
+		if (cache.containsKey(id)) {
+			return cache.get(id);
+		} else {
+			return null;
+		}
+	}
+	
+	public synchronized Integer getNumberOfItems() {
+		return cache.size();
+	}
+}